@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.data.storage
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent}
+import org.apache.curator.framework.state.{ConnectionState, ConnectionStateListener}
+import org.apache.zookeeper.Watcher.Event.EventType
+import org.apache.zookeeper.data.Stat
+import org.apache.zookeeper.{WatchedEvent, Watcher}
+
+private[storage] object ObjectCache {
+    val MAX_ENTRIES = 64 * 1024
+
+    /**
+     * The data of an object's node, with the version and the zxid of the
+     * last modification of the node at the time it was read.
+     */
+    final class Entry(val data: Array[Byte], val version: Int,
+                      val mzxid: Long)
+}
+
+/**
+ * A process-wide cache of the nodes that ZookeeperObjectMapper transactions
+ * read, keyed by the path of the node, and thus by the class and ID of the
+ * object it stores.
+ *
+ * Nodes are read with a watch, and their entries are removed when the watch
+ * fires because the node changed or was deleted. All the entries are removed
+ * when the connection to Zookeeper is suspended or lost, since watches may be
+ * lost with it. An entry may still be stale for a short while, until the
+ * watch notification arrives, but transactions write every object they read
+ * conditionally on its version, so a stale entry makes the transaction fail
+ * with a ConcurrentModificationException rather than commit stale data. The
+ * caller should invalidate the entries that took part in a failed
+ * transaction so that a retry reads them again.
+ *
+ * The watch of a node fires when a transaction of this process writes it,
+ * so the nodes written are read again in the background to cache their new
+ * version and re-arm their watch.
+ *
+ * The cache keeps the serialized data rather than the objects because
+ * transactions modify the objects they read to update back references.
+ */
+private[storage]
+class ObjectCache(curator: CuratorFramework, registry: MetricRegistry,
+                  maxEntries: Int = ObjectCache.MAX_ENTRIES) {
+    import ObjectCache._
+
+    val hits = registry.meter(name(classOf[ObjectCache], "hits"))
+    val misses = registry.meter(name(classOf[ObjectCache], "misses"))
+
+    private val entries = new ConcurrentHashMap[String, Entry]()
+
+    // Incremented on every invalidation, so that a read that races with the
+    // invalidation of its node doesn't leave a stale entry behind.
+    private val generation = new AtomicLong()
+
+    private val watcher = new Watcher {
+        override def process(event: WatchedEvent): Unit = {
+            if (event.getType != EventType.None && (event.getPath ne null))
+                invalidate(event.getPath)
+        }
+    }
+
+    curator.getConnectionStateListenable.addListener(
+        new ConnectionStateListener {
+            override def stateChanged(client: CuratorFramework,
+                                      state: ConnectionState): Unit = {
+                if (state != ConnectionState.CONNECTED)
+                    clear()
+            }
+        })
+
+    /**
+     * Returns the entry of the node at the given path, reading it from
+     * Zookeeper if it isn't cached. The exceptions thrown by Curator,
+     * including NoNodeException, are propagated.
+     */
+    @throws[Exception]
+    def get(path: String): Entry = {
+        val entry = entries.get(path)
+        if (entry ne null) {
+            hits.mark()
+            entry
+        } else {
+            misses.mark()
+            load(path)
+        }
+    }
+
+    private def load(path: String): Entry = {
+        val gen = generation.get
+        val stat = new Stat()
+        val data = curator.getData.storingStatIn(stat)
+                          .usingWatcher(watcher).forPath(path)
+        val entry = new Entry(data, stat.getVersion, stat.getMzxid)
+        if (entries.size < maxEntries) {
+            entries.put(path, entry)
+            if (generation.get != gen)
+                entries.remove(path, entry)
+        }
+        entry
+    }
+
+    /**
+     * Reads the node at the given path in the background and caches it. This
+     * re-arms the watch of a node written by this process, whose watch fired
+     * when it was written. The callback runs on the Zookeeper event thread,
+     * after any watch notification for the node that preceded the read, so
+     * the entry it caches is at least as recent as the last invalidation.
+     */
+    def refresh(path: String): Unit = {
+        try {
+            curator.getData.usingWatcher(watcher).inBackground(refreshCallback)
+                   .forPath(path)
+        } catch {
+            case e: Exception => invalidate(path)
+        }
+    }
+
+    private val refreshCallback = new BackgroundCallback {
+        override def processResult(client: CuratorFramework,
+                                   event: CuratorEvent): Unit = {
+            val stat = event.getStat
+            if ((stat ne null) && entries.size < maxEntries) {
+                entries.put(event.getPath, new Entry(event.getData,
+                                                     stat.getVersion,
+                                                     stat.getMzxid))
+            }
+        }
+    }
+
+    /** Returns the entry of the node at the given path, if cached. */
+    def cached(path: String): Entry = entries.get(path)
+
+    /** Removes the entry of the node at the given path. */
+    def invalidate(path: String): Unit = {
+        generation.incrementAndGet()
+        entries.remove(path)
+    }
+
+    /** Removes all the entries. */
+    def clear(): Unit = {
+        generation.incrementAndGet()
+        entries.clear()
+    }
+
+    def size: Int = entries.size
+}
@@ -144,6 +144,21 @@ trait Storage {
      */
     def getAll[T](clazz: Class[T]): Future[Seq[Future[T]]]
 
+    /**
+     * Asynchronous method that gets the specified instances of the specified
+     * class from storage as a single sequence, in the same order as the IDs.
+     * The future fails with a NotFoundException if any of the objects does
+     * not exist. Prefer this method to getAll() when reading many objects.
+     */
+    def getBulk[T](clazz: Class[T], ids: Seq[_ <: ObjId]): Future[Seq[T]]
+
+    /**
+     * Asynchronous method that gets all the instances of the specified class
+     * from storage as a single sequence. Objects deleted while they are being
+     * read are left out of the sequence.
+     */
+    def getAllBulk[T](clazz: Class[T]): Future[Seq[T]]
+
 
     /**
      * Asynchronous method that indicated if the specified object exists in the
@@ -104,6 +104,13 @@ class ClassSubscriptionCache[T](val clazz: Class[T],
         pathCache.connect(path)
     }
 
+    /**
+     * Returns the data of the child at the given path, or null if the cache
+     * doesn't have it, either because it doesn't exist or because the cache
+     * hasn't loaded it yet.
+     */
+    def cachedData(childPath: String): ChildData = pathCache.child(childPath)
+
     def subscribe(observer: Observer[_ >: Observable[T]]): Subscription = {
         refCount.incrementAndGet()
         val subj = PublishSubject.create[Observable[ChildData]]()
@@ -17,6 +17,7 @@ package org.midonet.cluster.data.storage
 
 import java.io.StringWriter
 import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.{ConcurrentModificationException, List => JList}
 
 import scala.async.Async.async
@@ -24,15 +25,17 @@ import scala.collection.JavaConverters._
 import scala.collection.concurrent.TrieMap
 import scala.collection.{Set, mutable}
 import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.{Failure, Success}
 
+import com.codahale.metrics.MetricRegistry
 import com.google.common.collect.ArrayListMultimap
-import com.google.protobuf.{Message, TextFormat}
+import com.google.protobuf.{CodedOutputStream, Message, TextFormat}
 
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal
 import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent, CuratorEventType}
 import org.apache.curator.utils.EnsurePath
-import org.apache.zookeeper.KeeperException.{BadVersionException, NoNodeException, NodeExistsException}
+import org.apache.zookeeper.KeeperException.{BadVersionException, Code, NoNodeException, NodeExistsException}
 import org.apache.zookeeper.OpResult.ErrorResult
 import org.apache.zookeeper.data.Stat
 import org.apache.zookeeper.{CreateMode, KeeperException}
@@ -89,13 +92,22 @@ import org.midonet.cluster.data.storage.FieldBinding.DeleteAction
  *
  * declareBinding(Port.class, "peerId", CLEAR,
  * Port.class, "peerId", CLEAR);
+ *
+ * Protobuf objects are stored in the binary protobuf format, prefixed by a
+ * format byte, and POJOs are stored as JSON. Objects stored in the text
+ * protobuf format by earlier versions can still be read, and reencode()
+ * rewrites them in the binary format.
  */
 class ZookeeperObjectMapper(private val basePath: String,
-                            private val curator: CuratorFramework)
+                            private val curator: CuratorFramework,
+                            metricRegistry: MetricRegistry)
                             extends Storage {
     import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
     @volatile private var built = false
 
+    def this(basePath: String, curator: CuratorFramework) =
+        this(basePath, curator, new MetricRegistry)
+
     private val locksPath = basePath + "/zoomlocks/lock"
 
     private val allBindings = ArrayListMultimap.create[Class[_], FieldBinding]()
@@ -113,6 +125,8 @@ class ZookeeperObjectMapper(private val basePath: String,
         Class[_], TrieMap[String, InstanceSubscriptionCache[_]]]
     private val classCaches = new TrieMap[Class[_], ClassSubscriptionCache[_]]
 
+    private[storage] val objectCache = new ObjectCache(curator, metricRegistry)
+
     /**
      * Manages objects referenced by the primary target of a create, update,
      * or delete operation.
@@ -123,6 +137,10 @@ class ZookeeperObjectMapper(private val basePath: String,
      * object loaded from Zookeeper will not have the first backreference
      * added. Since updates are not incremental, the first backreference will
      * be lost.
+     *
+     * Objects not read yet in the transaction are read through the
+     * process-wide object cache, which is validated at commit time by
+     * writing every object read conditionally on its cached version.
      */
     private class TransactionManager {
         private final val NEW_OBJ_VERSION = -1
@@ -166,24 +184,21 @@ class ZookeeperObjectMapper(private val basePath: String,
 
         private def getWithVersion[T](clazz: Class[T],
                                       id: ObjId): ObjWithVersion[T] = {
-            val stat = new Stat()
             val path = getPath(clazz, id)
-            val data = try {
-                curator.getData.storingStatIn(stat).forPath(path)
-            } catch {
+            val entry = try objectCache.get(path) catch {
                 case nne: NoNodeException =>
                     throw new NotFoundException(clazz, id)
                 case ex: Exception =>
                     throw new InternalObjectMapperException(ex)
             }
 
-            if (stat.getMzxid > zxid) {
+            if (entry.mzxid > zxid) {
                 throw new ConcurrentModificationException(
                     s"${clazz.getSimpleName} with ID $id was modified " +
                     "during the transaction.")
             }
 
-            ObjWithVersion(deserialize(data, clazz), stat.getVersion)
+            ObjWithVersion(deserialize(entry.data, clazz), entry.version)
         }
 
         /**
@@ -359,7 +374,17 @@ class ZookeeperObjectMapper(private val basePath: String,
                     throw new ConcurrentModificationException(ex)
                 case ex: Exception =>
                     throw new InternalObjectMapperException(ex)
+            } finally {
+                // The cached versions of the nodes written are stale if the
+                // transaction committed, and may be if it failed.
+                for ((Key(clazz, id), _) <- toUpdate)
+                    objectCache.invalidate(getPath(clazz, id))
+                for (Key(clazz, id) <- objsToDelete.keys)
+                    objectCache.invalidate(getPath(clazz, id))
             }
+
+            for ((Key(clazz, id), _) <- toCreate ++ toUpdate)
+                objectCache.refresh(getPath(clazz, id))
         }
 
         def releaseLock(): Unit = try {
@@ -609,6 +634,129 @@ class ZookeeperObjectMapper(private val basePath: String,
         p.future
     }
 
+    /**
+     * Gets the specified instances of the specified class from Zookeeper as a
+     * single sequence. See bulkRead().
+     */
+    override def getBulk[T](clazz: Class[T],
+                            ids: Seq[_ <: ObjId]): Future[Seq[T]] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+        bulkRead(clazz, ids.toIndexedSeq, skipMissing = false)
+    }
+
+    /**
+     * Gets all instances of the specified class from Zookeeper as a single
+     * sequence. See bulkRead().
+     */
+    override def getAllBulk[T](clazz: Class[T]): Future[Seq[T]] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+
+        val p = Promise[Seq[T]]()
+        val cb = new BackgroundCallback {
+            override def processResult(client: CuratorFramework,
+                                       evt: CuratorEvent): Unit = {
+                assert(CuratorEventType.CHILDREN == evt.getType)
+                p.completeWith(bulkRead(clazz, evt.getChildren.asScala.toIndexedSeq,
+                                        skipMissing = true))
+            }
+        }
+
+        try {
+            curator.getChildren.inBackground(cb).forPath(getPath(clazz))
+        } catch {
+            case ex: Exception =>
+                throw new InternalObjectMapperException(
+                    s"Node ${getPath(clazz)} does not exist in Zookeeper.", ex)
+        }
+        p.future
+    }
+
+    /**
+     * Reads the specified objects, keeping at most maxInFlight reads to
+     * Zookeeper outstanding at any time: every read that completes issues the
+     * next one. The objects are deserialized on the executor rather than on
+     * the Curator event thread, and those whose data is in the class's
+     * subscription cache, if one exists, are not read from Zookeeper.
+     *
+     * The future completes with the objects in the same order as the IDs, or
+     * fails with the first error. Objects that don't exist are left out if
+     * skipMissing is set, otherwise the future fails with a
+     * NotFoundException. Any other Zookeeper error fails the future with the
+     * corresponding KeeperException.
+     */
+    private[storage] def bulkRead[T](clazz: Class[T], ids: IndexedSeq[ObjId],
+                                     skipMissing: Boolean,
+                                     maxInFlight: Int = BULK_READ_WINDOW)
+    : Future[Seq[T]] = {
+        if (ids.isEmpty)
+            return Promise.successful(Seq.empty[T]).future
+
+        val p = Promise[Seq[T]]()
+        val results = new Array[Any](ids.size)
+        val remaining = new AtomicInteger(ids.size)
+        val next = new AtomicInteger(0)
+        val classCache = classCaches.get(clazz)
+
+        def completed(index: Int, obj: Any): Unit = {
+            results(index) = obj
+            if (remaining.decrementAndGet() == 0) {
+                p.trySuccess(results.filter(_ != None)
+                                    .map(_.asInstanceOf[T]).toSeq)
+            }
+        }
+
+        def decode(index: Int, data: Array[Byte]): Unit = {
+            Future { deserialize(data, clazz) } onComplete {
+                case Success(obj) => completed(index, obj)
+                case Failure(t) => p.tryFailure(t)
+            }
+        }
+
+        lazy val cb: BackgroundCallback = new BackgroundCallback {
+            override def processResult(client: CuratorFramework,
+                                       evt: CuratorEvent): Unit = {
+                val index = evt.getContext.asInstanceOf[Int]
+                Code.get(evt.getResultCode) match {
+                    case Code.OK => decode(index, evt.getData)
+                    case Code.NONODE if skipMissing => completed(index, None)
+                    case Code.NONODE =>
+                        p.tryFailure(new NotFoundException(clazz, ids(index)))
+                    case code =>
+                        p.tryFailure(KeeperException.create(code, evt.getPath))
+                }
+                readNext()
+            }
+        }
+
+        def readNext(): Unit = {
+            while (!p.isCompleted) {
+                val index = next.getAndIncrement()
+                if (index >= ids.size)
+                    return
+                val path = getPath(clazz, ids(index))
+                val cached = classCache match {
+                    case Some(cache) => cache.cachedData(path)
+                    case None => null
+                }
+                if (cached ne null) {
+                    decode(index, cached.getData)
+                } else try {
+                    curator.getData.inBackground(cb, index).forPath(path)
+                    return
+                } catch {
+                    case ex: Exception =>
+                        p.tryFailure(new InternalObjectMapperException(ex))
+                }
+            }
+        }
+
+        for (_ <- 0 until Math.min(maxInFlight, ids.size))
+            readNext()
+        p.future
+    }
+
     /**
      * Returns true if the specified object exists in Zookeeper.
      */
@@ -661,6 +809,49 @@ class ZookeeperObjectMapper(private val basePath: String,
     @throws[ReferenceConflictException]
     override def multi(ops: JList[PersistenceOp]): Unit = multi(ops.asScala)
 
+    /**
+     * Rewrites the objects of the registered protobuf classes that are still
+     * stored in the legacy text format using the binary format. This runs in
+     * the background and completes with the number of objects rewritten.
+     *
+     * An object that is modified or deleted while it is being rewritten is
+     * skipped, since the update already stores it in the binary format.
+     * Subscribers to a rewritten object are notified of an unchanged object.
+     */
+    def reencode(): Future[Int] = {
+        assertBuilt()
+        Future {
+            var total = 0
+            for (clazz <- instanceCaches.keys
+                 if classOf[Message].isAssignableFrom(clazz)) {
+                var count = 0
+                for (id <- curator.getChildren.forPath(getPath(clazz)).asScala)
+                    if (reencode(clazz, getPath(clazz) + "/" + id))
+                        count += 1
+                if (count > 0)
+                    log.info(s"Re-encoded $count ${clazz.getSimpleName} " +
+                             "objects in the binary format")
+                total += count
+            }
+            total
+        }
+    }
+
+    private def reencode(clazz: Class[_], path: String): Boolean = {
+        val stat = new Stat()
+        try {
+            val data = curator.getData.storingStatIn(stat).forPath(path)
+            if (!isLegacyFormat(data, clazz))
+                return false
+            val obj = deserialize(data, clazz).asInstanceOf[Obj]
+            curator.setData().withVersion(stat.getVersion)
+                   .forPath(path, serialize(obj))
+            true
+        } catch {
+            case _: NoNodeException | _: BadVersionException => false
+        }
+    }
+
     private[storage] def getPath(clazz: Class[_]) =
         basePath + "/" + clazz.getSimpleName
 
@@ -781,6 +972,18 @@ object ZookeeperObjectMapper {
 
     private val jsonFactory = new JsonFactory(new ObjectMapper())
 
+    /** The maximum number of reads that a bulk read keeps in flight. */
+    private[storage] val BULK_READ_WINDOW = 256
+
+    /**
+     * The first byte of protobuf objects stored in the binary format. Objects
+     * stored in the legacy text format start with a field name, or are empty,
+     * so they never start with this byte.
+     */
+    private[storage] val BINARY_FORMAT: Byte = 0x01
+
+    private val prototypes = new TrieMap[Class[_], Message]
+
     private[storage] def serialize(obj: Obj): Array[Byte] ={
         obj match {
             case msg: Message => serializeMessage(msg)
@@ -788,7 +991,23 @@ object ZookeeperObjectMapper {
         }
     }
 
-    private def serializeMessage(msg: Message) = msg.toString.getBytes
+    private def serializeMessage(msg: Message): Array[Byte] = {
+        val data = new Array[Byte](msg.getSerializedSize + 1)
+        data(0) = BINARY_FORMAT
+        val out = CodedOutputStream.newInstance(data, 1, data.length - 1)
+        msg.writeTo(out)
+        out.checkNoSpaceLeft()
+        data
+    }
+
+    /**
+     * Whether the data of an object of the given class is stored in the
+     * legacy text format. POJOs are always stored as JSON.
+     */
+    private[storage] def isLegacyFormat(data: Array[Byte],
+                                        clazz: Class[_]): Boolean =
+        classOf[Message].isAssignableFrom(clazz) &&
+            (data.length == 0 || data(0) != BINARY_FORMAT)
 
     private def serializePojo(obj: Obj): Array[Byte] = {
         val writer = new StringWriter()
@@ -822,10 +1041,17 @@ object ZookeeperObjectMapper {
     }
 
     private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
-        val builderObj = clazz.getMethod("newBuilder").invoke(null)
-        val builder = builderObj.asInstanceOf[Message.Builder]
-        TextFormat.merge(new String(data), builder)
-        builder.build().asInstanceOf[T]
+        val prototype = prototypes.getOrElseUpdate(clazz,
+            clazz.getMethod("getDefaultInstance").invoke(null)
+                 .asInstanceOf[Message])
+        if (data.length > 0 && data(0) == BINARY_FORMAT) {
+            prototype.getParserForType.parseFrom(data, 1, data.length - 1)
+                     .asInstanceOf[T]
+        } else {
+            val builder = prototype.newBuilderForType()
+            TextFormat.merge(new String(data), builder)
+            builder.build().asInstanceOf[T]
+        }
     }
 
     private def deserializePojo[T](json: Array[Byte], clazz: Class[T]): T = {
@@ -59,7 +59,7 @@ class ObservablePathChildrenCache(val zk: CuratorFramework) {
     private var path: String = _
 
     /* The wrapped PathChildrenCache */
-    private var pathCache: PathChildrenCache = _
+    @volatile private var pathCache: PathChildrenCache = _
 
     /* The Subject where we publish all child observables */
     private val stream: PathSub = PublishSubject.create()
@@ -146,8 +146,11 @@ class ObservablePathChildrenCache(val zk: CuratorFramework) {
     }
 
     /** Returns the latest state known for the children at the given absolute
-      * path, or null if it does not exist. */
-    def child(path: String) = pathCache.getCurrentData(path)
+      * path, or null if it does not exist or the cache is not connected. */
+    def child(path: String) = {
+        val cache = pathCache
+        if (cache eq null) null else cache.getCurrentData(path)
+    }
 
     /** Returns the observable stream of events for the given child. */
     def observableChild(path: String) = this.children.getOrElse(path, null)
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.google.protobuf.Message
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, BenchmarkMode, Fork, Measurement, Mode, OutputTimeUnit, Param, Scope, State, Warmup}
+
+import org.midonet.cluster.data.storage.StorageEncodingBenchmark.sample
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper.{deserialize, serialize}
+import org.midonet.cluster.models.Topology.{Chain, Network, Port, Router}
+import org.midonet.cluster.util.UUIDUtil.toProto
+
+/**
+ * Reports the size of the znode data of the objects of each class the
+ * benchmark uses, in the legacy text format and in the binary format. JMH
+ * can only report the benchmark counters as rates, so the sizes are
+ * reported apart, by running this object with the perf classpath.
+ */
+object StorageEncodingBenchmark {
+
+    val ClassNames = Seq("Network", "Router", "Port", "Chain")
+
+    private def uuids(n: Int) = (1 to n) map { _ => toProto(UUID.randomUUID) }
+
+    def sample(name: String): Message = name match {
+        case "Network" =>
+            val b = Network.newBuilder().setId(toProto(UUID.randomUUID))
+                .setTenantId("tenant").setName("network").setAdminStateUp(true)
+                .setTunnelKey(1000)
+                .setInboundFilterId(toProto(UUID.randomUUID))
+                .setOutboundFilterId(toProto(UUID.randomUUID))
+            uuids(20) foreach { id => b.addPortIds(id) }
+            b.build()
+        case "Router" =>
+            val b = Router.newBuilder().setId(toProto(UUID.randomUUID))
+                .setTenantId("tenant").setName("router").setAdminStateUp(true)
+                .setInboundFilterId(toProto(UUID.randomUUID))
+                .setOutboundFilterId(toProto(UUID.randomUUID))
+            uuids(10) foreach { id => b.addPortIds(id) }
+            b.build()
+        case "Port" =>
+            val b = Port.newBuilder().setId(toProto(UUID.randomUUID))
+                .setRouterId(toProto(UUID.randomUUID))
+                .setPeerId(toProto(UUID.randomUUID))
+                .setHostId(toProto(UUID.randomUUID))
+                .setInterfaceName("tap0123456789").setTunnelKey(1000)
+                .setNetworkAddress("10.0.0.0").setNetworkLength(24)
+                .setPortAddress("10.0.0.1").setPortMac("02:00:00:00:00:01")
+            uuids(5) foreach { id => b.addRuleIds(id) }
+            b.build()
+        case "Chain" =>
+            val b = Chain.newBuilder().setId(toProto(UUID.randomUUID))
+                .setName("chain")
+            uuids(50) foreach { id => b.addRuleIds(id) }
+            uuids(5) foreach { id => b.addNetworkIds(id) }
+            b.build()
+    }
+
+    def main(args: Array[String]): Unit = {
+        println("%-10s %12s %12s".format("className", "text bytes",
+                                         "binary bytes"))
+        for (className <- ClassNames) {
+            val msg = sample(className)
+            println("%-10s %12d %12d".format(className,
+                                             msg.toString.getBytes.length,
+                                             serialize(msg).length))
+        }
+    }
+}
+
+/**
+ * Compares how fast objects stored by the ZookeeperObjectMapper are decoded
+ * when they are stored in the legacy text format and in the binary format,
+ * and how fast they are encoded in the binary format. The companion object
+ * reports the size of their znode data in each format.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class StorageEncodingBenchmark {
+
+    @Param(Array("Network", "Router", "Port", "Chain"))
+    var className: String = _
+
+    var msg: Message = _
+    var clazz: Class[_ <: Message] = _
+    var text: Array[Byte] = _
+    var binary: Array[Byte] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        msg = sample(className)
+        clazz = msg.getClass
+        text = msg.toString.getBytes
+        binary = serialize(msg)
+    }
+
+    @Benchmark
+    def decodeText(): Any = deserialize(text, clazz)
+
+    @Benchmark
+    def decodeBinary(): Any = deserialize(binary, clazz)
+
+    @Benchmark
+    def encodeBinary(): Array[Byte] = serialize(msg)
+}
@@ -18,11 +18,19 @@ package org.midonet.cluster.data.storage
 import java.util.UUID
 import java.util.concurrent.TimeUnit
 
+import org.apache.zookeeper.KeeperException.NoAuthException
+import org.apache.zookeeper.ZooDefs.{Ids, Perms}
+import org.apache.zookeeper.data.ACL
 import org.junit.runner.RunWith
 import org.midonet.cluster.data.storage.FieldBinding.DeleteAction._
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper.{BINARY_FORMAT, serialize}
 import org.midonet.cluster.data.storage.ZookeeperObjectMapperTest._
+import org.midonet.cluster.models.Topology.Network
 import org.midonet.cluster.util.CuratorTestFramework
+import org.midonet.cluster.util.UUIDUtil.toProto
+import org.scalatest.concurrent.Eventually._
 import org.scalatest.junit.JUnitRunner
+import org.scalatest.time.{Seconds, Span}
 import org.scalatest.{Matchers, Suite}
 
 import scala.collection.JavaConverters._
@@ -189,6 +197,145 @@ class ZookeeperObjectMapperTests extends Suite
         )
         twoChains.map(_.name) should equal(List("chain0", "chain1"))
     }
+
+    def testGetBulk() {
+        val chains = (0 until 10).map(i => PojoChain(s"chain$i"))
+        zom.multi(chains.map(CreateOp))
+        val ids = chains.reverse.map(_.id)
+
+        await(zom.getBulk(classOf[PojoChain], ids)).map(_.name) should
+            equal(chains.reverse.map(_.name))
+        await(zom.bulkRead(classOf[PojoChain], ids.toIndexedSeq,
+                           skipMissing = false, maxInFlight = 3))
+            .map(_.id) should equal(ids)
+        await(zom.getBulk(classOf[PojoChain], Seq())) shouldBe empty
+
+        val missing = UUID.randomUUID
+        try {
+            await(zom.getBulk(classOf[PojoChain], ids :+ missing))
+            fail("Bulk read of a missing object should fail.")
+        } catch {
+            case nfe: NotFoundException =>
+                nfe.clazz should be(classOf[PojoChain])
+                nfe.id should equal(missing)
+        }
+    }
+
+    def testGetAllBulk() {
+        await(zom.getAllBulk(classOf[PojoChain])) shouldBe empty
+
+        val chains = (0 until 10).map(i => PojoChain(s"chain$i"))
+        zom.multi(chains.map(CreateOp))
+        await(zom.getAllBulk(classOf[PojoChain])).map(_.name).toSet should
+            equal(chains.map(_.name).toSet)
+
+        val withMissing = chains.map(_.id) :+ UUID.randomUUID
+        await(zom.bulkRead(classOf[PojoChain], withMissing.toIndexedSeq,
+                           skipMissing = true, maxInFlight = 4))
+            .map(_.name) should equal(chains.map(_.name))
+    }
+
+    def testBulkReadFailsOnZookeeperErrors() {
+        val chains = (0 until 4).map(i => PojoChain(s"chain$i"))
+        zom.multi(chains.map(CreateOp))
+        val ids = chains.map(_.id).toIndexedSeq
+
+        // A node that can't be read is not a missing one, and must not be
+        // left out even if missing objects are skipped.
+        val path = zom.getPath(classOf[PojoChain], ids(2))
+        curator.setACL().withACL(
+            List(new ACL(Perms.ALL & ~Perms.READ, Ids.ANYONE_ID_UNSAFE)).asJava)
+            .forPath(path)
+        try {
+            await(zom.bulkRead(classOf[PojoChain], ids, skipMissing = true,
+                               maxInFlight = 2))
+            fail("Bulk read of an unreadable object should fail.")
+        } catch {
+            case e: NoAuthException => e.getPath should equal(path)
+        } finally {
+            curator.setACL().withACL(Ids.OPEN_ACL_UNSAFE).forPath(path)
+        }
+    }
+
+    def testTransactionsReadThroughObjectCache() {
+        val cache = zom.objectCache
+        val chain = PojoChain(name = "chain")
+        val chainPath = zom.getPath(classOf[PojoChain], chain.id)
+        zom.create(chain)
+        eventually(timeout(Span(5, Seconds))) {
+            cache.cached(chainPath) should not be null
+        }
+
+        // A transaction that references the cached chain doesn't read it.
+        val hits = cache.hits.getCount
+        val misses = cache.misses.getCount
+        val bridge = PojoBridge(inChainId = chain.id)
+        zom.create(bridge)
+        cache.hits.getCount should be(hits + 1)
+        cache.misses.getCount should be(misses)
+        eventually(timeout(Span(5, Seconds))) {
+            cache.cached(chainPath) should not be null
+        }
+
+        // Modifying the chain outside the mapper invalidates it.
+        val renamed = await(zom.get(classOf[PojoChain], chain.id))
+        renamed.name = "renamed"
+        curator.setData().forPath(chainPath,
+                                  ZookeeperObjectMapper.serialize(renamed))
+        eventually(timeout(Span(5, Seconds))) {
+            cache.cached(chainPath) shouldBe null
+        }
+
+        // The next transaction reads it again from Zookeeper.
+        val router = PojoRouter(inChainId = chain.id)
+        zom.create(router)
+        cache.misses.getCount should be(misses + 1)
+        val updatedChain = await(zom.get(classOf[PojoChain], chain.id))
+        updatedChain.name should equal("renamed")
+        updatedChain.bridgeIds.asScala should equal(List(bridge.id))
+        updatedChain.routerIds.asScala should equal(List(router.id))
+    }
+
+    private def protoMapper() = {
+        val mapper = new ZookeeperObjectMapper(ZK_ROOT + "/proto", curator)
+        mapper.registerClass(classOf[Network])
+        mapper.build()
+        mapper
+    }
+
+    private def network(name: String) =
+        Network.newBuilder().setId(toProto(UUID.randomUUID)).setName(name)
+            .setAdminStateUp(true).setTunnelKey(10).build()
+
+    def testMessagesAreStoredInBinaryFormat() {
+        val mapper = protoMapper()
+        val net = network("net0")
+        mapper.create(net)
+
+        val data = curator.getData.forPath(
+            mapper.getPath(classOf[Network], net.getId))
+        data(0) should be(BINARY_FORMAT)
+        data.length should be < net.toString.getBytes.length
+        Network.parseFrom(data.drop(1)) should equal(net)
+        await(mapper.get(classOf[Network], net.getId)) should equal(net)
+    }
+
+    def testMessagesInTextFormatAreReadAndReencoded() {
+        val mapper = protoMapper()
+        val legacy = network("legacy")
+        val path = mapper.getPath(classOf[Network], legacy.getId)
+        curator.create().forPath(path, legacy.toString.getBytes)
+        val current = network("current")
+        mapper.create(current)
+
+        await(mapper.get(classOf[Network], legacy.getId)) should equal(legacy)
+
+        await(mapper.reencode()) should be(1)
+        curator.getData.forPath(path) should equal(serialize(legacy))
+        await(mapper.get(classOf[Network], legacy.getId)) should equal(legacy)
+        await(mapper.get(classOf[Network], current.getId)) should equal(current)
+        await(mapper.reencode()) should be(0)
+    }
 }
 
 private object ZookeeperObjectMapperTests {
@@ -110,6 +110,15 @@ trait ZoomStorageTester extends StorageTester
         zoom.getAll(clazz)
     }
 
+    override def getBulk[T](clazz: Class[T],
+                            ids: Seq[_ <: ObjId]): Future[Seq[T]] = {
+        zoom.getBulk(clazz, ids)
+    }
+
+    override def getAllBulk[T](clazz: Class[T]): Future[Seq[T]] = {
+        zoom.getAllBulk(clazz)
+    }
+
     override def exists(clazz: Class[_], id: ObjId): Future[Boolean] = {
         zoom.exists(clazz, id)
     }
@@ -113,7 +113,7 @@ public class ClusterBridgeManager extends ClusterManager<BridgeBuilder>{
                .setOutFilter(config.outboundFilter);
         builder.setTunnelKey(config.tunnelKey);
         builder.setExteriorVxlanPortId(Option.apply(config.vxLanPortId));
-        builder.build();
+        build(id, builder);
         log.info("Added watcher for bridge {}", id);
     }
 
@@ -247,7 +247,20 @@ public class ClusterBridgeManager extends ClusterManager<BridgeBuilder>{
     void buildLogicalPortUpdates(BridgeBuilder builder, UUID bridgeId)
             throws StateAccessException {
         updateLogicalPorts(builder, bridgeId, true);
-        builder.build();
+        build(bridgeId, builder);
+    }
+
+    /**
+     * Builds the bridge, once its replicated tables are loaded if they are
+     * still loading.
+     */
+    private void build(UUID bridgeId, final BridgeBuilder builder) {
+        build(bridgeId, new Runnable() {
+            @Override
+            public void run() {
+                builder.build();
+            }
+        });
     }
 
     class LogicalPortWatcher implements Runnable {
@@ -47,6 +47,9 @@ abstract class ClusterManager<T> {
     @Inject
     ZkConnectionAwareWatcher connectionWatcher;
 
+    @Inject
+    ReplicatedTableWarmUp warmUp;
+
     private Map<UUID, T> builderMap = new HashMap<>();
 
     public void registerNewBuilder(final UUID id, final T builder) {
@@ -73,6 +76,14 @@ abstract class ClusterManager<T> {
 
     abstract protected void getConfig(UUID id);
 
+    /**
+     * Runs the build of the device now, or once its replicated tables are
+     * loaded if they are still loading.
+     */
+    protected void build(UUID id, Runnable build) {
+        warmUp.build(id, build);
+    }
+
     /* The following classes provide base implementations for callbacks/watchers
      * in directory operations in ClusterManager subclasses. There are two
      * flavours:
@@ -99,7 +99,7 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
                 arpTable.setConnectionWatcher(connectionWatcher);
                 routeSet = new ReplicatedRouteSet(
                             routerMgr.getRoutingTableDirectory(id),
-                            CreateMode.EPHEMERAL, builder);
+                            CreateMode.EPHEMERAL, id, builder);
                 routeSet.setConnectionWatcher(connectionWatcher);
                 mapRouterIdToRoutes.put(id, routeSet);
             }
@@ -133,7 +133,9 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
 
         if (!isUpdate) {
             builder.setArpCache(new ArpCacheImpl(arpTable, id));
-            arpTable.start();
+            // the router isn't built until the ARP table is loaded, which
+            // happens asynchronously.
+            arpTable.start(warmUp.tableLoading(id));
             // note that the following may trigger a call to builder.build()
             // it should be the last call in the !isUpdate code path.
             routeSet.start();
@@ -142,7 +144,7 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
         }
 
         if (isUpdate) // Not first time we're building
-            builder.build();
+            build(id, builder);
         // else no need to build - the ReplicatedRouteSet will build.
         log.debug("Update configuration for router {}", id);
         log.debug("Added watcher for router {}", id);
@@ -443,14 +445,26 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
         }
     }
 
+    /**
+     * Builds the router, once its ARP table is loaded if it's still loading.
+     */
+    private void build(UUID routerId, final RouterBuilder builder) {
+        build(routerId, new Runnable() {
+            @Override
+            public void run() {
+                builder.build();
+            }
+        });
+    }
+
     class ReplicatedRouteSet extends ReplicatedSet<Route> {
         RouteEncoder encoder = new RouteEncoder();
 
         public ReplicatedRouteSet(Directory d, CreateMode mode,
-                                  RouterBuilder builder) {
+                                  UUID routerId, RouterBuilder builder) {
             super(d, mode);
             if(builder != null)
-                this.addWatcher(new RouteWatcher(builder));
+                this.addWatcher(new RouteWatcher(routerId, builder));
         }
 
         @Override
@@ -466,9 +480,11 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
 
     private class RouteWatcher implements ReplicatedSet.Watcher<Route> {
 
+        UUID routerId;
         RouterBuilder builder;
 
-        private RouteWatcher(RouterBuilder routerBuilder) {
+        private RouteWatcher(UUID routerId, RouterBuilder routerBuilder) {
+            this.routerId = routerId;
             builder = routerBuilder;
         }
 
@@ -484,7 +500,7 @@ public class ClusterRouterManager extends ClusterManager<RouterBuilder> {
             log.debug("RouteWatcher - Routes added {}, routes removed {}. " +
                           "Notifying builder",
                       added, removed);
-            builder.build();
+            build(routerId, builder);
         }
     }
 
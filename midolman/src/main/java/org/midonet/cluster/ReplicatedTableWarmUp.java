@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.midolman.guice.zookeeper.ZKConnectionProvider;
+import org.midonet.util.eventloop.Reactor;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Tracks the replicated tables (MAC learning tables, IP to MAC and ARP
+ * tables) of the devices that are being loaded asynchronously, and holds the
+ * builds of a device until all its tables are loaded.
+ *
+ * The tables of all the devices load concurrently, and since a device isn't
+ * published until it's built, only the packets that traverse a device whose
+ * tables are still loading wait for them.
+ */
+@Singleton
+public class ReplicatedTableWarmUp {
+    private static final Logger log =
+        LoggerFactory.getLogger(ReplicatedTableWarmUp.class);
+
+    private static class Device {
+        final long startTime = System.nanoTime();
+        int loadingTables = 0;
+        Runnable pendingBuild;
+    }
+
+    private final Map<UUID, Device> devices = new HashMap<>();
+
+    private final Timer deviceWarmUpTime;
+    private final Timer tableWarmUpTime;
+    private final Counter devicesWarmingUp;
+
+    private final Reactor reactor;
+
+    @Inject
+    public ReplicatedTableWarmUp(
+            MetricRegistry registry,
+            @Named(ZKConnectionProvider.DIRECTORY_REACTOR_TAG) Reactor reactor) {
+        this.reactor = reactor;
+        deviceWarmUpTime = registry.timer(
+            name(ReplicatedTableWarmUp.class, "deviceWarmUpTime"));
+        tableWarmUpTime = registry.timer(
+            name(ReplicatedTableWarmUp.class, "tableWarmUpTime"));
+        devicesWarmingUp = registry.counter(
+            name(ReplicatedTableWarmUp.class, "devicesWarmingUp"));
+    }
+
+    /**
+     * Registers a table of the given device that starts loading, and returns
+     * the callback to run, from any thread, when it's loaded. The pending
+     * build of the device, if any, runs in the directory reactor like the
+     * rest of the cluster managers' work.
+     */
+    public synchronized Runnable tableLoading(final UUID deviceId) {
+        Device device = devices.get(deviceId);
+        if (device == null) {
+            device = new Device();
+            devices.put(deviceId, device);
+            devicesWarmingUp.inc();
+        }
+        device.loadingTables++;
+
+        final long startTime = System.nanoTime();
+        return new Runnable() {
+            @Override
+            public void run() {
+                tableWarmUpTime.update(System.nanoTime() - startTime,
+                                       TimeUnit.NANOSECONDS);
+                reactor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        tableLoaded(deviceId);
+                    }
+                });
+            }
+        };
+    }
+
+    private void tableLoaded(UUID deviceId) {
+        Runnable build;
+        synchronized (this) {
+            Device device = devices.get(deviceId);
+            if (device == null || --device.loadingTables > 0)
+                return;
+
+            devices.remove(deviceId);
+            devicesWarmingUp.dec();
+            long elapsed = System.nanoTime() - device.startTime;
+            deviceWarmUpTime.update(elapsed, TimeUnit.NANOSECONDS);
+            log.debug("Loaded the replicated tables of device {} in {} ms",
+                      deviceId, TimeUnit.NANOSECONDS.toMillis(elapsed));
+            build = device.pendingBuild;
+        }
+        if (build != null)
+            build.run();
+    }
+
+    /**
+     * Runs the given build of a device now if none of its tables is loading,
+     * or otherwise once they are loaded. Only the last build requested while
+     * the tables load is run.
+     */
+    public void build(UUID deviceId, Runnable build) {
+        synchronized (this) {
+            Device device = devices.get(deviceId);
+            if (device != null) {
+                device.pendingBuild = build;
+                return;
+            }
+        }
+        build.run();
+    }
+
+    public synchronized boolean isWarmingUp(UUID deviceId) {
+        return devices.containsKey(deviceId);
+    }
+}
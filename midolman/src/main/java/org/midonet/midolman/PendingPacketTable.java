@@ -0,0 +1,359 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman;
+
+import java.util.Arrays;
+
+import org.midonet.odp.FlowMatch;
+import org.midonet.odp.Packet;
+
+/**
+ * Keeps track of the packets that arrive while a simulation for their flow
+ * match is in progress, so they can be executed with the simulation's
+ * result. Each in-flight simulation has an entry, indexed both by its int
+ * cookie and by its FlowMatch, that holds a bounded array of pended packets.
+ *
+ * Entries live in parallel arrays and are recycled through a free list, and
+ * both indices are open addressing tables of entry numbers with linear
+ * probing, so neither lookups nor pending a packet allocate or box anything
+ * once the table has grown to the working set of the packet worker.
+ *
+ * An instance is owned by a single packet worker and is not thread-safe.
+ */
+public final class PendingPacketTable {
+
+    /** Returned by the lookups when there is no entry for the key. */
+    public static final int NONE = -1;
+
+    public static final int PENDED = 0;
+    public static final int DUPLICATE = 1;
+    public static final int OVERFLOW = 2;
+
+    private static final int FREE = -1;
+    private static final int DELETED = -2;
+    private static final int INITIAL_PACKETS = 4;
+
+    private final int maxPendedPackets;
+
+    // Entries
+    private int[] cookies;
+    private FlowMatch[] matches;
+    private Packet[][] packets;
+    private int[] packetCounts;
+    private int[] nextFree;
+    private int freeHead = NONE;
+    private int allocated = 0;
+    private int size = 0;
+
+    // Indices
+    private int[] byCookie;
+    private int[] byMatch;
+    private int mask;
+    private int cookieTombstones = 0;
+    private int matchTombstones = 0;
+
+    private long collisions = 0;
+
+    private Packet[] removed;
+    private int removedCount = 0;
+
+    public PendingPacketTable(int initialCapacity, int maxPendedPackets) {
+        if (maxPendedPackets < 1)
+            throw new IllegalArgumentException(
+                "maxPendedPackets must be positive");
+        this.maxPendedPackets = maxPendedPackets;
+        int entries = Math.max(Integer.highestOneBit(
+            Math.max(initialCapacity, 2) - 1) << 1, 2);
+        cookies = new int[entries];
+        matches = new FlowMatch[entries];
+        packets = new Packet[entries][];
+        packetCounts = new int[entries];
+        nextFree = new int[entries];
+        allocateIndices(entries * 2);
+        removed = new Packet[Math.min(INITIAL_PACKETS, maxPendedPackets)];
+    }
+
+    public PendingPacketTable() {
+        this(256, 64);
+    }
+
+    /**
+     * Adds an entry for a new simulation. If another entry exists for the
+     * same match, lookups by match will return the new one from now on.
+     */
+    public void add(int cookie, FlowMatch match) {
+        if (find(cookie) != NONE)
+            throw new IllegalArgumentException(
+                "Cookie " + cookie + " is already pending");
+
+        if (2 * (size + 1 + Math.max(cookieTombstones, matchTombstones))
+                > byCookie.length)
+            rehash(size + 1);
+
+        int entry = allocateEntry();
+        cookies[entry] = cookie;
+        matches[entry] = match;
+        packetCounts[entry] = 0;
+
+        insertCookie(entry);
+        insertMatch(entry);
+        size++;
+    }
+
+    /**
+     * Returns the entry for the given cookie, or NONE.
+     */
+    public int find(int cookie) {
+        int slot = mix(cookie) & mask;
+        int entry;
+        while ((entry = byCookie[slot]) != FREE) {
+            if (entry != DELETED && cookies[entry] == cookie)
+                return entry;
+            collisions++;
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the entry for the given match, or NONE.
+     */
+    public int find(FlowMatch match) {
+        int slot = mix(match.hashCode()) & mask;
+        int entry;
+        while ((entry = byMatch[slot]) != FREE) {
+            if (entry != DELETED && match.equals(matches[entry]))
+                return entry;
+            collisions++;
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    public int cookieOf(int entry) {
+        return cookies[entry];
+    }
+
+    public int pendedCount(int entry) {
+        return packetCounts[entry];
+    }
+
+    public Packet pendedPacket(int entry, int index) {
+        return packets[entry][index];
+    }
+
+    /**
+     * Pends a packet on the given entry. Returns DUPLICATE if an equal packet
+     * is already pended and OVERFLOW if the entry is full, in which cases the
+     * packet is not added.
+     */
+    public int pend(int entry, Packet packet) {
+        Packet[] pkts = packets[entry];
+        int count = packetCounts[entry];
+        for (int i = 0; i < count; i++) {
+            if (packet.equals(pkts[i]))
+                return DUPLICATE;
+        }
+        if (count == maxPendedPackets)
+            return OVERFLOW;
+        if (pkts == null || count == pkts.length) {
+            int newSize = (pkts == null) ? INITIAL_PACKETS : pkts.length * 2;
+            newSize = Math.min(newSize, maxPendedPackets);
+            pkts = (pkts == null) ? new Packet[newSize]
+                                  : Arrays.copyOf(pkts, newSize);
+            packets[entry] = pkts;
+        }
+        pkts[count] = packet;
+        packetCounts[entry] = count + 1;
+        return PENDED;
+    }
+
+    /**
+     * Removes the entry for the given cookie. Returns the number of packets
+     * that were pended on it, which can be read with removedPacket() until
+     * the next call to this method, or NONE if there was no entry.
+     */
+    public int remove(int cookie) {
+        clearRemoved();
+        int slot = mix(cookie) & mask;
+        int entry;
+        while ((entry = byCookie[slot]) != FREE) {
+            if (entry != DELETED && cookies[entry] == cookie)
+                break;
+            slot = (slot + 1) & mask;
+        }
+        if (entry == FREE)
+            return NONE;
+
+        byCookie[slot] = DELETED;
+        cookieTombstones++;
+        removeMatch(entry);
+
+        int count = packetCounts[entry];
+        if (count > removed.length)
+            removed = new Packet[packets[entry].length];
+        Packet[] pkts = packets[entry];
+        for (int i = 0; i < count; i++) {
+            removed[i] = pkts[i];
+            pkts[i] = null;
+        }
+        removedCount = count;
+
+        matches[entry] = null;
+        packetCounts[entry] = 0;
+        nextFree[entry] = freeHead;
+        freeHead = entry;
+        size--;
+        return count;
+    }
+
+    public Packet removedPacket(int index) {
+        return removed[index];
+    }
+
+    /**
+     * The number of in-flight simulations.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The number of slots in each index.
+     */
+    public int capacity() {
+        return byCookie.length;
+    }
+
+    /**
+     * Returns the number of probes that hit another key since the last call.
+     */
+    public long collisionsSinceLastCall() {
+        long c = collisions;
+        collisions = 0;
+        return c;
+    }
+
+    private void clearRemoved() {
+        for (int i = 0; i < removedCount; i++)
+            removed[i] = null;
+        removedCount = 0;
+    }
+
+    private int allocateEntry() {
+        if (freeHead != NONE) {
+            int entry = freeHead;
+            freeHead = nextFree[entry];
+            return entry;
+        }
+        if (allocated == cookies.length) {
+            int n = cookies.length * 2;
+            cookies = Arrays.copyOf(cookies, n);
+            matches = Arrays.copyOf(matches, n);
+            packets = Arrays.copyOf(packets, n);
+            packetCounts = Arrays.copyOf(packetCounts, n);
+            nextFree = Arrays.copyOf(nextFree, n);
+        }
+        return allocated++;
+    }
+
+    private void removeMatch(int entry) {
+        int slot = mix(matches[entry].hashCode()) & mask;
+        int e;
+        while ((e = byMatch[slot]) != FREE) {
+            if (e == entry) {
+                byMatch[slot] = DELETED;
+                matchTombstones++;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // Shadowed by a newer entry for the same match.
+    }
+
+    private void insertCookie(int entry) {
+        int slot = mix(cookies[entry]) & mask;
+        while (byCookie[slot] >= 0) {
+            collisions++;
+            slot = (slot + 1) & mask;
+        }
+        if (byCookie[slot] == DELETED)
+            cookieTombstones--;
+        byCookie[slot] = entry;
+    }
+
+    private void insertMatch(int entry) {
+        FlowMatch match = matches[entry];
+        int slot = mix(match.hashCode()) & mask;
+        int tombstone = NONE;
+        int e;
+        while ((e = byMatch[slot]) != FREE) {
+            if (e == DELETED) {
+                if (tombstone == NONE)
+                    tombstone = slot;
+            } else if (match.equals(matches[e])) {
+                byMatch[slot] = entry;
+                return;
+            } else {
+                collisions++;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (tombstone != NONE) {
+            byMatch[tombstone] = entry;
+            matchTombstones--;
+        } else {
+            byMatch[slot] = entry;
+        }
+    }
+
+    // Rebuilds the indices so they are at most a quarter full, dropping
+    // the tombstones left by removals.
+    private void rehash(int minSize) {
+        int slots = byCookie.length;
+        while (4 * minSize > slots)
+            slots *= 2;
+        int[] oldByMatch = byMatch;
+        allocateIndices(slots);
+        for (int entry = 0; entry < allocated; entry++) {
+            if (matches[entry] != null)
+                insertCookie(entry);
+        }
+        // Re-inserting by match in slot order of the old index preserves
+        // which entry is visible for a match shared by several entries.
+        for (int slot = 0; slot < oldByMatch.length; slot++) {
+            int entry = oldByMatch[slot];
+            if (entry >= 0)
+                insertMatch(entry);
+        }
+    }
+
+    private void allocateIndices(int slots) {
+        byCookie = new int[slots];
+        byMatch = new int[slots];
+        Arrays.fill(byCookie, FREE);
+        Arrays.fill(byMatch, FREE);
+        mask = slots - 1;
+        cookieTombstones = 0;
+        matchTombstones = 0;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -37,6 +37,13 @@ public interface DatapathConfig {
     @ConfigInt(key = "msgs_per_batch", defaultValue = 200)
     public int getMaxMessagesPerBatch();
 
+    /**
+     * The number of datapath messages read or written with each system call.
+     * Each message read needs a receive buffer of 64kb of its own.
+     */
+    @ConfigInt(key = "msgs_per_io", defaultValue = 1)
+    public int getMaxMessagesPerIo();
+
     /**
      * The wildcard flows have idle times, so the table should take care of itself. Having a smaller table (a limited
      * size table) means that the system would be potentially evicting valid flows often, causing more simulations and
@@ -90,6 +90,18 @@ public interface MidolmanConfig
     @ConfigInt(key = "simulation_threads", defaultValue = 1)
     public int getSimulationThreads();
 
+    @ConfigBool(key = "offheap_flow_state_tables", defaultValue = false)
+    public boolean getOffHeapFlowStateTables();
+
+    @ConfigInt(key = "flow_state_refresh_window_millis", defaultValue = 10000)
+    public int getFlowStateRefreshWindowMillis();
+
+    @ConfigInt(key = "flow_state_max_writes_per_second", defaultValue = 0)
+    public int getFlowStateMaxWritesPerSecond();
+
+    @ConfigInt(key = "nat_block_prelease_percent", defaultValue = 0)
+    public int getNatBlockPreLeasePercent();
+
     @ConfigInt(key = "output_channels", defaultValue = 1)
     public int getNumOutputChannels();
 
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.midonet.sdn.flows.ManagedWildcardFlow;
+import org.midonet.sdn.flows.WildcardMatch;
+
+/**
+ * Tuple-space index over the wildcard flow tables: one hash table per
+ * wildcard pattern (the set of fields used by a match).
+ *
+ * Lookups visit the tables ordered by the best (numerically lowest) priority
+ * each of them holds, and stop as soon as the best candidate found so far
+ * can't be beaten by any of the remaining tables. Each looking thread uses
+ * its own projection buffer, so a lookup doesn't allocate a projected match
+ * per pattern.
+ *
+ * Tables are mutated by a single writer (the FlowController) while any number
+ * of simulation threads query them. The priority bookkeeping is only touched
+ * by the writer, which publishes a new ordered snapshot of the tables
+ * whenever the ordering may have changed.
+ */
+public class PriorityOrderedWildcardTables implements WildcardTablesProvider {
+
+    /* The sizing the FlowController used for its wildcard tables: there is
+     * a single writer, so one segment is enough, and the tables are sized up
+     * front so that they rarely rehash under a flow storm. */
+    private static final int CONCURRENCY_LEVEL = 1;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int TABLE_INITIAL_CAPACITY = 65536;
+    private static final int PARENT_TABLE_INITIAL_CAPACITY = 256;
+
+    private static final Comparator<PriorityTable> BY_PRIORITY =
+        new Comparator<PriorityTable>() {
+            @Override
+            public int compare(PriorityTable a, PriorityTable b) {
+                return Integer.compare(a.bestPriority, b.bestPriority);
+            }
+        };
+
+    private final ThreadLocal<WildcardMatch> projections =
+        new ThreadLocal<WildcardMatch>() {
+            @Override
+            protected WildcardMatch initialValue() {
+                return new WildcardMatch();
+            }
+        };
+
+    private final Tables tables = new Tables();
+
+    private volatile PriorityTable[] ordered = new PriorityTable[0];
+
+    @Override
+    public Map<Set<WildcardMatch.Field>, Map<WildcardMatch, ManagedWildcardFlow>>
+    tables() {
+        return tables;
+    }
+
+    @Override
+    public Map<WildcardMatch, ManagedWildcardFlow> addTable(
+            Set<WildcardMatch.Field> pattern) {
+        Map<WildcardMatch, ManagedWildcardFlow> table = tables.get(pattern);
+        if (table == null) {
+            table = new PriorityTable(pattern);
+            tables.put(pattern, table);
+        }
+        return table;
+    }
+
+    public void clear() {
+        tables.clear();
+    }
+
+    /**
+     * Returns the number of distinct patterns currently indexed.
+     */
+    public int numPatterns() {
+        return ordered.length;
+    }
+
+    /**
+     * Finds the wildcard flow with the best priority that matches the given
+     * match, or null if there is none. The caller is responsible for
+     * disabling seen-field tracking on the match if it needs to.
+     */
+    public ManagedWildcardFlow lookup(WildcardMatch wildMatch) {
+        final PriorityTable[] snapshot = ordered;
+        final WildcardMatch projection = projections.get();
+        ManagedWildcardFlow wildFlow = null;
+        for (PriorityTable table : snapshot) {
+            if (wildFlow != null && wildFlow.getPriority() <= table.bestPriority)
+                break;
+            if (!wildMatch.projectInto(table.pattern, projection))
+                continue;
+            ManagedWildcardFlow candidate = table.get(projection);
+            if (candidate != null &&
+                    (wildFlow == null ||
+                     candidate.getPriority() < wildFlow.getPriority())) {
+                wildFlow = candidate;
+            }
+        }
+        return wildFlow;
+    }
+
+    private void reorder() {
+        PriorityTable[] snapshot =
+            tables.values().toArray(new PriorityTable[tables.size()]);
+        Arrays.sort(snapshot, BY_PRIORITY);
+        ordered = snapshot;
+    }
+
+    private class Tables extends ConcurrentHashMap<Set<WildcardMatch.Field>,
+                                                   Map<WildcardMatch,
+                                                       ManagedWildcardFlow>> {
+        Tables() {
+            super(PARENT_TABLE_INITIAL_CAPACITY, LOAD_FACTOR, CONCURRENCY_LEVEL);
+        }
+
+        @Override
+        public Map<WildcardMatch, ManagedWildcardFlow> put(
+                Set<WildcardMatch.Field> pattern,
+                Map<WildcardMatch, ManagedWildcardFlow> table) {
+            Map<WildcardMatch, ManagedWildcardFlow> old = super.put(pattern, table);
+            reorder();
+            return old;
+        }
+
+        @Override
+        public Map<WildcardMatch, ManagedWildcardFlow> remove(Object pattern) {
+            Map<WildcardMatch, ManagedWildcardFlow> old = super.remove(pattern);
+            if (old != null)
+                reorder();
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            reorder();
+        }
+    }
+
+    /**
+     * The wildcard flow table for a single pattern. It keeps a histogram of
+     * the priorities of the flows it holds so that it can tell which is the
+     * best priority in the table without scanning it.
+     */
+    private class PriorityTable
+            extends ConcurrentHashMap<WildcardMatch, ManagedWildcardFlow> {
+
+        final Set<WildcardMatch.Field> pattern;
+        volatile int bestPriority = Integer.MAX_VALUE;
+
+        private final TreeMap<Short, Integer> priorities = new TreeMap<>();
+
+        PriorityTable(Set<WildcardMatch.Field> pattern) {
+            super(TABLE_INITIAL_CAPACITY, LOAD_FACTOR, CONCURRENCY_LEVEL);
+            this.pattern = pattern;
+        }
+
+        @Override
+        public ManagedWildcardFlow put(WildcardMatch wcMatch,
+                                       ManagedWildcardFlow flow) {
+            // Publish the priority before the flow becomes visible, so that
+            // a concurrent lookup never stops early because of a stale bound.
+            addPriority(flow.getPriority());
+            ManagedWildcardFlow old = super.put(wcMatch, flow);
+            if (old != null)
+                removePriority(old.getPriority());
+            return old;
+        }
+
+        @Override
+        public ManagedWildcardFlow remove(Object wcMatch) {
+            ManagedWildcardFlow old = super.remove(wcMatch);
+            if (old != null)
+                removePriority(old.getPriority());
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            priorities.clear();
+            updateBestPriority();
+        }
+
+        private void addPriority(short priority) {
+            Integer count = priorities.get(priority);
+            priorities.put(priority, count == null ? 1 : count + 1);
+            updateBestPriority();
+        }
+
+        private void removePriority(short priority) {
+            Integer count = priorities.get(priority);
+            if (count == null)
+                return;
+            if (count == 1)
+                priorities.remove(priority);
+            else
+                priorities.put(priority, count - 1);
+            updateBestPriority();
+        }
+
+        private void updateBestPriority() {
+            int best = priorities.isEmpty() ? Integer.MAX_VALUE
+                                            : priorities.firstKey();
+            if (best != bestPriority) {
+                bestPriority = best;
+                if (tables.get(pattern) == this)
+                    reorder();
+            }
+        }
+    }
+}
@@ -19,13 +19,16 @@ package org.midonet.midolman.guice;
 import com.google.inject.PrivateModule;
 import org.midonet.midolman.host.scanner.DefaultInterfaceScanner;
 import org.midonet.midolman.host.scanner.InterfaceScanner;
+import org.midonet.midolman.host.scanner.RtnetlinkInterfaceScanner;
 
 public class InterfaceScannerModule extends PrivateModule {
 
     @Override
     protected void configure() {
         binder().requireExplicitBindings();
-        bind(InterfaceScanner.class).to(DefaultInterfaceScanner.class);
+        // The polling scanner is the fallback of the rtnetlink one
+        bind(DefaultInterfaceScanner.class);
+        bind(InterfaceScanner.class).to(RtnetlinkInterfaceScanner.class);
         expose(InterfaceScanner.class);
     }
 }
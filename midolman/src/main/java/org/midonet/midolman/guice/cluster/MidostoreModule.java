@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.guice.cluster;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.PrivateModule;
 import com.google.inject.Provider;
@@ -38,9 +39,11 @@ public class MidostoreModule extends PrivateModule {
         ZookeeperConfig cfg;
         @Inject
         CuratorFramework curator;
+        @Inject
+        MetricRegistry metricRegistry;
         @Override public Storage get() {
             return new ZookeeperObjectMapper(cfg.getZkRootPath() + "/zoom",
-                                             curator);
+                                             curator, metricRegistry);
         }
     }
 
@@ -15,6 +15,11 @@
  */
 package org.midonet.midolman.guice.state;
 
+import java.util.concurrent.TimeUnit;
+
+import scala.concurrent.duration.Duration;
+
+import com.codahale.metrics.Clock;
 import com.google.inject.*;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
@@ -57,20 +62,27 @@ public class FlowStateStorageModule extends PrivateModule {
                     "MidonetFlowState", config.getCassandraReplicationFactor(),
                     FlowStateStorage$.MODULE$.SCHEMA(), reactor);
             cass.connect();
-            return new FlowStateStorageFactoryImpl(cass);
+            return new FlowStateStorageFactoryImpl(cass, config);
         }
     }
 
     private static class FlowStateStorageFactoryImpl implements FlowStateStorageFactory {
         CassandraClient cass;
+        MidolmanConfig config;
 
-        public FlowStateStorageFactoryImpl(CassandraClient cass) {
+        public FlowStateStorageFactoryImpl(CassandraClient cass,
+                                           MidolmanConfig config) {
             this.cass = cass;
+            this.config = config;
         }
 
         @Override
         public FlowStateStorage create() {
-            return FlowStateStorage$.MODULE$.apply(cass);
+            return FlowStateStorage$.MODULE$.apply(
+                    cass, Clock.defaultClock(),
+                    Duration.create(config.getFlowStateRefreshWindowMillis(),
+                                    TimeUnit.MILLISECONDS),
+                    config.getFlowStateMaxWritesPerSecond());
         }
     }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.host.scanner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.Subscription;
+import org.midonet.midolman.host.interfaces.InterfaceDescription;
+import org.midonet.midolman.host.sensor.InterfaceSensor;
+import org.midonet.midolman.host.sensor.NetlinkInterfaceSensor;
+import org.midonet.midolman.host.sensor.SysfsInterfaceSensor;
+import org.midonet.netlink.BytesUtil;
+import org.midonet.netlink.Callback;
+import org.midonet.netlink.Netlink;
+import org.midonet.netlink.NetlinkChannel;
+import org.midonet.netlink.NetlinkProtocol;
+import org.midonet.netlink.exceptions.NetlinkException;
+import org.midonet.netlink.rtnetlink.Rtnetlink;
+
+/**
+ * Interface scanner driven by rtnetlink. It dumps the links and addresses of
+ * the host once, and then applies the changes that the kernel multicasts to
+ * the interface descriptions as they happen, instead of polling the host and
+ * forking "ip" every few seconds. The endpoint and port type of the changed
+ * interfaces are still found by the sysfs and datapath sensors.
+ *
+ * If rtnetlink can't be used, it falls back to the polling of the
+ * DefaultInterfaceScanner, and if notifications are lost, it dumps all the
+ * links and addresses again. The messages read from the channel are applied
+ * by a RtnetlinkInterfaceTable.
+ */
+@Singleton
+public class RtnetlinkInterfaceScanner implements InterfaceScanner {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(RtnetlinkInterfaceScanner.class);
+
+    private static final int BUF_SIZE = 64 * 1024;
+
+    private final Injector injector;
+    private final ArrayList<Callback<Set<InterfaceDescription>>> callbacks =
+        new ArrayList<>();
+    private final List<InterfaceSensor> sensors = new ArrayList<>();
+    private volatile boolean isRunning;
+    private Set<InterfaceDescription> lastScan = new HashSet<>();
+
+    private NetlinkChannel channel;
+    private InterfaceScanner fallback;
+
+    /* The state below is only used by the thread that reads the channel. */
+    private final ByteBuffer request = BytesUtil.instance.allocateDirect(64);
+    private final ByteBuffer reply = BytesUtil.instance.allocateDirect(BUF_SIZE);
+    private final RtnetlinkInterfaceTable table = new RtnetlinkInterfaceTable(
+        new RtnetlinkInterfaceTable.DumpRequester() {
+            @Override
+            public void requestDump(short type, int seq) throws IOException {
+                request.clear();
+                Rtnetlink.writeDumpRequest(request, type, seq);
+                request.flip();
+                channel.write(request);
+            }
+        });
+
+    @Inject
+    public RtnetlinkInterfaceScanner(Injector injector) {
+        this.injector = injector;
+        sensors.add(injector.getInstance(SysfsInterfaceSensor.class));
+        sensors.add(injector.getInstance(NetlinkInterfaceSensor.class));
+    }
+
+    public Subscription register(final Callback<Set<InterfaceDescription>> callback) {
+        synchronized (callbacks) {
+            callbacks.add(callback);
+            callback.onSuccess(lastScan);  // This is potentially dangerous.
+        }
+
+        return new Subscription() {
+            private final AtomicBoolean unsubscribed = new AtomicBoolean();
+
+            @Override
+            public boolean isUnsubscribed() {
+                return unsubscribed.get();
+            }
+
+            @Override
+            public void unsubscribe() {
+                if (unsubscribed.compareAndSet(false, true)) {
+                    synchronized (callbacks) {
+                        callbacks.remove(callback);
+                    }
+                }
+            }
+        };
+    }
+
+    public synchronized void start() {
+        isRunning = true;
+        try {
+            channel = Netlink.selectorProvider()
+                             .openNetlinkSocketChannel(NetlinkProtocol.NETLINK_ROUTE);
+            channel.connect(new Netlink.Address(0));
+            channel.setNoEnobufs(false);
+            channel.addMembership(Rtnetlink.Group.LINK);
+            channel.addMembership(Rtnetlink.Group.IPV4_IFADDR);
+            channel.addMembership(Rtnetlink.Group.IPV6_IFADDR);
+
+            // Scan the interfaces before returning, like the polling scanner
+            table.startDump();
+            while (table.isDumping()) {
+                readMessages();
+            }
+        } catch (Exception | LinkageError e) {
+            log.warn("Can't monitor the interfaces through rtnetlink, " +
+                     "falling back to polling them", e);
+            closeChannel();
+            startFallback();
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                monitorInterfaces();
+            }
+        }, "interface-scanner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void shutdown() {
+        isRunning = false;
+        closeChannel();
+        if (fallback != null) {
+            fallback.shutdown();
+        }
+    }
+
+    private void monitorInterfaces() {
+        while (isRunning) {
+            try {
+                readMessages();
+            } catch (IOException e) {
+                if (!isRunning || !channel.isOpen())
+                    break;
+                // Reads fail with ENOBUFS when notifications were dropped
+                log.warn("Interface notifications were lost, scanning all " +
+                         "the interfaces again", e);
+                try {
+                    table.startDump();
+                } catch (IOException ex) {
+                    log.error("Failed to request the interfaces, falling " +
+                              "back to polling them", ex);
+                    closeChannel();
+                    startFallback();
+                    break;
+                }
+            }
+        }
+    }
+
+    private void readMessages() throws IOException {
+        reply.clear();
+        if (channel.read(reply) <= 0)
+            return;
+        reply.flip();
+        table.handleMessages(reply);
+        publishChanges();
+    }
+
+    private void publishChanges() {
+        Set<InterfaceDescription> updated = table.updateInterfaces();
+        if (updated == null)
+            return;
+
+        for (InterfaceSensor sensor : sensors) {
+            sensor.updateInterfaceData(updated);
+        }
+        notifyCallbacks(table.interfaces());
+    }
+
+    private void notifyCallbacks(Set<InterfaceDescription> interfaces) {
+        synchronized (callbacks) {
+            lastScan = interfaces;
+            for (Callback<Set<InterfaceDescription>> cb : callbacks) {
+                cb.onSuccess(interfaces);
+            }
+        }
+    }
+
+    private synchronized void startFallback() {
+        if (!isRunning || fallback != null)
+            return;
+
+        fallback = injector.getInstance(DefaultInterfaceScanner.class);
+        fallback.register(new Callback<Set<InterfaceDescription>>() {
+            @Override
+            public void onSuccess(Set<InterfaceDescription> data) {
+                notifyCallbacks(data);
+            }
+
+            @Override
+            public void onError(NetlinkException e) {
+            }
+        });
+        fallback.start();
+    }
+
+    private void closeChannel() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close the rtnetlink channel", e);
+        }
+    }
+}
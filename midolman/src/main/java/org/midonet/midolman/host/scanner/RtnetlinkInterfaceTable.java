@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.host.scanner;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.midolman.host.interfaces.InterfaceDescription;
+import org.midonet.netlink.NLMessageType;
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.rtnetlink.Addr;
+import org.midonet.netlink.rtnetlink.Link;
+import org.midonet.netlink.rtnetlink.Rtnetlink;
+import org.midonet.packets.MAC;
+
+/**
+ * The interfaces of the host as told by rtnetlink: the links and addresses
+ * of the dumps and notifications read by the RtnetlinkInterfaceScanner,
+ * and the interface descriptions built from them. It doesn't touch the
+ * channel, the dumps it needs are requested through a DumpRequester.
+ *
+ * Not thread-safe, it's only used by the thread that reads the channel.
+ */
+class RtnetlinkInterfaceTable {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(RtnetlinkInterfaceTable.class);
+
+    static final int EBUSY = 16;
+    private static final int NO_DUMP = -1;
+
+    /** Sends the requests to dump the links or addresses of the host. */
+    interface DumpRequester {
+        void requestDump(short type, int seq) throws IOException;
+    }
+
+    private final DumpRequester requester;
+
+    private Map<Integer, Link> links = new HashMap<>();
+    private Map<Integer, Set<InetAddress>> addresses = new HashMap<>();
+    private final Map<Integer, InterfaceDescription> interfaces = new HashMap<>();
+    private final Set<Integer> changedLinks = new HashSet<>();
+    private int lastSeq = 0;
+    private int dumpSeq = NO_DUMP;
+    private short dumpType;
+    private boolean dumpBusy = false;
+
+    RtnetlinkInterfaceTable(DumpRequester requester) {
+        this.requester = requester;
+    }
+
+    /**
+     * Dumps the links and then the addresses of the host into new maps, so
+     * that those that disappeared while notifications were lost are dropped
+     * once the dump is done. Notifications received meanwhile are applied
+     * to the new maps.
+     */
+    void startDump() throws IOException {
+        links = new HashMap<>();
+        addresses = new HashMap<>();
+        requestDump(Rtnetlink.Type.GETLINK);
+    }
+
+    boolean isDumping() {
+        return dumpSeq != NO_DUMP;
+    }
+
+    /**
+     * Applies the netlink messages in the buffer, from its position to its
+     * limit. A truncated message at the end of the buffer is ignored.
+     */
+    void handleMessages(ByteBuffer buf) throws IOException {
+        final int end = buf.limit();
+        while (buf.remaining() >= Rtnetlink.NLMSG_HDRLEN) {
+            int start = buf.position();
+            int len = buf.getInt(start);
+            if (len < Rtnetlink.NLMSG_HDRLEN || len > end - start)
+                break;
+            short type = buf.getShort(start + 4);
+            int seq = buf.getInt(start + 8);
+
+            buf.limit(start + len);
+            buf.position(start + Rtnetlink.NLMSG_HDRLEN);
+            handleMessage(type, seq, buf);
+            buf.limit(end);
+            buf.position(Math.min(end, NetlinkMessage.align(start + len)));
+        }
+    }
+
+    private void handleMessage(short type, int seq, ByteBuffer buf)
+            throws IOException {
+        switch (type) {
+            case Rtnetlink.Type.NEWLINK: {
+                Link link = Link.buildFrom(buf);
+                links.put(link.getIndex(), link);
+                changedLinks.add(link.getIndex());
+                break;
+            }
+            case Rtnetlink.Type.DELLINK: {
+                Link link = Link.buildFrom(buf);
+                links.remove(link.getIndex());
+                addresses.remove(link.getIndex());
+                changedLinks.add(link.getIndex());
+                break;
+            }
+            case Rtnetlink.Type.NEWADDR: {
+                Addr addr = Addr.buildFrom(buf);
+                InetAddress inetAddress = addr.getInetAddress();
+                if (inetAddress != null) {
+                    Set<InetAddress> linkAddresses = addresses.get(addr.getIndex());
+                    if (linkAddresses == null) {
+                        linkAddresses = new LinkedHashSet<>();
+                        addresses.put(addr.getIndex(), linkAddresses);
+                    }
+                    linkAddresses.add(inetAddress);
+                    changedLinks.add(addr.getIndex());
+                }
+                break;
+            }
+            case Rtnetlink.Type.DELADDR: {
+                Addr addr = Addr.buildFrom(buf);
+                Set<InetAddress> linkAddresses = addresses.get(addr.getIndex());
+                if (linkAddresses != null &&
+                        linkAddresses.remove(addr.getInetAddress())) {
+                    changedLinks.add(addr.getIndex());
+                }
+                break;
+            }
+            case NLMessageType.DONE:
+            case NLMessageType.ERROR:
+                if (seq == dumpSeq) {
+                    if (type == NLMessageType.DONE)
+                        dumpDone();
+                    else
+                        dumpFailed(-buf.getInt());
+                } else if (dumpBusy) {
+                    // The dump that kept ours from starting is over, what it
+                    // sent meanwhile may be stale so the maps start afresh
+                    if (dumpType == Rtnetlink.Type.GETLINK)
+                        startDump();
+                    else
+                        requestDump(dumpType);
+                }
+                break;
+        }
+    }
+
+    private void requestDump(short type) throws IOException {
+        dumpType = type;
+        dumpSeq = ++lastSeq;
+        dumpBusy = false;
+        requester.requestDump(type, dumpSeq);
+    }
+
+    private void dumpDone() throws IOException {
+        if (dumpType == Rtnetlink.Type.GETLINK) {
+            requestDump(Rtnetlink.Type.GETADDR);
+        } else {
+            dumpSeq = NO_DUMP;
+            changedLinks.addAll(interfaces.keySet());
+            changedLinks.addAll(links.keySet());
+        }
+    }
+
+    private void dumpFailed(int error) throws IOException {
+        if (error == EBUSY) {
+            // A dump interrupted by lost notifications is still running on
+            // the socket: ours is requested again once its DONE comes in.
+            dumpBusy = true;
+        } else {
+            log.error("Failed to dump the interfaces, error {}", error);
+            dumpDone();
+        }
+    }
+
+    /**
+     * Updates the descriptions of the interfaces that changed since the last
+     * call, and returns those that were added or updated, or null if none
+     * changed or a dump is in progress.
+     */
+    Set<InterfaceDescription> updateInterfaces() {
+        if (isDumping() || changedLinks.isEmpty())
+            return null;
+
+        Set<InterfaceDescription> updated = new HashSet<>();
+        for (Integer index : changedLinks) {
+            Link link = links.get(index);
+            if (link == null || link.getName() == null) {
+                interfaces.remove(index);
+            } else {
+                InterfaceDescription desc = describe(link, addresses.get(index));
+                interfaces.put(index, desc);
+                updated.add(desc);
+            }
+        }
+        changedLinks.clear();
+        return updated;
+    }
+
+    /** Returns a copy of the descriptions of all the interfaces. */
+    Set<InterfaceDescription> interfaces() {
+        return new HashSet<>(interfaces.values());
+    }
+
+    private InterfaceDescription describe(Link link, Set<InetAddress> inetAddresses) {
+        InterfaceDescription desc = new InterfaceDescription(link.getName());
+        desc.setMtu(link.getMtu());
+        desc.setUp(link.isUp());
+        desc.setHasLink(link.hasLink());
+
+        byte[] mac = link.getMac();
+        if (mac != null && mac.length == 6) {
+            desc.setMac(MAC.bytesToString(mac));
+        }
+
+        if (link.isLoopback()) {
+            desc.setEndpoint(InterfaceDescription.Endpoint.LOCALHOST);
+            desc.setType(InterfaceDescription.Type.VIRT);
+        } else if ("tun".equals(link.getKind())) {
+            desc.setEndpoint(InterfaceDescription.Endpoint.TUNTAP);
+            desc.setType(InterfaceDescription.Type.VIRT);
+        }
+
+        if (inetAddresses != null) {
+            for (InetAddress inetAddress : inetAddresses) {
+                desc.setInetAddress(inetAddress);
+            }
+        }
+        return desc;
+    }
+}
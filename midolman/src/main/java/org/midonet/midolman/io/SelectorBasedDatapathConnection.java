@@ -129,6 +129,7 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
 
         conn.getChannel().configureBlocking(false);
         conn.setMaxBatchIoOps(config.getMaxMessagesPerBatch());
+        conn.setMaxMessagesPerIo(config.getMaxMessagesPerIo());
 
         readLoop.register(
                 conn.getChannel(),
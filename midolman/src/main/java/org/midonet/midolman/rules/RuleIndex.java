@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.midonet.sdn.flows.WildcardMatch;
+import org.midonet.util.Range;
+
+/**
+ * A compiled form of a chain's rule list. Rules are bucketed by the network
+ * protocol and the exact transport destination port they require, so that
+ * evaluating a chain only visits the rules whose condition can possibly
+ * match the packet.
+ *
+ * For a given packet, the index returns the positions of the candidate rules
+ * in the original rule order. A rule is only ever left out of the candidates
+ * when its condition is guaranteed to reject the packet, so applying the
+ * candidates in order gives exactly the same result as a linear traversal.
+ * Rules that use inverted conjunctions or inverted protocol/port
+ * constraints are never left out.
+ *
+ * Rules may rewrite the packet match (NAT rules, or NAT rules reached
+ * through a jump) so callers must refresh the candidates after applying
+ * such a rule, see {@link #mayModifyMatch(Rule)} and {@link #nextAfter}.
+ */
+public final class RuleIndex {
+
+    /** Chains shorter than this are cheaper to traverse linearly. */
+    public static final int MIN_INDEXED_RULES = 8;
+
+    private final Bucket anyProto;
+    private final Map<Byte, Bucket> byProto;
+
+    private RuleIndex(Bucket anyProto, Map<Byte, Bucket> byProto) {
+        this.anyProto = anyProto;
+        this.byProto = byProto;
+    }
+
+    /**
+     * Compiles the given rule list, or returns null if the chain is too
+     * short or no rule has an indexable constraint.
+     */
+    public static RuleIndex compile(List<Rule> rules) {
+        if (rules.size() < MIN_INDEXED_RULES)
+            return null;
+
+        int n = rules.size();
+        Byte[] protos = new Byte[n];
+        Integer[] ports = new Integer[n];
+        boolean indexable = false;
+        for (int i = 0; i < n; i++) {
+            Condition cond = rules.get(i).getCondition();
+            if (cond == null || cond.conjunctionInv)
+                continue;
+            if (cond.nwProto != null && !cond.nwProtoInv)
+                protos[i] = cond.nwProto;
+            if (cond.tpDst != null && !cond.tpDstInv)
+                ports[i] = exactPort(cond.tpDst);
+            indexable |= protos[i] != null || ports[i] != null;
+        }
+        if (!indexable)
+            return null;
+
+        Map<Byte, Bucket> byProto = new HashMap<>();
+        for (Byte proto : protos) {
+            if (proto != null && !byProto.containsKey(proto))
+                byProto.put(proto, Bucket.build(proto, protos, ports));
+        }
+        return new RuleIndex(Bucket.build(null, protos, ports), byProto);
+    }
+
+    /**
+     * Returns the positions, in increasing order, of the rules that may
+     * match the given packet. The returned array is shared and must not be
+     * modified.
+     */
+    public int[] candidates(WildcardMatch pktMatch) {
+        Byte proto = pktMatch.getNetworkProto();
+        Bucket bucket = (proto == null) ? null : byProto.get(proto);
+        if (bucket == null)
+            bucket = anyProto;
+        return bucket.candidates(pktMatch.getDstPort());
+    }
+
+    /**
+     * Returns the index in <pre>candidates</pre> of the first rule located
+     * after <pre>position</pre> in the rule list.
+     */
+    public static int nextAfter(int[] candidates, int position) {
+        int i = Arrays.binarySearch(candidates, position + 1);
+        return (i >= 0) ? i : -i - 1;
+    }
+
+    /**
+     * Whether applying this rule may rewrite the packet match that was used
+     * to select the candidates.
+     */
+    public static boolean mayModifyMatch(Rule rule) {
+        return !(rule instanceof LiteralRule);
+    }
+
+    private static Integer exactPort(Range<Integer> range) {
+        Integer start = range.start();
+        return (start != null && start.equals(range.end())) ? start : null;
+    }
+
+    private static final class Bucket {
+        /** Candidates when the packet has no transport destination. */
+        final int[] all;
+        /** Candidates when the packet's destination port isn't indexed. */
+        final int[] anyPort;
+        final Map<Integer, int[]> byPort;
+
+        Bucket(int[] all, int[] anyPort, Map<Integer, int[]> byPort) {
+            this.all = all;
+            this.anyPort = anyPort;
+            this.byPort = byPort;
+        }
+
+        int[] candidates(Integer dstPort) {
+            if (dstPort == null)
+                return all;
+            int[] rules = byPort.get(dstPort);
+            return (rules == null) ? anyPort : rules;
+        }
+
+        static Bucket build(Byte proto, Byte[] protos, Integer[] ports) {
+            List<Integer> all = new ArrayList<>();
+            List<Integer> anyPort = new ArrayList<>();
+            for (int i = 0; i < protos.length; i++) {
+                if (protos[i] != null && !protos[i].equals(proto))
+                    continue;
+                all.add(i);
+                if (ports[i] == null)
+                    anyPort.add(i);
+            }
+
+            Map<Integer, int[]> byPort = new HashMap<>();
+            for (int i : all) {
+                Integer port = ports[i];
+                if (port == null || byPort.containsKey(port))
+                    continue;
+                List<Integer> rules = new ArrayList<>();
+                for (int j : all) {
+                    if (ports[j] == null || ports[j].equals(port))
+                        rules.add(j);
+                }
+                byPort.put(port, toArray(rules));
+            }
+            return new Bucket(toArray(all), toArray(anyPort), byPort);
+        }
+
+        private static int[] toArray(List<Integer> list) {
+            int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++)
+                array[i] = list.get(i);
+            return array;
+        }
+    }
+}
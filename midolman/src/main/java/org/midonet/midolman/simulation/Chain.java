@@ -15,19 +15,22 @@
  */
 package org.midonet.midolman.simulation;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 
 import scala.Option;
+import scala.collection.Iterator;
 import scala.collection.Map;
 
-import org.midonet.sdn.flows.WildcardMatch;
 import org.midonet.midolman.rules.JumpRule;
 import org.midonet.midolman.rules.Rule;
+import org.midonet.midolman.rules.RuleIndex;
 import org.midonet.midolman.rules.RuleResult;
 import org.midonet.midolman.rules.RuleResult.Action;
 import org.midonet.sdn.flows.FlowTagger;
@@ -35,14 +38,17 @@ import org.midonet.sdn.flows.FlowTagger;
 public class Chain {
     public final UUID id;
     private final List<Rule> rules;
+    private final RuleIndex ruleIndex;
     private final Map<UUID, Chain> jumpTargets;
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
+    private volatile HashMap<UUID, Integer> traversalIndices;
 
     public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
                  String name) {
         this.id = id;
         this.rules = new ArrayList<>(rules);
+        this.ruleIndex = RuleIndex.compile(this.rules);
         this.jumpTargets = jumpTargets;
         this.name = name;
         flowInvTag = FlowTagger.tagForDevice(id);
@@ -69,6 +75,43 @@ public class Chain {
         return match.isDefined() ? match.get() : null;
     }
 
+    /**
+     * Returns the dense index of every chain reachable from this one through
+     * jumps, by chain ID, starting at 0 for this chain. A traversal that
+     * starts at this chain marks the chains it visits by their index.
+     *
+     * The jump targets of chains that jump to each other are filled in
+     * after they are built, so the index is built the first time the chain
+     * is applied, and kept since a chain doesn't change once applied.
+     */
+    HashMap<UUID, Integer> traversalIndices() {
+        HashMap<UUID, Integer> indices = traversalIndices;
+        if (indices != null)
+            return indices;
+
+        indices = new HashMap<>();
+        indices.put(id, 0);
+        // Different versions of a chain may be reachable, with different
+        // jump targets, they share the index of their ID.
+        IdentityHashMap<Chain, Chain> seen = new IdentityHashMap<>();
+        ArrayDeque<Chain> pending = new ArrayDeque<>();
+        seen.put(this, this);
+        pending.add(this);
+        while (!pending.isEmpty()) {
+            Iterator<Chain> targets = pending.poll().jumpTargets.valuesIterator();
+            while (targets.hasNext()) {
+                Chain target = targets.next();
+                if (seen.put(target, target) == null) {
+                    if (!indices.containsKey(target.id))
+                        indices.put(target.id, indices.size());
+                    pending.add(target);
+                }
+            }
+        }
+        traversalIndices = indices;
+        return indices;
+    }
+
     /**
      * Recursive helper function for public static apply(). The first
      * three parameters are the same as in that method.
@@ -77,48 +120,51 @@ public class Chain {
      *     Results of rule processing (out only), plus packet match (in/out).
      * @param depth
      *     Depth of jump recursion. Guards against excessive recursion.
-     * @param traversedChains
+     * @param traversal
      *     Keeps track of chains that have been visited to prevent
      *     infinite recursion in the event of a cycle.
+     * @param index
+     *     The index of this chain in the traversal.
      */
     private void apply(PacketContext context, UUID ownerId,
                        boolean isPortFilter, RuleResult res,
-                       int depth, List<UUID> traversedChains) {
+                       int depth, ChainTraversal traversal, int index) {
 
         context.jlog().debug("Processing chain with name {} and ID {}", name, id);
         if (depth > 10) {
             throw new IllegalStateException("Deep recursion when processing " +
-                                            "chain " + traversedChains.get(0));
+                                            "chain " + traversal.root());
         }
 
         context.addFlowTag(flowInvTag);
-        traversedChains.add(id);
+        traversal.visit(index);
 
-        Iterator<Rule> iter = rules.iterator();
         res.action = Action.CONTINUE;
-        while (iter.hasNext() && res.action == Action.CONTINUE) {
-
-            Rule r = iter.next();
-            r.process(context, res, ownerId, isPortFilter);
-
-            if (res.action == Action.JUMP) {
-                Chain jumpChain = getJumpTarget(res.jumpToChain);
-                if (null == jumpChain) {
-                    context.jlog().error("ignoring jump to chain {} : not found.",
-                                        res.jumpToChain, context);
-                    res.action = Action.CONTINUE;
-                } else if (traversedChains.contains(jumpChain.id)) {
-                    context.jlog().warn(
-                        "cannot jump from chain {} to chain {} -- already visited",
-                        this, jumpChain, context);
-                    res.action = Action.CONTINUE;
-                } else {
-                    // Apply the jump chain and return if it produces a
-                    // decisive action. If not, on to the next rule.
-                    jumpChain.apply(context, ownerId, isPortFilter,
-                                    res, depth + 1, traversedChains);
-                    if (res.action == Action.RETURN)
-                        res.action = Action.CONTINUE;
+        if (ruleIndex == null) {
+            int i = 0;
+            while (i < rules.size() && res.action == Action.CONTINUE) {
+                Rule r = rules.get(i++);
+                r.process(context, res, ownerId, isPortFilter);
+                if (res.action == Action.JUMP)
+                    jump(context, ownerId, isPortFilter, res, depth,
+                         traversal);
+            }
+        } else {
+            int[] candidates = ruleIndex.candidates(context.wcmatch());
+            int i = 0;
+            while (i < candidates.length && res.action == Action.CONTINUE) {
+                int position = candidates[i++];
+                Rule r = rules.get(position);
+                r.process(context, res, ownerId, isPortFilter);
+                if (res.action == Action.JUMP)
+                    jump(context, ownerId, isPortFilter, res, depth,
+                         traversal);
+                if (res.action == Action.CONTINUE &&
+                        RuleIndex.mayModifyMatch(r)) {
+                    // The match may have been rewritten, re-select the
+                    // rules that follow this one.
+                    candidates = ruleIndex.candidates(context.wcmatch());
+                    i = RuleIndex.nextAfter(candidates, position);
                 }
             }
         }
@@ -126,6 +172,31 @@ public class Chain {
         assert res.action != Action.JUMP;
     }
 
+    private void jump(PacketContext context, UUID ownerId,
+                      boolean isPortFilter, RuleResult res,
+                      int depth, ChainTraversal traversal) {
+        Chain jumpChain = getJumpTarget(res.jumpToChain);
+        int index = (null == jumpChain) ? -1
+                                        : traversal.indexOf(jumpChain.id);
+        if (index < 0) {
+            context.jlog().error("ignoring jump to chain {} : not found.",
+                                res.jumpToChain, context);
+            res.action = Action.CONTINUE;
+        } else if (traversal.isVisited(index)) {
+            context.jlog().warn(
+                "cannot jump from chain {} to chain {} -- already visited",
+                this, jumpChain, context);
+            res.action = Action.CONTINUE;
+        } else {
+            // Apply the jump chain and return if it produces a
+            // decisive action. If not, on to the next rule.
+            jumpChain.apply(context, ownerId, isPortFilter,
+                            res, depth + 1, traversal, index);
+            if (res.action == Action.RETURN)
+                res.action = Action.CONTINUE;
+        }
+    }
+
     /**
      * @param chain
      *            The chain where processing starts.
@@ -135,40 +206,35 @@ public class Chain {
      *            UUID of the element using chainId.
      * @param isPortFilter
      *            whether the chain is being processed in a port filter context
+     * @return the result of applying the chain. The instance is reused by
+     *         the next chain application on the same thread, so callers
+     *         must consume it right away.
      */
     public static RuleResult apply(
             Chain chain, PacketContext context,
             UUID ownerId, boolean isPortFilter) {
 
-        WildcardMatch pktMatch = context.wcmatch();
+        ChainTraversal traversal = context.chainTraversal();
         if (null == chain) {
-            return new RuleResult(Action.ACCEPT, null);
+            return traversal.result(Action.ACCEPT);
         }
 
         if (context.jlog().isDebugEnabled()) {
             context.jlog().debug("Testing against Chain:\n{}", chain.asList(4, false));
         }
 
-        // Use ArrayList rather than HashSet because the list will be
-        // short enough that O(N) lookup is still cheap, and this
-        // avoids per-chain allocation.
-        //
-        // TODO: We can count how many chains can be reached from a
-        // given root chain in the constructor and then use that to
-        // determine how big a list to allocate.
-        List<UUID> traversedChains = new ArrayList<>();
-        RuleResult res = new RuleResult(Action.CONTINUE, null);
-        chain.apply(context, ownerId, isPortFilter, res, 0, traversedChains);
+        RuleResult res = traversal.begin(chain);
+        chain.apply(context, ownerId, isPortFilter, res, 0, traversal, 0);
 
         // Accept if the chain didn't make an explicit decision.
         if (!res.action.isDecisive())
             res.action = Action.ACCEPT;
 
-        if (traversedChains.size() > 25) {
+        if (traversal.traversed() > 25) {
             // It's unlikely that this will come up a lot, but if it does,
-            // consider using a different structure for traversedChains.
+            // consider reviewing the chain layout.
             context.jlog().warn("Traversed {} chains when applying chain {}.",
-                               traversedChains.size(), chain.id, context);
+                               traversal.traversed(), chain.id, context);
         }
 
         return res;
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+import org.midonet.midolman.rules.RuleResult;
+import org.midonet.midolman.rules.RuleResult.Action;
+
+/**
+ * Scratch state for applying a chain and the chains it jumps to. A simulation
+ * runs to completion on a single thread and a chain application never starts
+ * another one (jumps are part of the same traversal), so one instance per
+ * simulating thread is reused by every chain application, avoiding the
+ * per-call allocation of the visited list and the RuleResult.
+ *
+ * Visited chains are tracked with an epoch-stamped array indexed by the
+ * dense index the root chain gives to each chain reachable from it, which
+ * turns the jump loop detection into an array read and makes resetting the
+ * state between traversals O(1). The indices belong to the root chain, so
+ * they go away with it.
+ */
+public final class ChainTraversal {
+
+    private static final ThreadLocal<ChainTraversal> current =
+        new ThreadLocal<ChainTraversal>() {
+            @Override
+            protected ChainTraversal initialValue() {
+                return new ChainTraversal();
+            }
+        };
+
+    /**
+     * The traversal state of the calling thread.
+     */
+    public static ChainTraversal current() {
+        return current.get();
+    }
+
+    private final RuleResult result = new RuleResult(Action.CONTINUE, null);
+    private int[] visited = new int[16];
+    private int epoch = 0;
+    private int traversed = 0;
+    private HashMap<UUID, Integer> indices;
+    private UUID root;
+
+    /**
+     * Starts a new traversal from the given chain, forgetting about the
+     * previous one. The returned RuleResult is owned by this object and
+     * will be overwritten by the next traversal.
+     */
+    public RuleResult begin(Chain rootChain) {
+        indices = rootChain.traversalIndices();
+        if (indices.size() > visited.length) {
+            visited = new int[Math.max(indices.size(), visited.length * 2)];
+            epoch = 0;
+        }
+        if (++epoch == 0) {
+            Arrays.fill(visited, 0);
+            epoch = 1;
+        }
+        traversed = 0;
+        root = rootChain.id;
+        result.action = Action.CONTINUE;
+        result.jumpToChain = null;
+        return result;
+    }
+
+    /**
+     * Returns a RuleResult with the given action, reusing the one owned by
+     * this object.
+     */
+    public RuleResult result(Action action) {
+        result.action = action;
+        result.jumpToChain = null;
+        return result;
+    }
+
+    /**
+     * Returns the index of the given chain in this traversal, or -1 if it
+     * isn't reachable from the root chain.
+     */
+    public int indexOf(UUID chainId) {
+        Integer index = indices.get(chainId);
+        return (index == null) ? -1 : index;
+    }
+
+    public void visit(int chainIndex) {
+        visited[chainIndex] = epoch;
+        traversed++;
+    }
+
+    public boolean isVisited(int chainIndex) {
+        return visited[chainIndex] == epoch;
+    }
+
+    public int traversed() {
+        return traversed;
+    }
+
+    public UUID root() {
+        return root;
+    }
+}
@@ -24,7 +24,7 @@ import org.midonet.packets.IPv4Addr;
 public class ArpTable extends ReplicatedMap<IPv4Addr, ArpCacheEntry> {
 
     public ArpTable(Directory dir) {
-        super(dir);
+        super(dir, true, true);
     }
 
     @Override
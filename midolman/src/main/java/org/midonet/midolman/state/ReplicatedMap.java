@@ -212,12 +212,242 @@ public abstract class ReplicatedMap<K, V> {
         }
     }
 
+    /**
+     * Keeps the map in sync by diffing every new set of children against the
+     * previous one, so that only the paths that were added or removed are
+     * decoded and only the keys they belong to are examined and notified.
+     * The children are fetched asynchronously, except when the map starts.
+     */
+    private class IncrementalWatcher extends Directory.DefaultTypedWatcher {
+
+        /* All the paths in the directory, with their decoded contents */
+        private Map<String, Path> knownPaths = new HashMap<>();
+
+        /* The paths in the directory for each key, usually just one */
+        private final Map<K, List<Path>> pathsByKey = new HashMap<>();
+
+        /* Run after the first load of the map when it's started
+         * asynchronously, or as soon as that load fails or the map stops, so
+         * that whoever waits for the map goes on with what it has, like
+         * when a synchronous start fails. Guarded by the map. */
+        private Runnable onLoaded;
+
+        private final DirectoryCallback<Set<String>> childrenCallback =
+            new DirectoryCallback<Set<String>>() {
+                @Override
+                public void onSuccess(Set<String> paths) {
+                    update(paths);
+                    loaded();
+                }
+
+                @Override
+                public void onTimeout() {
+                    log.error("ReplicatedMap getChildren timed out.");
+                    loaded();
+                    if (connectionWatcher != null)
+                        connectionWatcher.handleTimeout(retry);
+                }
+
+                @Override
+                public void onError(KeeperException e) {
+                    log.error("ReplicatedMap getChildren failed", e);
+                    loaded();
+                    if (connectionWatcher != null)
+                        connectionWatcher.handleError("ReplicatedMap", retry, e);
+                }
+            };
+
+        private final Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                pathChildrenUpdated("");
+            }
+        };
+
+        @Override
+        public void pathChildrenUpdated(String path) {
+            if (running)
+                dir.asyncGetChildren("", childrenCallback, this);
+        }
+
+        void start() {
+            Set<String> paths = null;
+            try {
+                paths = dir.getChildren("/", this);
+            } catch (KeeperException e) {
+                log.warn("ReplicatedMap.start {}", e);
+                if (connectionWatcher == null) {
+                    throw new RuntimeException(e);
+                }
+                connectionWatcher.handleError("ReplicatedMap", retry, e);
+            } catch (InterruptedException e) {
+                log.error("ReplicatedMap.start {}", e);
+                Thread.currentThread().interrupt();
+            }
+            if (paths != null)
+                update(paths);
+        }
+
+        void startAsync(Runnable onLoaded) {
+            synchronized(ReplicatedMap.this) {
+                this.onLoaded = onLoaded;
+            }
+            pathChildrenUpdated("");
+        }
+
+        /* Runs the callback waiting for the first load, if any */
+        void loaded() {
+            Runnable loaded;
+            synchronized(ReplicatedMap.this) {
+                loaded = onLoaded;
+                onLoaded = null;
+            }
+            if (loaded != null)
+                loaded.run();
+        }
+
+        void clear() {
+            knownPaths.clear();
+            pathsByKey.clear();
+        }
+
+        void update(Set<String> curPaths) {
+            List<Path> cleanupPaths = new ArrayList<>();
+            List<Notification<K, V>> notifications = new ArrayList<>();
+
+            synchronized(ReplicatedMap.this) {
+                if (!running) {
+                    return;
+                }
+                Set<K> changedKeys = new HashSet<>();
+                Map<String, Path> oldPaths = knownPaths;
+                Map<String, Path> newPaths = new HashMap<>(
+                    Math.max(16, (int) (curPaths.size() / 0.75f) + 1));
+                for (String path : curPaths) {
+                    Path p = oldPaths.remove(path);
+                    if (p == null) {
+                        p = decodePath(path);
+                        addPath(p);
+                        changedKeys.add(p.key);
+                    }
+                    newPaths.put(path, p);
+                }
+                // What is left of the old paths was removed from the directory
+                for (Path p : oldPaths.values()) {
+                    removePath(p);
+                    changedKeys.add(p.key);
+                }
+                knownPaths = newPaths;
+
+                for (K key : changedKeys) {
+                    updateKey(key, cleanupPaths, notifications);
+                }
+            }
+
+            for (Notification<K,V> notice : notifications) {
+                notifyWatchers(notice.key, notice.oldValue, notice.newValue);
+            }
+
+            cleanup(cleanupPaths);
+        }
+
+        /**
+         * Deletes the given paths asynchronously, because this may run in
+         * the ZooKeeper event thread.
+         */
+        private void cleanup(List<Path> paths) {
+            for (final Path path : paths) {
+                dir.asyncDelete(
+                    encodePath(path.key, path.value, path.version),
+                    new DirectoryCallback.Void() {
+                        @Override
+                        public void onSuccess(java.lang.Void data) {
+                            synchronized(ReplicatedMap.this) {
+                                ownedVersions.remove(path.version);
+                            }
+                        }
+
+                        @Override
+                        public void onTimeout() {
+                            log.error("ReplicatedMap cleanup of {} timed out.",
+                                      path.key);
+                        }
+
+                        @Override
+                        public void onError(KeeperException e) {
+                            log.error("ReplicatedMap cleanup of {} failed",
+                                      path.key, e);
+                        }
+                    });
+            }
+        }
+
+        private void addPath(Path p) {
+            List<Path> paths = pathsByKey.get(p.key);
+            if (paths == null) {
+                paths = new ArrayList<>(1);
+                pathsByKey.put(p.key, paths);
+            }
+            paths.add(p);
+        }
+
+        private void removePath(Path p) {
+            List<Path> paths = pathsByKey.get(p.key);
+            if (paths != null) {
+                paths.remove(p);
+                if (paths.isEmpty())
+                    pathsByKey.remove(p.key);
+            }
+        }
+
+        /**
+         * Picks the highest versioned entry for a key, updates the local map
+         * accordingly and adds to cleanupPaths the other entries for the key
+         * that belong to this ZK client, just like populateNewMap does for
+         * the whole map.
+         */
+        private void updateKey(K key, List<Path> cleanupPaths,
+                               List<Notification<K, V>> notifications) {
+            List<Path> paths = pathsByKey.get(key);
+            Path newest = null;
+            if (paths != null) {
+                for (Path p : paths) {
+                    if (newest == null || p.version > newest.version)
+                        newest = p;
+                }
+                for (Path p : paths) {
+                    if (p.version < newest.version &&
+                        ownedVersions.contains(p.version))
+                        cleanupPaths.add(p);
+                }
+            }
+
+            MapValue mv = localMap.get(key);
+            if (newest == null) {
+                if (mv != null) {
+                    localMap.remove(key);
+                    notifications.add(new Notification<>(key, mv.value, null));
+                }
+            } else if (mv == null) {
+                localMap.put(key, new MapValue(newest.value, newest.version));
+                notifications.add(new Notification<>(key, null, newest.value));
+            } else if (mv.version != newest.version) {
+                // We compare versions because the 'value' members
+                // might not implement .equals accurately.
+                localMap.put(key, new MapValue(newest.value, newest.version));
+                notifications.add(
+                    new Notification<>(key, mv.value, newest.value));
+            }
+        }
+    }
+
     private Directory dir;
     private volatile boolean running;
     private volatile ConcurrentMap<K, MapValue> localMap;
     private Set<Integer> ownedVersions;
     private Set<Watcher<K, V>> watchers;
     private DirectoryWatcher myWatcher;
+    private IncrementalWatcher incrementalWatcher;
     private boolean createsEphemeralNode;
 
     public ReplicatedMap(Directory dir) {
@@ -234,12 +464,28 @@ public abstract class ReplicatedMap<K, V> {
      * 'put' to this map be made an ephemeral / persistent ZooKeeper node.
      */
     public ReplicatedMap(Directory dir, boolean ephemeral) {
+        this(dir, ephemeral, false);
+    }
+
+    /**
+     * @param dir A ZooKeeper directory (node) under which key-value pairs are
+     * stored.
+     * @param ephemeral A boolean indicating whether a key-value pair that's
+     * 'put' to this map be made an ephemeral / persistent ZooKeeper node.
+     * @param incremental Whether the map should be kept in sync incrementally,
+     * only looking at the entries that changed in the directory, instead of
+     * being rebuilt on every change. Meant for large, busy maps.
+     */
+    public ReplicatedMap(Directory dir, boolean ephemeral,
+                         boolean incremental) {
         this.dir = dir;
         this.running = false;
         this.localMap = new ConcurrentHashMap<>();
         this.ownedVersions = new HashSet<>();
         this.watchers = new HashSet<>();
         this.myWatcher = new DirectoryWatcher();
+        if (incremental)
+            this.incrementalWatcher = new IncrementalWatcher();
         this.createsEphemeralNode = ephemeral;
     }
 
@@ -254,15 +500,43 @@ public abstract class ReplicatedMap<K, V> {
     public void start() {
         if (!this.running) {
             this.running = true;
-            myWatcher.run();
+            if (incrementalWatcher != null)
+                incrementalWatcher.start();
+            else
+                myWatcher.run();
         }
     }
 
-    public synchronized void stop() {
-        this.running = false;
-        Map<K, MapValue> oldMap = localMap;
-        localMap = new ConcurrentHashMap<>();
-        oldMap.clear();
+    /**
+     * Starts the map without blocking on the initial load of its entries,
+     * which is done with an asynchronous read of the directory. The given
+     * callback runs once the entries are loaded, usually in the ZooKeeper
+     * event thread. It also runs if the load fails, leaving the map empty
+     * until a retry succeeds, or if the map is stopped before the load, so
+     * it always runs exactly once. Maps that aren't kept in sync
+     * incrementally, or that are already started, run it right away.
+     */
+    public void start(Runnable onLoaded) {
+        if (incrementalWatcher == null || this.running) {
+            start();
+            onLoaded.run();
+        } else {
+            this.running = true;
+            incrementalWatcher.startAsync(onLoaded);
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            this.running = false;
+            if (incrementalWatcher != null)
+                incrementalWatcher.clear();
+            Map<K, MapValue> oldMap = localMap;
+            localMap = new ConcurrentHashMap<>();
+            oldMap.clear();
+        }
+        if (incrementalWatcher != null)
+            incrementalWatcher.loaded();
     }
 
     public V get(K key) {
@@ -18,6 +18,8 @@ package org.midonet.midolman.state;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ThreadLocalRandom;
 
 import com.google.inject.Inject;
@@ -30,6 +32,8 @@ import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
@@ -47,6 +51,12 @@ import org.midonet.util.functors.Callback;
  *  - If there are no unused blocks, we choose the least recently used free one
  *    (having been freed either explicitly or because its owner host went down).
  *
+ *  The state of the blocks in a range is read with asynchronous requests that
+ *  are all sent at once, and it's cached, with a watch on the children of each
+ *  block, until the block is claimed or freed. A block that looks free in the
+ *  cache may have been claimed by another host whose changes are still on
+ *  their way, in which case claiming it fails and the block is read again.
+ *
  *  Refer to the documentation for details on the algorithm.
  */
 public class ZkNatBlockAllocator implements NatBlockAllocator {
@@ -60,6 +70,22 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
     // TODO: Until ZK 3.5, which supports async multi operations
     private final Reactor reactor;
 
+    /* The last known state of the block paths, dropped when their children
+     * change or when the connection to ZooKeeper is lost. */
+    private final ConcurrentMap<String, Stat> blockStats =
+        new ConcurrentHashMap<>();
+
+    private final Watcher blockWatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() != Event.EventType.None) {
+                blockStats.remove(event.getPath());
+            } else if (event.getState() != Event.KeeperState.SyncConnected) {
+                blockStats.clear();
+            }
+        }
+    };
+
     @Inject
     public ZkNatBlockAllocator(ZkConnection zk, PathBuilder paths,
                                @Named(ZKConnectionProvider.DIRECTORY_REACTOR_TAG) Reactor reactor) {
@@ -75,67 +101,136 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
         reactor.submit(new Runnable() {
             @Override
             public void run() {
-                try {
-                    allocateBlock(natRange, callback);
-                } catch (InterruptedException ignored) {
-                } catch (KeeperException e) {
-                    if (e.code() == KeeperException.Code.NODEEXISTS) {
-                        // Retry, but allow the reactor to process other work
-                        allocateBlockInRange(natRange, callback);
-                    } else if (e.code() == KeeperException.Code.NONODE) {
-                        ensureDevicePath(natRange, callback);
-                    } else {
-                        callback.onError(e);
-                    }
-                }
+                allocateBlock(natRange, callback, true);
             }
         });
     }
 
     // TODO: Use support for multi-get in ZK 3.5
     private void allocateBlock(NatRange natRange,
-                               Callback<NatBlock, Exception> callback)
-            throws KeeperException, InterruptedException {
-        int lruBlock = -1;
-        long lruBlockZxid = Long.MAX_VALUE;
-        ArrayList<Integer> virginBlocks = new ArrayList<>();
+                               Callback<NatBlock, Exception> callback,
+                               boolean useCache) {
+        BlockScan scan = new BlockScan(natRange, callback);
+        List<Integer> misses = new ArrayList<>();
         int startBlock = natRange.tpPortStart / NatBlock.BLOCK_SIZE;
         int endBlock = natRange.tpPortEnd / NatBlock.BLOCK_SIZE;
-        Stat stat = new Stat();
         for (int i = startBlock; i <= endBlock; ++i) {
             String path = paths.getNatBlockPath(natRange.deviceId, natRange.ip, i);
-            zk.getZooKeeper().getData(path, false, stat);
+            Stat stat = useCache ? blockStats.get(path) : null;
+            if (stat != null) {
+                scan.usedCache = true;
+                scan.add(i, stat);
+            } else {
+                misses.add(i);
+            }
+        }
+
+        if (misses.isEmpty()) {
+            scan.finish();
+            return;
+        }
+
+        scan.pending = misses.size();
+        for (Integer i : misses) {
+            String path = paths.getNatBlockPath(natRange.deviceId, natRange.ip, i);
+            zk.getZooKeeper().getChildren(path, blockWatcher, scan, i);
+        }
+    }
+
+    /* A scan of the blocks of a range. The reads complete in the ZooKeeper
+     * event thread, and the last one to complete chooses the block. */
+    private class BlockScan implements AsyncCallback.Children2Callback {
+        private final NatRange natRange;
+        private final Callback<NatBlock, Exception> callback;
+
+        private final ArrayList<Integer> virginBlocks = new ArrayList<>();
+        private int lruBlock = -1;
+        private long lruBlockZxid = Long.MAX_VALUE;
+        private KeeperException.Code error;
+        int pending = 0;
+        boolean usedCache = false;
+
+        BlockScan(NatRange natRange, Callback<NatBlock, Exception> callback) {
+            this.natRange = natRange;
+            this.callback = callback;
+        }
+
+        synchronized void add(int block, Stat stat) {
             if (stat.getNumChildren() == 0) {
                 // Pzxid is the (undocumented) zxid of the last modified child
                 long pzxid = stat.getPzxid();
                 if (pzxid == stat.getCzxid()) {
-                    virginBlocks.add(i);
+                    virginBlocks.add(block);
                 } else if (pzxid < lruBlockZxid) {
                     lruBlockZxid = pzxid;
-                    lruBlock = i;
+                    lruBlock = block;
                 }
             }
         }
 
-        if (virginBlocks.size() > 0) {
-            int block = ThreadLocalRandom.current().nextInt(0, virginBlocks.size());
-            claimBlock(virginBlocks.get(block), natRange, callback);
-        } else if (lruBlock >= 0) {
-            claimBlock(lruBlock, natRange, callback);
-        } else {
-            callback.onSuccess(NatBlock.NO_BLOCK);
+        @Override
+        public void processResult(int rc, String path, Object ctx,
+                                  List<String> children, Stat stat) {
+            boolean done;
+            synchronized (this) {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    blockStats.put(path, stat);
+                    add((Integer) ctx, stat);
+                } else if (error == null) {
+                    error = KeeperException.Code.get(rc);
+                }
+                done = --pending == 0;
+            }
+            if (done)
+                finish();
+        }
+
+        void finish() {
+            if (error == KeeperException.Code.NONODE) {
+                ensureDevicePath(natRange, callback);
+            } else if (error != null) {
+                callback.onError(KeeperException.create(error));
+            } else if (virginBlocks.size() > 0) {
+                int block = ThreadLocalRandom.current().nextInt(0, virginBlocks.size());
+                claimBlock(virginBlocks.get(block), natRange, callback);
+            } else if (lruBlock >= 0) {
+                claimBlock(lruBlock, natRange, callback);
+            } else if (usedCache) {
+                // The blocks may have been freed by hosts whose changes
+                // haven't reached us yet, read them again before giving up.
+                allocateBlock(natRange, callback, false);
+            } else {
+                callback.onSuccess(NatBlock.NO_BLOCK);
+            }
         }
     }
 
     private void claimBlock(final int block,
                             final NatRange natRange,
-                            final Callback<NatBlock, Exception> callback)
-            throws KeeperException, InterruptedException {
+                            final Callback<NatBlock, Exception> callback) {
         log.debug("Trying to claim block {} for {}", block, natRange);
         String path = paths.getNatBlockOwnershipPath(
             natRange.deviceId, natRange.ip, block);
-        zk.getZooKeeper().create(path, null, acl, CreateMode.EPHEMERAL);
-        callback.onSuccess(new NatBlock(natRange.deviceId, natRange.ip, block));
+        zk.getZooKeeper().create(path, null, acl, CreateMode.EPHEMERAL,
+                                 new AsyncCallback.StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx, String name) {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    callback.onSuccess(
+                        new NatBlock(natRange.deviceId, natRange.ip, block));
+                } else if (rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                    // Retry, but allow the reactor to process other work
+                    blockStats.remove(paths.getNatBlockPath(
+                        natRange.deviceId, natRange.ip, block));
+                    allocateBlockInRange(natRange, callback);
+                } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                    ensureDevicePath(natRange, callback);
+                } else {
+                    callback.onError(KeeperException.create(
+                        KeeperException.Code.get(rc), path));
+                }
+            }
+        }, null);
     }
 
     @Override
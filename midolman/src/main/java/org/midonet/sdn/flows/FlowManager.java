@@ -16,21 +16,22 @@
 
 package org.midonet.sdn.flows;
 
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
 
 import akka.event.LoggingBus;
+import com.codahale.metrics.Clock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.midolman.flows.WildcardTablesProvider;
 import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
+import org.midonet.util.collection.TimingWheel;
 import org.midonet.util.functors.Callback1;
 
 // not thread-safe
@@ -46,9 +47,10 @@ import org.midonet.util.functors.Callback1;
  * Idle Time-out
  * This class guarantees that every wildcard flow that has an idle time-out set
  * will be evicted after idle time-out + delta.
- * We have two priority queues, one for hard time-out expiration and the other
- * for idle time-out expiration. They are ordered according to the time that
- * each flow has remaining.
+ * We have two timing wheels, one for hard time-out expiration and the other
+ * for idle time-out expiration, where each flow is scheduled at the time it
+ * will expire. Flows are added to and removed from them in constant time and
+ * the expired ones are collected in batches.
  * For idle time-out before deleting a wildcard flow, we get from the datapath
  * connection the lastUsedTime of each microflow until we find one whose
  * lastUsedTime < now - timeout. If that's the case, we extend the life of the
@@ -73,16 +75,33 @@ public class FlowManager {
     private int dpFlowRemoveBatchSize = 512;
     private int flowRequestsInFlight = 0;
     private long idleFlowToleranceInterval;
+    private final Clock clock;
 
     public FlowManager(
             FlowManagerHelper flowManagerHelper,
             WildcardTablesProvider wildcardTables,
             long maxDpFlows, long maxWildcardFlows, long idleFlowToleranceInterval) {
+        this(flowManagerHelper, wildcardTables, maxDpFlows, maxWildcardFlows,
+             idleFlowToleranceInterval, Clock.defaultClock());
+    }
+
+    /**
+     * @param clock The clock whose time, in milliseconds, the time-outs of the
+     *              wildcard flows are measured with.
+     */
+    public FlowManager(
+            FlowManagerHelper flowManagerHelper,
+            WildcardTablesProvider wildcardTables,
+            long maxDpFlows, long maxWildcardFlows, long idleFlowToleranceInterval,
+            Clock clock) {
         this.maxDpFlows = maxDpFlows;
         this.wildcardTables = wildcardTables;
         this.maxWildcardFlows = maxWildcardFlows;
         this.idleFlowToleranceInterval = idleFlowToleranceInterval;
         this.flowManagerHelper = flowManagerHelper;
+        this.clock = clock;
+        this.hardTimeOutWheel = new TimingWheel<>(clock.getTime(), 1);
+        this.idleTimeOutWheel = new TimingWheel<>(clock.getTime(), 1);
         if (dpFlowRemoveBatchSize > maxDpFlows)
             dpFlowRemoveBatchSize = 1;
     }
@@ -112,15 +131,14 @@ public class FlowManager {
     public LinkedHashMap<FlowMatch, ManagedWildcardFlow> dpFlowTable =
         new LinkedHashMap<>((int)maxDpFlows);
 
-    //TODO(ross) size for the priority queue?
-    final int priorityQueueSize = 10000;
-    /* Priority queue to evict flows based on hard time-out */
-    private PriorityQueue<ManagedWildcardFlow> hardTimeOutQueue =
-        new PriorityQueue<ManagedWildcardFlow>(priorityQueueSize, new WildcardFlowHardTimeComparator());
+    /* Timing wheel to evict flows based on hard time-out */
+    private final TimingWheel<ManagedWildcardFlow> hardTimeOutWheel;
 
-    /* Priority queue to evict flows based on idle time-out */
-    private PriorityQueue<ManagedWildcardFlow> idleTimeOutQueue =
-        new PriorityQueue<ManagedWildcardFlow>(priorityQueueSize, new WildcardFlowIdleTimeComparator());
+    /* Timing wheel to evict flows based on idle time-out */
+    private final TimingWheel<ManagedWildcardFlow> idleTimeOutWheel;
+
+    private final ArrayList<ManagedWildcardFlow> expiredFlows =
+        new ArrayList<>();
 
     private int numWildcardFlows = 0;
 
@@ -142,12 +160,12 @@ public class FlowManager {
     }
 
     public boolean evictOneFlow() {
-        ManagedWildcardFlow toEvict = !hardTimeOutQueue.isEmpty() ?
-                hardTimeOutQueue.poll() : idleTimeOutQueue.poll();
+        ManagedWildcardFlow toEvict = !hardTimeOutWheel.isEmpty() ?
+                hardTimeOutWheel.poll() : idleTimeOutWheel.poll();
 
         if (toEvict != null) {
             flowManagerHelper.removeWildcardFlow(toEvict);
-            // timeout queue ref
+            // timeout wheel ref
             toEvict.unref();
             return true;
         } else {
@@ -190,16 +208,15 @@ public class FlowManager {
             // FlowManager's ref
             wildFlow.ref();
             numWildcardFlows++;
-            wildFlow.setCreationTimeMillis(System.currentTimeMillis());
-            wildFlow.setLastUsedTimeMillis(System.currentTimeMillis());
+            long now = clock.getTime();
+            wildFlow.setCreationTimeMillis(now);
+            wildFlow.setLastUsedTimeMillis(now);
             if (wildFlow.getHardExpirationMillis() > 0) {
-                // timeout queue ref
-                wildFlow.ref();
-                hardTimeOutQueue.add(wildFlow);
+                scheduleExpiration(hardTimeOutWheel, wildFlow,
+                                   hardExpirationDate(wildFlow));
             } else if (wildFlow.getIdleExpirationMillis() > 0){
-                // timeout queue ref
-                wildFlow.ref();
-                idleTimeOutQueue.add(wildFlow);
+                scheduleExpiration(idleTimeOutWheel, wildFlow,
+                                   idleExpirationDate(wildFlow));
             }
             return true;
         }
@@ -235,7 +252,7 @@ public class FlowManager {
             // TODO(pino): check with Rossella. Newly created flows will
             // TODO: always have a null lastUsedTime.
             if (null == flow.getLastUsedTime())
-                wildFlow.setLastUsedTimeMillis(System.currentTimeMillis());
+                wildFlow.setLastUsedTimeMillis(clock.getTime());
             else if (flow.getLastUsedTime() > wildFlow.getLastUsedTimeMillis())
                 wildFlow.setLastUsedTimeMillis(flow.getLastUsedTime());
         }
@@ -273,6 +290,11 @@ public class FlowManager {
             if (wcMap.get(wildFlow.wcmatch()) == wildFlow) {
                 wcMap.remove(wildFlow.wcmatch());
                 numWildcardFlows--;
+                if (expirationWheel(wildFlow).cancel(
+                        wildFlow.expirationTimer())) {
+                    // timeout wheel ref
+                    wildFlow.unref();
+                }
                 // FlowManager's ref
                 wildFlow.unref();
 
@@ -299,30 +321,50 @@ public class FlowManager {
             return false;
     }
 
-    private void checkHardTimeOutExpiration() {
-        ManagedWildcardFlow flowToExpire;
-        while ((flowToExpire = hardTimeOutQueue.peek()) != null) {
-            // since we remove the element lazily let's check if this el
-            // has already been removed
-            if(!isAlive(flowToExpire)) {
-                hardTimeOutQueue.poll();
-                // timeout queue ref
-                flowToExpire.unref();
-                continue;
-            }
-            long timeLived = System.currentTimeMillis() - flowToExpire.getCreationTimeMillis();
-            if (timeLived >= flowToExpire.getHardExpirationMillis()) {
-                hardTimeOutQueue.poll();
+    private TimingWheel<ManagedWildcardFlow> expirationWheel(
+            ManagedWildcardFlow wildFlow) {
+        return (wildFlow.getHardExpirationMillis() > 0) ? hardTimeOutWheel
+                                                        : idleTimeOutWheel;
+    }
+
+    private static long hardExpirationDate(ManagedWildcardFlow wildFlow) {
+        return wildFlow.getCreationTimeMillis() +
+               wildFlow.getHardExpirationMillis();
+    }
+
+    private static long idleExpirationDate(ManagedWildcardFlow wildFlow) {
+        return wildFlow.getLastUsedTimeMillis() +
+               wildFlow.getIdleExpirationMillis();
+    }
+
+    private void scheduleExpiration(TimingWheel<ManagedWildcardFlow> wheel,
+                                    ManagedWildcardFlow wildFlow,
+                                    long expirationDate) {
+        TimingWheel.Timer<ManagedWildcardFlow> timer =
+            wildFlow.expirationTimer();
+        if (!timer.isScheduled()) {
+            // timeout wheel ref
+            wildFlow.ref();
+        }
+        wheel.schedule(timer, expirationDate);
+    }
+
+    private void checkHardTimeOutExpiration(long now) {
+        hardTimeOutWheel.advance(now, expiredFlows);
+        for (int i = 0; i < expiredFlows.size(); i++) {
+            ManagedWildcardFlow flowToExpire = expiredFlows.get(i);
+            // the flow may have been removed by a previous one in the batch
+            if (isAlive(flowToExpire)) {
+                long timeLived = now - flowToExpire.getCreationTimeMillis();
                 flowManagerHelper.removeWildcardFlow(flowToExpire);
                 log.debug("Removing flow {} for hard expiration, expired {} ms ago",
                           flowToExpire.getMatch(),
                           timeLived - flowToExpire.getHardExpirationMillis());
-                // timeout queue ref
-                flowToExpire.unref();
-            } else {
-                return;
             }
+            // timeout wheel ref
+            flowToExpire.unref();
         }
+        expiredFlows.clear();
     }
 
     private void getKernelFlowsLastUsedTime(ManagedWildcardFlow flowToExpire) {
@@ -352,31 +394,26 @@ public class FlowManager {
             flowManagerHelper.removeWildcardFlow(flowToExpire);
     }
 
-    private void checkIdleTimeExpiration() {
-        while (idleTimeOutQueue.peek() != null) {
-            ManagedWildcardFlow flowToExpire = idleTimeOutQueue.peek();
-            //log.trace("Idle timeout queue size {}", idleTimeOutQueue.size());
-            // since we remove the element lazily let's check if this element
-            // has already been removed
-            if (!isAlive(flowToExpire)) {
-                idleTimeOutQueue.poll();
-                // timeout queue ref
-                flowToExpire.unref();
-                continue;
+    private void checkIdleTimeExpiration(long now) {
+        idleTimeOutWheel.advance(now, expiredFlows);
+        for (int i = 0; i < expiredFlows.size(); i++) {
+            ManagedWildcardFlow flowToExpire = expiredFlows.get(i);
+            if (isAlive(flowToExpire)) {
+                long expirationDate = idleExpirationDate(flowToExpire);
+                // if the flow expired we don't delete it immediately, first
+                // we query the kernel to get the updated lastUsedTime
+                if (now >= expirationDate) {
+                    getKernelFlowsLastUsedTime(flowToExpire);
+                } else {
+                    // it was used after it was scheduled
+                    scheduleExpiration(idleTimeOutWheel, flowToExpire,
+                                       expirationDate);
+                }
             }
-            long expirationDate = flowToExpire.getLastUsedTimeMillis() +
-                flowToExpire.getIdleExpirationMillis();
-            // if the flow expired we don't delete it immediately, first we query
-            // the kernel to get the updated lastUsedTime
-            if (System.currentTimeMillis() >= expirationDate) {
-                // remove it from the queue so we won't query it again
-                idleTimeOutQueue.poll();
-                getKernelFlowsLastUsedTime(flowToExpire);
-                // timeout queue ref
-                flowToExpire.unref();
-            }else
-                break;
+            // timeout wheel ref
+            flowToExpire.unref();
         }
+        expiredFlows.clear();
 
         if (flowRequestsInFlight > 0) {
             log.debug("Number of getFlow requests in flight {}",
@@ -407,16 +444,25 @@ public class FlowManager {
     }
 
     public void checkFlowsExpiration() {
-        checkHardTimeOutExpiration();
+        checkFlowsExpiration(clock.getTime());
+    }
+
+    /**
+     * Expires the wildcard flows whose time-out is at or before the given
+     * time, in milliseconds of the clock of this FlowManager.
+     */
+    public void checkFlowsExpiration(long now) {
+        checkHardTimeOutExpiration(now);
         //updateWildcardLastUsedTime();
-        checkIdleTimeExpiration();
+        checkIdleTimeExpiration(now);
         // check if there's enough space in the DP table
         manageDPFlowTableSpace();
     }
 
-    // used in test to manipulate flows idle/hard expiration time values
+    // used in tests, the flow is checked at its expiration time, as given by
+    // its expirationTimer(), when checkFlowsExpiration() reaches it
     public ManagedWildcardFlow oldestIdleFlow() {
-        return idleTimeOutQueue.peek();
+        return idleTimeOutWheel.earliest();
     }
 
     public void flowMissing(FlowMatch flowMatch) {
@@ -427,35 +473,6 @@ public class FlowManager {
         }
     }
 
-    private abstract class WildcardFlowComparator implements Comparator<ManagedWildcardFlow> {
-
-        @Override
-        public int compare(ManagedWildcardFlow wildcardFlow,
-                           ManagedWildcardFlow wildcardFlow1) {
-            long now = System.currentTimeMillis();
-            long expirationTime1 = getExpirationTime(wildcardFlow, now);
-            long expirationTime2 = getExpirationTime(wildcardFlow1, now);
-
-            return (int) (expirationTime1-expirationTime2);
-        }
-
-        protected abstract long getExpirationTime(ManagedWildcardFlow flow, long now);
-    }
-
-    private class WildcardFlowHardTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedWildcardFlow flow, long now) {
-            return flow.getCreationTimeMillis() + flow.getHardExpirationMillis();
-        }
-    }
-
-    private class WildcardFlowIdleTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedWildcardFlow flow, long now) {
-            return flow.getLastUsedTimeMillis() + flow.getIdleExpirationMillis();
-        }
-    }
-
     Map<Set<WildcardMatch.Field>, Map<WildcardMatch, ManagedWildcardFlow>> getWildcardTables() {
         return wildcardTables.tables();
     }
@@ -506,12 +523,11 @@ public class FlowManager {
             if (nMissingFlowUpdates == 0) {
                 long expirationDate = wcFlow.getLastUsedTimeMillis() +
                     wcFlow.getIdleExpirationMillis();
-                if (expirationDate - System.currentTimeMillis()
+                if (expirationDate - clock.getTime()
                     > idleFlowToleranceInterval) {
-                    // add it back to the queue
-                    // timeout queue ref
-                    wcFlow.ref();
-                    idleTimeOutQueue.add(wcFlow);
+                    // add it back to the wheel
+                    scheduleExpiration(idleTimeOutWheel, wcFlow,
+                                       expirationDate);
 
                 } else {
                     // we can expire it
@@ -519,7 +535,7 @@ public class FlowManager {
                     log.debug(
                         "Removing flow {} for idle expiration, expired {} ms ago",
                         wcFlow.getMatch(),
-                        System.currentTimeMillis() - (wcFlow.getLastUsedTimeMillis()
+                        clock.getTime() - (wcFlow.getLastUsedTimeMillis()
                             + wcFlow.getIdleExpirationMillis()));
                 }
             }
@@ -976,6 +976,45 @@ public class WildcardMatch implements Cloneable {
         return new ProjectedWildcardMatch(fields, this);
     }
 
+    /**
+     * Allocation-free variant of project(): overwrites <pre>target</pre> so
+     * that it only uses the given <pre>fields</pre>, copying their values
+     * from this match. Meant for lookup buffers that are reused across
+     * queries, the target must not be stored as a key in any table.
+     *
+     * @return false, leaving target untouched, if this match doesn't use all
+     *         the requested fields.
+     */
+    public boolean projectInto(Set<WildcardMatch.Field> fields,
+                               WildcardMatch target) {
+        if (!usedFields.containsAll(fields))
+            return false;
+
+        target.usedFields.clear();
+        target.usedFields.addAll(fields);
+        target.inputPortNumber = inputPortNumber;
+        target.tunnelKey = tunnelKey;
+        target.ethSrc = ethSrc;
+        target.ethDst = ethDst;
+        target.etherType = etherType;
+        target.networkSrc = networkSrc;
+        target.networkDst = networkDst;
+        target.networkProto = networkProto;
+        target.networkTTL = networkTTL;
+        target.networkTOS = networkTOS;
+        target.ipFragmentType = ipFragmentType;
+        target.srcPort = srcPort;
+        target.dstPort = dstPort;
+        target.icmpId = icmpId;
+        target.icmpData = icmpData;
+        if (target.vlanIds == null)
+            target.vlanIds = new ArrayList<>();
+        target.vlanIds.clear();
+        if (fields.contains(Field.VlanId))
+            target.vlanIds.addAll(vlanIds);
+        return true;
+    }
+
     public static WildcardMatch fromFlowMatch(FlowMatch match) {
         return fromFlowKeys(match.getKeys());
     }
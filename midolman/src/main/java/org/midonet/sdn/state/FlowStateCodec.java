@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.state;
+
+/**
+ * Translates the keys and values of a flow state table to and from a fixed
+ * width encoding, so that they can be stored outside of the Java heap.
+ *
+ * A key is encoded as keyWords() 64 bit words, and two keys must be equal if
+ * and only if their encodings are. A value is encoded as a single 64 bit
+ * word.
+ *
+ * @param <K> Type of the keys in the table
+ * @param <V> Type of the values in the table.
+ */
+public interface FlowStateCodec<K, V> {
+    /**
+     * The number of 64 bit words that hold an encoded key.
+     */
+    int keyWords();
+
+    /**
+     * Writes the encoding of a key in the first keyWords() elements of the
+     * given array.
+     */
+    void encodeKey(K key, long[] words);
+
+    /**
+     * Builds a key out of the first keyWords() elements of the given array.
+     */
+    K decodeKey(long[] words);
+
+    long encodeValue(V value);
+
+    V decodeValue(long value);
+}
@@ -0,0 +1,727 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.state;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.misc.Unsafe;
+import sun.nio.ch.DirectBuffer;
+
+import org.midonet.Util;
+import org.midonet.util.collection.Reducer;
+
+/**
+ * A sharded per-flow state table that keeps its entries in direct memory.
+ *
+ * It offers the same semantics as the ShardedFlowStateTable, but keys and
+ * values are stored encoded, as given by a FlowStateCodec, so that tracking
+ * millions of connections doesn't put millions of long lived objects on the
+ * Java heap. Each shard is an open addressing table with linear probing
+ * whose entries hold a control word, the encoded value, the reference count,
+ * the idle expiration time and the encoded key.
+ *
+ * THREADING SEMANTICS:
+ *
+ * As in the ShardedFlowStateTable, each shard has a single owner thread that
+ * is the only one that adds entries to it, through putAndRef() and touch(),
+ * and expires them. The owner's lookups fall back to the other shards.
+ *
+ * Reads from other threads are lock-free: the owner publishes an entry by
+ * writing its control word last, and bumps the version in the control word
+ * every time the slot changes state, so that readers can detect that a slot
+ * was reused while they were reading it and retry. Reference counts are
+ * updated with compare-and-swap from any thread. When the owner grows a
+ * shard, it marks the reference count of every entry it copies as MOVED, so
+ * that concurrent ref() and unref() calls wait for the new table instead of
+ * updating the old one. Readers pin the table they read by counting
+ * themselves in it, and the owner only releases the memory of an old table
+ * once it is no longer current and no reader is left inside it.
+ *
+ * Idle entries are expired lazily: each call to expireIdleEntries() checks a
+ * bounded number of slots, so an entry is expired some time after its idle
+ * expiration passes, never before.
+ */
+public final class OffHeapFlowStateTable<K extends IdleExpiration, V>
+        implements FlowStateTable<K, V> {
+
+    private static final Logger log =
+        LoggerFactory.getLogger("org.midonet.state.table");
+
+    private static final Unsafe UNSAFE = Util.getUnsafe();
+    private static final long ADDRESS_OFFSET;
+    static {
+        try {
+            ADDRESS_OFFSET = UNSAFE.objectFieldOffset(
+                Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException("Unable to access buffer addresses", e);
+        }
+    }
+
+    // The control word of a slot holds a version in its upper 32 bits, the
+    // hash of the key in the next 30 and the state of the slot in the last 2.
+    private static final long FREE = 0;
+    private static final long DELETED = 1;
+    private static final long LIVE = 2;
+    private static final long STATE_MASK = 3;
+    private static final long HASH_MASK = 0xFFFFFFFCL;
+
+    // Special reference counts
+    private static final int EXPIRED = -1;
+    private static final int MOVED = -2;
+
+    // Offsets within an entry
+    private static final int CONTROL = 0;
+    private static final int VALUE = 8;
+    private static final int REFS = 16;
+    private static final int EXPIRATION = 24;
+    private static final int KEY = 32;
+
+    private static final long NONE = -1L;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIN_SWEEP = 1024;
+
+    private final FlowStateCodec<K, V> codec;
+    private final Clock clock;
+    private final int keyWords;
+    private final int entryBytes;
+    private final int initialCapacity;
+    private final ArrayList<Shard> shards = new ArrayList<>();
+
+    private final ThreadLocal<long[]> keyScratch = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[keyWords];
+        }
+    };
+
+    public OffHeapFlowStateTable(FlowStateCodec<K, V> codec, Clock clock,
+                                 int initialCapacity) {
+        this.codec = codec;
+        this.clock = clock;
+        this.keyWords = codec.keyWords();
+        this.entryBytes = KEY + 8 * keyWords;
+        int capacity = MIN_CAPACITY;
+        while (capacity < initialCapacity)
+            capacity <<= 1;
+        this.initialCapacity = capacity;
+    }
+
+    public OffHeapFlowStateTable(FlowStateCodec<K, V> codec, Clock clock) {
+        this(codec, clock, 1024);
+    }
+
+    public OffHeapFlowStateTable(FlowStateCodec<K, V> codec) {
+        this(codec, Clock.defaultClock());
+    }
+
+    public Shard addShard() {
+        Shard s = new Shard(shards.size());
+        shards.add(s);
+        return s;
+    }
+
+    private long[] encode(K key) {
+        long[] words = keyScratch.get();
+        codec.encodeKey(key, words);
+        return words;
+    }
+
+    private int hash(long[] words) {
+        long h = 0;
+        for (int i = 0; i < keyWords; i++)
+            h = (h ^ words[i]) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) h & (int) HASH_MASK;
+    }
+
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(clock.getTick());
+    }
+
+    private V get(long[] words, int hash, int shardToSkip) {
+        for (int i = 0; i < shards.size(); i++) {
+            if (i != shardToSkip) {
+                V v = shards.get(i).shallowGet(words, hash);
+                if (v != null)
+                    return v;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public V putAndRef(K key, V value) {
+        throw new IllegalArgumentException();
+    }
+
+    @Override
+    public V get(K key) {
+        long[] words = encode(key);
+        return get(words, hash(words), -1);
+    }
+
+    @Override
+    public V ref(K key) {
+        long[] words = encode(key);
+        int hash = hash(words);
+        for (int i = 0; i < shards.size(); i++) {
+            V v = shards.get(i).ref(words, hash);
+            if (v != null)
+                return v;
+        }
+        return null;
+    }
+
+    @Override
+    public void touch(K key, V value) {
+        for (int i = 0; i < shards.size(); i++)
+            shards.get(i).touch(key, value);
+    }
+
+    @Override
+    public int getRefCount(K key) {
+        long[] words = encode(key);
+        int hash = hash(words);
+        int count = 0;
+        for (int i = 0; i < shards.size(); i++)
+            count += shards.get(i).getRefCount(words, hash);
+        return count;
+    }
+
+    @Override
+    public void unref(K key) {
+        long[] words = encode(key);
+        int hash = hash(words);
+        for (int i = 0; i < shards.size(); i++)
+            shards.get(i).unref(words, hash, key);
+    }
+
+    @Override
+    public <U> U fold(U seed, Reducer<K, V, U> func) {
+        for (int i = 0; i < shards.size(); i++)
+            seed = shards.get(i).fold(seed, func);
+        return seed;
+    }
+
+    @Override
+    public <U> U expireIdleEntries(U seed, Reducer<K, V, U> func) {
+        for (int i = 0; i < shards.size(); i++)
+            seed = shards.get(i).expireIdleEntries(seed, func);
+        return seed;
+    }
+
+    @Override
+    public void expireIdleEntries() {
+        for (int i = 0; i < shards.size(); i++)
+            shards.get(i).expireIdleEntries();
+    }
+
+    private static int slot(long found) {
+        return (int) found;
+    }
+
+    private static int version(long control) {
+        return (int) (control >>> 32);
+    }
+
+    private static long nextControl(long control, long hash, long state) {
+        return ((control >>> 32) + 1) << 32 | (hash & HASH_MASK) | state;
+    }
+
+    private static final class Segment {
+        final ByteBuffer memory;
+        final long address;
+        final int entryBytes;
+        final int capacity;
+        final int mask;
+        final AtomicInteger readers = new AtomicInteger();
+        int size = 0;
+        int tombstones = 0;
+
+        Segment(int capacity, int entryBytes) {
+            long bytes = (long) capacity * entryBytes;
+            if (bytes > Integer.MAX_VALUE)
+                throw new IllegalStateException(
+                    "Flow state table shard over capacity: " + capacity);
+            this.memory = ByteBuffer.allocateDirect((int) bytes);
+            this.address = UNSAFE.getLong(memory, ADDRESS_OFFSET);
+            this.entryBytes = entryBytes;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+        }
+
+        long entry(int slot) {
+            return address + (long) slot * entryBytes;
+        }
+
+        void free() {
+            ((DirectBuffer) memory).cleaner().clean();
+        }
+    }
+
+    /**
+     * A shard within an OffHeapFlowStateTable.
+     *
+     * It stores entries locally but forwards queries to the parent table for
+     * aggregation.
+     */
+    public final class Shard implements FlowStateTable<K, V> {
+        private final int index;
+        private volatile Segment segment;
+        private final ArrayList<Segment> retired = new ArrayList<>();
+        private int sweepCursor = 0;
+
+        private Shard(int index) {
+            this.index = index;
+            this.segment = new Segment(initialCapacity, entryBytes);
+        }
+
+        /**
+         * The number of entries in this shard.
+         */
+        public int size() {
+            return segment.size;
+        }
+
+        /**
+         * The number of slots in this shard.
+         */
+        public int capacity() {
+            return segment.capacity;
+        }
+
+        /*
+         * Returns the slot of the key in the segment in the lower 32 bits,
+         * and the version it had when it was found in the upper 32 bits, or
+         * NONE.
+         */
+        private long find(Segment seg, long[] words, int hash) {
+            restart:
+            while (true) {
+                int slot = (hash >>> 2) & seg.mask;
+                for (int probes = 0; probes < seg.capacity; probes++) {
+                    long entry = seg.entry(slot);
+                    long control = UNSAFE.getLongVolatile(null, entry + CONTROL);
+                    long state = control & STATE_MASK;
+                    if (state == FREE)
+                        return NONE;
+                    if (state == LIVE && (control & HASH_MASK) == (hash & HASH_MASK)
+                            && keyEquals(entry, words)) {
+                        if (UNSAFE.getLongVolatile(null, entry + CONTROL) != control)
+                            continue restart;
+                        return (control & 0xFFFFFFFF00000000L) | slot;
+                    }
+                    slot = (slot + 1) & seg.mask;
+                }
+                return NONE;
+            }
+        }
+
+        private boolean keyEquals(long entry, long[] words) {
+            for (int i = 0; i < keyWords; i++) {
+                if (UNSAFE.getLongVolatile(null, entry + KEY + 8 * i) != words[i])
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean isCurrent(long entry, long found) {
+            return version(UNSAFE.getLongVolatile(null, entry + CONTROL)) ==
+                   version(found);
+        }
+
+        private void awaitRehash(Segment seg) {
+            while (segment == seg)
+                Thread.yield();
+        }
+
+        /*
+         * Pins the current segment, so that its memory isn't released while
+         * the caller reads it. The owner checks the readers of a segment
+         * after replacing it, and a reader checks the segment is still the
+         * current one after counting itself in, so either the owner sees the
+         * reader or the reader sees the new segment and tries again.
+         */
+        private Segment enter() {
+            while (true) {
+                Segment seg = segment;
+                seg.readers.incrementAndGet();
+                if (segment == seg)
+                    return seg;
+                seg.readers.decrementAndGet();
+            }
+        }
+
+        private void exit(Segment seg) {
+            seg.readers.decrementAndGet();
+        }
+
+        /*
+         * Releases the memory of the old segments that no reader is using
+         * anymore. Only the owner of the shard may call this method.
+         */
+        private void releaseRetired() {
+            for (int i = retired.size() - 1; i >= 0; i--) {
+                Segment seg = retired.get(i);
+                if (seg.readers.get() == 0) {
+                    seg.free();
+                    retired.remove(i);
+                }
+            }
+        }
+
+        /**
+         * The number of old segments whose memory hasn't been released yet
+         * because readers might still be using them.
+         */
+        int retiredSegments() {
+            return retired.size();
+        }
+
+        V shallowGet(long[] words, int hash) {
+            while (true) {
+                Segment seg = enter();
+                try {
+                    long found = find(seg, words, hash);
+                    if (found == NONE)
+                        return null;
+                    long entry = seg.entry(slot(found));
+                    int refs = UNSAFE.getIntVolatile(null, entry + REFS);
+                    long value = UNSAFE.getLongVolatile(null, entry + VALUE);
+                    if (isCurrent(entry, found))
+                        return refs == EXPIRED ? null : codec.decodeValue(value);
+                } finally {
+                    exit(seg);
+                }
+            }
+        }
+
+        public V shallowGet(K key) {
+            long[] words = encode(key);
+            return shallowGet(words, hash(words));
+        }
+
+        @Override
+        public V get(K key) {
+            long[] words = encode(key);
+            int hash = hash(words);
+            V v = shallowGet(words, hash);
+            return (v != null) ? v : OffHeapFlowStateTable.this.get(words, hash, index);
+        }
+
+        @Override
+        public V putAndRef(K key, V value) {
+            long[] words = encode(key);
+            int hash = hash(words);
+            long encoded = codec.encodeValue(value);
+            Segment seg = segment;
+            long found = find(seg, words, hash);
+            if (found != NONE) {
+                long entry = seg.entry(slot(found));
+                long old = UNSAFE.getLongVolatile(null, entry + VALUE);
+                UNSAFE.putLongVolatile(null, entry + VALUE, encoded);
+                int refs;
+                do {
+                    refs = UNSAFE.getIntVolatile(null, entry + REFS);
+                } while (!UNSAFE.compareAndSwapInt(null, entry + REFS,
+                                                   refs, refs + 1));
+                return codec.decodeValue(old);
+            }
+            insert(words, hash, encoded);
+            return null;
+        }
+
+        private void insert(long[] words, int hash, long value) {
+            Segment seg = segment;
+            if (4L * (seg.size + seg.tombstones + 1) > 3L * seg.capacity)
+                seg = rehash(seg.size + 1);
+
+            int slot = (hash >>> 2) & seg.mask;
+            long entry;
+            long control;
+            while (true) {
+                entry = seg.entry(slot);
+                control = UNSAFE.getLongVolatile(null, entry + CONTROL);
+                if ((control & STATE_MASK) != LIVE)
+                    break;
+                slot = (slot + 1) & seg.mask;
+            }
+            if ((control & STATE_MASK) == DELETED)
+                seg.tombstones--;
+
+            for (int i = 0; i < keyWords; i++)
+                UNSAFE.putLong(entry + KEY + 8 * i, words[i]);
+            UNSAFE.putLong(entry + VALUE, value);
+            UNSAFE.putLong(entry + EXPIRATION, Long.MAX_VALUE);
+            UNSAFE.putIntVolatile(null, entry + REFS, 1);
+            UNSAFE.putLongVolatile(null, entry + CONTROL,
+                                   nextControl(control, hash, LIVE));
+            seg.size++;
+        }
+
+        /*
+         * Copies the live entries to a new segment with room for at least
+         * twice the given number of entries, dropping the tombstones.
+         */
+        private Segment rehash(int minSize) {
+            Segment old = segment;
+            int capacity = old.capacity;
+            while (2L * minSize > capacity)
+                capacity <<= 1;
+            Segment seg = new Segment(capacity, entryBytes);
+
+            for (int oldSlot = 0; oldSlot < old.capacity; oldSlot++) {
+                long from = old.entry(oldSlot);
+                long control = UNSAFE.getLongVolatile(null, from + CONTROL);
+                if ((control & STATE_MASK) != LIVE)
+                    continue;
+                int refs;
+                do {
+                    refs = UNSAFE.getIntVolatile(null, from + REFS);
+                } while (!UNSAFE.compareAndSwapInt(null, from + REFS,
+                                                   refs, MOVED));
+
+                int slot = (int) ((control & HASH_MASK) >>> 2) & seg.mask;
+                while ((UNSAFE.getLong(seg.entry(slot) + CONTROL) & STATE_MASK) != FREE)
+                    slot = (slot + 1) & seg.mask;
+                long to = seg.entry(slot);
+                UNSAFE.copyMemory(from + VALUE, to + VALUE, entryBytes - VALUE);
+                UNSAFE.putInt(to + REFS, refs);
+                UNSAFE.putLong(to + CONTROL, nextControl(0, control, LIVE));
+                seg.size++;
+            }
+
+            log.debug("Resized flow state table shard {} from {} to {} slots",
+                      index, old.capacity, capacity);
+            sweepCursor = 0;
+            segment = seg;
+            retired.add(old);
+            releaseRetired();
+            return seg;
+        }
+
+        V ref(long[] words, int hash) {
+            while (true) {
+                Segment seg = enter();
+                try {
+                    long found = find(seg, words, hash);
+                    if (found == NONE)
+                        return null;
+                    long entry = seg.entry(slot(found));
+                    int refs = UNSAFE.getIntVolatile(null, entry + REFS);
+                    if (refs == MOVED) {
+                        awaitRehash(seg);
+                        continue;
+                    }
+                    if (refs == EXPIRED)
+                        return null;
+                    long value = UNSAFE.getLongVolatile(null, entry + VALUE);
+                    if (!UNSAFE.compareAndSwapInt(null, entry + REFS, refs, refs + 1))
+                        continue;
+                    if (isCurrent(entry, found))
+                        return codec.decodeValue(value);
+                    // The entry expired and its slot was reused for another
+                    // key between the lookup and the increment.
+                    release(entry, nowMillis());
+                } finally {
+                    exit(seg);
+                }
+            }
+        }
+
+        @Override
+        public V ref(K key) {
+            long[] words = encode(key);
+            return ref(words, hash(words));
+        }
+
+        void unref(long[] words, int hash, K key) {
+            while (true) {
+                Segment seg = enter();
+                try {
+                    long found = find(seg, words, hash);
+                    if (found == NONE)
+                        return;
+                    long entry = seg.entry(slot(found));
+                    int refs = UNSAFE.getIntVolatile(null, entry + REFS);
+                    if (refs == MOVED) {
+                        awaitRehash(seg);
+                        continue;
+                    }
+                    if (refs == EXPIRED)
+                        return;
+                    if (refs == 0) {
+                        log.error("Decrement a ref count past 0 for {}", key);
+                        return;
+                    }
+                    if (refs == 1) {
+                        // Set the expiration before the count reaches zero,
+                        // so the owner never sees an idle entry with a stale
+                        // one.
+                        UNSAFE.putLongVolatile(null, entry + EXPIRATION,
+                            nowMillis() + key.expiresAfter().toMillis());
+                    }
+                    if (UNSAFE.compareAndSwapInt(null, entry + REFS, refs, refs - 1))
+                        return;
+                } finally {
+                    exit(seg);
+                }
+            }
+        }
+
+        /*
+         * Undoes a reference taken on an entry by mistake. The entry holds
+         * the reference, so it can't have expired.
+         */
+        private void release(long entry, long expiration) {
+            int refs;
+            do {
+                refs = UNSAFE.getIntVolatile(null, entry + REFS);
+                if (refs <= 0) {
+                    log.warn("Failed to release a reference on a reused slot");
+                    return;
+                }
+                if (refs == 1)
+                    UNSAFE.putLongVolatile(null, entry + EXPIRATION, expiration);
+            } while (!UNSAFE.compareAndSwapInt(null, entry + REFS,
+                                               refs, refs - 1));
+        }
+
+        @Override
+        public void unref(K key) {
+            long[] words = encode(key);
+            unref(words, hash(words), key);
+        }
+
+        int getRefCount(long[] words, int hash) {
+            while (true) {
+                Segment seg = enter();
+                try {
+                    long found = find(seg, words, hash);
+                    if (found == NONE)
+                        return 0;
+                    long entry = seg.entry(slot(found));
+                    int refs = UNSAFE.getIntVolatile(null, entry + REFS);
+                    if (refs == MOVED) {
+                        awaitRehash(seg);
+                        continue;
+                    }
+                    if (isCurrent(entry, found))
+                        return Math.max(refs, 0);
+                } finally {
+                    exit(seg);
+                }
+            }
+        }
+
+        @Override
+        public int getRefCount(K key) {
+            long[] words = encode(key);
+            return getRefCount(words, hash(words));
+        }
+
+        @Override
+        public void touch(K key, V value) {
+            putAndRef(key, value);
+            unref(key);
+        }
+
+        @Override
+        public <U> U fold(U seed, Reducer<K, V, U> func) {
+            Segment seg = enter();
+            try {
+                long[] words = new long[keyWords];
+                for (int slot = 0; slot < seg.capacity; slot++) {
+                    long entry = seg.entry(slot);
+                    long control = UNSAFE.getLongVolatile(null, entry + CONTROL);
+                    if ((control & STATE_MASK) != LIVE ||
+                            UNSAFE.getIntVolatile(null, entry + REFS) == EXPIRED)
+                        continue;
+                    for (int i = 0; i < keyWords; i++)
+                        words[i] = UNSAFE.getLongVolatile(null, entry + KEY + 8 * i);
+                    long value = UNSAFE.getLongVolatile(null, entry + VALUE);
+                    if (UNSAFE.getLongVolatile(null, entry + CONTROL) == control)
+                        seed = func.apply(seed, codec.decodeKey(words),
+                                          codec.decodeValue(value));
+                }
+                return seed;
+            } finally {
+                exit(seg);
+            }
+        }
+
+        private final Reducer<K, V, Void> noopReducer = new Reducer<K, V, Void>() {
+            @Override
+            public Void apply(Void acc, K key, V value) {
+                return null;
+            }
+        };
+
+        @Override
+        public void expireIdleEntries() {
+            expireIdleEntries(null, noopReducer);
+        }
+
+        /**
+         * Expires the idle entries among the next slots of the shard. Only
+         * the owner of the shard may call this method.
+         */
+        @Override
+        public <U> U expireIdleEntries(U seed, Reducer<K, V, U> func) {
+            releaseRetired();
+            Segment seg = segment;
+            if (seg.size == 0)
+                return seed;
+
+            long now = nowMillis();
+            int budget = Math.min(seg.capacity,
+                                  Math.max(MIN_SWEEP, seg.capacity >>> 8));
+            long[] words = null;
+            for (int i = 0; i < budget; i++) {
+                long entry = seg.entry(sweepCursor);
+                sweepCursor = (sweepCursor + 1) & seg.mask;
+                long control = UNSAFE.getLongVolatile(null, entry + CONTROL);
+                if ((control & STATE_MASK) != LIVE ||
+                        UNSAFE.getIntVolatile(null, entry + REFS) != 0 ||
+                        UNSAFE.getLongVolatile(null, entry + EXPIRATION) > now ||
+                        !UNSAFE.compareAndSwapInt(null, entry + REFS, 0, EXPIRED))
+                    continue;
+
+                if (words == null)
+                    words = new long[keyWords];
+                for (int j = 0; j < keyWords; j++)
+                    words[j] = UNSAFE.getLong(entry + KEY + 8 * j);
+                K key = codec.decodeKey(words);
+                log.debug("Forgetting entry {}", key);
+                seed = func.apply(seed, key,
+                                  codec.decodeValue(UNSAFE.getLong(entry + VALUE)));
+                UNSAFE.putLongVolatile(null, entry + CONTROL,
+                                       nextControl(control, control, DELETED));
+                seg.size--;
+                seg.tombstones++;
+            }
+            return seed;
+        }
+    }
+}
@@ -42,6 +42,9 @@ class BridgeBuilderStateFeeder {
     @Named("directoryReactor") // ZKConnectionProvider.DIRECTORY_REACTOR_TAG)
     var reactor: Reactor = _   // for some reason the constant doesn't work
 
+    @Inject
+    var warmUp: ReplicatedTableWarmUp = _
+
     /** An implementation of a repliated mac learning table */
     class MacLearningTableImpl(val map: MacPortMap,
                                val bridgeId: UUID,
@@ -110,25 +113,27 @@ class BridgeBuilderStateFeeder {
     }
 
     /** Provides a replicated MAC learning table that will notify the given
-      * Builder whenever there is an update. */
+      * Builder whenever there is an update. The table loads asynchronously,
+      * and the bridge isn't built until it's loaded. */
     @throws[StateAccessException]
     def feedLearningTable(toBuilder: BridgeBuilder, bridgeId: UUID, vlanId: Short)
     : MacLearningTable = {
         val map = dataClient.bridgeGetMacTable(bridgeId, vlanId, true)
         map.setConnectionWatcher(connWatcher)
-        map.start()
+        map.start(warmUp.tableLoading(bridgeId))
         val table = new MacLearningTableImpl(map, bridgeId, vlanId, reactor)
         toBuilder.setMacLearningTable(vlanId, table)
         table.notify(new OnUpdate(vlanId, toBuilder))
         table
     }
 
-    /** Feeds the given builder with an IP to mac table */
+    /** Feeds the given builder with an IP to mac table, which loads
+      * asynchronously like the MAC learning tables */
     @throws[StateAccessException]
     def feedIpToMacMap(toBuilder: BridgeBuilder, bridgeId: UUID) {
         val ip4MacMap = dataClient.getIp4MacMap(bridgeId)
         ip4MacMap.setConnectionWatcher(connWatcher)
-        ip4MacMap.start()
+        ip4MacMap.start(warmUp.tableLoading(bridgeId))
         toBuilder.setIp4MacMap(new IpMacMap[IPv4Addr]() {
             /* Sync get are ok because it only queries local state, unlike
              * the other calls in the map */
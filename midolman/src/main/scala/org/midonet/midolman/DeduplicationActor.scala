@@ -44,7 +44,7 @@ import org.midonet.util.collection.Reducer
 import org.midonet.util.concurrent.ExecutionContextOps
 import org.slf4j.MDC
 
-import scala.collection.mutable
+import scala.collection.JavaConverters._
 import scala.concurrent.duration._
 import scala.concurrent.{ExecutionContext, Future}
 import scala.util.{Failure, Success}
@@ -158,11 +158,7 @@ class DeduplicationActor(
     implicit val system = this.context.system
 
     // data structures to handle the duplicate packets.
-    protected val cookieToDpMatch = mutable.HashMap[Integer, FlowMatch]()
-    protected val dpMatchToCookie = mutable.HashMap[FlowMatch, Integer]()
-    protected val cookieToPendedPackets: mutable.MultiMap[Integer, Packet] =
-                                new mutable.HashMap[Integer, mutable.Set[Packet]]
-                                with mutable.MultiMap[Integer, Packet]
+    protected val pendingPackets = new PendingPacketTable()
 
     protected val simulationExpireMillis = 5000L
 
@@ -207,14 +203,24 @@ class DeduplicationActor(
             pendingFlowStateBatches foreach (self ! _)
             workflow = new PacketWorkflow(dpState, datapath, clusterDataClient,
                                           dpConnPool, actionsCache, replicator)
+            dpConnPool.getAll.asScala foreach { conn =>
+                if (conn ne null) {
+                    conn.setWriteBatchSizeHistogram(
+                        metrics.datapathWriteBatchSize)
+                    conn.getSendPool.setMetrics(
+                        metrics.sendBufferPoolExhaustions,
+                        metrics.sendBufferPoolFallbackAllocations)
+                }
+            }
 
         case m: FlowStateBatch =>
-            if (replicator ne null)
+            if (replicator ne null) {
                 replicator.importFromStorage(m)
-            else
+                metrics.flowStateImported(m.size)
+            } else
                 pendingFlowStateBatches ::= m
 
-        case HandlePackets(packets) =>
+        case HandlePackets(packets) => combiningWrites {
             actionsCache.clearProcessedFlowMatches()
 
             connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
@@ -226,8 +232,11 @@ class DeduplicationActor(
                 handlePacket(packets(i))
                 i += 1
             }
+            metrics.pendingTable(pendingPackets.size,
+                                 pendingPackets.collisionsSinceLastCall())
+        }
 
-        case RestartWorkflow(pktCtx) =>
+        case RestartWorkflow(pktCtx) => combiningWrites {
             MDC.put("cookie", pktCtx.cookieStr)
             if (pktCtx.idle) {
                 metrics.packetsOnHold.dec()
@@ -238,26 +247,43 @@ class DeduplicationActor(
                 drop(pktCtx)
             }
             MDC.remove("cookie")
+        }
 
         // This creates a new PacketWorkflow and
         // executes the simulation method directly.
         case EmitGeneratedPacket(egressPort, ethernet, parentCookie) =>
-            startWorkflow(Packet.fromEthernet(ethernet), Right(egressPort))
+            combiningWrites {
+                startWorkflow(Packet.fromEthernet(ethernet), Right(egressPort))
+            }
+    }
+
+    /* The flow creations and packet executions that handling a message sends
+     * to the datapath are combined per connection into as few writes as
+     * possible, which are queued once the message is handled. */
+    private def combiningWrites(handle: => Unit): Unit = {
+        dpConnPool.getAll.asScala foreach { conn =>
+            if (conn ne null) conn.beginWriteBatch()
+        }
+        try {
+            handle
+        } finally {
+            dpConnPool.getAll.asScala foreach { conn =>
+                if (conn ne null) conn.endWriteBatch()
+            }
+        }
     }
 
-    // We return collection.Set so we can return an empty immutable set
-    // and a non-empty mutable set.
-    private def removePendingPacket(cookie: Int): collection.Set[Packet] = {
-        val pending = cookieToPendedPackets.remove(cookie)
-        if (pending.isDefined) {
-            log.debug(s"Remove ${pending.get.size} pending packet(s)")
-            val dpMatch = cookieToDpMatch.remove(cookie)
-            if (dpMatch.isDefined)
-                dpMatchToCookie.remove(dpMatch.get)
-            pending.get
+    // Returns the number of packets that were pended on the cookie, which
+    // can be read from the table with removedPacket() until the next removal.
+    private def removePendingPacket(cookie: Int): Int = {
+        val pending = pendingPackets.remove(cookie)
+        if (pending != PendingPacketTable.NONE) {
+            log.debug(s"Remove $pending pending packet(s)")
+            metrics.pendedPackets.dec(pending)
+            pending
         } else {
             log.debug("No pending packets")
-            Set.empty
+            0
         }
     }
 
@@ -319,7 +345,7 @@ class DeduplicationActor(
             var dropped = 0
             if (pktCtx.ingressed) {
                 val cookie = pktCtx.cookieOrEgressPort.left.get
-                dropped = removePendingPacket(cookie).size
+                dropped = removePendingPacket(cookie)
             }
             metrics.packetsDropped.mark(dropped + 1)
         }
@@ -352,17 +378,19 @@ class DeduplicationActor(
 
     private def applyFlow(cookie: Int, pktCtx: PacketContext): Unit = {
         val actions = actionsCache.actions.get(pktCtx.packet.getMatch)
-        val pendingPackets = removePendingPacket(cookie)
-        val numPendingPackets = pendingPackets.size
+        val numPendingPackets = removePendingPacket(cookie)
         if (numPendingPackets > 0) {
             // Send all pended packets with the same action list (unless
             // the action list is empty, which is equivalent to dropping)
             if (actions.isEmpty) {
                 metrics.packetsProcessed.mark(numPendingPackets)
             } else {
-                log.debug(s"Sending ${pendingPackets.size} pended packets")
-                pendingPackets foreach (executePacket(_, actions))
-                metrics.pendedPackets.dec(numPendingPackets)
+                log.debug(s"Sending $numPendingPackets pended packets")
+                var i = 0
+                while (i < numPendingPackets) {
+                    executePacket(pendingPackets.removedPacket(i), actions)
+                    i += 1
+                }
             }
         }
 
@@ -419,9 +447,12 @@ class DeduplicationActor(
             packetOut(1)
         } else if (FlowStatePackets.isStateMessage(packet)) {
             processPacket(packet)
-        } else dpMatchToCookie.get(flowMatch) match {
-            case None => processPacket(packet)
-            case Some(cookie) => makePending(packet, cookie)
+        } else {
+            val entry = pendingPackets.find(flowMatch)
+            if (entry == PendingPacketTable.NONE)
+                processPacket(packet)
+            else
+                makePending(packet, entry)
         }
     }
 
@@ -429,19 +460,25 @@ class DeduplicationActor(
     // cookie and start the packet workflow.
     private def processPacket(packet: Packet): Unit = {
         val newCookie = cookieGen.next
-        val flowMatch = packet.getMatch
-        dpMatchToCookie.put(flowMatch, newCookie)
-        cookieToDpMatch.put(newCookie, flowMatch)
-        cookieToPendedPackets.put(newCookie, mutable.Set.empty)
+        pendingPackets.add(newCookie, packet.getMatch)
         startWorkflow(packet, Left(newCookie))
     }
 
     // There is a simulation in progress, so wait until it finishes and
     // apply the resulting actions.
-    private def makePending(packet: Packet, cookie: Integer): Unit = {
+    private def makePending(packet: Packet, entry: Int): Unit = {
+        val cookie = pendingPackets.cookieOf(entry)
         log.debug("A matching packet with cookie {} is already " +
                  "being handled", cookie)
-        cookieToPendedPackets.addBinding(cookie, packet)
+        pendingPackets.pend(entry, packet) match {
+            case PendingPacketTable.PENDED =>
+                metrics.pendedPackets.inc()
+            case PendingPacketTable.OVERFLOW =>
+                log.debug("Too many packets pended on cookie {}, dropping " +
+                          "packet", cookie)
+                metrics.pendedPacketOverflow()
+            case _ => // an identical packet is already pended
+        }
         packetOut(1)
         giveUpWorkflows(waitingRoom.doExpirations())
     }
@@ -16,34 +16,37 @@
 
 package org.midonet.midolman
 
-import java.util.concurrent.TimeUnit
-import java.util.concurrent.{ConcurrentHashMap => ConcHashMap}
-import java.util.{ArrayList, Set => JSet, Map => JMap}
+import java.lang.{Long => JLong}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.AtomicLong
+import java.util.ArrayList
 import javax.inject.Inject
-import scala.annotation.tailrec
 import scala.collection.JavaConversions._
-import scala.collection.mutable.{HashMap, MultiMap}
-import scala.collection.{Set => ROSet, mutable}
+import scala.collection.mutable.HashMap
+import scala.collection.{Set => ROSet}
 import scala.concurrent.ExecutionContext
 import scala.concurrent.duration._
 
 import akka.actor._
 import akka.event.LoggingReceive
-import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.{Clock, Gauge, MetricRegistry}
 import com.codahale.metrics.MetricRegistry.name
 
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.flows.WildcardTablesProvider
+import org.midonet.midolman.flows.PriorityOrderedWildcardTables
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.FlowTablesGauge
+import org.midonet.midolman.monitoring.metrics.FlowTablesHistogram
 import org.midonet.midolman.monitoring.metrics.FlowTablesMeter
-import org.midonet.sdn.flows.{FlowTagger, FlowManagerHelper, ManagedWildcardFlow, WildcardFlow, WildcardMatch}
+import org.midonet.sdn.flows.{FlowTagger, FlowTagIndex, FlowManagerHelper, ManagedWildcardFlow, WildcardFlow, WildcardMatch}
 import FlowTagger.FlowTag
 import org.midonet.netlink.Callback
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.netlink.exceptions.NetlinkException.ErrorCode
 import org.midonet.odp.{Datapath, Flow, FlowMatch}
+import org.midonet.odp.flows.FlowKey
+import org.midonet.odp.protos.OvsDatapathConnection
 import org.midonet.sdn.flows.FlowManager
 import org.midonet.util.collection.{ArrayObjectPool, ObjectPool}
 import org.midonet.util.functors.{Callback0, Callback1}
@@ -54,46 +57,80 @@ case object EventSeen extends EventSearchResult
 case object EventNotSeen extends EventSearchResult
 case object EventSearchWindowMissed extends EventSearchResult
 
+/**
+ * A bounded history of the last `slots` events, kept in a ring buffer along
+ * with an index of the id of the last occurrence of each event in the window,
+ * so that checking a set of events costs one lookup per event regardless of
+ * the size of the history. Events are put by a single writer and looked up
+ * concurrently by any number of readers.
+ */
 class EventHistory[T](val slots: Int) {
-    @volatile private var events = Vector[HistoryEntry]()
+    private val events = new Array[AnyRef](slots)
+    private val lastOccurrences = new ConcurrentHashMap[T, JLong]()
+    private val windowMisses = new AtomicLong()
+    @volatile private var youngestId = 0L
 
-    class HistoryEntry(val event: T) {
-        val id: Long = youngest + 1
-    }
+    def youngest: Long = youngestId
 
-    def youngest: Long = events.headOption match {
-        case Some(e) => e.id
-        case None => 0
-    }
+    def oldest: Long = oldestIn(youngestId)
 
-    def oldest: Long = events.lastOption match {
-        case Some(e) => e.id
-        case None => 0
-    }
+    private def oldestIn(youngest: Long): Long =
+        if (youngest > slots) youngest - slots + 1
+        else if (youngest > 0) 1
+        else 0
+
+    /** The number of searches that started before the oldest event that is
+     *  still in the history. */
+    def missedWindows: Long = windowMisses.get
 
     def put(event: T): Long = {
-        events = new HistoryEntry(event) +: events
-        if (events.size > slots)
-            events = events dropRight 1
-        youngest
+        val id = youngestId + 1
+        val slot = (id % slots).toInt
+        val evicted = events(slot).asInstanceOf[T]
+        events(slot) = event.asInstanceOf[AnyRef]
+        lastOccurrences.put(event, id)
+        // Readers check the window again after looking up the index, so the
+        // evicted entry is removed only once the window has moved past it.
+        youngestId = id
+        if (evicted != null)
+            lastOccurrences.remove(evicted, id - slots)
+        id
     }
 
     def exists(lastSeen: Long, eventSet: ROSet[T]): EventSearchResult = {
-        val frozen = events
-
-        if (frozen.isEmpty || oldest > lastSeen + 1)
+        if (isWindowMissed(lastSeen))
             return EventSearchWindowMissed
 
-        var i = 0
-        while (frozen.isDefinedAt(i) && frozen(i).id > lastSeen) {
-            if (eventSet.contains(frozen(i).event))
-                return EventSeen
-            i = i+1
+        var seen = false
+        val it = eventSet.iterator
+        while (!seen && it.hasNext) {
+            val lastOccurrence = lastOccurrences.get(it.next())
+            seen = (lastOccurrence ne null) && lastOccurrence.longValue > lastSeen
         }
-        EventNotSeen
+
+        if (isWindowMissed(lastSeen))
+            EventSearchWindowMissed
+        else if (seen)
+            EventSeen
+        else
+            EventNotSeen
     }
 
     def exists(lastSeen: Long, ev: T): EventSearchResult =  exists(lastSeen, ROSet(ev))
+
+    private def isWindowMissed(lastSeen: Long): Boolean = {
+        val youngest = youngestId
+        // Nothing can be searched in an empty history, but it has no window
+        // to miss yet, so the search isn't counted as a miss.
+        if (youngest == 0) {
+            true
+        } else if (oldestIn(youngest) > lastSeen + 1) {
+            windowMisses.incrementAndGet()
+            true
+        } else {
+            false
+        }
+    }
 }
 
 
@@ -129,63 +166,22 @@ object FlowController extends Referenceable {
 
     case class GetFlowFailed_(flowCallback: Callback1[Flow])
 
+    case class RetryFlowDelete_(flowMatch: FlowMatch, retries: Int)
+
     val MIN_WILDCARD_FLOW_CAPACITY = 4096
 
-    // TODO(guillermo) tune these values
-    private val WILD_FLOW_TABLE_CONCURRENCY_LEVEL = 1
-    private val WILD_FLOW_TABLE_LOAD_FACTOR = 0.75f
-    private val WILD_FLOW_TABLE_INITIAL_CAPACITY = 65536
-    private val WILD_FLOW_PARENT_TABLE_INITIAL_CAPACITY = 256
-
-    private val wildcardTables: JMap[JSet[WildcardMatch.Field],
-                                        JMap[WildcardMatch, ManagedWildcardFlow]] =
-        new ConcHashMap[JSet[WildcardMatch.Field],
-                        JMap[WildcardMatch, ManagedWildcardFlow]](
-            WILD_FLOW_PARENT_TABLE_INITIAL_CAPACITY,
-            WILD_FLOW_TABLE_LOAD_FACTOR,
-            WILD_FLOW_TABLE_CONCURRENCY_LEVEL)
-
-    private val wildcardTablesProvider: WildcardTablesProvider =
-        new WildcardTablesProvider {
-            override def tables = wildcardTables
-
-            override def addTable(pattern: JSet[WildcardMatch.Field]) = {
-                var table = wildcardTables.get(pattern)
-                if (table == null) {
-                    table = new ConcHashMap[WildcardMatch, ManagedWildcardFlow](
-                                    WILD_FLOW_TABLE_INITIAL_CAPACITY,
-                                    WILD_FLOW_TABLE_LOAD_FACTOR,
-                                    WILD_FLOW_TABLE_CONCURRENCY_LEVEL)
-
-                    wildcardTables.put(pattern, table)
-                }
-                table
-            }
-        }
+    val MAX_FLOW_DELETE_BATCH = 128
+
+    private val wildcardTables = new PriorityOrderedWildcardTables()
 
     def queryWildcardFlowTable(wildMatch: WildcardMatch)
     : Option[ManagedWildcardFlow] = {
-        var wildFlow: ManagedWildcardFlow = null
         wildMatch.doNotTrackSeenFields()
-        for (entry <- wildcardTables.entrySet()) {
-            val table = entry.getValue
-            val pattern = entry.getKey
-            val projectedFlowMatch = wildMatch.project(pattern)
-            if (projectedFlowMatch != null) {
-                val candidate = table.get(projectedFlowMatch)
-                if (null != candidate) {
-                    if (null == wildFlow)
-                        wildFlow = candidate
-                    else if (candidate.getPriority < wildFlow.getPriority)
-                        wildFlow = candidate
-                }
-            }
-        }
+        val wildFlow = wildcardTables.lookup(wildMatch)
         wildMatch.doTrackSeenFields()
         Option(wildFlow)
     }
 
-
     private val invalidationHistory = new EventHistory[FlowTag](1024)
 
     def isTagSetStillValid(lastSeenInvalidation: Long, tags: ROSet[FlowTag]) = {
@@ -234,12 +230,13 @@ class FlowController extends Actor with ActorLogWithoutPath {
     @Inject
     var metricsRegistry: MetricRegistry = null
 
+    @Inject
+    var clock: Clock = null
+
     var flowManager: FlowManager = null
-    var flowManagerHelper: FlowManagerHelper = null
+    var flowManagerHelper: FlowManagerInfoImpl = null
 
-    val tagToFlows: MultiMap[FlowTag, ManagedWildcardFlow] =
-        new HashMap[FlowTag, mutable.Set[ManagedWildcardFlow]]
-            with MultiMap[FlowTag, ManagedWildcardFlow]
+    val tagToFlows = new FlowTagIndex()
 
     var flowExpirationCheckInterval: FiniteDuration = null
 
@@ -264,8 +261,8 @@ class FlowController extends Actor with ActorLogWithoutPath {
 
         flowManagerHelper = new FlowManagerInfoImpl()
         flowManager = new FlowManager(flowManagerHelper,
-            FlowController.wildcardTablesProvider ,maxDpFlows, maxWildcardFlows,
-            idleFlowToleranceInterval)
+            FlowController.wildcardTables, maxDpFlows, maxWildcardFlows,
+            idleFlowToleranceInterval, clock)
 
         wildFlowPool = new ArrayObjectPool[ManagedWildcardFlow](maxWildcardFlows) {
             override def allocate = new ManagedWildcardFlow(this)
@@ -274,7 +271,13 @@ class FlowController extends Actor with ActorLogWithoutPath {
         metrics = new FlowTablesMetrics(flowManager)
     }
 
-    def receive = LoggingReceive {
+    // The datapath flows removed while handling a message are deleted in
+    // batches once the message has been handled.
+    def receive = handleMessage andThen { _ =>
+        flowManagerHelper.flushFlowDeletes()
+    }
+
+    private def handleMessage: Receive = LoggingReceive {
         case DatapathReady(dp, dpState) =>
             if (null == datapath) {
                 datapath = dp
@@ -335,20 +338,24 @@ class FlowController extends Actor with ActorLogWithoutPath {
             metrics.currentDpFlows = flowManager.getNumDpFlows
 
         case InvalidateFlowsByTag(tag) =>
-            tagToFlows.remove(tag) match {
-                case None =>
-                    log.debug(s"There are no flows to invalidate for tag $tag")
-                case Some(flowSet) =>
-                    log.debug(s"There are ${flowSet.size} flows to invalidate for tag $tag")
-                    for (wildFlow <- flowSet)
-                        removeWildcardFlow(wildFlow)
+            val flows = tagToFlows.flowsTaggedWith(tag)
+            if (flows.isEmpty) {
+                log.debug(s"There are no flows to invalidate for tag $tag")
+            } else {
+                log.debug(s"There are ${flows.size} flows to invalidate for tag $tag")
+                var i = 0
+                while (i < flows.size) {
+                    removeWildcardFlow(flows.get(i))
+                    i += 1
+                }
+                flows.clear()
             }
             invalidationHistory.put(tag)
             metrics.currentDpFlows = flowManager.getNumDpFlows
 
         case RemoveWildcardFlow(wmatch) =>
             log.debug("Removing wcflow for match {}", wmatch)
-            wildcardTables.get(wmatch.getUsedFields) match {
+            wildcardTables.tables.get(wmatch.getUsedFields) match {
                 case null =>
                 case table => table.get(wmatch) match {
                     case null =>
@@ -368,6 +375,9 @@ class FlowController extends Actor with ActorLogWithoutPath {
 
         case GetFlowFailed_(callback) => callback.call(null)
 
+        case RetryFlowDelete_(flowMatch, retries) =>
+            flowManagerHelper.removeFlow(flowMatch, retries)
+
         case FlowMissing_(flowMatch, callback) =>
             callback.call(null)
             flowManager.flowMissing(flowMatch)
@@ -375,16 +385,8 @@ class FlowController extends Actor with ActorLogWithoutPath {
     }
 
     private def removeWildcardFlow(wildFlow: ManagedWildcardFlow) {
-        @tailrec
-        def tagsCleanup(tags: Array[FlowTag], i: Int = 0) {
-            if (tags != null && tags.length > i) {
-                tagToFlows.removeBinding(tags(i), wildFlow)
-                tagsCleanup(tags, i+1)
-            }
-        }
-
         if (flowManager.remove(wildFlow)) {
-            tagsCleanup(wildFlow.tags)
+            tagToFlows.remove(wildFlow)
             wildFlow.unref() // tags ref
             if (wildFlow.callbacks != null)
                 runCallbacks(wildFlow.callbacks)
@@ -431,9 +433,7 @@ class FlowController extends Actor with ActorLogWithoutPath {
         wildFlow.ref() // tags ref
         if (null != tags) {
             wildFlow.tags = tags.toArray
-            for (tag <- tags) {
-                tagToFlows.addBinding(tag, wildFlow)
-            }
+            tagToFlows.add(wildFlow)
         }
 
         if (dpFlow != null) {
@@ -446,56 +446,101 @@ class FlowController extends Actor with ActorLogWithoutPath {
     class FlowManagerInfoImpl() extends FlowManagerHelper {
         val sched = context.system.scheduler
 
-        private def _removeFlow(flowMatch: FlowMatch, retries: Int) {
-            def scheduleRetry() {
+        private val deleteBatches =
+            new HashMap[OvsDatapathConnection, FlowDeleteBatch]()
+
+        private class FlowDeleteBatch(val conn: OvsDatapathConnection) {
+            val keys = new ArrayList[java.util.List[FlowKey]]()
+            val callbacks = new ArrayList[FlowDeleteCallback]()
+
+            def flush() {
+                if (!keys.isEmpty) {
+                    val now = Clock.defaultClock().getTick
+                    var i = 0
+                    while (i < callbacks.size) {
+                        callbacks.get(i).sentAt = now
+                        i += 1
+                    }
+                    metrics.dpFlowsDeleteBatchSize.update(keys.size)
+                    conn.flowsDelete(datapath, keys, callbacks)
+                    keys.clear()
+                    callbacks.clear()
+                }
+            }
+        }
+
+        private class FlowDeleteCallback(flowMatch: FlowMatch, retries: Int)
+                extends Callback[Flow] {
+            var sentAt = 0L
+
+            // Runs out of the netlink channel's thread, retries go through
+            // the actor so they are batched with the other deletions.
+            private def scheduleRetry() {
                 if (retries > 0) {
                     log.debug("Scheduling retry of flow deletion with match: {}",
                               flowMatch)
-                    sched.scheduleOnce(1 second) {
-                        _removeFlow(flowMatch, retries - 1)
-                    }
+                    sched.scheduleOnce(1 second, self,
+                                       RetryFlowDelete_(flowMatch, retries - 1))
                 } else {
                     log.error("Giving up on deleting flow with match: {}",
                               flowMatch)
                 }
             }
-            datapathConnection(flowMatch).flowsDelete(datapath, flowMatch.getKeys,
-                new Callback[Flow] {
-                    def onError(ex: NetlinkException) {
-                        log.debug("Got an exception {} when trying to remove " +
-                                  "flow with match {}", ex, flowMatch)
-                        ex.getErrorCodeEnum match {
-                            // Success cases, the flow doesn't exist so userspace
-                            // can take it as a successful remove:
-                            case ErrorCode.ENODEV => notifyRemoval(flowMatch)
-                            case ErrorCode.ENOENT => notifyRemoval(flowMatch)
-                            case ErrorCode.ENXIO => notifyRemoval(flowMatch)
-                            // Retry cases.
-                            case ErrorCode.EBUSY => scheduleRetry()
-                            case ErrorCode.EAGAIN => scheduleRetry()
-                            case ErrorCode.EIO => scheduleRetry()
-                            case ErrorCode.EINTR => scheduleRetry()
-                            case ErrorCode.ETIMEOUT => scheduleRetry()
-                            // Give up
-                            case _ =>
-                                log.error("Giving up on deleting flow with "+
-                                    "match: {} due to: {}", flowMatch, ex)
-                        }
-                    }
 
-                    def onSuccess(flow: Flow) {
-                        notifyRemoval(flow.getMatch)
-                    }
+            def onError(ex: NetlinkException) {
+                metrics.dpFlowsDeleteLatency.update(
+                    Clock.defaultClock().getTick - sentAt)
+                log.debug("Got an exception {} when trying to remove " +
+                          "flow with match {}", ex, flowMatch)
+                ex.getErrorCodeEnum match {
+                    // Success cases, the flow doesn't exist so userspace
+                    // can take it as a successful remove:
+                    case ErrorCode.ENODEV => notifyRemoval(flowMatch)
+                    case ErrorCode.ENOENT => notifyRemoval(flowMatch)
+                    case ErrorCode.ENXIO => notifyRemoval(flowMatch)
+                    // Retry cases.
+                    case ErrorCode.EBUSY => scheduleRetry()
+                    case ErrorCode.EAGAIN => scheduleRetry()
+                    case ErrorCode.EIO => scheduleRetry()
+                    case ErrorCode.EINTR => scheduleRetry()
+                    case ErrorCode.ETIMEOUT => scheduleRetry()
+                    // Give up
+                    case _ =>
+                        log.error("Giving up on deleting flow with "+
+                            "match: {} due to: {}", flowMatch, ex)
+                }
+            }
 
-                    def notifyRemoval(flowMatch: FlowMatch) {
-                        log.debug("DP confirmed removal of flow with match {}", flowMatch)
-                    }
-                })
+            def onSuccess(flow: Flow) {
+                metrics.dpFlowsDeleteLatency.update(
+                    Clock.defaultClock().getTick - sentAt)
+                notifyRemoval(flow.getMatch)
+            }
+
+            def notifyRemoval(flowMatch: FlowMatch) {
+                log.debug("DP confirmed removal of flow with match {}", flowMatch)
+            }
+        }
+
+        def removeFlow(flowMatch: FlowMatch, retries: Int) {
+            val conn = datapathConnection(flowMatch)
+            val batch = deleteBatches.getOrElseUpdate(conn,
+                                                      new FlowDeleteBatch(conn))
+            batch.keys.add(flowMatch.getKeys)
+            batch.callbacks.add(new FlowDeleteCallback(flowMatch, retries))
+            if (batch.keys.size >= MAX_FLOW_DELETE_BATCH)
+                batch.flush()
+        }
+
+        /** Sends the pending flow deletions to the datapath, several of them
+          * with each netlink write. */
+        def flushFlowDeletes() {
+            deleteBatches.valuesIterator foreach { _.flush() }
         }
 
         def removeFlow(flowMatch: FlowMatch) {
             metrics.currentDpFlows = flowManager.getNumDpFlows
-            _removeFlow(flowMatch, 10)
+            removeFlow(flowMatch, 10)
         }
 
         def removeWildcardFlow(flow: ManagedWildcardFlow) {
@@ -551,6 +596,18 @@ class FlowController extends Actor with ActorLogWithoutPath {
         val dpFlowsMetric = metricsRegistry.meter(name(
                 classOf[FlowTablesMeter], "datapathFlowsCreated",
                 "datapathFlows"))
+
+        val dpFlowsDeleteBatchSize = metricsRegistry.histogram(name(
+                classOf[FlowTablesHistogram], "datapathFlowsDeleteBatchSize"))
+
+        val dpFlowsDeleteLatency = metricsRegistry.histogram(name(
+                classOf[FlowTablesHistogram], "datapathFlowsDeleteLatency"))
+
+        val invalidationWindowMissesMetric = metricsRegistry.register(name(
+                classOf[FlowTablesGauge], "invalidationHistoryWindowMisses"),
+                new Gauge[Long]{
+                    override def getValue = invalidationHistory.missedWindows
+                })
     }
 
 }
@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman
 
-import java.util.{HashMap => JHashMap, HashSet => JHashSet, Map => JMap, Set => JSet, UUID}
+import java.util.{Collections, Map => JMap, Set => JSet, UUID}
 import scala.concurrent.{ExecutionContext, Future}
 import scala.util.{Failure, Success}
 
@@ -31,23 +31,28 @@ import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.util.concurrent._
 
 object HostRequestProxy {
+    /* The number of keys fetched from Cassandra at a time, which is also the
+     * size of the chunks handed to the packet processing threads */
+    val IMPORT_PAGE_SIZE = 1000
+
     case class FlowStateBatch(strongConnTrack: JSet[ConnTrackKey],
                               weakConnTrack: JSet[ConnTrackKey],
                               strongNat: JMap[NatKey, NatBinding],
                               weakNat: JMap[NatKey, NatBinding]) {
-        def merge(other: FlowStateBatch): FlowStateBatch = {
-            strongConnTrack.addAll(other.strongConnTrack)
-            weakConnTrack.addAll(other.strongConnTrack)
-            strongNat.putAll(other.strongNat)
-            weakNat.putAll(other.weakNat)
-            this
-        }
+        def size: Int = strongConnTrack.size + weakConnTrack.size +
+                        strongNat.size + weakNat.size
     }
 
-    def EmptyFlowStateBatch() = FlowStateBatch(new JHashSet[ConnTrackKey](),
-                                               new JHashSet[ConnTrackKey](),
-                                               new JHashMap[NatKey, NatBinding](),
-                                               new JHashMap[NatKey, NatBinding]())
+    private val NoConnTrackKeys = Collections.emptySet[ConnTrackKey]()
+    private val NoNatBindings = Collections.emptyMap[NatKey, NatBinding]()
+
+    def ConnTrackBatch(keys: JSet[ConnTrackKey], strong: Boolean) =
+        if (strong) FlowStateBatch(keys, NoConnTrackKeys, NoNatBindings, NoNatBindings)
+        else FlowStateBatch(NoConnTrackKeys, keys, NoNatBindings, NoNatBindings)
+
+    def NatBatch(bindings: JMap[NatKey, NatBinding], strong: Boolean) =
+        if (strong) FlowStateBatch(NoConnTrackKeys, NoConnTrackKeys, bindings, NoNatBindings)
+        else FlowStateBatch(NoConnTrackKeys, NoConnTrackKeys, NoNatBindings, bindings)
 }
 
 
@@ -73,30 +78,46 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
         VTPM ! HostRequest(hostId)
     }
 
-    private def stateForPort(port: UUID): Future[FlowStateBatch] = {
-        val scf = storage.fetchStrongConnTrackRefs(port)
-        val wcf = storage.fetchWeakConnTrackRefs(port)
-        val snf = storage.fetchStrongNatRefs(port)
-        val wnf = storage.fetchWeakNatRefs(port)
+    /* Streams the state of a port from Cassandra to the packet processing
+     * threads, a page at a time, and returns the number of keys streamed.
+     * PacketsEntryPoint spreads the pages among the threads, which import
+     * them into their own shards in parallel.
+     */
+    private def stateForPort(port: UUID): Future[Int] = {
+        val scf = storage.streamConnTrackRefs(port, strong = true, IMPORT_PAGE_SIZE) {
+            keys => PacketsEntryPoint ! ConnTrackBatch(keys, strong = true)
+        }
+        val wcf = storage.streamConnTrackRefs(port, strong = false, IMPORT_PAGE_SIZE) {
+            keys => PacketsEntryPoint ! ConnTrackBatch(keys, strong = false)
+        }
+        val snf = storage.streamNatRefs(port, strong = true, IMPORT_PAGE_SIZE) {
+            bindings => PacketsEntryPoint ! NatBatch(bindings, strong = true)
+        }
+        val wnf = storage.streamNatRefs(port, strong = false, IMPORT_PAGE_SIZE) {
+            bindings => PacketsEntryPoint ! NatBatch(bindings, strong = false)
+        }
 
         ((scf zip wcf) zip (snf zip wnf)) map {
-            case ((sc, wc) , (sn, wn)) => FlowStateBatch(sc, wc, sn, wn)
+            case ((sc, wc) , (sn, wn)) => sc + wc + sn + wn
         }
     }
 
-    private def stateForPorts(ports: Iterable[UUID]): Future[FlowStateBatch] =
-        Future.fold(ports map stateForPort)(EmptyFlowStateBatch()) {
-            (batch: FlowStateBatch, v: FlowStateBatch) => batch.merge(v)
-        }
+    private def stateForPorts(ports: Iterable[UUID]): Future[Int] =
+        Future.fold(ports map stateForPort)(0)(_ + _)
 
     override def receive = super.receive orElse {
         case h: Host =>
             belt.handle(() => {
                 val ps = h.ports.keySet -- lastPorts
+                val start = System.nanoTime()
                 stateForPorts(ps).andThen {
-                    case Success(stateBatch) =>
+                    case Success(keys) =>
                         lastPorts = ps
-                        PacketsEntryPoint ! stateBatch
+                        if (keys > 0) {
+                            val millis = (System.nanoTime() - start) / 1000000
+                            log.info("Fetched {} flow state keys for {} ports " +
+                                     "in {} ms", keys, ps.size, millis)
+                        }
                     case Failure(e) =>
                         log.warn("Failed to fetch state from Cassandra: {}", e)
                 }.andThen {
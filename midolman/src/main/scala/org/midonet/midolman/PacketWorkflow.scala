@@ -47,10 +47,14 @@ trait PacketHandler {
 object PacketWorkflow {
     case class PacketIn(wMatch: WildcardMatch,
                         inputPort: UUID,
-                        eth: Ethernet,
+                        packet: Packet,
                         dpMatch: FlowMatch,
                         reason: Packet.Reason,
-                        cookie: Int)
+                        cookie: Int) {
+        /* Built on demand, so that publishing the event doesn't build the
+         * object tree of every frame. */
+        def eth: Ethernet = packet.getEthernet
+    }
 
     val TEMPORARY_DROP_MILLIS = 5 * 1000
     val IDLE_EXPIRATION_MILLIS = 60 * 1000
@@ -411,7 +415,7 @@ class PacketWorkflow(protected val dpState: DatapathState,
             val packet = context.packet
             system.eventStream.publish(
                 PacketIn(context.origMatch.clone(), context.inputPort,
-                         packet.getEthernet,
+                         packet,
                          packet.getMatch, packet.getReason,
                          context.cookieOrEgressPort.left getOrElse 0))
 
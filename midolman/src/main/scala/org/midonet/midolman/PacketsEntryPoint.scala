@@ -27,10 +27,10 @@ import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
-import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
-import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackCodec, ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatCodec, NatKey}
 import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
-import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.sdn.state.{FlowStateTable, OffHeapFlowStateTable, ShardedFlowStateTable}
 import org.midonet.util.StatisticalCounter
 import org.slf4j.LoggerFactory
 
@@ -95,8 +95,10 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
     @Inject
     var natBlockAllocator: NatBlockAllocator = _
 
-    var connTrackStateTable: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue] = _
-    var natStateTable: ShardedFlowStateTable[NatKey, NatBinding] = _
+    var connTrackStateTable: FlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var natStateTable: FlowStateTable[NatKey, NatBinding] = _
+    private var connTrackShard: () => FlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    private var natShard: () => FlowStateTable[NatKey, NatBinding] = _
     var natLeaser: NatLeaser = _
 
     override def preStart() {
@@ -104,12 +106,26 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
         NUM_WORKERS = config.getSimulationThreads
         metrics = new PacketPipelineMetrics(metricsRegistry)
 
-        connTrackStateTable = new ShardedFlowStateTable(clock)
-        natStateTable = new ShardedFlowStateTable(clock)
+        if (config.getOffHeapFlowStateTables) {
+            val connTrack = new OffHeapFlowStateTable(ConnTrackCodec, clock)
+            val nat = new OffHeapFlowStateTable(NatCodec, clock)
+            connTrackShard = () => connTrack.addShard()
+            natShard = () => nat.addShard()
+            connTrackStateTable = connTrack
+            natStateTable = nat
+        } else {
+            val connTrack = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock)
+            val nat = new ShardedFlowStateTable[NatKey, NatBinding](clock)
+            connTrackShard = () => connTrack.addShard(log = shardLogger(connTrack))
+            natShard = () => nat.addShard(log = shardLogger(nat))
+            connTrackStateTable = connTrack
+            natStateTable = nat
+        }
         natLeaser = new NatLeaser {
             val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
             val allocator = natBlockAllocator
             val clock = PacketsEntryPoint.this.clock
+            override val preLeasePercent = config.getNatBlockPreLeasePercent
         }
 
         for (i <- 0 until NUM_WORKERS) {
@@ -125,8 +141,8 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
         val props = Props(
             classOf[DeduplicationActor],
             cookieGen, dpConnPool, clusterDataClient,
-            connTrackStateTable.addShard(log = shardLogger(connTrackStateTable)),
-            natStateTable.addShard(log = shardLogger(natStateTable)),
+            connTrackShard(),
+            natShard(),
             storageFactory.create(),
             natLeaser,
             metrics,
@@ -148,7 +164,9 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath {
 
         case m: EmitGeneratedPacket => roundRobin(m)
 
-        case m: FlowStateBatch => broadcast(m)
+        case m: FlowStateBatch =>
+            metrics.flowStateFetched(m.size)
+            roundRobin(m)
 
         case GetWorkers => sender ! Workers(workers)
     }
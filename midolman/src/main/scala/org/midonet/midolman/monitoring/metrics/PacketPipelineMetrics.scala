@@ -45,6 +45,15 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
     val packetsDropped = registry.meter(name(
         classOf[PacketPipelineCounter], "packetsDropped", "packets"))
 
+    val pendedPacketsOverflowed = registry.meter(name(
+        classOf[PacketPipelineMeter], "pendedPacketsOverflowed", "packets"))
+
+    val pendingTableOccupancy = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "pendingTableOccupancy"))
+
+    val pendingTableCollisions = registry.meter(name(
+        classOf[PacketPipelineMeter], "pendingTableCollisions", "probes"))
+
     val liveSimulations = registry.register(name(
         classOf[PacketPipelineGauge], "liveSimulations"),
         new Gauge[Long]{ override def getValue = 0 })
@@ -70,6 +79,24 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         classOf[PacketPipelineAccumulatedTime],
         "simulationAccumulatedTime"))
 
+    val datapathWriteBatchSize = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "datapathWriteBatchSize"))
+
+    val sendBufferPoolExhaustions = registry.meter(name(
+        classOf[PacketPipelineMeter], "sendBufferPoolExhaustions"))
+
+    val sendBufferPoolFallbackAllocations = registry.meter(name(
+        classOf[PacketPipelineMeter], "sendBufferPoolFallbackAllocations"))
+
+    val flowStateKeysFetched = registry.meter(name(
+        classOf[PacketPipelineMeter], "flowStateKeysFetched", "keys"))
+
+    val flowStateKeysImported = registry.meter(name(
+        classOf[PacketPipelineMeter], "flowStateKeysImported", "keys"))
+
+    val flowStateKeysPendingImport = registry.counter(name(
+        classOf[PacketPipelineGauge], "flowStateKeysPendingImport"))
+
     def wildcardTableHit(latency: Int) {
         wildcardTableHits.mark()
         wildcardTableHitLatency.update(latency)
@@ -92,4 +119,25 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         packetsPostponed.mark()
         packetsOnHold.inc()
     }
+
+    def pendedPacketOverflow() {
+        pendedPacketsOverflowed.mark()
+        packetsDropped.mark()
+    }
+
+    def flowStateFetched(keys: Int) {
+        flowStateKeysFetched.mark(keys)
+        flowStateKeysPendingImport.inc(keys)
+    }
+
+    def flowStateImported(keys: Int) {
+        flowStateKeysImported.mark(keys)
+        flowStateKeysPendingImport.dec(keys)
+    }
+
+    def pendingTable(occupancy: Int, collisions: Long) {
+        pendingTableOccupancy.update(occupancy)
+        if (collisions > 0)
+            pendingTableCollisions.mark(collisions)
+    }
 }
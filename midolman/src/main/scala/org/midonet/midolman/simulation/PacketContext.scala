@@ -81,6 +81,10 @@ class PacketContext(val cookieOrEgressPort: Either[Int, UUID],
 
     var inputPort: UUID = _
 
+    // Scratch state for chain applications. It is pooled per simulating
+    // thread rather than allocated per packet, see ChainTraversal.
+    def chainTraversal: ChainTraversal = ChainTraversal.current()
+
     // Stores the callback to call when this flow is removed.
     val flowRemovedCallbacks = new ArrayList[Callback0]()
     def addFlowRemovedCallback(cb: Callback0): Unit = {
@@ -71,9 +71,8 @@ class Router(override val id: UUID,
     : Action = {
 
         // Broadcast packet:  Handle if ARP, drop otherwise.
-        val payload = context.ethernet.getPayload
         if (context.wcmatch.getEtherType == ARP.ETHERTYPE)
-            processArp(payload, inPort)
+            processArp(context.ethernet.getPayload, inPort)
         else
             DropAction
     }
@@ -184,7 +184,7 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
 
     private def routing(inPort: RouterPort)
                        (implicit context: PacketContext): Action = {
-        val frame = context.ethernet
+        lazy val frame = context.ethernet
         val wcmatch = context.wcmatch
         val dstIP = context.wcmatch.getNetworkDstIP
 
@@ -303,7 +303,7 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
         implicit val packetContext = context
 
         val pMatch = context.wcmatch
-        val pFrame = context.ethernet
+        lazy val pFrame = context.ethernet
 
         context.outPortId = outPort.id
 
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.lang.{Long => JLong}
+import java.util.{Collections, UUID, Iterator => JIterator, Map => JMap,
+                  Set => JSet, LinkedHashMap => JLinkedHashMap,
+                  LinkedHashSet => JLinkedHashSet}
+import scala.concurrent.ExecutionContext
+import scala.concurrent.duration.Duration
+
+import akka.actor.ActorSystem
+import com.codahale.metrics.Clock
+import org.slf4j.{Logger, LoggerFactory}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowState.FlowStateKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+
+object CoalescingFlowStateStorage {
+    val MAX_PENDING_WRITES = 64 * 1024
+
+    /**
+     * A row to be written in one of the flow state tables: the key, the port
+     * it's stored under, whether the port holds a strong (ingress) or weak
+     * (egress) reference and, for NAT keys, the binding.
+     */
+    private[state] final class Write(val key: FlowStateKey,
+                                     val value: NatBinding,
+                                     val port: UUID,
+                                     val strong: Boolean) {
+        override def equals(other: Any): Boolean = other match {
+            case w: Write =>
+                strong == w.strong && port == w.port && key == w.key &&
+                    value == w.value
+            case _ => false
+        }
+
+        override def hashCode: Int = {
+            var h = key.hashCode
+            h = h * 31 + port.hashCode
+            h = h * 31 + (if (value eq null) 0 else value.hashCode)
+            if (strong) h + 1 else h
+        }
+    }
+}
+
+/**
+ * A FlowStateStorage that coalesces the writes it forwards to another
+ * FlowStateStorage.
+ *
+ * Every touch rewrites a row to refresh its TTL, and hot keys are touched by
+ * every new flow that uses them. This class drops touches of rows that were
+ * written less than refreshWindow ago, or less than half of the key's TTL
+ * ago if that is shorter, and duplicated touches within a batch.
+ *
+ * The writes that are left go through a token bucket that lets through
+ * maxWritesPerSecond writes, with a burst of one second worth of writes. A
+ * value of zero or less disables the rate limit. Writes over the rate stay
+ * pending until a later call to submit(), and up to maxPendingWrites are
+ * kept; further touches are dropped. A dropped touch means that the row may
+ * expire before the key does, so a port migrating to another host would
+ * import less state.
+ *
+ * Like FlowStateStorageImpl, this class is *NOT* thread safe.
+ */
+class CoalescingFlowStateStorage(val underlying: FlowStateStorage,
+                                 clock: Clock,
+                                 refreshWindow: Duration,
+                                 maxWritesPerSecond: Int,
+                                 maxPendingWrites: Int)
+        extends FlowStateStorage {
+    import CoalescingFlowStateStorage._
+
+    def this(underlying: FlowStateStorage, clock: Clock,
+             refreshWindow: Duration, maxWritesPerSecond: Int) =
+        this(underlying, clock, refreshWindow, maxWritesPerSecond,
+             MAX_PENDING_WRITES)
+
+    private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
+
+    private val refreshWindowNanos = refreshWindow.toNanos
+    private val pending = new JLinkedHashSet[Write]()
+    // The writes sent within the refresh window, in the order they were sent
+    private val written = new JLinkedHashMap[Write, JLong]()
+
+    private var tokens: Double = maxWritesPerSecond
+    private var lastRefill = clock.getTick
+
+    var coalescedWrites = 0L
+    var droppedWrites = 0L
+
+    override def fetchStrongConnTrackRefs(portId: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        underlying.fetchStrongConnTrackRefs(portId)
+
+    override def fetchWeakConnTrackRefs(portId: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        underlying.fetchWeakConnTrackRefs(portId)
+
+    override def fetchStrongNatRefs(portId: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        underlying.fetchStrongNatRefs(portId)
+
+    override def fetchWeakNatRefs(portId: UUID)
+            (implicit ec: ExecutionContext, as: ActorSystem) =
+        underlying.fetchWeakNatRefs(portId)
+
+    override def streamConnTrackRefs(portId: UUID, strong: Boolean, pageSize: Int)
+                                    (onPage: JSet[ConnTrackKey] => Unit)
+                                    (implicit ec: ExecutionContext, as: ActorSystem) =
+        underlying.streamConnTrackRefs(portId, strong, pageSize)(onPage)
+
+    override def streamNatRefs(portId: UUID, strong: Boolean, pageSize: Int)
+                              (onPage: JMap[NatKey, NatBinding] => Unit)
+                              (implicit ec: ExecutionContext, as: ActorSystem) =
+        underlying.streamNatRefs(portId, strong, pageSize)(onPage)
+
+    override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
+                                   weakRefs: JIterator[UUID]): Unit = {
+        val now = clock.getTick
+        if (strongRef ne null)
+            touch(new Write(k, null, strongRef, true), now)
+        while (weakRefs.hasNext)
+            touch(new Write(k, null, weakRefs.next(), false), now)
+    }
+
+    override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
+                             weakRefs: JIterator[UUID]): Unit = {
+        val now = clock.getTick
+        if (strongRef ne null)
+            touch(new Write(k, v, strongRef, true), now)
+        while (weakRefs.hasNext)
+            touch(new Write(k, v, weakRefs.next(), false), now)
+    }
+
+    private def touch(w: Write, now: Long): Unit = {
+        if (pending.contains(w) || recentlyWritten(w, now)) {
+            coalescedWrites += 1
+        } else if (pending.size >= maxPendingWrites) {
+            droppedWrites += 1
+            if (log.isDebugEnabled)
+                log.debug("Too many pending flow state writes, dropping {}",
+                          w.key)
+        } else {
+            pending.add(w)
+        }
+    }
+
+    private def recentlyWritten(w: Write, now: Long): Boolean = {
+        val writtenAt = written.get(w)
+        (writtenAt ne null) && now - writtenAt < refreshWindowFor(w.key)
+    }
+
+    private def refreshWindowFor(k: FlowStateKey): Long =
+        Math.min(refreshWindowNanos, k.expiresAfter.toNanos / 2)
+
+    /**
+     * Forwards as many pending writes as the rate limit allows to the
+     * underlying storage and submits them.
+     */
+    override def submit(): Unit = {
+        val now = clock.getTick
+        forgetOldWrites(now)
+        if (pending.isEmpty)
+            return
+
+        var allowed = acquire(pending.size, now)
+        if (allowed == 0)
+            return
+
+        val it = pending.iterator()
+        while (allowed > 0 && it.hasNext) {
+            val w = it.next()
+            it.remove()
+            forward(w)
+            if (refreshWindowNanos > 0) {
+                written.remove(w)
+                written.put(w, now)
+            }
+            allowed -= 1
+        }
+        underlying.submit()
+    }
+
+    private def forward(w: Write): Unit = {
+        val strongRef = if (w.strong) w.port else null
+        val weakRefs = if (w.strong) Collections.emptyIterator[UUID]()
+                       else Collections.singletonList(w.port).iterator()
+        w.key match {
+            case k: ConnTrackKey =>
+                underlying.touchConnTrackKey(k, strongRef, weakRefs)
+            case k: NatKey =>
+                underlying.touchNatKey(k, w.value, strongRef, weakRefs)
+        }
+    }
+
+    private def forgetOldWrites(now: Long): Unit = {
+        val it = written.values().iterator()
+        var done = false
+        while (!done && it.hasNext) {
+            if (now - it.next() >= refreshWindowNanos)
+                it.remove()
+            else
+                done = true
+        }
+    }
+
+    private def acquire(writes: Int, now: Long): Int = {
+        if (maxWritesPerSecond <= 0)
+            return writes
+
+        tokens = Math.min(maxWritesPerSecond,
+                          tokens + (now - lastRefill) * maxWritesPerSecond / 1e9)
+        lastRefill = now
+        val allowed = Math.min(writes, tokens.toInt)
+        tokens -= allowed
+        allowed
+    }
+}
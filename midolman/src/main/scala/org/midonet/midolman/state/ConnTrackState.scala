@@ -22,9 +22,9 @@ import akka.actor.ActorSystem
 
 import org.midonet.cluster.client.Port
 import org.midonet.midolman.topology.VirtualTopologyActor
-import org.midonet.packets.{IPv4, ICMP, UDP, TCP, IPAddr}
+import org.midonet.packets.{IPv4, ICMP, UDP, TCP, IPAddr, IPv4Addr, IPv6Addr}
 import org.midonet.sdn.flows.WildcardMatch
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateCodec, FlowStateTransaction}
 import org.midonet.midolman.state.FlowState.FlowStateKey
 
 object ConnTrackState {
@@ -54,6 +54,62 @@ object ConnTrackState {
                                 s"$networkProtocol:$deviceId"
     }
 
+    /**
+     * Encodes ConnTrackKeys for the OffHeapFlowStateTable. Each address takes
+     * two words, so that IPv6 keys fit too.
+     */
+    object ConnTrackCodec extends FlowStateCodec[ConnTrackKey, ConnTrackValue] {
+        private final val IPV6_SRC = 0x100L
+        private final val IPV6_DST = 0x200L
+
+        override def keyWords = 8
+
+        override def encodeKey(k: ConnTrackKey, words: Array[Long]): Unit = {
+            var flags = k.networkProtocol & 0xffL
+            if (encodeAddr(k.networkSrc, words, 0))
+                flags |= IPV6_SRC
+            if (encodeAddr(k.networkDst, words, 2))
+                flags |= IPV6_DST
+            words(4) = (k.icmpIdOrTransportSrc.toLong << 32) |
+                       (k.icmpIdOrTransportDst & 0xffffffffL)
+            words(5) = k.deviceId.getMostSignificantBits
+            words(6) = k.deviceId.getLeastSignificantBits
+            words(7) = flags
+        }
+
+        override def decodeKey(words: Array[Long]): ConnTrackKey = {
+            val flags = words(7)
+            ConnTrackKey(decodeAddr(words, 0, (flags & IPV6_SRC) != 0),
+                         (words(4) >>> 32).toInt,
+                         decodeAddr(words, 2, (flags & IPV6_DST) != 0),
+                         words(4).toInt,
+                         flags.toByte,
+                         new UUID(words(5), words(6)))
+        }
+
+        override def encodeValue(v: ConnTrackValue): Long =
+            if (v.booleanValue) 1L else 0L
+
+        override def decodeValue(v: Long): ConnTrackValue =
+            if (v != 0) FORWARD_FLOW else RETURN_FLOW
+
+        private def encodeAddr(ip: IPAddr, words: Array[Long], i: Int) =
+            ip match {
+                case ip6: IPv6Addr =>
+                    words(i) = ip6.upperWord
+                    words(i + 1) = ip6.lowerWord
+                    true
+                case ip4: IPv4Addr =>
+                    words(i) = ip4.toInt & 0xffffffffL
+                    words(i + 1) = 0L
+                    false
+            }
+
+        private def decodeAddr(words: Array[Long], i: Int, ipv6: Boolean): IPAddr =
+            if (ipv6) new IPv6Addr(words(i), words(i + 1))
+            else new IPv4Addr(words(i).toInt)
+    }
+
     def EgressConnTrackKey(wcMatch: WildcardMatch, egressDeviceId: UUID): ConnTrackKey =
         ConnTrackKey(wcMatch.getNetworkDstIP,
                      icmpIdOr(wcMatch, wcMatch.getDstPort),
@@ -0,0 +1,679 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{ArrayList, UUID}
+
+import scala.util.control.NoStackTrace
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState._
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv6Addr}
+
+/**
+ * Hand-written encoding of the flow state replication messages, compatible
+ * with the protobuf wire format of the StateMessage in flowstate.proto, that
+ * reads and writes keys straight from and to packet buffers without going
+ * through the generated protobuf classes.
+ */
+object FlowStateMessages {
+    // Wire types
+    private[state] final val VARINT = 0
+    private[state] final val FIXED64 = 1
+    private[state] final val LENGTH_DELIMITED = 2
+    private[state] final val FIXED32 = 5
+
+    private[state] def tag(field: Int, wireType: Int) = (field << 3) | wireType
+
+    // UUID
+    private[state] final val UUID_MSB = tag(1, FIXED64)
+    private[state] final val UUID_LSB = tag(2, FIXED64)
+    private[state] final val UUID_SIZE = 18
+
+    // IpAddress
+    private[state] final val IP_VERSION = tag(1, VARINT)
+    private[state] final val IP_QUAD0 = tag(2, VARINT)
+    private[state] final val IP_QUAD1 = tag(3, VARINT)
+    private[state] final val IP_QUAD2 = tag(4, VARINT)
+    private[state] final val IP_QUAD3 = tag(5, VARINT)
+    private[state] final val IP_V4 = 0
+    private[state] final val IP_V6 = 1
+
+    // NatKey
+    private[state] final val NAT_TYPE = tag(1, VARINT)
+    private[state] final val NAT_PROTOCOL = tag(2, VARINT)
+    private[state] final val NAT_SRC_IP = tag(3, LENGTH_DELIMITED)
+    private[state] final val NAT_DST_IP = tag(4, LENGTH_DELIMITED)
+    private[state] final val NAT_SRC_PORT = tag(5, VARINT)
+    private[state] final val NAT_DST_PORT = tag(6, VARINT)
+    private[state] final val NAT_DEVICE = tag(7, LENGTH_DELIMITED)
+
+    // NatValue
+    private[state] final val NAT_VALUE_IP = tag(1, LENGTH_DELIMITED)
+    private[state] final val NAT_VALUE_PORT = tag(2, VARINT)
+
+    // NatEntry
+    private[state] final val NAT_ENTRY_KEY = tag(1, LENGTH_DELIMITED)
+    private[state] final val NAT_ENTRY_VALUE = tag(2, LENGTH_DELIMITED)
+
+    // ConntrackKey
+    private[state] final val CT_PROTOCOL = tag(1, VARINT)
+    private[state] final val CT_SRC_IP = tag(2, LENGTH_DELIMITED)
+    private[state] final val CT_SRC_PORT = tag(3, VARINT)
+    private[state] final val CT_DST_IP = tag(4, LENGTH_DELIMITED)
+    private[state] final val CT_DST_PORT = tag(5, VARINT)
+    private[state] final val CT_DEVICE = tag(6, LENGTH_DELIMITED)
+
+    // FlowState
+    private[state] final val STATE_CONNTRACK_KEY = tag(1, LENGTH_DELIMITED)
+    private[state] final val STATE_NAT_ENTRY = tag(2, LENGTH_DELIMITED)
+    private[state] final val STATE_INGRESS_PORT = tag(3, LENGTH_DELIMITED)
+    private[state] final val STATE_EGRESS_PORT = tag(4, LENGTH_DELIMITED)
+    private[state] final val STATE_EGRESS_PORT_SET = tag(5, LENGTH_DELIMITED)
+
+    // StateMessage
+    private[state] final val MSG_SEQ = tag(1, VARINT)
+    private[state] final val MSG_SENDER = tag(2, LENGTH_DELIMITED)
+    private[state] final val MSG_EPOCH = tag(3, VARINT)
+    private[state] final val MSG_NEW_STATE = tag(4, LENGTH_DELIMITED)
+
+    /* NatKey.Type values, indexed by their protobuf enum number */
+    private[state] val natKeyTypes = Array[KeyType](FWD_DNAT, FWD_STICKY_DNAT,
+                                                    REV_DNAT, REV_STICKY_DNAT,
+                                                    FWD_SNAT, REV_SNAT)
+
+    private[state] def natKeyTypeNumber(t: KeyType): Int = t match {
+        case FWD_DNAT => 0
+        case FWD_STICKY_DNAT => 1
+        case REV_DNAT => 2
+        case REV_STICKY_DNAT => 3
+        case FWD_SNAT => 4
+        case REV_SNAT => 5
+    }
+
+    /** The encoded size of an unsigned varint. */
+    private[state] def varintSize(value: Long): Int = {
+        var v = value >>> 7
+        var size = 1
+        while (v != 0) {
+            v >>>= 7
+            size += 1
+        }
+        size
+    }
+
+    /** The encoded size of an uint32 field value. */
+    private[state] def uint32Size(value: Int): Int =
+        varintSize(value & 0xffffffffL)
+
+    /** The encoded size of a length delimited field, tag included. */
+    private[state] def fieldSize(size: Int): Int = 1 + varintSize(size) + size
+
+    class MalformedMessageException extends Exception with NoStackTrace
+    private[state] val Malformed = new MalformedMessageException
+}
+
+/**
+ * The state produced by a single flow, to be sent as a FlowState in a
+ * StateMessage to the given hosts. Instances are meant to be reused.
+ */
+final class OutgoingFlowState {
+    val hosts = new ArrayList[UUID]()
+    var conntrackKey: ConnTrackKey = _
+    val natKeys = new ArrayList[NatKey]()
+    val natBindings = new ArrayList[NatBinding]()
+    var ingressPort: UUID = _
+    var egressPort: UUID = _
+    var egressPortSet: UUID = _
+
+    def addNatEntry(k: NatKey, v: NatBinding): Unit = {
+        natKeys.add(k)
+        natBindings.add(v)
+    }
+
+    def isEmpty: Boolean = (conntrackKey eq null) && natKeys.isEmpty
+
+    def clear(): Unit = {
+        hosts.clear()
+        conntrackKey = null
+        natKeys.clear()
+        natBindings.clear()
+        ingressPort = null
+        egressPort = null
+        egressPortSet = null
+    }
+}
+
+/**
+ * Writes length delimited StateMessages. This class is not thread-safe.
+ */
+class StateMessageEncoder {
+    import FlowStateMessages._
+
+    private[this] var buf: Array[Byte] = _
+    private[this] var pos = 0
+
+    /**
+     * Writes a length delimited StateMessage carrying the given flow state at
+     * the start of the buffer. Returns the number of bytes written, or -1 if
+     * the message doesn't fit in the buffer, which is then left untouched.
+     */
+    def encode(buffer: Array[Byte], sender: UUID, epoch: Long,
+               state: OutgoingFlowState): Int = {
+        val stateSize = flowStateSize(state)
+        /* We don't expect ACKs, seq is unused for now */
+        val seq = 0x1L
+        val messageSize = 1 + varintSize(seq) +
+                          fieldSize(UUID_SIZE) +
+                          1 + varintSize(epoch) +
+                          fieldSize(stateSize)
+        val size = varintSize(messageSize) + messageSize
+        if (size > buffer.length)
+            return -1
+
+        buf = buffer
+        pos = 0
+        writeVarint(messageSize)
+        writeByte(MSG_SEQ)
+        writeVarint(seq)
+        writeUuid(MSG_SENDER, sender)
+        writeByte(MSG_EPOCH)
+        writeVarint(epoch)
+        writeByte(MSG_NEW_STATE)
+        writeVarint(stateSize)
+        writeFlowState(state)
+        buf = null
+        pos
+    }
+
+    private def ipSize(ip: IPAddr): Int = ip match {
+        case v4: IPv4Addr =>
+            2 + 1 + uint32Size(v4.addr)
+        case v6: IPv6Addr =>
+            2 + 4 + uint32Size(v6.lowerWord.toInt) +
+                    uint32Size((v6.lowerWord >>> 32).toInt) +
+                    uint32Size(v6.upperWord.toInt) +
+                    uint32Size((v6.upperWord >>> 32).toInt)
+        case _ => throw new IllegalArgumentException()
+    }
+
+    private def connTrackKeySize(k: ConnTrackKey): Int =
+        1 + uint32Size(k.networkProtocol) +
+        fieldSize(ipSize(k.networkSrc)) +
+        1 + uint32Size(k.icmpIdOrTransportSrc) +
+        fieldSize(ipSize(k.networkDst)) +
+        1 + uint32Size(k.icmpIdOrTransportDst) +
+        fieldSize(UUID_SIZE)
+
+    private def natKeySize(k: NatKey): Int =
+        1 + uint32Size(natKeyTypeNumber(k.keyType)) +
+        1 + uint32Size(k.networkProtocol) +
+        fieldSize(ipSize(k.networkSrc)) +
+        fieldSize(ipSize(k.networkDst)) +
+        1 + uint32Size(k.transportSrc) +
+        1 + uint32Size(k.transportDst) +
+        fieldSize(UUID_SIZE)
+
+    private def natBindingSize(v: NatBinding): Int =
+        fieldSize(ipSize(v.networkAddress)) + 1 + uint32Size(v.transportPort)
+
+    private def natEntrySize(k: NatKey, v: NatBinding): Int =
+        fieldSize(natKeySize(k)) + fieldSize(natBindingSize(v))
+
+    private def flowStateSize(state: OutgoingFlowState): Int = {
+        var size = fieldSize(UUID_SIZE)
+        if (state.conntrackKey ne null)
+            size += fieldSize(connTrackKeySize(state.conntrackKey))
+        var i = 0
+        while (i < state.natKeys.size()) {
+            size += fieldSize(natEntrySize(state.natKeys.get(i),
+                                           state.natBindings.get(i)))
+            i += 1
+        }
+        if ((state.egressPort ne null) || (state.egressPortSet ne null))
+            size += fieldSize(UUID_SIZE)
+        size
+    }
+
+    private def writeFlowState(state: OutgoingFlowState): Unit = {
+        val ck = state.conntrackKey
+        if (ck ne null) {
+            writeByte(STATE_CONNTRACK_KEY)
+            writeVarint(connTrackKeySize(ck))
+            writeUInt32(CT_PROTOCOL, ck.networkProtocol)
+            writeIp(CT_SRC_IP, ck.networkSrc)
+            writeUInt32(CT_SRC_PORT, ck.icmpIdOrTransportSrc)
+            writeIp(CT_DST_IP, ck.networkDst)
+            writeUInt32(CT_DST_PORT, ck.icmpIdOrTransportDst)
+            writeUuid(CT_DEVICE, ck.deviceId)
+        }
+
+        var i = 0
+        while (i < state.natKeys.size()) {
+            val k = state.natKeys.get(i)
+            val v = state.natBindings.get(i)
+            writeByte(STATE_NAT_ENTRY)
+            writeVarint(natEntrySize(k, v))
+
+            writeByte(NAT_ENTRY_KEY)
+            writeVarint(natKeySize(k))
+            writeUInt32(NAT_TYPE, natKeyTypeNumber(k.keyType))
+            writeUInt32(NAT_PROTOCOL, k.networkProtocol)
+            writeIp(NAT_SRC_IP, k.networkSrc)
+            writeIp(NAT_DST_IP, k.networkDst)
+            writeUInt32(NAT_SRC_PORT, k.transportSrc)
+            writeUInt32(NAT_DST_PORT, k.transportDst)
+            writeUuid(NAT_DEVICE, k.deviceId)
+
+            writeByte(NAT_ENTRY_VALUE)
+            writeVarint(natBindingSize(v))
+            writeIp(NAT_VALUE_IP, v.networkAddress)
+            writeUInt32(NAT_VALUE_PORT, v.transportPort)
+            i += 1
+        }
+
+        writeUuid(STATE_INGRESS_PORT, state.ingressPort)
+        if (state.egressPort ne null)
+            writeUuid(STATE_EGRESS_PORT, state.egressPort)
+        else if (state.egressPortSet ne null)
+            writeUuid(STATE_EGRESS_PORT_SET, state.egressPortSet)
+    }
+
+    private def writeIp(tag: Int, ip: IPAddr): Unit = {
+        writeByte(tag)
+        writeVarint(ipSize(ip))
+        ip match {
+            case v4: IPv4Addr =>
+                writeUInt32(IP_VERSION, IP_V4)
+                writeUInt32(IP_QUAD0, v4.addr)
+            case v6: IPv6Addr =>
+                writeUInt32(IP_VERSION, IP_V6)
+                writeUInt32(IP_QUAD0, v6.lowerWord.toInt)
+                writeUInt32(IP_QUAD1, (v6.lowerWord >>> 32).toInt)
+                writeUInt32(IP_QUAD2, v6.upperWord.toInt)
+                writeUInt32(IP_QUAD3, (v6.upperWord >>> 32).toInt)
+        }
+    }
+
+    private def writeUuid(tag: Int, uuid: UUID): Unit = {
+        writeByte(tag)
+        writeByte(UUID_SIZE)
+        writeByte(UUID_MSB)
+        writeFixed64(uuid.getMostSignificantBits)
+        writeByte(UUID_LSB)
+        writeFixed64(uuid.getLeastSignificantBits)
+    }
+
+    private def writeUInt32(tag: Int, value: Int): Unit = {
+        writeByte(tag)
+        writeVarint(value & 0xffffffffL)
+    }
+
+    private def writeVarint(value: Long): Unit = {
+        var v = value
+        while ((v & ~0x7FL) != 0) {
+            buf(pos) = ((v & 0x7F) | 0x80).toByte
+            pos += 1
+            v >>>= 7
+        }
+        buf(pos) = v.toByte
+        pos += 1
+    }
+
+    private def writeFixed64(value: Long): Unit = {
+        var i = 0
+        while (i < 8) {
+            buf(pos + i) = (value >>> (8 * i)).toByte
+            i += 1
+        }
+        pos += 8
+    }
+
+    private def writeByte(b: Int): Unit = {
+        buf(pos) = b.toByte
+        pos += 1
+    }
+}
+
+/**
+ * Reads length delimited StateMessages, collecting the keys they carry. The
+ * decoder is reused for every message, so its contents are only valid until
+ * the next call to decode(). This class is not thread-safe.
+ */
+class StateMessageDecoder {
+    import FlowStateMessages._
+
+    var sender: UUID = _
+    var epoch: Long = 0L
+    val conntrackKeys = new ArrayList[ConnTrackKey]()
+    val natKeys = new ArrayList[NatKey]()
+    val natBindings = new ArrayList[NatBinding]()
+
+    private[this] var buf: Array[Byte] = _
+    private[this] var pos = 0
+
+    // Fields of the message being read
+    private[this] var seen = 0
+    private[this] var msb = 0L
+    private[this] var lsb = 0L
+    private[this] var version = 0
+    private[this] val quads = new Array[Int](4)
+    private[this] var protocol = 0
+    private[this] var srcIp: IPAddr = _
+    private[this] var dstIp: IPAddr = _
+    private[this] var srcPort = 0
+    private[this] var dstPort = 0
+    private[this] var device: UUID = _
+    private[this] var natType: KeyType = _
+    private[this] var natKey: NatKey = _
+    private[this] var natBinding: NatBinding = _
+
+    /**
+     * Reads the length delimited StateMessage at the given offset of the
+     * buffer. Returns false if the buffer doesn't hold a valid message, in
+     * which case the contents of the decoder are undefined.
+     */
+    def decode(buffer: Array[Byte], offset: Int, length: Int): Boolean = {
+        sender = null
+        epoch = 0L
+        conntrackKeys.clear()
+        natKeys.clear()
+        natBindings.clear()
+        buf = buffer
+        pos = offset
+        try {
+            val end = offset + length
+            val size = readLength(end)
+            readStateMessage(pos + size)
+            true
+        } catch {
+            case e: MalformedMessageException => false
+        } finally {
+            buf = null
+        }
+    }
+
+    private def readStateMessage(end: Int): Unit = {
+        var fields = 0
+        while (pos < end) {
+            readTag(end) match {
+                case MSG_SEQ =>
+                    readVarint(end)
+                    fields |= 1
+                case MSG_SENDER =>
+                    sender = readUuid(end)
+                    fields |= 2
+                case MSG_EPOCH =>
+                    epoch = readVarint(end)
+                    fields |= 4
+                case MSG_NEW_STATE =>
+                    readFlowState(pos + readLength(end))
+                case t =>
+                    skipField(t, end)
+            }
+        }
+        if (fields != 7)
+            throw Malformed
+    }
+
+    private def readFlowState(end: Int): Unit = {
+        var hasIngressPort = false
+        while (pos < end) {
+            readTag(end) match {
+                case STATE_CONNTRACK_KEY =>
+                    conntrackKeys.add(readConnTrackKey(pos + readLength(end)))
+                case STATE_NAT_ENTRY =>
+                    readNatEntry(pos + readLength(end))
+                    natKeys.add(natKey)
+                    natBindings.add(natBinding)
+                case STATE_INGRESS_PORT =>
+                    readUuid(end)
+                    hasIngressPort = true
+                case t =>
+                    skipField(t, end)
+            }
+        }
+        if (!hasIngressPort)
+            throw Malformed
+    }
+
+    private def readConnTrackKey(end: Int): ConnTrackKey = {
+        seen = 0
+        while (pos < end) {
+            readTag(end) match {
+                case CT_PROTOCOL =>
+                    protocol = readUInt32(end)
+                    seen |= 1
+                case CT_SRC_IP =>
+                    srcIp = readIp(pos + readLength(end))
+                    seen |= 2
+                case CT_SRC_PORT =>
+                    srcPort = readUInt32(end)
+                    seen |= 4
+                case CT_DST_IP =>
+                    dstIp = readIp(pos + readLength(end))
+                    seen |= 8
+                case CT_DST_PORT =>
+                    dstPort = readUInt32(end)
+                    seen |= 16
+                case CT_DEVICE =>
+                    device = readUuid(end)
+                    seen |= 32
+                case t =>
+                    skipField(t, end)
+            }
+        }
+        if (seen != 63)
+            throw Malformed
+        ConnTrackKey(srcIp, srcPort, dstIp, dstPort, protocol.toByte, device)
+    }
+
+    private def readNatEntry(end: Int): Unit = {
+        natKey = null
+        natBinding = null
+        while (pos < end) {
+            readTag(end) match {
+                case NAT_ENTRY_KEY =>
+                    natKey = readNatKey(pos + readLength(end))
+                case NAT_ENTRY_VALUE =>
+                    natBinding = readNatBinding(pos + readLength(end))
+                case t =>
+                    skipField(t, end)
+            }
+        }
+        if ((natKey eq null) || (natBinding eq null))
+            throw Malformed
+    }
+
+    private def readNatKey(end: Int): NatKey = {
+        var fields = 0
+        while (pos < end) {
+            readTag(end) match {
+                case NAT_TYPE =>
+                    val t = readUInt32(end)
+                    if (t >= 0 && t < natKeyTypes.length) {
+                        natType = natKeyTypes(t)
+                        fields |= 1
+                    }
+                case NAT_PROTOCOL =>
+                    protocol = readUInt32(end)
+                    fields |= 2
+                case NAT_SRC_IP =>
+                    srcIp = readIp(pos + readLength(end))
+                    fields |= 4
+                case NAT_DST_IP =>
+                    dstIp = readIp(pos + readLength(end))
+                    fields |= 8
+                case NAT_SRC_PORT =>
+                    srcPort = readUInt32(end)
+                    fields |= 16
+                case NAT_DST_PORT =>
+                    dstPort = readUInt32(end)
+                    fields |= 32
+                case NAT_DEVICE =>
+                    device = readUuid(end)
+                    fields |= 64
+                case t =>
+                    skipField(t, end)
+            }
+        }
+        if (fields != 127)
+            throw Malformed
+        NatKey(natType, ipv4(srcIp), srcPort, ipv4(dstIp), dstPort,
+               protocol.toByte, device)
+    }
+
+    private def readNatBinding(end: Int): NatBinding = {
+        var fields = 0
+        var ip: IPAddr = null
+        var port = 0
+        while (pos < end) {
+            readTag(end) match {
+                case NAT_VALUE_IP =>
+                    ip = readIp(pos + readLength(end))
+                    fields |= 1
+                case NAT_VALUE_PORT =>
+                    port = readUInt32(end)
+                    fields |= 2
+                case t =>
+                    skipField(t, end)
+            }
+        }
+        if (fields != 3)
+            throw Malformed
+        NatBinding(ipv4(ip), port)
+    }
+
+    private def ipv4(ip: IPAddr): IPv4Addr = ip match {
+        case v4: IPv4Addr => v4
+        case _ => throw Malformed
+    }
+
+    private def readIp(end: Int): IPAddr = {
+        var hasVersion = false
+        var hasQuad0 = false
+        quads(0) = 0
+        quads(1) = 0
+        quads(2) = 0
+        quads(3) = 0
+        while (pos < end) {
+            readTag(end) match {
+                case IP_VERSION =>
+                    version = readUInt32(end)
+                    hasVersion = true
+                case IP_QUAD0 =>
+                    quads(0) = readUInt32(end)
+                    hasQuad0 = true
+                case IP_QUAD1 => quads(1) = readUInt32(end)
+                case IP_QUAD2 => quads(2) = readUInt32(end)
+                case IP_QUAD3 => quads(3) = readUInt32(end)
+                case t => skipField(t, end)
+            }
+        }
+        if (!hasVersion || !hasQuad0)
+            throw Malformed
+        version match {
+            case IP_V4 =>
+                new IPv4Addr(quads(0))
+            case IP_V6 =>
+                new IPv6Addr((quads(3).toLong << 32) | (quads(2) & 0xffffffffL),
+                             (quads(1).toLong << 32) | (quads(0) & 0xffffffffL))
+            case _ =>
+                throw Malformed
+        }
+    }
+
+    private def readUuid(end: Int): UUID = {
+        val uuidEnd = pos + readLength(end)
+        var fields = 0
+        while (pos < uuidEnd) {
+            readTag(uuidEnd) match {
+                case UUID_MSB =>
+                    msb = readFixed64(uuidEnd)
+                    fields |= 1
+                case UUID_LSB =>
+                    lsb = readFixed64(uuidEnd)
+                    fields |= 2
+                case t =>
+                    skipField(t, uuidEnd)
+            }
+        }
+        if (fields != 3)
+            throw Malformed
+        new UUID(msb, lsb)
+    }
+
+    private def readTag(end: Int): Int = {
+        val t = readVarint(end)
+        if (t <= 0 || t > Int.MaxValue)
+            throw Malformed
+        t.toInt
+    }
+
+    private def readLength(end: Int): Int = {
+        val len = readVarint(end)
+        if (len < 0 || len > end - pos)
+            throw Malformed
+        len.toInt
+    }
+
+    private def readUInt32(end: Int): Int = readVarint(end).toInt
+
+    private def readVarint(end: Int): Long = {
+        var result = 0L
+        var shift = 0
+        while (shift < 64) {
+            if (pos >= end)
+                throw Malformed
+            val b = buf(pos)
+            pos += 1
+            result |= (b & 0x7FL) << shift
+            if ((b & 0x80) == 0)
+                return result
+            shift += 7
+        }
+        throw Malformed
+    }
+
+    private def readFixed64(end: Int): Long = {
+        if (end - pos < 8)
+            throw Malformed
+        var result = 0L
+        var i = 0
+        while (i < 8) {
+            result |= (buf(pos + i) & 0xFFL) << (8 * i)
+            i += 1
+        }
+        pos += 8
+        result
+    }
+
+    private def skipField(tag: Int, end: Int): Unit = {
+        val skip = (tag & 7) match {
+            case VARINT =>
+                readVarint(end)
+                0
+            case FIXED64 => 8
+            case LENGTH_DELIMITED => readLength(end)
+            case FIXED32 => 4
+            case _ => throw Malformed
+        }
+        if (skip > end - pos)
+            throw Malformed
+        pos += skip
+    }
+}
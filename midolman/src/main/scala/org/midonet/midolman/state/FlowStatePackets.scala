@@ -18,8 +18,6 @@ package org.midonet.midolman.state
 
 import java.util.UUID
 
-import java.io.ByteArrayInputStream
-
 import org.midonet.midolman.state.ConnTrackState._
 import org.midonet.midolman.state.NatState._
 import org.midonet.packets.{Data, Ethernet, IPAddr, IPv4, IPv4Addr, IPv6Addr, MAC, UDP}
@@ -32,7 +30,7 @@ object FlowStatePackets {
      * Frame format for state replication messages:
      *
      *     +---------------------------------------+
-     *     | Payload (protobufs message)           |
+     *     | Payload (delimited StateMessage)      |
      *     +---------------------------------------+
      *     | UDP (arbitrary IANA-unnassigned port) |
      *     +---------------------------------------+
@@ -86,8 +84,8 @@ object FlowStatePackets {
         if (proto.getVersion == Proto.IpAddress.IpVersion.V4) {
             new IPv4Addr(proto.getQuad0)
         } else {
-            val lower = proto.getQuad0.toLong | (proto.getQuad1.toLong << 32)
-            val upper = proto.getQuad2.toLong | (proto.getQuad3.toLong << 32)
+            val lower = (proto.getQuad0 & 0xFFFFFFFFL) | (proto.getQuad1.toLong << 32)
+            val upper = (proto.getQuad2 & 0xFFFFFFFFL) | (proto.getQuad3.toLong << 32)
             new IPv6Addr(upper, lower)
         }
     }
@@ -176,10 +174,15 @@ object FlowStatePackets {
         NatBinding(ipAddressFromProto(proto.getIp).asInstanceOf[IPv4Addr],
                    proto.getPort)
 
-    def parseDatagram(p: Ethernet): Proto.StateMessage  = {
+    /**
+     * Decodes the state message carried by a state replication packet into
+     * the given decoder. Returns false if the packet isn't a valid state
+     * replication packet.
+     */
+    def parseDatagram(p: Ethernet, decoder: StateMessageDecoder): Boolean = {
         if (p.getDestinationMACAddress != DST_MAC ||
             p.getSourceMACAddress != SRC_MAC) {
-            return null
+            return false
         }
 
         p.getPayload match {
@@ -190,15 +193,15 @@ object FlowStatePackets {
                         udp.getSourcePort == UDP_PORT =>
                         udp.getPayload match {
                             case d: Data =>
-                                val input = new ByteArrayInputStream(d.getData)
-                                Proto.StateMessage.parseDelimitedFrom(input)
-                            case _ => null
+                                val data = d.getData
+                                decoder.decode(data, 0, data.length)
+                            case _ => false
                         }
 
-                    case _ => null
+                    case _ => false
                 }
 
-            case _ => null
+            case _ => false
         }
     }
 }
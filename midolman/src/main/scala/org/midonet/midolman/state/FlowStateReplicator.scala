@@ -16,13 +16,13 @@
 
 package org.midonet.midolman.state
 
-import java.util.{UUID, List => JList, Set => JSet, Iterator => JIterator,
-                  HashSet => JHashSet, ArrayList}
+import java.util.{Arrays, UUID, Collection => JCollection, List => JList,
+                  Set => JSet, Iterator => JIterator, HashSet => JHashSet,
+                  ArrayList}
 
 import scala.collection.mutable
 import akka.actor.ActorSystem
 
-import com.google.protobuf.MessageLite
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 
@@ -43,11 +43,9 @@ import org.midonet.odp.flows.FlowActions.setKey
 import org.midonet.odp.flows.FlowKeys.tunnel
 import org.midonet.odp.protos.OvsDatapathConnection
 import org.midonet.packets.Ethernet
-import org.midonet.rpc.{FlowStateProto => Proto}
 import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction}
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger.FlowTag
-import org.midonet.util.FixedArrayOutputStream
 import org.midonet.util.collection.Reducer
 import org.midonet.util.functors.Callback0
 
@@ -112,21 +110,20 @@ abstract class BaseFlowStateReplicator() {
     protected def getPortGroup(id: UUID): PortGroup
 
     /* Used for message building */
-    private[this] val txState = Proto.FlowState.newBuilder()
-    private[this] val txNatEntry = Proto.NatEntry.newBuilder()
-    private[this] val currentMessage = Proto.StateMessage.newBuilder()
+    private[this] var txState: OutgoingFlowState = _
     private[this] var txIngressPort: UUID = _
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
 
-    private[this] val pendingMessages = new ArrayList[(JSet[UUID], MessageLite)]()
-    private[this] val hostId = uuidToProto(underlay.host.id)
+    private[this] val pendingMessages = new ArrayList[OutgoingFlowState]()
+    private[this] val freeMessages = new ArrayList[OutgoingFlowState]()
+    private[this] val encoder = new StateMessageEncoder()
+    private[this] val decoder = new StateMessageDecoder()
 
     /* Used for packet building
      * FIXME(guillermo) - use MTU
      */
     private[this] val buffer = new Array[Byte](MTU - OVERHEAD)
-    private[this] val stream = new FixedArrayOutputStream(buffer)
     private[this] val packet = {
         val udpShell = makeUdpShell(buffer)
         new Packet(udpShell, FlowMatches.fromEthernetPacket(udpShell))
@@ -137,7 +134,7 @@ abstract class BaseFlowStateReplicator() {
                            v: ConnTrackValue): ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push conntrack key: {}", k)
-                txState.setConntrackKey(connTrackKeyToProto(k))
+                txState.conntrackKey = k
             }
             log.debug("touch conntrack key: {}", k)
             storage.touchConnTrackKey(k, txIngressPort, txPorts.iterator())
@@ -154,9 +151,7 @@ abstract class BaseFlowStateReplicator() {
                            v: NatBinding): ArrayList[Callback0] = {
             if (txPeers.size() > 0) {
                 log.debug("push nat key: {}", k)
-                txNatEntry.clear()
-                txNatEntry.setK(natKeyToProto(k)).setV(natBindingToProto(v))
-                txState.addNatEntries(txNatEntry.build())
+                txState.addNatEntry(k, v)
             }
             log.debug("touch nat key: {}", k)
             storage.touchNatKey(k, v, txIngressPort, txPorts.iterator())
@@ -168,12 +163,13 @@ abstract class BaseFlowStateReplicator() {
         }
     }
 
-    private def resetCurrentMessage() {
-        currentMessage.clear()
-        currentMessage.setSender(hostId)
-        currentMessage.setEpoch(underlay.host.epoch)
-        /* We don't expect ACKs, seq is unused for now */
-        currentMessage.setSeq(0x1)
+    private def newMessage(): OutgoingFlowState =
+        if (freeMessages.isEmpty) new OutgoingFlowState()
+        else freeMessages.remove(freeMessages.size() - 1)
+
+    private def releaseMessage(msg: OutgoingFlowState): Unit = {
+        msg.clear()
+        freeMessages.add(msg)
     }
 
     def importFromStorage(batch: FlowStateBatch) {
@@ -242,8 +238,8 @@ abstract class BaseFlowStateReplicator() {
         val hasPeers = !txPeers.isEmpty
 
         if (hasPeers) {
-            txState.clear()
-            resetCurrentMessage()
+            txState = newMessage()
+            txState.hosts.addAll(txPeers)
         }
 
         txIngressPort = ingressPort
@@ -254,19 +250,19 @@ abstract class BaseFlowStateReplicator() {
             buildMessage(ingressPort, egressPort, egressPortSet)
     }
 
-    def buildMessage(ingressPort: UUID, egressPort: UUID, egressPortSet: UUID): Unit =
-        if (txState.hasConntrackKey || txState.getNatEntriesCount > 0) {
-            txState.setIngressPort(uuidToProto(ingressPort))
-            if (egressPort != null)
-                txState.setEgressPort(uuidToProto(egressPort))
-            else if (egressPortSet != null)
-                txState.setEgressPortSet(uuidToProto(egressPortSet))
-
-            currentMessage.addNewState(txState.build())
-            pendingMessages.add((txPeers, currentMessage.build()))
+    def buildMessage(ingressPort: UUID, egressPort: UUID, egressPortSet: UUID): Unit = {
+        if (!txState.isEmpty) {
+            txState.ingressPort = ingressPort
+            txState.egressPort = egressPort
+            txState.egressPortSet = egressPortSet
+            pendingMessages.add(txState)
+        } else {
+            releaseMessage(txState)
         }
+        txState = null
+    }
 
-    private def hostsToActions(hosts: JSet[UUID]): JList[FlowAction] = {
+    private def hostsToActions(hosts: JCollection[UUID]): JList[FlowAction] = {
         val actions = new ArrayList[FlowAction]()
         var i = 0
         val hostsIt = hosts.iterator
@@ -296,43 +292,45 @@ abstract class BaseFlowStateReplicator() {
     def pushState(dp: OvsDatapathConnection) {
         var i = pendingMessages.size() - 1
         while (i >= 0) {
-            val (hosts, message) = pendingMessages.remove(i)
-            if (message.getSerializedSize <= buffer.length) {
-                stream.reset()
-                message.writeDelimitedTo(stream)
-                val actions = hostsToActions(hosts)
+            val message = pendingMessages.remove(i)
+            val length = encoder.encode(buffer, underlay.host.id,
+                                        underlay.host.epoch, message)
+            if (length >= 0) {
+                Arrays.fill(buffer, length, buffer.length, 0.toByte)
+                val actions = hostsToActions(message.hosts)
                 if (!actions.isEmpty)
                     dp.packetsExecute(datapath, packet, actions)
             } else {
                 // TODO(guillermo) partition messages
-                log.warn(s"Skipping state message, too large: $message")
+                log.warn("Skipping state message, too large: {} nat keys " +
+                         "from port {}", Int.box(message.natKeys.size()),
+                         message.ingressPort)
             }
+            releaseMessage(message)
             i -= 1
         }
 
         storage.submit()
     }
 
-    private def acceptNewState(msg: Proto.StateMessage) {
-        val newStates = msg.getNewStateList.iterator
-        while (newStates.hasNext) {
-            val state = newStates.next()
-            if (state.hasConntrackKey) {
-                val k = connTrackKeyFromProto(state.getConntrackKey)
-                log.debug("got new conntrack key: {}", k)
-                conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
-                invalidateFlowsFor(k)
-            }
+    private def acceptNewState() {
+        var i = 0
+        while (i < decoder.conntrackKeys.size()) {
+            val k = decoder.conntrackKeys.get(i)
+            log.debug("got new conntrack key: {}", k)
+            conntrackTable.touch(k, ConnTrackState.RETURN_FLOW)
+            invalidateFlowsFor(k)
+            i += 1
+        }
 
-            val natEntries = state.getNatEntriesList.iterator
-            while (natEntries.hasNext) {
-                val nat = natEntries.next()
-                val k = natKeyFromProto(nat.getK)
-                val v = natBindingFromProto(nat.getV)
-                log.debug("Got new nat mapping: {} -> {}", k, v)
-                natTable.touch(k, v)
-                invalidateFlowsFor(k)
-            }
+        i = 0
+        while (i < decoder.natKeys.size()) {
+            val k = decoder.natKeys.get(i)
+            val v = decoder.natBindings.get(i)
+            log.debug("Got new nat mapping: {} -> {}", k, v)
+            natTable.touch(k, v)
+            invalidateFlowsFor(k)
+            i += 1
         }
     }
 
@@ -349,14 +347,13 @@ abstract class BaseFlowStateReplicator() {
      */
     @throws(classOf[NotYetException])
     def accept(p: Ethernet) {
-        val msg = parseDatagram(p)
-        if (msg == null) {
+        if (!parseDatagram(p, decoder)) {
             log.info("Ignoring unexpected packet: {}", p)
             return
         }
 
-        log.debug("Got state replication message from: {}", msg.getSender)
-        acceptNewState(msg)
+        log.debug("Got state replication message from: {}", decoder.sender)
+        acceptNewState()
     }
 
     @throws(classOf[NotYetException])
@@ -25,8 +25,9 @@ import scala.concurrent.{ExecutionContext, promise, Promise, Future}
 import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.Clock
 import com.datastax.driver.core._
-import com.google.common.util.concurrent.{FutureCallback, Futures}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
 import org.slf4j.{Logger, LoggerFactory}
 
 import org.midonet.cassandra.CassandraClient
@@ -124,6 +125,11 @@ object FlowStateStorage {
             transportPort = r.getInt("translatePort"))
 
     def apply(client: CassandraClient): FlowStateStorage = new FlowStateStorageImpl(client)
+
+    def apply(client: CassandraClient, clock: Clock, refreshWindow: Duration,
+              maxWritesPerSecond: Int): FlowStateStorage =
+        new CoalescingFlowStateStorage(new FlowStateStorageImpl(client), clock,
+                                       refreshWindow, maxWritesPerSecond)
 }
 
 trait FlowStateStorage {
@@ -139,6 +145,33 @@ trait FlowStateStorage {
     def fetchWeakNatRefs(portId: UUID)
         (implicit ec: ExecutionContext, as: ActorSystem): Future[JMap[NatKey, NatBinding]]
 
+    /**
+     * Fetches the conntrack keys for which a port is ingress, if strong is
+     * true, or egress, in pages of up to pageSize keys. Every page is handed
+     * to onPage as soon as it arrives, and the returned future completes
+     * with the total number of keys once the last page has been handed over.
+     *
+     * Storages that can't fetch keys in pages hand over a single page.
+     */
+    def streamConnTrackRefs(portId: UUID, strong: Boolean, pageSize: Int)
+                           (onPage: JSet[ConnTrackKey] => Unit)
+                           (implicit ec: ExecutionContext, as: ActorSystem): Future[Int] = {
+        val keys = if (strong) fetchStrongConnTrackRefs(portId)
+                   else fetchWeakConnTrackRefs(portId)
+        keys map { k => onPage(k); k.size }
+    }
+
+    /**
+     * Same as streamConnTrackRefs(), for NAT keys and their bindings.
+     */
+    def streamNatRefs(portId: UUID, strong: Boolean, pageSize: Int)
+                     (onPage: JMap[NatKey, NatBinding] => Unit)
+                     (implicit ec: ExecutionContext, as: ActorSystem): Future[Int] = {
+        val bindings = if (strong) fetchStrongNatRefs(portId)
+                       else fetchWeakNatRefs(portId)
+        bindings map { b => onPage(b); b.size }
+    }
+
     def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID, weakRefs: JIterator[UUID])
     def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID, weakRefs: JIterator[UUID])
 
@@ -153,7 +186,8 @@ trait FlowStateStorage {
  * state keys from Cassandra should get its own instance. The only reason it
  * is not thread safe is because write operations are batched, a batch is
  * prepared by a series of touch*() method calls and it's then fired
- * by invoking submit.
+ * by invoking submit. Batches that grow past MAX_BATCH_STATEMENTS are fired
+ * before submit is called.
  *
  * All operations are asynchronous, submit is meant to be fire-and-forget with
  * no error control and for this reason, returns Unit.
@@ -163,7 +197,15 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
 
     import FlowStateStorage._
 
-    var batch: BatchStatement = new BatchStatement()
+    /* Every row is a partition of its own, so there is nothing to gain from
+     * the atomicity of logged batches. Unlogged batches skip the batch log,
+     * and they are capped so that no coordinator gets a huge batch to split
+     * among the replicas of the rows in it.
+     */
+    val MAX_BATCH_STATEMENTS = 64
+
+    var batch: BatchStatement = newBatch()
+    private var batchSize = 0
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
 
     class Prepared(query: String) {
@@ -237,9 +279,9 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
             if (strongRef ne null)
-                batch.add(bind(touchIngressConnTrack(s), strongRef, k))
+                add(s, bind(touchIngressConnTrack(s), strongRef, k))
             while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressConnTrack(s), weakRefs.next(), k))
+                add(s, bind(touchEgressConnTrack(s), weakRefs.next(), k))
             }
     }
 
@@ -255,21 +297,34 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
             if (strongRef ne null)
-                batch.add(bind(touchIngressNat(s), strongRef, k, v))
+                add(s, bind(touchIngressNat(s), strongRef, k, v))
             while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressNat(s), weakRefs.next(), k, v))
+                add(s, bind(touchEgressNat(s), weakRefs.next(), k, v))
             }
     }
 
+    private def newBatch() = new BatchStatement(BatchStatement.Type.UNLOGGED)
+
+    private def add(s: Session, st: Statement): Unit = {
+        batch.add(st)
+        batchSize += 1
+        if (batchSize >= MAX_BATCH_STATEMENTS)
+            send(s)
+    }
+
+    private def send(s: Session): Unit = {
+        val result = s.executeAsync(batch)
+        Futures.addCallback(result, touchCallback)
+        batch = newBatch()
+        batchSize = 0
+    }
+
     /**
      * Sends all state accumulated through touchConnTrackKey() and touchNatKey()
      * to Cassandra, asynchronously. Errors will be logged but ignored.
      */
     override def submit(): Unit = withSession {
-        s =>
-            val result = s.executeAsync(batch)
-            Futures.addCallback(result, touchCallback)
-            batch = new BatchStatement()
+        s => if (batchSize > 0) send(s)
     }
 
     /**
@@ -296,6 +351,43 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     override def fetchWeakNatRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
         fetch(fetchEgressNat, port, resultSetToNatBindings)
 
+    /**
+     * Streams the conntrack keys for which a given port is ingress or egress,
+     * reading them from Cassandra in pages of pageSize rows.
+     */
+    override def streamConnTrackRefs(port: UUID, strong: Boolean, pageSize: Int)
+                                    (onPage: JSet[ConnTrackKey] => Unit)
+                                    (implicit ec: ExecutionContext, as: ActorSystem) =
+        stream(if (strong) fetchIngressConnTrack else fetchEgressConnTrack,
+               port, pageSize) { (rs, rows) =>
+            val keys = new JHashSet[ConnTrackKey]()
+            var i = 0
+            while (i < rows) {
+                keys.add(rowToConnTrack(rs.one()))
+                i += 1
+            }
+            onPage(keys)
+        }
+
+    /**
+     * Streams the nat keys for which a given port is ingress or egress,
+     * reading them from Cassandra in pages of pageSize rows.
+     */
+    override def streamNatRefs(port: UUID, strong: Boolean, pageSize: Int)
+                              (onPage: JMap[NatKey, NatBinding] => Unit)
+                              (implicit ec: ExecutionContext, as: ActorSystem) =
+        stream(if (strong) fetchIngressNat else fetchEgressNat,
+               port, pageSize) { (rs, rows) =>
+            val bindings = new JHashMap[NatKey, NatBinding]()
+            var i = 0
+            while (i < rows) {
+                val row = rs.one()
+                bindings.put(rowToNatKey(row), rowToNatBinding(row))
+                i += 1
+            }
+            onPage(bindings)
+        }
+
     private def resultSetToConnTrackKeys(rs: ResultSet): JSet[ConnTrackKey] = {
         val keys = new JHashSet[ConnTrackKey]()
         val rows = rs.iterator()
@@ -328,6 +420,32 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         })
     }
 
+    /* Hands the rows of every page to onPage as they arrive, without ever
+     * blocking on the driver to fetch the next page: onPage must consume
+     * exactly the given number of rows, which are already in memory.
+     */
+    private def stream(statement: Prepared, portId: UUID, pageSize: Int)
+                      (onPage: (ResultSet, Int) => Unit)
+                      (implicit ec: ExecutionContext, as: ActorSystem): Future[Int] = {
+        def drain(rs: ResultSet, count: Int): Future[Int] = {
+            val rows = rs.getAvailableWithoutFetching
+            if (rows > 0)
+                onPage(rs, rows)
+            if (rs.isFullyFetched)
+                Future.successful(count + rows)
+            else
+                toScalaFuture(rs.fetchMoreResults()) flatMap {
+                    _ => drain(rs, count + rows)
+                }
+        }
+
+        peelResult (withSession { s =>
+            val st = statement(s).bind(portId)
+            st.setFetchSize(pageSize)
+            toScalaFuture(s.executeAsync(st)) flatMap { rs => drain(rs, 0) }
+        })
+    }
+
     private val touchCallback = new FutureCallback[ResultSet] {
         override def onSuccess(result: ResultSet): Unit = {
             log.debug("key touch success: {}", result)
@@ -338,13 +456,13 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         }
     }
 
-    private def toScalaFuture(f: ResultSetFuture)
+    private def toScalaFuture[T](f: ListenableFuture[T])
             (implicit ec: ExecutionContext,
-                      as: ActorSystem): Future[ResultSet] = {
+                      as: ActorSystem): Future[T] = {
 
-        val p: Promise[ResultSet] = promise[ResultSet]()
-        Futures.addCallback(f, new FutureCallback[ResultSet](){
-            override def onSuccess(result: ResultSet): Unit = {
+        val p: Promise[T] = promise[T]()
+        Futures.addCallback(f, new FutureCallback[T](){
+            override def onSuccess(result: T): Unit = {
                 p.success(result)
             }
 
@@ -23,7 +23,7 @@ import org.midonet.packets.{IPv4Addr, MAC}
 import scala.collection.JavaConversions._
 
 class Ip4ToMacReplicatedMap(dir: Directory)
-    extends ReplicatedMap[IPv4Addr, MAC](dir)
+    extends ReplicatedMap[IPv4Addr, MAC](dir, true, true)
 {
     protected def encodeKey(key: IPv4Addr): String = key.toString
     protected def decodeKey(str: String): IPv4Addr = IPv4Addr.fromString(str)
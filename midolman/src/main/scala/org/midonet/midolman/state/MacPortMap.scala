@@ -22,7 +22,7 @@ import org.midonet.packets.MAC
 import scala.collection.JavaConversions._
 
 class MacPortMap(dir: Directory, ephemeral: Boolean)
-        extends ReplicatedMap[MAC, UUID](dir, ephemeral) {
+        extends ReplicatedMap[MAC, UUID](dir, ephemeral, true) {
     def this(dir: Directory) {
         // By default, Mac-port entries are ephemeral entries.
         this(dir, true)
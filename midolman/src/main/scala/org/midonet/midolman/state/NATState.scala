@@ -26,7 +26,7 @@ import org.midonet.midolman.rules.NatTarget
 import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.packets.{IPv4Addr, IPv4, ICMP, TCP, UDP}
 import org.midonet.sdn.flows.WildcardMatch
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateCodec, FlowStateTransaction}
 import org.midonet.util.functors.Callback0
 
 object NatState {
@@ -158,6 +158,43 @@ object NatState {
     }
 
     case class NatBinding(var networkAddress: IPv4Addr, var transportPort: Int)
+
+    /**
+     * Encodes NatKeys and NatBindings for the OffHeapFlowStateTable.
+     */
+    object NatCodec extends FlowStateCodec[NatKey, NatBinding] {
+        private val keyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT, FWD_STICKY_DNAT,
+                                              REV_SNAT, REV_DNAT, REV_STICKY_DNAT)
+
+        override def keyWords = 5
+
+        override def encodeKey(k: NatKey, words: Array[Long]): Unit = {
+            words(0) = (k.networkSrc.toInt.toLong << 32) |
+                       (k.networkDst.toInt & 0xffffffffL)
+            words(1) = (k.transportSrc.toLong << 32) |
+                       (k.transportDst & 0xffffffffL)
+            words(2) = (keyTypes.indexOf(k.keyType).toLong << 8) |
+                       (k.networkProtocol & 0xffL)
+            words(3) = k.deviceId.getMostSignificantBits
+            words(4) = k.deviceId.getLeastSignificantBits
+        }
+
+        override def decodeKey(words: Array[Long]): NatKey =
+            NatKey(keyTypes((words(2) >>> 8).toInt),
+                   new IPv4Addr((words(0) >>> 32).toInt),
+                   (words(1) >>> 32).toInt,
+                   new IPv4Addr(words(0).toInt),
+                   words(1).toInt,
+                   words(2).toByte,
+                   new UUID(words(3), words(4)))
+
+        override def encodeValue(v: NatBinding): Long =
+            (v.networkAddress.toInt.toLong << 32) |
+            (v.transportPort & 0xffffffffL)
+
+        override def decodeValue(v: Long): NatBinding =
+            NatBinding(new IPv4Addr((v >>> 32).toInt), v.toInt)
+    }
 }
 
 trait NatState extends FlowState {
@@ -19,8 +19,9 @@ package org.midonet.midolman.state
 import java.lang.{Long => JLong}
 import java.util.UUID
 import java.util.concurrent.{TimeoutException, ThreadLocalRandom, ConcurrentHashMap}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
 
-import scala.concurrent.{Promise, Future}
+import scala.concurrent.{ExecutionContext, Promise, Future}
 import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
@@ -31,7 +32,7 @@ import org.midonet.midolman.rules.NatTarget
 import org.midonet.midolman.state.NatState.NatBinding
 import org.midonet.packets.{IPAddr, IPv4Addr}
 import org.midonet.util.functors.Callback
-import org.midonet.util.concurrent.TimedExpirationMap
+import org.midonet.util.concurrent._
 import org.midonet.util.collection.Reducer
 
 object NatLeaser {
@@ -50,22 +51,77 @@ object NatLeaser {
 
     /**
      * This type represents a block of BLOCK_SIZE ports. Each port, identified
-     * by the NatBlock's tpPortStart plus the offset given by the position in
-     * the leasedPorts array, can be oversubscribed based on a unique number,
-     * a combination of the destination IP and port.
+     * by the NatBlock's tpPortStart plus an offset, can be oversubscribed
+     * based on a unique number, a combination of the destination IP and port.
+     * The ports bound for each unique number are kept in a bitmap of the
+     * port offsets, so that finding a free port takes a few bit operations
+     * regardless of how many ports of the block are in use.
      * It also holds a port index to enable round-robin allocation
-     * of the ports in the block.
+     * of the ports in the block, and counts the bindings of all its ports
+     * to tell when to lease another block ahead of time.
      */
     sealed class LeasedBlock(val block: NatBlock) {
-        val leasedPorts = new Array[ConcurrentHashMap[JLong, AnyRef]](BLOCK_SIZE)
+        val leasedPorts = new ConcurrentHashMap[JLong, JLong]()
         var portIndex = ThreadLocalRandom.current().nextLong()
+        val bindings = new AtomicInteger()
+        val preLeased = new AtomicBoolean()
+
+        /**
+         * Binds the first port, starting at the port index, with an offset
+         * in [firstOffset, lastOffset] that isn't yet bound for the specified
+         * unique number. Returns the port offset, or -1 if all of the ports
+         * in that range are taken. Thread-safe for concurrent callers.
+         */
+        def acquire(uniquefier: Long, firstOffset: Int, lastOffset: Int): Int = {
+            val range = (-1L >>> (BLOCK_MASK - lastOffset + firstOffset)) << firstOffset
+            while (true) {
+                val taken = leasedPorts.get(uniquefier)
+                val free = if (taken eq null) range else ~taken.longValue & range
+                if (free == 0)
+                    return -1
+
+                val start = portIndex.toInt & BLOCK_MASK
+                val distance = JLong.numberOfTrailingZeros(JLong.rotateRight(free, start))
+                val offset = (start + distance) & BLOCK_MASK
+                val bit = 1L << offset
+                val bound =
+                    if (taken eq null)
+                        leasedPorts.putIfAbsent(uniquefier, bit) eq null
+                    else
+                        leasedPorts.replace(uniquefier, taken, taken.longValue | bit)
+                if (bound) {
+                    portIndex += distance + 31
+                    bindings.incrementAndGet()
+                    return offset
+                }
+            }
+            -1
+        }
 
-        {
-            var i = 0
-            while (i < BLOCK_SIZE) {
-                leasedPorts(i) = new ConcurrentHashMap[JLong, AnyRef]
-                i += 1
+        /**
+         * Unbinds the port with the specified offset for the specified unique
+         * number. Returns whether the port was bound. Thread-safe for
+         * concurrent callers.
+         */
+        def release(offset: Int, uniquefier: Long): Boolean = {
+            val bit = 1L << offset
+            while (true) {
+                val taken = leasedPorts.get(uniquefier)
+                if ((taken eq null) || (taken.longValue & bit) == 0)
+                    return false
+
+                val left = taken.longValue & ~bit
+                val unbound =
+                    if (left == 0)
+                        leasedPorts.remove(uniquefier, taken)
+                    else
+                        leasedPorts.replace(uniquefier, taken, left)
+                if (unbound) {
+                    bindings.decrementAndGet()
+                    return true
+                }
             }
+            false
         }
     }
 
@@ -109,6 +165,16 @@ trait NatLeaser {
     val log: Logger
     val allocator: NatBlockAllocator
     val clock: Clock
+
+    /**
+     * The share of the ports of a leased block, in percent, that can be bound
+     * before another block is leased ahead of time, so that the bindings that
+     * don't fit in the block don't have to wait for one. Bindings to different
+     * destinations can share a port, so the bindings of a block overestimate
+     * the ports used by any one destination, and the block is pre-leased
+     * early rather than late. 0 disables pre-leasing.
+     */
+    def preLeasePercent: Int = 0
     private val deviceLeases = new DeviceLeases
     private var lastObliterated = 0L
 
@@ -130,7 +196,8 @@ trait NatLeaser {
             var ip = target.nwStart
             while (ip <= target.nwEnd) {
                 val leasedBlocks = getLeasedBlocks(deviceId, ip)
-                val binding = allocateInPortRange(leasedBlocks, uniquefier, ip,
+                val binding = allocateInPortRange(deviceId, natTargets,
+                                                  leasedBlocks, uniquefier, ip,
                                                   target.tpStart, target.tpEnd)
                 if (binding ne null) {
                     return binding
@@ -157,7 +224,7 @@ trait NatLeaser {
         val leasedBlock = leasedBlocks.unref(blockOf(binding.transportPort), clock.getTick)
         val portOffset = binding.transportPort - leasedBlock.block.tpPortStart
         val uniquefier = blend(destinationIp, destinationPort)
-        leasedBlock.leasedPorts(portOffset).remove(uniquefier)
+        leasedBlock.release(portOffset, uniquefier)
     }
 
     val blockObliterator = new Reducer[JLong, LeasedBlock, NatBlockAllocator]() {
@@ -190,7 +257,8 @@ trait NatLeaser {
         }
     }
 
-    private def allocateInPortRange(leasedBlocks: LeasedBlocks, uniquefier: Long,
+    private def allocateInPortRange(deviceId: UUID, natTargets: Array[NatTarget],
+                                    leasedBlocks: LeasedBlocks, uniquefier: Long,
                                     targetIp: IPv4Addr, targetPortStart: Int,
                                     targetPortEnd: Int): NatBinding = {
         var port = targetPortStart
@@ -203,6 +271,8 @@ trait NatLeaser {
                 val binding = allocateInPortBlock(leasedBlock, uniquefier,
                                                   targetIp, port, endPort)
                 if (binding ne null) {
+                    maybePreLease(deviceId, natTargets, leasedBlock,
+                                  endPort - port + 1)
                     return binding
                 }
 
@@ -216,22 +286,30 @@ trait NatLeaser {
     private def allocateInPortBlock(lease: LeasedBlock, uniquefier: Long,
                                     ip: IPv4Addr, tpStart: Int, tpEnd: Int)
     : NatBinding = {
-        val index = lease.portIndex
         val firstPortInBlock = lease.block.tpPortStart
-        var i = 0
-        while (i < BLOCK_SIZE) { // Search all ports
-            val portOffset = (index + i).toInt & BLOCK_MASK
-            val port = firstPortInBlock + portOffset
-            if (port >= tpStart && port <= tpEnd) {
-                val sharedBinding = lease.leasedPorts(portOffset)
-                if (sharedBinding.putIfAbsent(uniquefier, this) eq null) {
-                    lease.portIndex += i + 31
-                    return NatBinding(ip, port)
-                }
-            }
-            i += 1
+        val portOffset = lease.acquire(uniquefier, tpStart - firstPortInBlock,
+                                       tpEnd - firstPortInBlock)
+        if (portOffset >= 0) NatBinding(ip, firstPortInBlock + portOffset)
+        else null
+    }
+
+    /**
+     * Leases another block for the NAT targets once the bindings of a block
+     * exceed the pre-leasing threshold, given the number of ports of the
+     * block that are within the target range. Each block triggers at most
+     * one pre-lease, and the new block expires if it's not used.
+     */
+    private def maybePreLease(deviceId: UUID, natTargets: Array[NatTarget],
+                              lease: LeasedBlock, ports: Int): Unit = {
+        val threshold = preLeasePercent
+        if (threshold > 0 && lease.bindings.get * 100 >= threshold * ports &&
+            lease.preLeased.compareAndSet(false, true)) {
+            log.debug("Leasing a NAT block ahead of time, {} is {}% bound",
+                      lease.block, Int.box(lease.bindings.get * 100 / ports))
+            fetchNatBlock(deviceId, natTargets).onFailure { case e =>
+                log.debug("Failed to lease a NAT block ahead of time", e)
+            }(ExecutionContext.callingThread)
         }
-        null
     }
 
     private def fetchNatBlock(deviceId: UUID,
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.{ArrayList, Arrays}
+
+import scala.collection.{Set => ROSet, mutable}
+
+import org.midonet.sdn.flows.FlowTagger.{FlowTag, NO_TAG_ID}
+
+object FlowTagIndex {
+    private final val NIL = -1
+}
+
+/**
+ * An index of the wildcard flows by the tags they are tagged with. The flows
+ * of each tag form an intrusive doubly linked list, made of one link for each
+ * flow and tag. The links live in primitive arrays and the lists are indexed
+ * by the dense tag ids assigned by the FlowTagger, so that indexing, removing
+ * and invalidating flows don't hash any tags nor allocate set entries.
+ *
+ * Not thread-safe.
+ */
+class FlowTagIndex(initialCapacity: Int = 1024) {
+    import FlowTagIndex.NIL
+
+    private var heads = newLinkArray(initialCapacity)
+
+    private var linkFlows = new Array[ManagedWildcardFlow](initialCapacity)
+    private var linkTags = new Array[Int](initialCapacity)
+    private var nextLinks = new Array[Int](initialCapacity)
+    private var prevLinks = new Array[Int](initialCapacity)
+    private var numLinks = 0
+    private var freeLinks = NIL
+
+    private val taggedFlows = new ArrayList[ManagedWildcardFlow]()
+
+    /**
+     * Indexes the specified flow under each of its tags.
+     */
+    def add(flow: ManagedWildcardFlow): Unit = {
+        val tags = flow.tags
+        if (tags eq null)
+            return
+
+        val links = new Array[Int](tags.length)
+        var i = 0
+        while (i < tags.length) {
+            links(i) = link(FlowTagger.acquireTagId(tags(i)), flow)
+            i += 1
+        }
+        flow.tagLinks = links
+    }
+
+    /**
+     * Removes the specified flow from the lists of all of its tags.
+     */
+    def remove(flow: ManagedWildcardFlow): Unit = {
+        val links = flow.tagLinks
+        if (links eq null)
+            return
+
+        var i = 0
+        while (i < links.length) {
+            unlink(links(i))
+            i += 1
+        }
+        flow.tagLinks = null
+    }
+
+    /**
+     * Returns the flows tagged with the specified tag. The returned list is
+     * reused by each call and stays valid until the next one.
+     */
+    def flowsTaggedWith(tag: FlowTag): ArrayList[ManagedWildcardFlow] = {
+        taggedFlows.clear()
+        val id = FlowTagger.tagIdOf(tag)
+        if (id != NO_TAG_ID && id < heads.length) {
+            var link = heads(id)
+            while (link != NIL) {
+                taggedFlows.add(linkFlows(link))
+                link = nextLinks(link)
+            }
+        }
+        taggedFlows
+    }
+
+    /**
+     * Returns a copy of the flows tagged with the specified tag, if any, to
+     * inspect the index.
+     */
+    def get(tag: FlowTag): Option[ROSet[ManagedWildcardFlow]] = {
+        val flows = flowsTaggedWith(tag)
+        if (flows.isEmpty) {
+            None
+        } else {
+            val set = mutable.Set[ManagedWildcardFlow]()
+            var i = 0
+            while (i < flows.size) {
+                set += flows.get(i)
+                i += 1
+            }
+            flows.clear()
+            Some(set)
+        }
+    }
+
+    private def link(tagId: Int, flow: ManagedWildcardFlow): Int = {
+        if (tagId >= heads.length) {
+            val length = heads.length
+            heads = Arrays.copyOf(heads, Math.max(tagId + 1, length * 2))
+            Arrays.fill(heads, length, heads.length, NIL)
+        }
+
+        val link = newLink()
+        val head = heads(tagId)
+        linkFlows(link) = flow
+        linkTags(link) = tagId
+        nextLinks(link) = head
+        prevLinks(link) = NIL
+        if (head != NIL)
+            prevLinks(head) = link
+        heads(tagId) = link
+        link
+    }
+
+    private def unlink(link: Int): Unit = {
+        val tagId = linkTags(link)
+        val next = nextLinks(link)
+        val prev = prevLinks(link)
+        if (prev == NIL)
+            heads(tagId) = next
+        else
+            nextLinks(prev) = next
+        if (next != NIL)
+            prevLinks(next) = prev
+
+        linkFlows(link) = null
+        nextLinks(link) = freeLinks
+        freeLinks = link
+        FlowTagger.releaseTagId(tagId)
+    }
+
+    private def newLink(): Int = {
+        if (freeLinks != NIL) {
+            val link = freeLinks
+            freeLinks = nextLinks(link)
+            return link
+        }
+
+        if (numLinks == linkFlows.length) {
+            val length = Math.max(1, numLinks * 2)
+            linkFlows = Arrays.copyOf(linkFlows, length)
+            linkTags = Arrays.copyOf(linkTags, length)
+            nextLinks = Arrays.copyOf(nextLinks, length)
+            prevLinks = Arrays.copyOf(prevLinks, length)
+        }
+        numLinks += 1
+        numLinks - 1
+    }
+
+    private def newLinkArray(length: Int): Array[Int] = {
+        val links = new Array[Int](length)
+        Arrays.fill(links, NIL)
+        links
+    }
+}
@@ -16,14 +16,95 @@
 
 package org.midonet.sdn.flows
 
-import java.util.{UUID, WeakHashMap}
+import java.util.{Arrays => JArrays, HashMap => JHashMap, UUID, WeakHashMap}
 import java.lang.ref.WeakReference
 
 import org.midonet.packets.{IPAddr, MAC}
 import org.midonet.midolman.layer3.Route
 
 object FlowTagger {
-    trait FlowTag
+    trait FlowTag {
+        // The id last assigned to this instance, which is valid as long as
+        // it is still assigned to an equal tag. Guarded by FlowTagger.
+        private[flows] var cachedId = NO_TAG_ID
+    }
+
+    final val NO_TAG_ID = -1
+
+    private val tagIds = new JHashMap[FlowTag, Integer]()
+    private var tagsById = new Array[FlowTag](1024)
+    private var tagIdRefs = new Array[Int](1024)
+    private var freeTagIds = new Array[Int](1024)
+    private var numFreeTagIds = 0
+    private var nextTagId = 0
+
+    /**
+     * Returns the dense id of the specified tag, assigning one if no equal
+     * tag has an id, and takes a reference to it. Ids are assigned while
+     * they are referenced and are then reused for other tags, so that they
+     * can index arrays of the tags in use. Thread-safe for concurrent callers.
+     */
+    def acquireTagId(tag: FlowTag): Int = synchronized {
+        var id = tagIdOf(tag)
+        if (id == NO_TAG_ID) {
+            id = if (numFreeTagIds > 0) {
+                numFreeTagIds -= 1
+                freeTagIds(numFreeTagIds)
+            } else {
+                newTagId()
+            }
+            tagIds.put(tag, id)
+            tagsById(id) = tag
+            tag.cachedId = id
+        }
+        tagIdRefs(id) += 1
+        id
+    }
+
+    /**
+     * Releases a reference to the specified tag id, which becomes free to
+     * be assigned to another tag once it's no longer referenced.
+     */
+    def releaseTagId(id: Int): Unit = synchronized {
+        tagIdRefs(id) -= 1
+        if (tagIdRefs(id) == 0) {
+            tagIds.remove(tagsById(id))
+            tagsById(id) = null
+            if (numFreeTagIds == freeTagIds.length)
+                freeTagIds = JArrays.copyOf(freeTagIds, freeTagIds.length * 2)
+            freeTagIds(numFreeTagIds) = id
+            numFreeTagIds += 1
+        }
+    }
+
+    /**
+     * Returns the id currently assigned to the specified tag, or NO_TAG_ID
+     * if it has none. Only hashes the tag if the id cached by the instance
+     * is no longer assigned to it.
+     */
+    def tagIdOf(tag: FlowTag): Int = synchronized {
+        val cachedId = tag.cachedId
+        if (cachedId != NO_TAG_ID && tag == tagsById(cachedId)) {
+            cachedId
+        } else {
+            val id = tagIds.get(tag)
+            if (id eq null) {
+                NO_TAG_ID
+            } else {
+                tag.cachedId = id.intValue
+                id.intValue
+            }
+        }
+    }
+
+    private def newTagId(): Int = {
+        if (nextTagId == tagsById.length) {
+            tagsById = JArrays.copyOf(tagsById, nextTagId * 2)
+            tagIdRefs = JArrays.copyOf(tagIdRefs, nextTagId * 2)
+        }
+        nextTagId += 1
+        nextTagId - 1
+    }
 
     /**
      * Marker interface used to distinguish flow state tags from normal
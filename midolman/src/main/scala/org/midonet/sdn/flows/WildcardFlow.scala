@@ -24,7 +24,7 @@ import org.apache.commons.lang.builder.HashCodeBuilder
 import org.midonet.odp.FlowMatch
 import org.midonet.odp.flows.FlowAction
 import org.midonet.sdn.flows.FlowTagger.FlowTag
-import org.midonet.util.collection.{WeakObjectPool, ObjectPool, PooledObject}
+import org.midonet.util.collection.{WeakObjectPool, ObjectPool, PooledObject, TimingWheel}
 import org.midonet.util.functors.Callback0
 
 object WildcardFlow {
@@ -167,7 +167,11 @@ class ManagedWildcardFlow(override val pool: ObjectPool[ManagedWildcardFlow])
     var lastUsedTimeMillis: Long = 0L
     var callbacks: Array[Callback0] = null
     var tags: Array[FlowTag] = null
+    // The links of this flow in the FlowTagIndex, one for each tag.
+    var tagLinks: Array[Int] = null
     val dpFlows = new java.util.HashSet[FlowMatch](4)
+    // Schedules the expiration of the flow in the FlowManager.
+    val expirationTimer = new TimingWheel.Timer[ManagedWildcardFlow](this)
 
     val wcmatch = new WildcardMatch()
     var actions: List[FlowAction] = Nil
@@ -194,6 +198,7 @@ class ManagedWildcardFlow(override val pool: ObjectPool[ManagedWildcardFlow])
         this.actions = Nil
         this.callbacks = null
         this.tags = null
+        this.tagLinks = null
         this.dpFlows.clear()
         cachedHashCode = INVALID_HASH_CODE
     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.state;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.midonet.packets.MAC;
+
+/**
+ * Measures how long a MAC table with a large number of entries takes to
+ * process a single entry being learned and then forgotten by another host,
+ * when it rebuilds the whole map on every change and when it syncs
+ * incrementally.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplicatedMapBenchmark {
+
+    static class MacTable extends ReplicatedMap<MAC, UUID> {
+        MacTable(Directory dir, boolean incremental) {
+            super(dir, true, incremental);
+        }
+
+        @Override
+        protected String encodeKey(MAC key) {
+            return key.toString();
+        }
+
+        @Override
+        protected MAC decodeKey(String str) {
+            return MAC.fromString(str);
+        }
+
+        @Override
+        protected String encodeValue(UUID value) {
+            return value.toString();
+        }
+
+        @Override
+        protected UUID decodeValue(String str) {
+            return UUID.fromString(str);
+        }
+    }
+
+    @Param({"50000"})
+    public int entries;
+
+    @Param({"false", "true"})
+    public boolean incremental;
+
+    private Directory dir;
+    private MacTable map;
+    private String learnedPath;
+
+    @Setup
+    public void setup() throws Exception {
+        MockDirectory root = new MockDirectory();
+        root.add("/macs", null, CreateMode.PERSISTENT);
+        dir = root.getSubDirectory("/macs");
+        UUID port = UUID.randomUUID();
+        for (int i = 0; i < entries; i++) {
+            dir.add(ReplicatedMap.encodePathPrefix(MAC.random().toString(),
+                                                   port.toString()),
+                    null, CreateMode.PERSISTENT_SEQUENTIAL);
+        }
+        learnedPath = ReplicatedMap.encodePathPrefix(MAC.random().toString(),
+                                                     port.toString());
+        map = new MacTable(dir, incremental);
+        map.start();
+    }
+
+    @TearDown
+    public void teardown() {
+        map.stop();
+    }
+
+    @Benchmark
+    public UUID learnAndForget() throws Exception {
+        String path = dir.add(learnedPath, null,
+                              CreateMode.PERSISTENT_SEQUENTIAL);
+        dir.delete(path);
+        return map.get(MAC.fromString("00:00:00:00:00:00"));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.codahale.metrics.Clock
+import com.typesafe.scalalogging.Logger
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.rules.NatTarget
+import org.midonet.midolman.state.{NatBlock, NatRange, NatBlockAllocator, NatLeaser}
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.MockClock
+import org.midonet.util.functors.Callback
+
+/**
+ * Measures allocating and freeing a NatBinding for a destination that
+ * already has 90% of the ports of the only leased block bound to it.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(5)
+@State(Scope.Benchmark)
+class NatLeaserBenchmark {
+
+    val deviceId = UUID.randomUUID()
+    val natIp = IPv4Addr("10.0.1.1")
+    val natTarget = new NatTarget(natIp.addr, natIp.addr, 0,
+                                  NatBlock.BLOCK_SIZE - 1)
+    val natTargets = Array(natTarget)
+    val dstIp = IPv4Addr("192.168.0.1")
+    val dstPort = 80
+
+    val natLeaser = new NatLeaser {
+        override val log = Logger(NOPLogger.NOP_LOGGER)
+        override val clock: Clock = new MockClock()
+        override val allocator = new NatBlockAllocator {
+            override def allocateBlockInRange(natRange: NatRange,
+                                              callback: Callback[NatBlock, Exception]): Unit =
+                callback.onSuccess(new NatBlock(natRange.deviceId, natRange.ip, 0))
+
+            override def freeBlock(natBlock: NatBlock): Unit = { }
+        }
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        try {
+            natLeaser.allocateNatBinding(deviceId, dstIp, dstPort, natTargets)
+        } catch { case _: NotYetException => }
+
+        val boundPorts = NatBlock.BLOCK_SIZE * 9 / 10
+        var i = 0
+        while (i < boundPorts) {
+            natLeaser.allocateNatBinding(deviceId, dstIp, dstPort, natTargets)
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def benchmarkAllocateAndFree(bh: Blackhole): Unit = {
+        val binding = natLeaser.allocateNatBinding(deviceId, dstIp, dstPort,
+                                                   natTargets)
+        natLeaser.freeNatBinding(deviceId, dstIp, dstPort, binding)
+        bh.consume(binding)
+    }
+}
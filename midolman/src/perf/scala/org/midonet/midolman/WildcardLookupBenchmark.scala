@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.EnumSet
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode, Param}
+
+import org.midonet.midolman.flows.PriorityOrderedWildcardTables
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.sdn.flows.{WildcardFlow, ManagedWildcardFlow, WildcardMatch}
+
+object WildcardLookupBenchmark {
+    val flowsPerPattern = 1000
+    val numMatches = 1024
+}
+
+/**
+ * Measures the cost of a wildcard flow table lookup as the number of distinct
+ * wildcard patterns grows. Half of the queried matches hit a flow in some
+ * table, the other half miss every table.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Thread)
+class WildcardLookupBenchmark {
+    import WildcardLookupBenchmark._
+
+    @Param(Array("1", "5", "10", "20", "40"))
+    var numPatterns: Int = _
+
+    val tables = new PriorityOrderedWildcardTables()
+    val matches = new Array[WildcardMatch](numMatches)
+    var index = 0
+
+    val fields = Array(WildcardMatch.Field.InputPortNumber,
+                       WildcardMatch.Field.EthSrc,
+                       WildcardMatch.Field.EthDst,
+                       WildcardMatch.Field.EtherType,
+                       WildcardMatch.Field.NetworkSrc,
+                       WildcardMatch.Field.NetworkDst,
+                       WildcardMatch.Field.NetworkProto,
+                       WildcardMatch.Field.SrcPort,
+                       WildcardMatch.Field.DstPort)
+
+    def randomMatch(rand: Random) = new WildcardMatch()
+        .setInputPortNumber(rand.nextInt(16).toShort)
+        .setEthSrc(MAC.random())
+        .setEthDst(MAC.random())
+        .setEtherType(0x0800.toShort)
+        .setNetworkSrc(IPv4Addr.random)
+        .setNetworkDst(IPv4Addr.random)
+        .setNetworkProto(6.toByte)
+        .setSrcPort(rand.nextInt(65536))
+        .setDstPort(rand.nextInt(65536))
+
+    def project(source: WildcardMatch, pattern: Int): WildcardMatch = {
+        val fieldSet = EnumSet.noneOf(classOf[WildcardMatch.Field])
+        for (i <- 0 until fields.length if (pattern & (1 << i)) != 0)
+            fieldSet.add(fields(i))
+        val projected = new WildcardMatch()
+        source.projectInto(fieldSet, projected)
+        projected
+    }
+
+    def add(wcMatch: WildcardMatch, priority: Short) {
+        val flow = ManagedWildcardFlow.create(
+            WildcardFlow(wcMatch, priority = priority))
+        val pattern = EnumSet.copyOf(flow.getMatch.getUsedFields)
+        tables.addTable(pattern).put(flow.wcmatch, flow)
+    }
+
+    @JmhSetup
+    def setup() {
+        val rand = new Random(numPatterns)
+        val patterns = rand.shuffle((1 until (1 << fields.length)).toList)
+                           .take(numPatterns).toArray
+        for (i <- 0 until numPatterns; j <- 0 until flowsPerPattern) {
+            add(project(randomMatch(rand), patterns(i)),
+                rand.nextInt(numPatterns).toShort)
+        }
+        for (i <- 0 until numMatches) {
+            matches(i) = randomMatch(rand)
+            if (i % 2 == 0) {
+                val pattern = patterns(rand.nextInt(numPatterns))
+                add(project(matches(i), pattern),
+                    rand.nextInt(numPatterns).toShort)
+            }
+        }
+    }
+
+    @Benchmark
+    def lookup(): ManagedWildcardFlow = {
+        index = (index + 1) & (numMatches - 1)
+        tables.lookup(matches(index))
+    }
+}
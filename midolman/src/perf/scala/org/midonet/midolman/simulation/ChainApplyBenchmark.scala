@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import akka.actor.ActorSystem
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.midolman.rules.{JumpRule, LiteralRule, Condition, Rule}
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.sdn.flows.WildcardMatch
+
+/**
+ * Applies the chains a packet typically goes through when it is simulated
+ * across a bridge: the ingress port filter, the device's inbound chain, which
+ * jumps to a security group chain, and the egress port filter.
+ *
+ * Run it with the GC profiler to see the allocation per simulated packet,
+ * e.g.: ./gradlew :midolman:benchmarks '-Pjmh=.*ChainApply.* -prof gc'
+ * and compare gc.alloc.rate.norm against a build of the parent revision.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(3)
+@State(Scope.Thread)
+class ChainApplyBenchmark {
+
+    implicit var actorSystem: ActorSystem = _
+
+    val ownerId = UUID.randomUUID()
+    var portInFilter: Chain = _
+    var deviceChain: Chain = _
+    var portOutFilter: Chain = _
+    var context: PacketContext = _
+
+    def makeChain(rules: List[Rule], jumpTargets: List[Chain] = Nil) = {
+        val id = UUID.randomUUID()
+        rules.foreach(_.chainId = id)
+        new Chain(id, rules.asJava, jumpTargets.map(c => (c.id, c)).toMap,
+                  "chain-" + id)
+    }
+
+    def portCondition(port: Int) = {
+        val cond = new Condition()
+        cond.nwProto = 6.toByte
+        cond.tpDst = new org.midonet.util.Range[Integer](port)
+        cond
+    }
+
+    @JmhSetup
+    def setup() {
+        actorSystem = ActorSystem("ChainApplyBenchmark")
+
+        val securityGroup = makeChain(
+            (1 to 20).map(p => new LiteralRule(portCondition(p), Action.ACCEPT))
+                     .toList :+ new LiteralRule(Condition.TRUE, Action.DROP))
+        deviceChain = makeChain(
+            List(new LiteralRule(portCondition(22), Action.DROP),
+                 new JumpRule(Condition.TRUE, securityGroup.id,
+                              securityGroup.name, null, 0)),
+            List(securityGroup))
+        portInFilter = makeChain(
+            List(new LiteralRule(Condition.FALSE, Action.DROP)))
+        portOutFilter = makeChain(
+            List(new LiteralRule(Condition.FALSE, Action.DROP)))
+
+        val wcMatch = new WildcardMatch()
+            .setEthSrc(MAC.random())
+            .setEthDst(MAC.random())
+            .setEtherType(0x0800.toShort)
+            .setNetworkSrc(IPv4Addr.random)
+            .setNetworkDst(IPv4Addr.random)
+            .setNetworkProto(6.toByte)
+            .setSrcPort(40000)
+            .setDstPort(15)
+        context = new PacketContext(Left(1), null, None, wcMatch)
+    }
+
+    @TearDown
+    def teardown() {
+        actorSystem.shutdown()
+    }
+
+    @Benchmark
+    def simulatedPacket(): Action = {
+        Chain.apply(portInFilter, context, ownerId, true)
+        Chain.apply(deviceChain, context, ownerId, false)
+        Chain.apply(portOutFilter, context, ownerId, true).action
+    }
+}
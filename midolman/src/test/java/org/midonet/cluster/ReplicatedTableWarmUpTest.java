@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster;
+
+import java.util.Set;
+import java.util.UUID;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.midonet.midolman.state.Directory;
+import org.midonet.midolman.state.DirectoryCallback;
+import org.midonet.midolman.state.MockDirectory;
+import org.midonet.midolman.state.ReplicatedMap;
+import org.midonet.util.eventloop.CallingThreadReactor;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicatedTableWarmUpTest {
+
+    private MetricRegistry registry;
+    private ReplicatedTableWarmUp warmUp;
+    private UUID deviceId = UUID.randomUUID();
+
+    private static class CountingBuild implements Runnable {
+        int runs = 0;
+
+        @Override
+        public void run() {
+            runs++;
+        }
+    }
+
+    private static class StringMap extends ReplicatedMap<String, String> {
+        StringMap(Directory dir) {
+            super(dir, true, true);
+        }
+
+        @Override
+        protected String encodeKey(String key) {
+            return key;
+        }
+
+        @Override
+        protected String decodeKey(String str) {
+            return str;
+        }
+
+        @Override
+        protected String encodeValue(String value) {
+            return value;
+        }
+
+        @Override
+        protected String decodeValue(String str) {
+            return str;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        registry = new MetricRegistry();
+        warmUp = new ReplicatedTableWarmUp(registry, new CallingThreadReactor());
+    }
+
+    private long devicesWarmingUp() {
+        return registry.counter(name(ReplicatedTableWarmUp.class,
+                                     "devicesWarmingUp")).getCount();
+    }
+
+    @Test
+    public void testBuildRunsRightAwayWithoutLoadingTables() {
+        CountingBuild build = new CountingBuild();
+        warmUp.build(deviceId, build);
+        assertEquals(1, build.runs);
+        assertFalse(warmUp.isWarmingUp(deviceId));
+    }
+
+    @Test
+    public void testBuildWaitsForAllTheTables() {
+        Runnable macTableLoaded = warmUp.tableLoading(deviceId);
+        Runnable ip4MacTableLoaded = warmUp.tableLoading(deviceId);
+        assertTrue(warmUp.isWarmingUp(deviceId));
+        assertEquals(1, devicesWarmingUp());
+
+        CountingBuild first = new CountingBuild();
+        CountingBuild last = new CountingBuild();
+        warmUp.build(deviceId, first);
+        warmUp.build(deviceId, last);
+        macTableLoaded.run();
+        assertEquals(0, last.runs);
+        assertTrue(warmUp.isWarmingUp(deviceId));
+
+        ip4MacTableLoaded.run();
+        assertEquals(0, first.runs);
+        assertEquals(1, last.runs);
+        assertFalse(warmUp.isWarmingUp(deviceId));
+        assertEquals(0, devicesWarmingUp());
+        assertEquals(1, registry.timer(name(ReplicatedTableWarmUp.class,
+                                            "deviceWarmUpTime")).getCount());
+        assertEquals(2, registry.timer(name(ReplicatedTableWarmUp.class,
+                                            "tableWarmUpTime")).getCount());
+
+        // Builds after the warm up run right away
+        warmUp.build(deviceId, first);
+        assertEquals(1, first.runs);
+    }
+
+    @Test
+    public void testDevicesWarmUpIndependently() {
+        UUID otherId = UUID.randomUUID();
+        Runnable loaded = warmUp.tableLoading(deviceId);
+        warmUp.tableLoading(otherId);
+        assertEquals(2, devicesWarmingUp());
+
+        CountingBuild build = new CountingBuild();
+        CountingBuild otherBuild = new CountingBuild();
+        warmUp.build(deviceId, build);
+        warmUp.build(otherId, otherBuild);
+        loaded.run();
+        assertEquals(1, build.runs);
+        assertEquals(0, otherBuild.runs);
+        assertTrue(warmUp.isWarmingUp(otherId));
+        assertEquals(1, devicesWarmingUp());
+    }
+
+    @Test
+    public void testTableThatFailsToLoadReleasesTheDevice() {
+        StringMap table = new StringMap(new MockDirectory() {
+            @Override
+            public void asyncGetChildren(String relativePath,
+                                         DirectoryCallback<Set<String>> cb,
+                                         TypedWatcher watcher) {
+                cb.onError(new NoNodeException(relativePath));
+            }
+        });
+        CountingBuild build = new CountingBuild();
+        table.start(warmUp.tableLoading(deviceId));
+        warmUp.build(deviceId, build);
+        assertEquals(1, build.runs);
+        assertFalse(warmUp.isWarmingUp(deviceId));
+        assertEquals(0, devicesWarmingUp());
+    }
+
+    @Test
+    public void testTableStoppedWhileLoadingReleasesTheDevice() {
+        StringMap table = new StringMap(new MockDirectory() {
+            @Override
+            public void asyncGetChildren(String relativePath,
+                                         DirectoryCallback<Set<String>> cb,
+                                         TypedWatcher watcher) {
+            }
+        });
+        CountingBuild build = new CountingBuild();
+        table.start(warmUp.tableLoading(deviceId));
+        warmUp.build(deviceId, build);
+        assertEquals(0, build.runs);
+        assertTrue(warmUp.isWarmingUp(deviceId));
+
+        table.stop();
+        assertEquals(1, build.runs);
+        assertFalse(warmUp.isWarmingUp(deviceId));
+        assertEquals(0, devicesWarmingUp());
+    }
+}
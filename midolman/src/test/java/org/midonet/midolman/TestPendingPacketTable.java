@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.midonet.odp.FlowMatch;
+import org.midonet.odp.Packet;
+import org.midonet.odp.flows.FlowKeys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestPendingPacketTable {
+
+    private PendingPacketTable table;
+
+    @Before
+    public void setUp() {
+        table = new PendingPacketTable(4, 3);
+    }
+
+    private static FlowMatch match(int i) {
+        return new FlowMatch().addKey(FlowKeys.inPort(i));
+    }
+
+    private static Packet packet(int i) {
+        return new Packet(null, match(i));
+    }
+
+    @Test
+    public void testLookupsByCookieAndMatch() {
+        table.add(10, match(1));
+        table.add(20, match(2));
+
+        int entry = table.find(match(1));
+        assertNotEquals(PendingPacketTable.NONE, entry);
+        assertEquals(entry, table.find(10));
+        assertEquals(10, table.cookieOf(entry));
+        assertEquals(20, table.cookieOf(table.find(match(2))));
+        assertEquals(PendingPacketTable.NONE, table.find(30));
+        assertEquals(PendingPacketTable.NONE, table.find(match(3)));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void testPendedPacketsAreBoundedAndDeduplicated() {
+        table.add(10, match(1));
+        int entry = table.find(10);
+
+        assertEquals(PendingPacketTable.PENDED, table.pend(entry, packet(1)));
+        assertEquals(PendingPacketTable.DUPLICATE, table.pend(entry, packet(1)));
+        assertEquals(PendingPacketTable.PENDED, table.pend(entry, packet(2)));
+        assertEquals(PendingPacketTable.PENDED, table.pend(entry, packet(3)));
+        assertEquals(PendingPacketTable.OVERFLOW, table.pend(entry, packet(4)));
+        assertEquals(3, table.pendedCount(entry));
+        assertEquals(packet(2), table.pendedPacket(entry, 1));
+    }
+
+    @Test
+    public void testRemoveReturnsPendedPackets() {
+        table.add(10, match(1));
+        Packet p1 = packet(1);
+        Packet p2 = packet(2);
+        table.pend(table.find(10), p1);
+        table.pend(table.find(10), p2);
+
+        assertEquals(2, table.remove(10));
+        assertSame(p1, table.removedPacket(0));
+        assertSame(p2, table.removedPacket(1));
+        assertEquals(PendingPacketTable.NONE, table.find(10));
+        assertEquals(PendingPacketTable.NONE, table.find(match(1)));
+        assertEquals(PendingPacketTable.NONE, table.remove(10));
+        assertEquals(0, table.size());
+
+        table.add(11, match(1));
+        assertEquals(0, table.pendedCount(table.find(11)));
+        assertEquals(0, table.remove(11));
+    }
+
+    @Test
+    public void testNewerEntryShadowsSameMatch() {
+        table.add(10, match(1));
+        table.add(11, match(1));
+        assertEquals(11, table.cookieOf(table.find(match(1))));
+
+        table.remove(10);
+        assertEquals(11, table.cookieOf(table.find(match(1))));
+        table.remove(11);
+        assertEquals(PendingPacketTable.NONE, table.find(match(1)));
+    }
+
+    @Test
+    public void testRandomOperationsAgreeWithHashMap() {
+        Random rand = new Random(7);
+        Map<Integer, FlowMatch> expected = new HashMap<>();
+        int nextCookie = -500;
+        for (int i = 0; i < 20000; i++) {
+            if (expected.size() < 64 && rand.nextBoolean()) {
+                int cookie = nextCookie++;
+                FlowMatch match = match(cookie);
+                table.add(cookie, match);
+                expected.put(cookie, match);
+            } else if (!expected.isEmpty()) {
+                int cookie = nextCookie - 1 - rand.nextInt(100);
+                FlowMatch match = expected.remove(cookie);
+                int removed = table.remove(cookie);
+                assertEquals(match == null ? PendingPacketTable.NONE : 0,
+                             removed);
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (Map.Entry<Integer, FlowMatch> e : expected.entrySet()) {
+            int entry = table.find(e.getValue());
+            assertEquals(entry, table.find(e.getKey()));
+            assertEquals((int) e.getKey(), table.cookieOf(entry));
+        }
+        table.collisionsSinceLastCall();
+        assertEquals(0, table.collisionsSinceLastCall());
+    }
+}
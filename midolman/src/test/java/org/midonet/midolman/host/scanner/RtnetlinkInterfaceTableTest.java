@@ -0,0 +1,356 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.host.scanner;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.midonet.midolman.host.interfaces.InterfaceDescription;
+import org.midonet.netlink.BytesUtil;
+import org.midonet.netlink.NLMessageType;
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.rtnetlink.Addr;
+import org.midonet.netlink.rtnetlink.Link;
+import org.midonet.netlink.rtnetlink.Rtnetlink;
+import org.midonet.packets.MAC;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RtnetlinkInterfaceTableTest {
+
+    private static final int UP = Link.Flag.IFF_UP | Link.Flag.IFF_LOWER_UP;
+    private static final int LOOPBACK = UP | Link.Flag.IFF_LOOPBACK;
+
+    /* The dump requests, as the type and sequence number of each */
+    private final List<Short> requestTypes = new ArrayList<>();
+    private final List<Integer> requestSeqs = new ArrayList<>();
+
+    private RtnetlinkInterfaceTable table;
+    private ByteBuffer buf;
+
+    @Before
+    public void setUp() {
+        table = new RtnetlinkInterfaceTable(
+            new RtnetlinkInterfaceTable.DumpRequester() {
+                @Override
+                public void requestDump(short type, int seq) {
+                    requestTypes.add(type);
+                    requestSeqs.add(seq);
+                }
+            });
+        buf = BytesUtil.instance.allocate(4096);
+    }
+
+    private int lastRequestSeq() {
+        return requestSeqs.get(requestSeqs.size() - 1);
+    }
+
+    private short lastRequestType() {
+        return requestTypes.get(requestTypes.size() - 1);
+    }
+
+    private int startMessage(short type, int seq) {
+        int start = buf.position();
+        buf.putInt(0);              // length, set by endMessage()
+        buf.putShort(type);
+        buf.putShort((short) 0);    // flags
+        buf.putInt(seq);
+        buf.putInt(0);              // pid
+        return start;
+    }
+
+    private void endMessage(int start) {
+        buf.putInt(start, buf.position() - start);
+        NetlinkMessage.alignBuffer(buf);
+    }
+
+    private void link(short type, int seq, int index, String name,
+                      int flags, String kind) {
+        int start = startMessage(type, seq);
+        buf.putShort((short) 0);    // family and padding
+        buf.putShort((short) 1);    // ARPHRD_ETHER
+        buf.putInt(index);
+        buf.putInt(flags);
+        buf.putInt(0);              // change mask
+        NetlinkMessage.writeStringAttr(buf, Link.Attr.IFNAME, name);
+        NetlinkMessage.writeRawAttribute(buf, Link.Attr.ADDRESS,
+                                         new byte[] {2, 0, 0, 0, 0, (byte) index});
+        NetlinkMessage.writeIntAttr(buf, Link.Attr.MTU, 1500);
+        if (kind != null) {
+            int info = buf.position();
+            NetlinkMessage.setAttrHeader(buf, Link.Attr.LINKINFO, 0);
+            NetlinkMessage.writeStringAttr(buf, Link.LinkInfoAttr.KIND, kind);
+            buf.putShort(info, (short) (buf.position() - info));
+        }
+        endMessage(start);
+    }
+
+    private void addr(short type, int seq, int index, String address)
+            throws Exception {
+        int start = startMessage(type, seq);
+        buf.put((byte) 2);          // AF_INET
+        buf.put((byte) 24);         // prefix length
+        buf.put((byte) 0);          // flags
+        buf.put((byte) 0);          // scope
+        buf.putInt(index);
+        NetlinkMessage.writeRawAttribute(
+            buf, Addr.Attr.ADDRESS, InetAddress.getByName(address).getAddress());
+        endMessage(start);
+    }
+
+    private void done(int seq) {
+        int start = startMessage(NLMessageType.DONE, seq);
+        buf.putInt(0);
+        endMessage(start);
+    }
+
+    private void error(int seq, int errno) {
+        int start = startMessage(NLMessageType.ERROR, seq);
+        buf.putInt(-errno);
+        for (int i = 0; i < Rtnetlink.NLMSG_HDRLEN; i++)
+            buf.put((byte) 0);      // header of the failed request
+        endMessage(start);
+    }
+
+    /* Hands the messages written so far to the table, as one read */
+    private void read() throws Exception {
+        buf.flip();
+        table.handleMessages(buf);
+        assertFalse(buf.hasRemaining());
+        buf.clear();
+    }
+
+    private Map<String, InterfaceDescription> byName(
+            Set<InterfaceDescription> descs) {
+        Map<String, InterfaceDescription> map = new HashMap<>();
+        for (InterfaceDescription desc : descs)
+            map.put(desc.getName(), desc);
+        return map;
+    }
+
+    private void dump() throws Exception {
+        table.startDump();
+        assertEquals(Rtnetlink.Type.GETLINK, lastRequestType());
+        link(Rtnetlink.Type.NEWLINK, lastRequestSeq(), 1, "lo", LOOPBACK, null);
+        link(Rtnetlink.Type.NEWLINK, lastRequestSeq(), 2, "eth0", UP, null);
+        done(lastRequestSeq());
+        read();
+
+        assertTrue(table.isDumping());
+        assertNull(table.updateInterfaces());
+        assertEquals(Rtnetlink.Type.GETADDR, lastRequestType());
+        addr(Rtnetlink.Type.NEWADDR, lastRequestSeq(), 1, "127.0.0.1");
+        addr(Rtnetlink.Type.NEWADDR, lastRequestSeq(), 2, "10.0.0.2");
+        done(lastRequestSeq());
+        read();
+        assertFalse(table.isDumping());
+    }
+
+    @Test
+    public void testDump() throws Exception {
+        dump();
+        assertEquals(Arrays.asList(Rtnetlink.Type.GETLINK,
+                                   Rtnetlink.Type.GETADDR), requestTypes);
+        assertEquals(Arrays.asList(1, 2), requestSeqs);
+
+        Map<String, InterfaceDescription> updated =
+            byName(table.updateInterfaces());
+        assertEquals(2, updated.size());
+        assertNull(table.updateInterfaces());
+
+        InterfaceDescription lo = updated.get("lo");
+        assertEquals(InterfaceDescription.Endpoint.LOCALHOST, lo.getEndpoint());
+        assertEquals(Arrays.asList(InetAddress.getByName("127.0.0.1")),
+                     lo.getInetAddresses());
+
+        InterfaceDescription eth0 = updated.get("eth0");
+        assertTrue(eth0.isUp());
+        assertTrue(eth0.hasLink());
+        assertEquals(1500, eth0.getMtu());
+        assertEquals("02:00:00:00:00:02",
+                     MAC.bytesToString(eth0.getMac()));
+        assertEquals(Arrays.asList(InetAddress.getByName("10.0.0.2")),
+                     eth0.getInetAddresses());
+        assertEquals(2, table.interfaces().size());
+    }
+
+    @Test
+    public void testNotificationsDuringTheDumpAreApplied() throws Exception {
+        table.startDump();
+        link(Rtnetlink.Type.NEWLINK, lastRequestSeq(), 2, "eth0", UP, null);
+        link(Rtnetlink.Type.NEWLINK, 0, 3, "tap0", UP, "tun");
+        done(lastRequestSeq());
+        read();
+        done(lastRequestSeq());
+        read();
+
+        assertEquals(2, table.updateInterfaces().size());
+        assertEquals(new HashSet<>(Arrays.asList("eth0", "tap0")),
+                     byName(table.interfaces()).keySet());
+    }
+
+    @Test
+    public void testAddAndDeleteLink() throws Exception {
+        dump();
+        table.updateInterfaces();
+
+        link(Rtnetlink.Type.NEWLINK, 0, 3, "tap0", UP, "tun");
+        read();
+        Set<InterfaceDescription> updated = table.updateInterfaces();
+        assertEquals(1, updated.size());
+        InterfaceDescription tap0 = updated.iterator().next();
+        assertEquals("tap0", tap0.getName());
+        assertEquals(InterfaceDescription.Endpoint.TUNTAP, tap0.getEndpoint());
+        assertEquals(InterfaceDescription.Type.VIRT, tap0.getType());
+        assertEquals(3, table.interfaces().size());
+
+        link(Rtnetlink.Type.DELLINK, 0, 3, "tap0", UP, "tun");
+        read();
+        updated = table.updateInterfaces();
+        assertNotNull(updated);
+        assertTrue(updated.isEmpty());
+        assertFalse(byName(table.interfaces()).containsKey("tap0"));
+        assertEquals(2, table.interfaces().size());
+    }
+
+    @Test
+    public void testAddAndDeleteAddress() throws Exception {
+        dump();
+        table.updateInterfaces();
+
+        addr(Rtnetlink.Type.NEWADDR, 0, 2, "10.0.1.2");
+        read();
+        Set<InterfaceDescription> updated = table.updateInterfaces();
+        assertEquals(1, updated.size());
+        assertEquals(Arrays.asList(InetAddress.getByName("10.0.0.2"),
+                                   InetAddress.getByName("10.0.1.2")),
+                     updated.iterator().next().getInetAddresses());
+
+        addr(Rtnetlink.Type.DELADDR, 0, 2, "10.0.0.2");
+        read();
+        updated = table.updateInterfaces();
+        assertEquals(1, updated.size());
+        assertEquals(Arrays.asList(InetAddress.getByName("10.0.1.2")),
+                     updated.iterator().next().getInetAddresses());
+
+        // Deleting an unknown address changes nothing
+        addr(Rtnetlink.Type.DELADDR, 0, 2, "10.0.0.2");
+        read();
+        assertNull(table.updateInterfaces());
+    }
+
+    @Test
+    public void testResyncDropsTheInterfacesThatWentAway() throws Exception {
+        dump();
+        table.updateInterfaces();
+
+        // Notifications were lost, eth0 was deleted and tap0 created
+        table.startDump();
+        assertEquals(Rtnetlink.Type.GETLINK, lastRequestType());
+        link(Rtnetlink.Type.NEWLINK, lastRequestSeq(), 1, "lo", LOOPBACK, null);
+        link(Rtnetlink.Type.NEWLINK, lastRequestSeq(), 3, "tap0", UP, "tun");
+        done(lastRequestSeq());
+        read();
+        addr(Rtnetlink.Type.NEWADDR, lastRequestSeq(), 1, "127.0.0.1");
+        done(lastRequestSeq());
+        read();
+
+        assertFalse(table.isDumping());
+        assertEquals(2, table.updateInterfaces().size());
+        Map<String, InterfaceDescription> interfaces =
+            byName(table.interfaces());
+        assertEquals(2, interfaces.size());
+        assertTrue(interfaces.containsKey("lo"));
+        assertTrue(interfaces.containsKey("tap0"));
+    }
+
+    @Test
+    public void testBusyDumpIsRetriedWhenTheInterruptedOneIsDone()
+            throws Exception {
+        table.startDump();
+        int interruptedSeq = lastRequestSeq();
+        link(Rtnetlink.Type.NEWLINK, interruptedSeq, 1, "lo", LOOPBACK, null);
+        read();
+
+        // Notifications are lost in the middle of the dump
+        table.startDump();
+        int busySeq = lastRequestSeq();
+        error(busySeq, RtnetlinkInterfaceTable.EBUSY);
+        read();
+        assertEquals(2, requestSeqs.size());
+        assertTrue(table.isDumping());
+
+        // The rest of the interrupted dump doesn't trigger a new request
+        link(Rtnetlink.Type.NEWLINK, interruptedSeq, 2, "eth0", UP, null);
+        read();
+        assertEquals(2, requestSeqs.size());
+
+        done(interruptedSeq);
+        read();
+        assertEquals(3, requestSeqs.size());
+        assertEquals(Rtnetlink.Type.GETLINK, lastRequestType());
+        assertTrue(lastRequestSeq() > busySeq);
+
+        link(Rtnetlink.Type.NEWLINK, lastRequestSeq(), 1, "lo", LOOPBACK, null);
+        done(lastRequestSeq());
+        read();
+        done(lastRequestSeq());
+        read();
+        assertFalse(table.isDumping());
+        assertEquals(1, table.updateInterfaces().size());
+        assertEquals(Arrays.asList("lo"), new ArrayList<>(
+            byName(table.interfaces()).keySet()));
+    }
+
+    @Test
+    public void testFailedDumpMovesOn() throws Exception {
+        table.startDump();
+        error(lastRequestSeq(), 22);    // EINVAL
+        read();
+        assertEquals(Rtnetlink.Type.GETADDR, lastRequestType());
+        error(lastRequestSeq(), 22);
+        read();
+        assertFalse(table.isDumping());
+        assertNull(table.updateInterfaces());
+    }
+
+    @Test
+    public void testTruncatedMessagesAreIgnored() throws Exception {
+        dump();
+        table.updateInterfaces();
+
+        link(Rtnetlink.Type.NEWLINK, 0, 3, "tap0", UP, "tun");
+        buf.putInt(0, buf.position() + 64);
+        buf.flip();
+        table.handleMessages(buf);
+        buf.clear();
+        assertNull(table.updateInterfaces());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.rules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import akka.actor.ActorSystem;
+import akka.actor.ActorSystem$;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import scala.Option;
+import scala.util.Left;
+
+import org.midonet.midolman.rules.RuleResult.Action;
+import org.midonet.midolman.simulation.PacketContext;
+import org.midonet.packets.IPv4;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.sdn.flows.WildcardMatch;
+import org.midonet.util.Range;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestRuleIndex {
+
+    private static final byte[] PROTOS = { 1, 6, 17 };
+    private static final int[] PORTS = { 22, 80, 443, 8080 };
+
+    private Random rand;
+    private ActorSystem actorSystem;
+
+    @Before
+    public void setUp() {
+        rand = new Random(42);
+        actorSystem = ActorSystem$.MODULE$.create();
+    }
+
+    @After
+    public void tearDown() {
+        actorSystem.shutdown();
+    }
+
+    private Rule randomRule() {
+        Condition cond = new Condition();
+        cond.fragmentPolicy = FragmentPolicy.ANY;
+        if (rand.nextInt(4) != 0)
+            cond.nwProto = PROTOS[rand.nextInt(PROTOS.length)];
+        switch (rand.nextInt(4)) {
+            case 0:
+                break;
+            case 1:
+                cond.tpDst = new Range<>(PORTS[rand.nextInt(PORTS.length)]);
+                break;
+            case 2:
+                cond.tpDst = new Range<>(1000, 2000);
+                break;
+            default:
+                cond.tpDst = new Range<>(PORTS[rand.nextInt(PORTS.length)]);
+                cond.tpDstInv = true;
+        }
+        if (rand.nextInt(8) == 0)
+            cond.nwProtoInv = true;
+        if (rand.nextInt(10) == 0)
+            cond.conjunctionInv = true;
+        if (rand.nextInt(5) == 0)
+            cond.nwDstIp = new IPv4Subnet(0x0a000000, 8);
+        Action action = rand.nextBoolean() ? Action.ACCEPT : Action.DROP;
+        return new LiteralRule(cond, action);
+    }
+
+    private PacketContext randomPacket() {
+        WildcardMatch pktMatch = new WildcardMatch();
+        pktMatch.setEtherType(IPv4.ETHERTYPE);
+        pktMatch.setNetworkSrc(IPv4Addr.fromString("192.168.0.1"));
+        pktMatch.setNetworkDst(rand.nextBoolean()
+            ? IPv4Addr.fromString("10.0.0.1")
+            : IPv4Addr.fromString("172.16.0.1"));
+        if (rand.nextInt(5) != 0) {
+            pktMatch.setNetworkProto(
+                rand.nextInt(5) == 0 ? 47 : PROTOS[rand.nextInt(PROTOS.length)]);
+            if (rand.nextInt(5) != 0) {
+                pktMatch.setSrcPort(rand.nextInt(65536));
+                pktMatch.setDstPort(rand.nextBoolean()
+                    ? PORTS[rand.nextInt(PORTS.length)]
+                    : rand.nextInt(3000));
+            }
+        }
+        return new PacketContext(new Left<Object, UUID>(1), null,
+                                 Option.empty(), pktMatch, actorSystem);
+    }
+
+    @Test
+    public void testShortChainsAreNotIndexed() {
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < RuleIndex.MIN_INDEXED_RULES - 1; i++)
+            rules.add(randomRule());
+        assertNull(RuleIndex.compile(rules));
+    }
+
+    @Test
+    public void testUnconstrainedChainsAreNotIndexed() {
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < 2 * RuleIndex.MIN_INDEXED_RULES; i++)
+            rules.add(new LiteralRule(new Condition(), Action.ACCEPT));
+        assertNull(RuleIndex.compile(rules));
+    }
+
+    @Test
+    public void testCandidatesIncludeEveryMatchingRule() {
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            rules.add(randomRule());
+        RuleIndex index = RuleIndex.compile(rules);
+        assertNotNull(index);
+
+        for (int p = 0; p < 500; p++) {
+            PacketContext pktCtx = randomPacket();
+            int[] candidates = index.candidates(pktCtx.wcmatch());
+            int next = 0;
+            for (int i = 0; i < rules.size(); i++) {
+                boolean matches =
+                    rules.get(i).getCondition().matches(pktCtx, false);
+                boolean candidate =
+                    next < candidates.length && candidates[next] == i;
+                if (candidate)
+                    next++;
+                else
+                    assertFalse("Rule " + i + " was wrongly skipped", matches);
+            }
+            assertEquals(candidates.length, next);
+        }
+    }
+
+    @Test
+    public void testCandidatesAreFilteredByProtocolAndPort() {
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < RuleIndex.MIN_INDEXED_RULES; i++) {
+            Condition cond = new Condition();
+            cond.nwProto = (i % 2 == 0) ? (byte) 6 : (byte) 17;
+            cond.tpDst = new Range<>(i);
+            rules.add(new LiteralRule(cond, Action.ACCEPT));
+        }
+        rules.add(new LiteralRule(new Condition(), Action.DROP));
+        RuleIndex index = RuleIndex.compile(rules);
+
+        WildcardMatch pktMatch = new WildcardMatch();
+        assertArrayEquals(new int[] { 8 }, index.candidates(pktMatch));
+        pktMatch.setNetworkProto((byte) 6);
+        assertArrayEquals(new int[] { 0, 2, 4, 6, 8 },
+                          index.candidates(pktMatch));
+        pktMatch.setDstPort(4);
+        assertArrayEquals(new int[] { 4, 8 }, index.candidates(pktMatch));
+        pktMatch.setDstPort(5);
+        assertArrayEquals(new int[] { 8 }, index.candidates(pktMatch));
+        pktMatch.setNetworkProto((byte) 17);
+        assertArrayEquals(new int[] { 5, 8 }, index.candidates(pktMatch));
+    }
+
+    @Test
+    public void testNextAfter() {
+        int[] candidates = { 1, 4, 7 };
+        assertEquals(0, RuleIndex.nextAfter(candidates, 0));
+        assertEquals(1, RuleIndex.nextAfter(candidates, 1));
+        assertEquals(1, RuleIndex.nextAfter(candidates, 3));
+        assertEquals(2, RuleIndex.nextAfter(candidates, 4));
+        assertEquals(3, RuleIndex.nextAfter(candidates, 7));
+    }
+
+    @Test
+    public void testOnlyLiteralRulesKeepTheMatch() {
+        assertFalse(RuleIndex.mayModifyMatch(
+            new LiteralRule(new Condition(), Action.ACCEPT)));
+        assertTrue(RuleIndex.mayModifyMatch(
+            new JumpRule(new Condition(), UUID.randomUUID(), "target")));
+    }
+}
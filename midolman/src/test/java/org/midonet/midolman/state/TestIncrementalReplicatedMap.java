@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.state.Directory.TypedWatcher;
+
+/**
+ * Runs the ReplicatedMap tests against maps that are kept in sync
+ * incrementally.
+ */
+public class TestIncrementalReplicatedMap extends TestReplicatedMap {
+
+    public TestIncrementalReplicatedMap() {
+        incremental = true;
+    }
+
+    private static class RecordingWatcher
+            implements ReplicatedMap.Watcher<String, String> {
+        List<String> changes = new ArrayList<>();
+
+        @Override
+        public void processChange(String key, String oldValue,
+                                  String newValue) {
+            changes.add(key + ":" + oldValue + "->" + newValue);
+        }
+    }
+
+    private static class CountingCallback implements Runnable {
+        int runs = 0;
+
+        @Override
+        public void run() {
+            runs++;
+        }
+    }
+
+    /* A directory whose asynchronous reads of the children never complete */
+    private static class SilentDirectory extends MockDirectory {
+        @Override
+        public void asyncGetChildren(String relativePath,
+                                     DirectoryCallback<Set<String>> cb,
+                                     TypedWatcher watcher) {
+        }
+    }
+
+    @Test
+    public void testStartAsyncRunsCallbackWhenLoaded()
+            throws KeeperException, InterruptedException {
+        mapDir.add("/one,1,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        mapDir.add("/two,2,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        ReplicatedStringMap strMap = new ReplicatedStringMap(mapDir);
+        CountingCallback onLoaded = new CountingCallback();
+        strMap.start(onLoaded);
+        Assert.assertEquals(1, onLoaded.runs);
+        Assert.assertEquals(2, strMap.getMap().size());
+
+        // Later updates and a second start don't run it again
+        mapDir.add("/three,3,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals(1, onLoaded.runs);
+        Assert.assertEquals("3", strMap.get("three"));
+        CountingCallback again = new CountingCallback();
+        strMap.start(again);
+        Assert.assertEquals(1, onLoaded.runs);
+        Assert.assertEquals(1, again.runs);
+    }
+
+    @Test
+    public void testStartAsyncRunsCallbackWhenLoadFails() {
+        ReplicatedStringMap strMap = new ReplicatedStringMap(
+            new MockDirectory() {
+                @Override
+                public void asyncGetChildren(String relativePath,
+                                             DirectoryCallback<Set<String>> cb,
+                                             TypedWatcher watcher) {
+                    cb.onError(new NoNodeException(relativePath));
+                }
+            });
+        CountingCallback onLoaded = new CountingCallback();
+        strMap.start(onLoaded);
+        Assert.assertEquals(1, onLoaded.runs);
+        Assert.assertTrue(strMap.getMap().isEmpty());
+    }
+
+    @Test
+    public void testStartAsyncRunsCallbackWhenLoadTimesOut() {
+        ReplicatedStringMap strMap = new ReplicatedStringMap(
+            new MockDirectory() {
+                @Override
+                public void asyncGetChildren(String relativePath,
+                                             DirectoryCallback<Set<String>> cb,
+                                             TypedWatcher watcher) {
+                    cb.onTimeout();
+                }
+            });
+        CountingCallback onLoaded = new CountingCallback();
+        strMap.start(onLoaded);
+        Assert.assertEquals(1, onLoaded.runs);
+        Assert.assertTrue(strMap.getMap().isEmpty());
+    }
+
+    @Test
+    public void testStopRunsPendingCallback() {
+        ReplicatedStringMap strMap =
+            new ReplicatedStringMap(new SilentDirectory());
+        CountingCallback onLoaded = new CountingCallback();
+        strMap.start(onLoaded);
+        Assert.assertEquals(0, onLoaded.runs);
+        strMap.stop();
+        Assert.assertEquals(1, onLoaded.runs);
+        strMap.stop();
+        Assert.assertEquals(1, onLoaded.runs);
+    }
+
+    @Test
+    public void testOnlyChangedKeysAreNotified()
+            throws KeeperException, InterruptedException {
+        for (int i = 0; i < 1000; i++)
+            mapDir.add("/" + i + "," + i + ",", null,
+                       CreateMode.PERSISTENT_SEQUENTIAL);
+        ReplicatedStringMap strMap = new ReplicatedStringMap(mapDir);
+        RecordingWatcher watcher = new RecordingWatcher();
+        strMap.addWatcher(watcher);
+        strMap.start();
+        Assert.assertEquals(1000, watcher.changes.size());
+        Assert.assertEquals(1000, strMap.getMap().size());
+
+        watcher.changes.clear();
+        String path = mapDir.add("/new,1,", null,
+                                 CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals("[new:null->1]", watcher.changes.toString());
+
+        watcher.changes.clear();
+        mapDir.add("/7,changed,", null, CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals("[7:7->changed]", watcher.changes.toString());
+
+        watcher.changes.clear();
+        mapDir.delete(path);
+        Assert.assertEquals("[new:1->null]", watcher.changes.toString());
+        Assert.assertEquals(1000, strMap.getMap().size());
+    }
+
+    @Test
+    public void testOlderOwnedEntriesAreCleanedUp()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = new ReplicatedStringMap(mapDir);
+        strMap.start();
+        strMap.put("one", "100");
+        Assert.assertTrue(strMap.isKeyOwner("one"));
+        strMap.put("one", "200");
+        Assert.assertEquals("200", strMap.get("one"));
+        Assert.assertEquals(1, mapDir.getChildren("/", null).size());
+
+        // An older entry reappearing doesn't replace the newer one.
+        mapDir.add("/one,50,0000000000", null, CreateMode.PERSISTENT);
+        Assert.assertEquals("200", strMap.get("one"));
+
+        strMap.stop();
+        Assert.assertTrue(strMap.getMap().isEmpty());
+    }
+}
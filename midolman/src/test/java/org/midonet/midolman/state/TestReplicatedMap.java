@@ -30,10 +30,12 @@ import org.junit.Test;
 
 public class TestReplicatedMap {
 
-    private class ReplicatedStringMap extends ReplicatedMap<String, String> {
+    protected boolean incremental = false;
+
+    protected class ReplicatedStringMap extends ReplicatedMap<String, String> {
 
         public ReplicatedStringMap(Directory dir) {
-            super(dir);
+            super(dir, true, incremental);
         }
 
         @Override
@@ -83,7 +85,7 @@ public class TestReplicatedMap {
             ReplicatedMap<String, Location> {
 
         public ReplicatedStringToLocationMap(Directory dir) {
-            super(dir);
+            super(dir, true, incremental);
         }
 
         @Override
@@ -293,4 +293,30 @@ public class ZkNatBlockAllocatorTest {
         assertThat(result.tpPortStart, is(results[0].tpPortStart));
         assertThat(result.tpPortEnd, is(results[0].tpPortEnd));
     }
+
+    @Test
+    public void testCachedBlocksAreRevalidated() throws Exception {
+        IPv4Addr ip = IPv4Addr.random();
+        UUID device = UUID.randomUUID();
+        NatRange request = new NatRange(device, ip, 0, 127);
+
+        ZkConnection otherZk = new ZkConnection(
+                        server.getConnectString(), Integer.MAX_VALUE, null);
+        otherZk.open();
+        ZkNatBlockAllocator otherAllocator = new ZkNatBlockAllocator(
+                        otherZk, paths, new CallingThreadReactor());
+
+        // Caches the state of both blocks, one of them is claimed by the
+        // other allocator, which this one may not have seen yet.
+        NatBlock ours = allocateBlock(request);
+        NatBlock theirs = allocateBlock(request, otherAllocator);
+        assertThat(theirs.blockIndex, is(1 - ours.blockIndex));
+        assertThat(allocateBlock(request), is(NatBlock.NO_BLOCK));
+
+        otherZk.close();
+
+        NatBlock result = allocateBlock(request);
+        assertThat(result.blockIndex, is(theirs.blockIndex));
+        assertThat(allocateBlock(request), is(NatBlock.NO_BLOCK));
+    }
 }
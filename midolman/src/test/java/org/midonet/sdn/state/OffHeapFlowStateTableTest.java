@@ -0,0 +1,402 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.state;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.midonet.util.MockClock;
+import org.midonet.util.collection.Reducer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class OffHeapFlowStateTableTest {
+    static final Duration IDLE_EXPIRATION = new FiniteDuration(60, TimeUnit.SECONDS);
+
+    static class TestKey implements IdleExpiration {
+        final long id;
+        final long device;
+
+        TestKey(long id, long device) {
+            this.id = id;
+            this.device = device;
+        }
+
+        @Override
+        public Duration expiresAfter() {
+            return IDLE_EXPIRATION;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            TestKey testKey = (TestKey) o;
+            return id == testKey.id && device == testKey.device;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (id * 31 + device);
+        }
+    }
+
+    static class TestCodec implements FlowStateCodec<TestKey, Integer> {
+        @Override
+        public int keyWords() {
+            return 2;
+        }
+
+        @Override
+        public void encodeKey(TestKey key, long[] words) {
+            words[0] = key.id;
+            words[1] = key.device;
+        }
+
+        @Override
+        public TestKey decodeKey(long[] words) {
+            return new TestKey(words[0], words[1]);
+        }
+
+        @Override
+        public long encodeValue(Integer value) {
+            return value;
+        }
+
+        @Override
+        public Integer decodeValue(long value) {
+            return (int) value;
+        }
+    }
+
+    private static TestKey key(long id) {
+        return new TestKey(id, 7);
+    }
+
+    private final int SHARDS = 4;
+    private final MockClock clock = new MockClock();
+    private OffHeapFlowStateTable<TestKey, Integer> global;
+    private List<OffHeapFlowStateTable<TestKey, Integer>.Shard> shards =
+        new ArrayList<>();
+
+    @Before
+    public void before() {
+        global = new OffHeapFlowStateTable<>(new TestCodec(), clock, 16);
+        for (int i = 0; i < SHARDS; i++)
+            shards.add(global.addShard());
+    }
+
+    private void expireAll(FlowStateTable<TestKey, Integer> table) {
+        // Each call sweeps at least 1024 slots.
+        for (int i = 0; i < 64; i++)
+            table.expireIdleEntries();
+    }
+
+    @Test
+    public void testSetGetMultiShard() {
+        for (int i = 0; i < 10; i++) {
+            assertThat(global.get(key(i)), nullValue());
+            assertThat(shards.get(i % SHARDS).putAndRef(key(i), i * 100),
+                       nullValue());
+        }
+
+        for (int i = 0; i < 10; i++) {
+            for (int shard = 0; shard < SHARDS; shard++)
+                assertThat(shards.get(shard).get(key(i)), equalTo(i * 100));
+            assertThat(global.get(key(i)), equalTo(i * 100));
+            assertThat(shards.get(i % SHARDS).shallowGet(key(i)),
+                       equalTo(i * 100));
+            assertThat(shards.get((i + 1) % SHARDS).shallowGet(key(i)),
+                       nullValue());
+        }
+
+        assertThat(shards.get(0).putAndRef(key(0), 9595), equalTo(0));
+        for (int shard = 0; shard < SHARDS; shard++)
+            assertThat(shards.get(shard).get(key(0)), equalTo(9595));
+        assertThat(shards.get(0).getRefCount(key(0)), equalTo(2));
+        assertThat(global.get(new TestKey(0, 8)), nullValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutOnParentFails() {
+        global.putAndRef(key(1), 1);
+    }
+
+    @Test
+    public void testRefCountAndExpiration() {
+        FlowStateTable<TestKey, Integer> shard = shards.get(0);
+        shard.putAndRef(key(1), 1);
+        shard.putAndRef(key(2), 2);
+
+        assertThat(global.ref(key(1)), equalTo(1));
+        assertThat(global.getRefCount(key(1)), equalTo(2));
+        global.unref(key(1));
+        global.unref(key(1));
+        assertThat(global.getRefCount(key(1)), equalTo(0));
+
+        clock.time = IDLE_EXPIRATION.toNanos();
+        global.unref(key(2));
+
+        clock.time = IDLE_EXPIRATION.toNanos() + 1;
+        Set<TestKey> expired = shard.expireIdleEntries(
+            new HashSet<TestKey>(), new KeyReducer());
+        assertThat(expired, contains(key(1)));
+        assertThat(shard.get(key(1)), nullValue());
+        assertThat(global.ref(key(1)), nullValue());
+        assertThat(shard.get(key(2)), equalTo(2));
+
+        assertThat(global.ref(key(2)), equalTo(2));
+        clock.time = IDLE_EXPIRATION.toNanos() * 3;
+        expireAll(shard);
+        assertThat(shard.get(key(2)), equalTo(2));
+
+        global.unref(key(2));
+        clock.time += IDLE_EXPIRATION.toNanos() + 1;
+        expireAll(shard);
+        assertThat(shard.get(key(2)), nullValue());
+        assertThat(shards.get(0).size(), equalTo(0));
+    }
+
+    @Test
+    public void testTouch() {
+        FlowStateTable<TestKey, Integer> table = shards.get(0);
+
+        clock.time = 1;
+        table.touch(key(1), 1);
+        table.touch(key(0), 0);
+        assertThat(table.getRefCount(key(1)), equalTo(0));
+        clock.time += IDLE_EXPIRATION.toNanos() / 2;
+        table.touch(key(1), 1);
+        clock.time += IDLE_EXPIRATION.toNanos() / 2 + 1;
+        table.expireIdleEntries();
+        assertThat(table.get(key(1)), equalTo(1));
+        assertThat(table.get(key(0)), nullValue());
+        clock.time += IDLE_EXPIRATION.toNanos() / 2;
+        table.expireIdleEntries();
+        assertThat(table.get(key(1)), nullValue());
+    }
+
+    @Test
+    public void testGrowth() {
+        OffHeapFlowStateTable<TestKey, Integer>.Shard shard = shards.get(1);
+        final int n = 100000;
+        for (int i = 0; i < n; i++)
+            shard.putAndRef(key(i), i);
+        assertThat(shard.size(), equalTo(n));
+        assertThat(shard.capacity(), greaterThanOrEqualTo(2 * n));
+
+        for (int i = 0; i < n; i++) {
+            assertThat(global.get(key(i)), equalTo(i));
+            if (i % 2 == 0)
+                global.unref(key(i));
+        }
+
+        clock.time = IDLE_EXPIRATION.toNanos() + 1;
+        int expired = 0;
+        for (int i = 0; i < 256; i++)
+            expired += shard.expireIdleEntries(0, new CountReducer());
+        assertThat(expired, equalTo(n / 2));
+        assertThat(shard.size(), equalTo(n / 2));
+
+        // New entries reuse the slots of the expired ones.
+        int capacity = shard.capacity();
+        for (int i = n; i < 2 * n; i += 2)
+            shard.putAndRef(key(i), i);
+        assertThat(shard.capacity(), equalTo(capacity));
+        for (int i = 0; i < 2 * n; i++) {
+            Integer v = global.get(key(i));
+            if (i < n && i % 2 == 0)
+                assertThat(v, nullValue());
+            else if (i >= n && i % 2 == 1)
+                assertThat(v, nullValue());
+            else
+                assertThat(v, equalTo(i));
+        }
+    }
+
+    @Test
+    public void testFold() {
+        for (int i = 0; i < 10; i++)
+            shards.get(i % SHARDS).putAndRef(key(i), i);
+        Set<TestKey> keys = global.fold(new HashSet<TestKey>(), new KeyReducer());
+        assertThat(keys.size(), equalTo(10));
+        for (int i = 0; i < 10; i++)
+            assertThat(keys, hasItem(key(i)));
+    }
+
+    @Test
+    public void testConcurrentRefsDuringGrowth() throws Exception {
+        final OffHeapFlowStateTable<TestKey, Integer>.Shard owner = shards.get(0);
+        final int hot = 64;
+        for (int i = 0; i < hot; i++)
+            owner.putAndRef(key(i), i);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 2000; round++) {
+                            for (int i = 0; i < hot; i++) {
+                                Integer v = global.ref(key(i));
+                                if (v == null || v != i)
+                                    throw new AssertionError("Bad value " + v);
+                                global.unref(key(i));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (int i = hot; i < 200000; i++)
+            owner.putAndRef(key(i), i);
+        for (Thread t : threads)
+            t.join();
+
+        assertThat(failure.get(), nullValue());
+        for (int i = 0; i < hot; i++)
+            assertThat(owner.getRefCount(key(i)), equalTo(1));
+    }
+
+    @Test
+    public void testConcurrentReadsDuringGrowth() throws Exception {
+        final OffHeapFlowStateTable<TestKey, Integer>.Shard owner = shards.get(0);
+        final int hot = 64;
+        for (int i = 0; i < hot; i++)
+            owner.putAndRef(key(i), i);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch grown = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (grown.getCount() > 0) {
+                            for (int i = 0; i < hot; i++) {
+                                Integer v = global.get(key(i));
+                                if (v == null || v != i)
+                                    throw new AssertionError("Bad value " + v);
+                                if (global.getRefCount(key(i)) != 1)
+                                    throw new AssertionError("Bad ref count");
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (int i = hot; i < 200000; i++) {
+            owner.putAndRef(key(i), i);
+            if (i % 1024 == 0)
+                owner.expireIdleEntries();
+        }
+        grown.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        assertThat(failure.get(), nullValue());
+        owner.expireIdleEntries();
+        assertThat(owner.retiredSegments(), equalTo(0));
+    }
+
+    @Test
+    public void testReaderKeepsRetiredSegment() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final AtomicReference<Thread> reader = new AtomicReference<>();
+        final OffHeapFlowStateTable<TestKey, Integer> table =
+            new OffHeapFlowStateTable<>(new TestCodec() {
+                @Override
+                public Integer decodeValue(long value) {
+                    if (Thread.currentThread() == reader.get()) {
+                        reading.countDown();
+                        try {
+                            resume.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return super.decodeValue(value);
+                }
+            }, clock, 16);
+        final OffHeapFlowStateTable<TestKey, Integer>.Shard owner =
+            table.addShard();
+        owner.putAndRef(key(0), 0);
+
+        final AtomicReference<Integer> value = new AtomicReference<>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                value.set(table.get(key(0)));
+            }
+        };
+        reader.set(t);
+        t.start();
+        reading.await();
+
+        // The reader is inside the segment the owner replaces
+        int capacity = owner.capacity();
+        for (int i = 1; owner.capacity() == capacity; i++)
+            owner.putAndRef(key(i), i);
+        owner.expireIdleEntries();
+        assertThat(owner.retiredSegments(), equalTo(1));
+
+        resume.countDown();
+        t.join();
+        assertThat(value.get(), equalTo(0));
+        owner.expireIdleEntries();
+        assertThat(owner.retiredSegments(), equalTo(0));
+    }
+
+    static class KeyReducer extends Reducer<TestKey, Integer, Set<TestKey>> {
+        @Override
+        public Set<TestKey> apply(Set<TestKey> seed, TestKey key, Integer value) {
+            seed.add(key);
+            return seed;
+        }
+    }
+
+    static class CountReducer extends Reducer<TestKey, Integer, Integer> {
+        @Override
+        public Integer apply(Integer seed, TestKey key, Integer value) {
+            return seed + 1;
+        }
+    }
+}
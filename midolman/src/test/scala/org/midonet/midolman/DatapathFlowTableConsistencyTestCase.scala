@@ -107,9 +107,10 @@ class DatapathFlowTableConsistencyTestCase extends MidolmanTestCase
         findMatch[FlowKeyTCP] shouldBe None
 
         // instead of waiting for IDLE_EXPIRATION for 60 secs, expire the flow
-        flowManager.oldestIdleFlow setLastUsedTimeMillis Long.MinValue
+        val idleFlow = flowManager.oldestIdleFlow
+        idleFlow setLastUsedTimeMillis Long.MinValue
 
-        flowManager.checkFlowsExpiration()
+        flowManager.checkFlowsExpiration(idleFlow.expirationTimer.deadline)
         flowManager.getNumDpFlows shouldBe 0
     }
 
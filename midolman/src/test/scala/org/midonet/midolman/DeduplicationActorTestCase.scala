@@ -297,8 +297,12 @@ class DeduplicationActorTestCase extends MidolmanSpec {
 
         implicit override val dispatcher = this.context.dispatcher
 
-        def pendedPackets(cookie: Int): Option[collection.Set[Packet]] =
-            cookieToPendedPackets.get(cookie)
+        def pendedPackets(cookie: Int): Option[collection.Set[Packet]] = {
+            val entry = pendingPackets.find(cookie)
+            if (entry == PendingPacketTable.NONE) None
+            else Some((0 until pendingPackets.pendedCount(entry)).map(
+                          pendingPackets.pendedPacket(entry, _)).toSet)
+        }
 
         def complete(wcmatch: FlowMatch, actions: List[FlowAction]): Unit = {
             workflow.asInstanceOf[MockPacketHandler].complete(wcmatch, actions)
@@ -17,6 +17,7 @@
 package org.midonet.midolman
 
 import java.util.{ArrayList, List => JList}
+import java.util.concurrent.TimeUnit
 
 import scala.collection.JavaConversions._
 import scala.util.Random
@@ -29,6 +30,7 @@ import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.odp.flows.{FlowKeys, FlowAction}
 import org.midonet.odp.{FlowMatch, Flow}
 import org.midonet.sdn.flows._
+import org.midonet.util.MockClock
 import org.midonet.util.functors.Callback0
 import org.midonet.sdn.flows.FlowTagger.{TunnelKeyTag, FlowTag}
 
@@ -41,6 +43,12 @@ class FlowControllerTestCase extends MidolmanSpec {
     val flowTimeout: Int = 1000
     val tagCount: Int = 10
 
+    // The flow manager measures the flow time-outs with the time of this
+    // clock, which the tests move forward to expire the flows.
+    clock = new MockClock {
+        override def getTime: Long = TimeUnit.NANOSECONDS.toMillis(time)
+    }
+
     def flowController = FlowController.as[FlowController
                                            with MessageAccumulator]
 
@@ -130,6 +138,30 @@ class FlowControllerTestCase extends MidolmanSpec {
                 }
             }
         }
+
+        scenario("Test the window of an event history.") {
+            Given("An event history of 4 slots.")
+            val history = new EventHistory[Int](4)
+            history.exists(0, 1) should be (EventSearchWindowMissed)
+            history.missedWindows should be (0)
+
+            When("Six events are put, the first one twice.")
+            Seq(1, 2, 3, 1, 4, 5) foreach history.put
+
+            Then("The history holds the last four events.")
+            history.youngest should be (6)
+            history.oldest should be (3)
+
+            And("Events are found by their last occurrence.")
+            history.exists(3, Set(1, 2)) should be (EventSeen)
+            history.exists(4, Set(1, 2, 3)) should be (EventNotSeen)
+            history.exists(5, 5) should be (EventSeen)
+            history.exists(6, 5) should be (EventNotSeen)
+
+            And("Searches older than the window are counted as misses.")
+            history.exists(1, 5) should be (EventSearchWindowMissed)
+            history.missedWindows should be (1)
+        }
     }
 
     feature("The flow controller processes wildcard flows") {
@@ -323,7 +355,10 @@ class FlowControllerTestCase extends MidolmanSpec {
 
             val mwcFlow = testFlowAdded(flow, state)
 
-            When("The flow controller checks the flow expiration.")
+            When("Less time than the flow time-out goes by.")
+            advanceClock(flowTimeout - 1)
+
+            And("The flow controller checks the flow expiration.")
             FlowController ! FlowController.CheckFlowExpiration_
 
             testFlowExists(flow, mwcFlow, state)
@@ -514,12 +549,16 @@ class FlowControllerTestCase extends MidolmanSpec {
         }
     }
 
+    private def advanceClock(millis: Long) {
+        clock.time += TimeUnit.MILLISECONDS.toNanos(millis)
+    }
+
     private def expireFlowHard(mwcFlow: ManagedWildcardFlow) {
-        mwcFlow.setCreationTimeMillis(System.currentTimeMillis() - flowTimeout)
+        advanceClock(mwcFlow.getHardExpirationMillis)
     }
 
     private def expireFlowIdle(mwcFlow: ManagedWildcardFlow) {
-        mwcFlow.setLastUsedTimeMillis(System.currentTimeMillis() - flowTimeout)
+        advanceClock(mwcFlow.getIdleExpirationMillis)
     }
 
     sealed abstract class TestableFlowType
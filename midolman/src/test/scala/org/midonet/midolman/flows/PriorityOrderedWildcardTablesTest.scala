@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.EnumSet
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers}
+
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.sdn.flows.{ManagedWildcardFlow, WildcardFlow, WildcardMatch}
+
+@RunWith(classOf[JUnitRunner])
+class PriorityOrderedWildcardTablesTest extends FeatureSpec
+                                        with Matchers
+                                        with BeforeAndAfter {
+
+    var tables: PriorityOrderedWildcardTables = _
+
+    val srcMac = MAC.random()
+    val dstMac = MAC.random()
+    val dstIp = IPv4Addr.random
+
+    before {
+        tables = new PriorityOrderedWildcardTables()
+    }
+
+    def packetMatch = new WildcardMatch()
+        .setInputPortNumber(1)
+        .setEthSrc(srcMac)
+        .setEthDst(dstMac)
+        .setNetworkDst(dstIp)
+
+    def add(wcMatch: WildcardMatch, priority: Short): ManagedWildcardFlow = {
+        val flow = ManagedWildcardFlow.create(
+            WildcardFlow(wcMatch, priority = priority))
+        val pattern = EnumSet.copyOf(flow.getMatch.getUsedFields)
+        tables.addTable(pattern).put(flow.wcmatch, flow)
+        flow
+    }
+
+    def remove(flow: ManagedWildcardFlow) {
+        val pattern = flow.getMatch.getUsedFields
+        val table = tables.tables.get(pattern)
+        table.remove(flow.wcmatch)
+        if (table.isEmpty)
+            tables.tables.remove(pattern)
+    }
+
+    feature("Lookups return the best matching flow") {
+        scenario("An empty index misses") {
+            tables.lookup(packetMatch) should be (null)
+        }
+
+        scenario("A match using fields outside the pattern is projected") {
+            val flow = add(new WildcardMatch().setEthDst(dstMac), 0)
+            tables.lookup(packetMatch) should be (flow)
+        }
+
+        scenario("A pattern using fields absent from the match misses") {
+            add(new WildcardMatch().setEthDst(dstMac).setTunnelKey(10), 0)
+            tables.lookup(packetMatch) should be (null)
+        }
+
+        scenario("The flow with the lowest priority value wins") {
+            add(new WildcardMatch().setEthDst(dstMac), 10)
+            val best = add(new WildcardMatch().setEthSrc(srcMac), 2)
+            add(new WildcardMatch().setNetworkDst(dstIp), 5)
+            tables.numPatterns should be (3)
+            tables.lookup(packetMatch) should be (best)
+        }
+
+        scenario("Tables are re-ranked when their best flow goes away") {
+            val first = add(new WildcardMatch().setEthDst(dstMac), 1)
+            val second = add(new WildcardMatch().setEthSrc(srcMac), 3)
+            tables.lookup(packetMatch) should be (first)
+
+            remove(first)
+            tables.numPatterns should be (1)
+            tables.lookup(packetMatch) should be (second)
+
+            val third = add(new WildcardMatch().setEthDst(dstMac), 7)
+            tables.lookup(packetMatch) should be (second)
+
+            remove(second)
+            tables.lookup(packetMatch) should be (third)
+        }
+
+        scenario("A better flow in an already ranked table is found") {
+            add(new WildcardMatch().setEthDst(dstMac), 4)
+            add(new WildcardMatch().setEthSrc(srcMac).setEthDst(MAC.random()), 1)
+            val better = add(new WildcardMatch().setEthSrc(srcMac), 0)
+            tables.lookup(packetMatch) should be (better)
+        }
+
+        scenario("Lookups reuse the projection buffer safely") {
+            val flow = add(new WildcardMatch().setEthDst(dstMac), 0)
+            val other = packetMatch.setEthDst(MAC.random())
+            tables.lookup(other) should be (null)
+            tables.lookup(packetMatch) should be (flow)
+        }
+    }
+
+    feature("Clearing the index") {
+        scenario("Clear drops every pattern") {
+            add(new WildcardMatch().setEthDst(dstMac), 0)
+            tables.clear()
+            tables.numPatterns should be (0)
+            tables.lookup(packetMatch) should be (null)
+        }
+    }
+}
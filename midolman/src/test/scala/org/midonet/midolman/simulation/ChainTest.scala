@@ -133,6 +133,15 @@ class ChainTest extends Suite
         applyChain(outerJumpChain).action should be (Action.REJECT)
     }
 
+    def testVisitedChainsAreForgottenBetweenApplications() {
+        val rejectChain = makeChain(List(rejectRule))
+        val jumpChain = makeChain(List(makeJumpRule(rejectChain)),
+                                  List(rejectChain))
+        applyChain(rejectChain).action should be (Action.REJECT)
+        applyChain(jumpChain).action should be (Action.REJECT)
+        applyChain(jumpChain).action should be (Action.REJECT)
+    }
+
     /*
      * outerJumpChain
      *   innerJumpToContinueChain
@@ -229,6 +238,30 @@ class ChainTest extends Suite
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    /*
+     * newChain:
+     *   Jump to middleChain:
+     *     Jump to oldChain <-- Loop detected, same ID as newChain.
+     *   Accept <-- Stop here
+     * oldChain:
+     *   Reject <-- Never reached.
+     */
+    def testLoopThroughOlderVersionOfChain() {
+        val chainId = UUID.randomUUID
+        val oldChain = new Chain(chainId, List[Rule](rejectRule).asJava,
+                                 Map[UUID, Chain](), "Chain-" + chainId)
+        val middleChain = makeChain(List(makeJumpRule(oldChain)),
+                                    List(oldChain))
+        val newChain = new Chain(chainId,
+                                 List[Rule](makeJumpRule(middleChain),
+                                            acceptRule).asJava,
+                                 Map(middleChain.id -> middleChain),
+                                 "Chain-" + chainId)
+
+        applyChain(newChain).action should be (Action.ACCEPT)
+        applyChain(middleChain).action should be (Action.REJECT)
+    }
+
     private def applyChain(c: Chain) =
         Chain.apply(c, pktCtx, ownerId, false)
 
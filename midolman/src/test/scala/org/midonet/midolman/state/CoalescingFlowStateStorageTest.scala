@@ -0,0 +1,221 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{UUID, Iterator => JIterator}
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.IPv4Addr
+import org.midonet.util.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class CoalescingFlowStateStorageTest extends FeatureSpec
+                                     with BeforeAndAfter
+                                     with Matchers
+                                     with GivenWhenThen {
+
+    /* Records the rows written to it, one batch per call to submit() */
+    class RecordingStateStorage extends MockStateStorage {
+        var current = ListBuffer[(Any, UUID, Boolean)]()
+        val batches = ListBuffer[List[(Any, UUID, Boolean)]]()
+
+        private def record(k: Any, strongRef: UUID, weakRefs: JIterator[UUID]) {
+            if (strongRef ne null)
+                current += ((k, strongRef, true))
+            for (port <- weakRefs.asScala)
+                current += ((k, port, false))
+        }
+
+        override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
+                                       weakRefs: JIterator[UUID]): Unit =
+            record(k, strongRef, weakRefs)
+
+        override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
+                                 weakRefs: JIterator[UUID]): Unit =
+            record((k, v), strongRef, weakRefs)
+
+        override def submit(): Unit = {
+            batches += current.toList
+            current = ListBuffer()
+        }
+
+        def rows = batches.flatten.toList
+    }
+
+    val ingress = UUID.randomUUID()
+    val egress = UUID.randomUUID()
+
+    def connTrackKey(port: Int) =
+        ConnTrackKey(IPv4Addr.fromString("10.0.0.1"), port,
+                     IPv4Addr.fromString("10.0.0.2"), 80, 6, ingress)
+
+    val natKey = NatKey(NatState.FWD_SNAT, IPv4Addr.fromString("10.0.0.1"),
+                        1000, IPv4Addr.fromString("10.0.0.2"), 80, 6, ingress)
+    val binding = NatBinding(IPv4Addr.fromString("200.0.0.1"), 20000)
+
+    var clock: MockClock = _
+    var underlying: RecordingStateStorage = _
+    var storage: CoalescingFlowStateStorage = _
+
+    def touch(k: ConnTrackKey) {
+        storage.touchConnTrackKey(k, ingress, List(egress).iterator.asJava)
+    }
+
+    before {
+        clock = new MockClock()
+        underlying = new RecordingStateStorage()
+        storage = new CoalescingFlowStateStorage(underlying, clock, 10 seconds, 0)
+    }
+
+    feature("Touches are coalesced") {
+        scenario("Duplicated touches within a batch") {
+            Given("A key touched three times")
+            touch(connTrackKey(1))
+            touch(connTrackKey(1))
+            touch(connTrackKey(1))
+
+            When("The batch is submitted")
+            storage.submit()
+
+            Then("The rows are written once")
+            underlying.rows should be (List((connTrackKey(1), ingress, true),
+                                            (connTrackKey(1), egress, false)))
+            storage.coalescedWrites should be (4)
+        }
+
+        scenario("Touches within the refresh window") {
+            Given("A key that was written")
+            touch(connTrackKey(1))
+            storage.submit()
+
+            When("It is touched again within the refresh window")
+            clock.time += (9 seconds).toNanos
+            touch(connTrackKey(1))
+            storage.submit()
+
+            Then("Nothing is written")
+            underlying.rows should have size 2
+
+            When("It is touched after the refresh window")
+            clock.time += (1 second).toNanos
+            touch(connTrackKey(1))
+            storage.submit()
+
+            Then("The rows are written again")
+            underlying.rows should have size 4
+        }
+
+        scenario("The refresh window is capped at half the key's TTL") {
+            Given("A key that expires after 4 seconds")
+            val k = connTrackKey(1)
+            k.expiresAfter = 4 seconds
+            touch(k)
+            storage.submit()
+
+            When("It is touched 2 seconds later")
+            clock.time += (2 seconds).toNanos
+            touch(k)
+            storage.submit()
+
+            Then("It is written again")
+            underlying.rows should have size 4
+        }
+
+        scenario("NAT keys whose binding changes are written") {
+            storage.touchNatKey(natKey, binding, ingress,
+                                List[UUID]().iterator.asJava)
+            storage.submit()
+
+            val newBinding = NatBinding(IPv4Addr.fromString("200.0.0.1"), 20001)
+            storage.touchNatKey(natKey, binding, ingress,
+                                List[UUID]().iterator.asJava)
+            storage.touchNatKey(natKey, newBinding, ingress,
+                                List[UUID]().iterator.asJava)
+            storage.submit()
+
+            underlying.rows should be (List(((natKey, binding), ingress, true),
+                                            ((natKey, newBinding), ingress, true)))
+        }
+
+        scenario("A zero refresh window only coalesces within a batch") {
+            storage = new CoalescingFlowStateStorage(underlying, clock,
+                                                     Duration.Zero, 0)
+            touch(connTrackKey(1))
+            touch(connTrackKey(1))
+            storage.submit()
+            touch(connTrackKey(1))
+            storage.submit()
+
+            underlying.rows should have size 4
+        }
+    }
+
+    feature("Writes are rate limited") {
+        scenario("Writes over the rate are delayed") {
+            Given("A storage that allows 10 writes per second")
+            storage = new CoalescingFlowStateStorage(underlying, clock,
+                                                     10 seconds, 10)
+
+            When("25 rows are touched")
+            for (i <- 1 to 12)
+                touch(connTrackKey(i))
+            storage.touchConnTrackKey(connTrackKey(13), ingress,
+                                      List[UUID]().iterator.asJava)
+            storage.submit()
+
+            Then("The first 10 are written")
+            underlying.batches.map(_.size) should be (List(10))
+
+            When("Half a second passes")
+            clock.time += (500 millis).toNanos
+            storage.submit()
+
+            Then("5 more rows are written")
+            underlying.batches.map(_.size) should be (List(10, 5))
+
+            When("Another second passes")
+            clock.time += (1 second).toNanos
+            storage.submit()
+
+            Then("The remaining rows are written, in touch order")
+            underlying.batches.map(_.size) should be (List(10, 5, 10))
+            underlying.rows.map(_._1).distinct should be ((1 to 13) map connTrackKey)
+        }
+
+        scenario("Touches are dropped when too many writes are pending") {
+            storage = new CoalescingFlowStateStorage(underlying, clock,
+                                                     10 seconds, 1, 4)
+            for (i <- 1 to 4)
+                touch(connTrackKey(i))
+            storage.droppedWrites should be (4)
+
+            for (i <- 1 to 10) {
+                clock.time += (1 second).toNanos
+                storage.submit()
+            }
+            underlying.rows should have size 4
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.{IPv4Addr, IPv6Addr}
+import org.midonet.rpc.{FlowStateProto => Proto}
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateMessagesTest extends FeatureSpec
+                            with Matchers
+                            with GivenWhenThen {
+    import FlowStatePackets._
+
+    val sender = UUID.randomUUID()
+    val ingressPort = UUID.randomUUID()
+    val egressPort = UUID.randomUUID()
+
+    val connTrackKey = ConnTrackKey(IPv4Addr.fromString("10.0.0.1"), 1234,
+                                    IPv4Addr.fromString("200.0.0.2"), 22,
+                                    6, UUID.randomUUID())
+    val connTrackKey6 = ConnTrackKey(
+        IPv6Addr.fromString("fe80:0:0:0:0:0:c0a8:1"), 60000,
+        IPv6Addr.fromString("ffff:0:0:0:0:0:0:2"), 443, 17, UUID.randomUUID())
+    val natKeys = List(
+        NatKey(NatState.FWD_SNAT, IPv4Addr.fromString("192.168.10.1"), 10001,
+               IPv4Addr.fromString("17.16.15.1"), 80, 6, UUID.randomUUID()),
+        NatKey(NatState.REV_STICKY_DNAT, IPv4Addr.fromString("250.1.1.1"), 0,
+               IPv4Addr.fromString("17.16.15.2"), 65535, 17, UUID.randomUUID()))
+    val natBindings = List(
+        NatBinding(IPv4Addr.fromString("1.2.3.4"), 54321),
+        NatBinding(IPv4Addr.fromString("255.3.2.1"), 1))
+
+    private def outgoingState(ck: ConnTrackKey): OutgoingFlowState = {
+        val state = new OutgoingFlowState()
+        state.conntrackKey = ck
+        for ((k, v) <- natKeys zip natBindings)
+            state.addNatEntry(k, v)
+        state.ingressPort = ingressPort
+        state.egressPort = egressPort
+        state
+    }
+
+    feature("Encoded messages are compatible with the protobuf schema") {
+        scenario("Messages can be read by the protobuf parser") {
+            Given("A message encoded by the StateMessageEncoder")
+            val buf = new Array[Byte](MTU - OVERHEAD)
+            val len = new StateMessageEncoder().encode(
+                buf, sender, -1L, outgoingState(connTrackKey6))
+            len should be > 0
+
+            When("It is parsed by the generated protobuf classes")
+            val input = new ByteArrayInputStream(buf, 0, len)
+            val msg = Proto.StateMessage.parseDelimitedFrom(input)
+
+            Then("It carries the same state")
+            input.available() should be (0)
+            uuidFromProto(msg.getSender) should be (sender)
+            msg.getEpoch should be (-1L)
+            msg.getNewStateCount should be (1)
+            val state = msg.getNewState(0)
+            uuidFromProto(state.getIngressPort) should be (ingressPort)
+            uuidFromProto(state.getEgressPort) should be (egressPort)
+            state.hasEgressPortSet should be (false)
+            connTrackKeyFromProto(state.getConntrackKey) should be (connTrackKey6)
+            state.getNatEntriesList.asScala.map(e => natKeyFromProto(e.getK)) should
+                be (natKeys)
+            state.getNatEntriesList.asScala.map(e => natBindingFromProto(e.getV)) should
+                be (natBindings)
+        }
+
+        scenario("Messages written by the protobuf classes can be decoded") {
+            Given("A message written by the generated protobuf classes")
+            val state = Proto.FlowState.newBuilder()
+                .setConntrackKey(connTrackKeyToProto(connTrackKey))
+                .setIngressPort(uuidToProto(ingressPort))
+                .setEgressPortSet(uuidToProto(egressPort))
+            for ((k, v) <- natKeys zip natBindings) {
+                state.addNatEntries(Proto.NatEntry.newBuilder()
+                    .setK(natKeyToProto(k)).setV(natBindingToProto(v)))
+            }
+            val msg = Proto.StateMessage.newBuilder()
+                .setSeq(1).setSender(uuidToProto(sender)).setEpoch(42)
+                .addNewState(state).build()
+            val out = new ByteArrayOutputStream()
+            msg.writeDelimitedTo(out)
+            val bytes = out.toByteArray ++ new Array[Byte](100)
+
+            When("It is decoded by the StateMessageDecoder")
+            val decoder = new StateMessageDecoder()
+            decoder.decode(bytes, 0, bytes.length) should be (true)
+
+            Then("It carries the same state")
+            decoder.sender should be (sender)
+            decoder.epoch should be (42L)
+            decoder.conntrackKeys.asScala should be (List(connTrackKey))
+            decoder.natKeys.asScala should be (natKeys)
+            decoder.natBindings.asScala should be (natBindings)
+        }
+
+        scenario("The encoding matches the protobuf encoding byte by byte") {
+            val buf = new Array[Byte](MTU - OVERHEAD)
+            val len = new StateMessageEncoder().encode(
+                buf, sender, 7L, outgoingState(connTrackKey))
+
+            val state = Proto.FlowState.newBuilder()
+                .setConntrackKey(connTrackKeyToProto(connTrackKey))
+                .setIngressPort(uuidToProto(ingressPort))
+                .setEgressPort(uuidToProto(egressPort))
+            for ((k, v) <- natKeys zip natBindings) {
+                state.addNatEntries(Proto.NatEntry.newBuilder()
+                    .setK(natKeyToProto(k)).setV(natBindingToProto(v)))
+            }
+            val out = new ByteArrayOutputStream()
+            Proto.StateMessage.newBuilder()
+                .setSeq(1).setSender(uuidToProto(sender)).setEpoch(7)
+                .addNewState(state).build().writeDelimitedTo(out)
+
+            buf.take(len) should be (out.toByteArray)
+        }
+    }
+
+    feature("Encoding and decoding") {
+        scenario("IPv6 conntrack keys survive a round trip") {
+            val buf = new Array[Byte](MTU - OVERHEAD)
+            val state = new OutgoingFlowState()
+            state.conntrackKey = connTrackKey6
+            state.ingressPort = ingressPort
+            new StateMessageEncoder().encode(buf, sender, 1L, state)
+
+            val decoder = new StateMessageDecoder()
+            decoder.decode(buf, 0, buf.length) should be (true)
+            decoder.conntrackKeys.asScala should be (List(connTrackKey6))
+            decoder.natKeys should be ('empty)
+        }
+
+        scenario("Messages that don't fit in the buffer are not encoded") {
+            val buf = new Array[Byte](64)
+            new StateMessageEncoder().encode(
+                buf, sender, 1L, outgoingState(connTrackKey)) should be (-1)
+            buf.forall(_ == 0) should be (true)
+        }
+
+        scenario("Truncated and corrupted messages are rejected") {
+            val buf = new Array[Byte](MTU - OVERHEAD)
+            val len = new StateMessageEncoder().encode(
+                buf, sender, 1L, outgoingState(connTrackKey))
+
+            val decoder = new StateMessageDecoder()
+            decoder.decode(buf, 0, len - 1) should be (false)
+            decoder.decode(new Array[Byte](10), 0, 10) should be (false)
+            val corrupted = buf.clone()
+            val prefixLength = if ((buf(0) & 0x80) != 0) 2 else 1
+            corrupted(prefixLength) = 0x0F.toByte // an invalid wire type
+            decoder.decode(corrupted, 0, len) should be (false)
+            decoder.decode(buf, 0, len) should be (true)
+        }
+    }
+}
@@ -19,6 +19,7 @@ package org.midonet.midolman.state
 import java.util.UUID
 import scala.collection.JavaConversions._
 import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
 import scala.concurrent.Await
 import scala.concurrent.duration._
 
@@ -115,5 +116,31 @@ class FlowStateStorageTest extends FeatureSpec
                 }
             }
         }
+
+        scenario("Keys are streamed in pages") {
+            Given("150 conntrack keys in storage")
+            val keys = (1 to 150) map { i =>
+                ConnTrackKey("10.0.0.1", i, "10.0.0.2", 80, 6, UUID.randomUUID())
+            }
+            for (k <- keys) {
+                storage.touchConnTrackKey(k, ingressPort, egressPorts.asJava.iterator())
+            }
+            storage.submit()
+
+            When("They are streamed in pages of 40 keys")
+            val pages = ListBuffer[java.util.Set[ConnTrackKey]]()
+            eventually {
+                pages.clear()
+                val future = storage.streamConnTrackRefs(ingressPort, strong = true, 40) {
+                    page => pages += page
+                }
+                Await.result(future, timeout) should be (keys.size)
+            }
+
+            Then("All the keys are handed over, in pages of at most 40 keys")
+            pages.size should be >= 4
+            pages.map(_.size).max should be <= 40
+            pages.flatMap(_.asScala).toSet should be (keys.toSet)
+        }
     }
 }
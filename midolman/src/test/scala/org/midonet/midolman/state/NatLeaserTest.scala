@@ -42,26 +42,26 @@ class NatLeaserTest extends FeatureSpec
     val dev = UUID.randomUUID()
     val clock = new MockClock()
     val allocatedBlocks = mutable.Set[NatBlock]()
+    val blockAllocator = new NatBlockAllocator {
+        override def allocateBlockInRange(natRange: NatRange,
+                                          callback: Callback[NatBlock, Exception]): Unit =
+            callback.onSuccess(
+                (natRange.tpPortStart to natRange.tpPortEnd) map { port =>
+                    new NatBlock(natRange.deviceId, natRange.ip, blockOf(port))
+                } find { block =>
+                    if (allocatedBlocks contains block) {
+                        false
+                    } else {
+                        allocatedBlocks += block
+                        true
+                    }
+                } getOrElse NatBlock.NO_BLOCK)
+
+        override def freeBlock(natBlock: NatBlock): Unit = {}
+    }
     val natLeaser = new NatLeaser {
         override val log = Logger(NOPLogger.NOP_LOGGER)
-        override val allocator: NatBlockAllocator = new NatBlockAllocator {
-            override def allocateBlockInRange(natRange: NatRange,
-                                              callback: Callback[NatBlock, Exception]): Unit =
-                callback.onSuccess(
-                    (natRange.tpPortStart to natRange.tpPortEnd) map { port =>
-                        new NatBlock(natRange.deviceId, natRange.ip, blockOf(port))
-                    } find { block =>
-                        if (allocatedBlocks contains block) {
-                            false
-                        } else {
-                            allocatedBlocks += block
-                            true
-                        }
-                    } getOrElse NatBlock.NO_BLOCK)
-
-            override def freeBlock(natBlock: NatBlock): Unit = {}
-        }
-
+        override val allocator: NatBlockAllocator = blockAllocator
         override val clock: Clock = NatLeaserTest.this.clock
     }
 
@@ -146,6 +146,31 @@ class NatLeaserTest extends FeatureSpec
             nextBinding.transportPort should not be binding.transportPort
         }
 
+        scenario("Every port of a block") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            val port = 0
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+
+            val bindings = (0 until NatBlock.BLOCK_SIZE) map { _ =>
+                natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+            bindings.map(_.transportPort).toSet should be (
+                (0 until NatBlock.BLOCK_SIZE).toSet)
+
+            val freedBinding = bindings(NatBlock.BLOCK_SIZE / 2)
+            natLeaser.freeNatBinding(dev, ip, port, freedBinding)
+
+            natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget)) should be (freedBinding)
+            natLeaser.allocateNatBinding(dev, IPv4Addr.random, port, Array(natTarget))
+                     .transportPort should be < NatBlock.BLOCK_SIZE
+        }
+
         scenario("Multiple blocks same IP") {
             val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
                                           IPv4Addr("10.0.1.1").addr,
@@ -338,4 +363,57 @@ class NatLeaserTest extends FeatureSpec
             }
         }
     }
+
+    feature("NatBlocks are leased ahead of time") {
+        scenario("A block is leased when the threshold is crossed") {
+            val preLeaser = new NatLeaser {
+                override val log = Logger(NOPLogger.NOP_LOGGER)
+                override val allocator: NatBlockAllocator = blockAllocator
+                override val clock: Clock = NatLeaserTest.this.clock
+                override val preLeasePercent = 50
+            }
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          2 * NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                preLeaser.allocateNatBinding(dev, ip, 0, Array(natTarget))
+            }
+
+            for (port <- 0 until NatBlock.BLOCK_SIZE / 2 - 1) {
+                val binding = preLeaser.allocateNatBinding(dev, ip, port,
+                                                           Array(natTarget))
+                blockOf(binding.transportPort) should be (0)
+            }
+            allocatedBlocks should be (mutable.Set(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 0)))
+
+            preLeaser.allocateNatBinding(dev, ip, NatBlock.BLOCK_SIZE / 2,
+                                         Array(natTarget))
+            allocatedBlocks should be (mutable.Set(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 0),
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 1)))
+
+            for (port <- NatBlock.BLOCK_SIZE / 2 + 1 to NatBlock.BLOCK_SIZE) {
+                preLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+            allocatedBlocks.size should be (2)
+        }
+
+        scenario("No block is leased ahead of time by default") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          2 * NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, 0, Array(natTarget))
+            }
+            for (port <- 0 until NatBlock.BLOCK_SIZE) {
+                natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+            allocatedBlocks.size should be (1)
+        }
+    }
 }
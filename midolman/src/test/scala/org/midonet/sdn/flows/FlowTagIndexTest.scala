@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.UUID
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{GivenWhenThen, Matchers, FeatureSpec}
+
+import org.midonet.sdn.flows.FlowTagger.{FlowTag, tagForDevice}
+
+@RunWith(classOf[JUnitRunner])
+class FlowTagIndexTest extends FeatureSpec
+                       with Matchers
+                       with GivenWhenThen {
+
+    var priority: Short = 0
+
+    // Flows are compared by value, so each one is given its own priority.
+    def flowWithTags(tags: FlowTag*): ManagedWildcardFlow = {
+        priority = (priority + 1).toShort
+        val flow = ManagedWildcardFlow.create(
+            WildcardFlow(new WildcardMatch(), priority = priority))
+        flow.tags = tags.toArray
+        flow
+    }
+
+    feature("Flows are indexed by tag") {
+        scenario("Flows are found by each of their tags") {
+            Given("An index with flows that share some tags")
+            val index = new FlowTagIndex(2)
+            val tags = (0 until 3) map { _ => tagForDevice(UUID.randomUUID()) }
+            val flow1 = flowWithTags(tags(0), tags(1))
+            val flow2 = flowWithTags(tags(1), tags(2))
+            val flow3 = flowWithTags(tags(1))
+            Seq(flow1, flow2, flow3) foreach index.add
+
+            Then("Each tag lists the flows tagged with it")
+            index.flowsTaggedWith(tags(0)).toSet should be (Set(flow1))
+            index.flowsTaggedWith(tags(1)).toSet should be (Set(flow1, flow2, flow3))
+            index.flowsTaggedWith(tags(2)).toSet should be (Set(flow2))
+            index.get(FlowTagger.DeviceTag(tags(2).asInstanceOf[
+                FlowTagger.DeviceTag].device)) should be (Some(Set(flow2)))
+
+            When("A flow is removed")
+            index.remove(flow2)
+
+            Then("It no longer appears under any of its tags")
+            index.flowsTaggedWith(tags(1)).toSet should be (Set(flow1, flow3))
+            index.get(tags(2)) should be (None)
+            FlowTagger.tagIdOf(tags(2)) should be (FlowTagger.NO_TAG_ID)
+            flow2.tagLinks should be (null)
+
+            When("The remaining flows are removed")
+            index.remove(flow1)
+            index.remove(flow3)
+
+            Then("The tags are no longer referenced")
+            tags foreach { tag =>
+                index.get(tag) should be (None)
+                FlowTagger.tagIdOf(tag) should be (FlowTagger.NO_TAG_ID)
+            }
+        }
+
+        scenario("Links are reused") {
+            val index = new FlowTagIndex(1)
+            val tag = tagForDevice(UUID.randomUUID())
+            for (i <- 0 until 100) {
+                val flows = (0 until 10) map { _ => flowWithTags(tag) }
+                flows foreach index.add
+                index.flowsTaggedWith(tag).size should be (10)
+                flows foreach index.remove
+                index.get(tag) should be (None)
+            }
+        }
+
+        scenario("Flows without tags are ignored") {
+            val index = new FlowTagIndex()
+            val flow = ManagedWildcardFlow.create(WildcardFlow(new WildcardMatch()))
+            index.add(flow)
+            index.remove(flow)
+            flow.tagLinks should be (null)
+        }
+    }
+}
@@ -61,6 +61,36 @@ class FlowTaggerTest extends FeatureSpecLike
         }
     }
 
+    feature("FlowTags are given dense ids while they are referenced") {
+        scenario("Equal tags share an id") {
+            val device = UUID.randomUUID()
+            val tag = FlowTagger.DeviceTag(device)
+            FlowTagger.tagIdOf(tag) should be (FlowTagger.NO_TAG_ID)
+
+            val id = FlowTagger.acquireTagId(tag)
+            FlowTagger.acquireTagId(FlowTagger.DeviceTag(device)) should be (id)
+            FlowTagger.tagIdOf(tagForDevice(device)) should be (id)
+            FlowTagger.tagIdOf(tagForDevice(UUID.randomUUID())) should be (
+                FlowTagger.NO_TAG_ID)
+
+            FlowTagger.releaseTagId(id)
+            FlowTagger.tagIdOf(tag) should be (id)
+            FlowTagger.releaseTagId(id)
+            FlowTagger.tagIdOf(tag) should be (FlowTagger.NO_TAG_ID)
+        }
+
+        scenario("Released ids are reused") {
+            val tag = tagForDevice(UUID.randomUUID())
+            val id = FlowTagger.acquireTagId(tag)
+            FlowTagger.releaseTagId(id)
+
+            val otherTag = tagForDevice(UUID.randomUUID())
+            FlowTagger.acquireTagId(otherTag) should be (id)
+            FlowTagger.tagIdOf(tag) should be (FlowTagger.NO_TAG_ID)
+            FlowTagger.releaseTagId(id)
+        }
+    }
+
     def flowTags() = {
         val rand = new Random
         val short = rand.nextInt(Short.MaxValue).toShort
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel: a set of timers ordered by deadline, where
+ * scheduling and cancelling a timer are O(1) and expired timers are
+ * collected in batches, a whole slot at a time.
+ *
+ * The wheel has LEVELS levels of SLOTS slots each. The slots of the first
+ * level span one tick, the slots of each next level span the whole previous
+ * level. A timer is kept in the first level whose range covers its deadline
+ * and it is moved down a level each time the wheel reaches the slot holding
+ * it, so it is cascaded at most LEVELS - 1 times. Deadlines farther than the
+ * range of the wheel are parked in the last level and rescheduled when it
+ * comes around.
+ *
+ * Timers are intrusive nodes: the caller keeps the Timer for an element and
+ * uses it to reschedule or cancel it. A Timer belongs to at most one wheel
+ * at a time. This class is not thread-safe.
+ */
+public final class TimingWheel<T> {
+
+    public static final class Timer<T> {
+        public final T value;
+        private long deadline;
+        private long tick;
+        private int slot = NO_SLOT;
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        public Timer(T value) {
+            this.value = value;
+        }
+
+        public boolean isScheduled() {
+            return slot != NO_SLOT;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+    }
+
+    private static final int NO_SLOT = -1;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+    // Holds the timers scheduled at a tick the wheel has already gone past.
+    private static final int OVERDUE = SLOTS * LEVELS;
+
+    private final long tickDuration;
+    @SuppressWarnings("unchecked")
+    private final Timer<T>[] slots = new Timer[SLOTS * LEVELS + 1];
+    private final int[] levelSizes = new int[LEVELS + 1];
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * Creates a wheel whose first level has a resolution of tickDuration
+     * time units, with time starting at startTime. Timers expire at the
+     * first tick that is at or after their deadline.
+     */
+    public TimingWheel(long startTime, long tickDuration) {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("tickDuration must be positive");
+        this.tickDuration = tickDuration;
+        this.currentTick = startTime / tickDuration;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Schedules the timer to expire at the given deadline, rescheduling it if
+     * it was already scheduled. Deadlines the wheel has already gone past
+     * expire on the next call to advance().
+     */
+    public void schedule(Timer<T> timer, long deadline) {
+        if (timer.isScheduled())
+            unlink(timer);
+        else
+            size++;
+        timer.deadline = deadline;
+        long tick = deadline / tickDuration;
+        if (deadline % tickDuration != 0)
+            tick++;
+        timer.tick = tick;
+        insert(timer);
+    }
+
+    /**
+     * Cancels the timer. Returns false if it wasn't scheduled.
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (!timer.isScheduled())
+            return false;
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves the wheel forward to the given time, appending the values of the
+     * timers whose deadline is at or before it to the expired list. Expired
+     * timers are no longer scheduled when they are handed out, so they can
+     * be rescheduled. Returns the number of expired timers.
+     */
+    public int advance(long now, List<? super T> expired) {
+        long nowTick = now / tickDuration;
+        int count = expire(detach(OVERDUE), expired);
+        while (currentTick <= nowTick) {
+            if (size == 0) {
+                currentTick = nowTick + 1;
+                break;
+            }
+            if ((currentTick & SLOT_MASK) == 0)
+                cascade(1);
+            if (levelSizes[0] > 0) {
+                count += expire(detach((int) (currentTick & SLOT_MASK)),
+                                expired);
+                currentTick++;
+            } else {
+                // Nothing happens until the next slot of the first
+                // non-empty level is reached.
+                int level = 1;
+                while (levelSizes[level] == 0)
+                    level++;
+                long span = 1L << (SLOT_BITS * level);
+                currentTick = Math.min((currentTick | (span - 1)) + 1,
+                                       nowTick + 1);
+            }
+        }
+        return count;
+    }
+
+    private int expire(Timer<T> timer, List<? super T> expired) {
+        int count = 0;
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            if (timer.tick > currentTick) {
+                // Parked beyond the range of the wheel.
+                insert(timer);
+            } else {
+                size--;
+                expired.add(timer.value);
+                count++;
+            }
+            timer = next;
+        }
+        return count;
+    }
+
+    /**
+     * Removes and returns the value of one of the timers that will expire
+     * first. Timers in the higher levels are only ordered up to the slot
+     * they are in, so this is exact only for the next SLOTS ticks.
+     */
+    public T poll() {
+        if (size == 0)
+            return null;
+        if (slots[OVERDUE] != null) {
+            Timer<T> timer = slots[OVERDUE];
+            cancel(timer);
+            return timer.value;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            long levelTick = currentTick >>> shift;
+            for (int i = 0; i < SLOTS; i++) {
+                int slot = level * SLOTS + (int) ((levelTick + i) & SLOT_MASK);
+                Timer<T> timer = slots[slot];
+                if (timer != null) {
+                    cancel(timer);
+                    return timer.value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of the timer with the earliest deadline, scanning
+     * every scheduled timer. Meant for tests and diagnostics.
+     */
+    public T earliest() {
+        Timer<T> earliest = null;
+        for (Timer<T> head : slots) {
+            for (Timer<T> t = head; t != null; t = t.next) {
+                if (earliest == null || t.deadline < earliest.deadline)
+                    earliest = t;
+            }
+        }
+        return earliest == null ? null : earliest.value;
+    }
+
+    private void cascade(int level) {
+        if (level == LEVELS)
+            return;
+        int shift = SLOT_BITS * level;
+        long levelTick = currentTick >>> shift;
+        // Cascade the upper levels first, they may refill this one.
+        if ((levelTick & SLOT_MASK) == 0)
+            cascade(level + 1);
+        Timer<T> timer = detach(level * SLOTS + (int) (levelTick & SLOT_MASK));
+        while (timer != null) {
+            Timer<T> next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    private void insert(Timer<T> timer) {
+        long tick = timer.tick;
+        if (tick < currentTick) {
+            link(timer, OVERDUE);
+            return;
+        }
+        long delta = tick - currentTick;
+        if (delta > MAX_TICKS) {
+            tick = currentTick + MAX_TICKS;
+            delta = MAX_TICKS;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1))))
+            level++;
+        link(timer, level * SLOTS +
+                    (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK));
+    }
+
+    private void link(Timer<T> timer, int slot) {
+        Timer<T> head = slots[slot];
+        levelSizes[slot / SLOTS]++;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = head;
+        if (head != null)
+            head.prev = timer;
+        slots[slot] = timer;
+    }
+
+    private void unlink(Timer<T> timer) {
+        levelSizes[timer.slot / SLOTS]--;
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[timer.slot] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = NO_SLOT;
+    }
+
+    private Timer<T> detach(int slot) {
+        Timer<T> head = slots[slot];
+        slots[slot] = null;
+        for (Timer<T> t = head; t != null; t = t.next) {
+            t.slot = NO_SLOT;
+            levelSizes[slot / SLOTS]--;
+        }
+        return head;
+    }
+}
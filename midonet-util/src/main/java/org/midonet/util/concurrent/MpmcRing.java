@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.midonet.util.PaddedAtomicLong;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer ring of elements, after
+ * Dmitry Vyukov's bounded MPMC queue. Each slot carries a sequence number that
+ * tells producers and consumers whether it's ready for them, so that offer()
+ * and poll() only contend on a compare-and-set of the tail or the head.
+ *
+ * A slot that another thread has claimed but not yet filled or emptied isn't
+ * taken for a full or empty ring: offer() and poll() only fail when the head
+ * and tail say so, and otherwise retry until the other thread is done.
+ *
+ * The capacity is rounded up to a power of two. Null elements are not allowed.
+ */
+public final class MpmcRing<T> {
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicReferenceArray<T> elements;
+
+    private final PaddedAtomicLong head = new PaddedAtomicLong(0);
+    private final PaddedAtomicLong tail = new PaddedAtomicLong(0);
+
+    public MpmcRing(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+        int size = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        elements = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** Adds an element at the tail of the ring.
+     *
+     *  @return false if the ring is full. */
+    public boolean offer(T element) {
+        if (element == null)
+            throw new NullPointerException();
+
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0 && pos - head.get() >= mask + 1) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /** Removes the element at the head of the ring, or returns null if the
+     *  ring is empty. */
+    public T poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    T element = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.lazySet(index, pos + mask + 1);
+                    return element;
+                }
+                pos = head.get();
+            } else if (diff < 0 && pos >= tail.get()) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    /** The number of elements in the ring, which is only an estimate while
+     *  other threads are adding or removing elements. */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
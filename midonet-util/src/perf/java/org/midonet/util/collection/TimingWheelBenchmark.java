@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Replays a trace of flow expiration events, as seen by the FlowManager,
+ * against a TimingWheel and against the PriorityQueue it replaced. The trace
+ * fills the structure up to the given number of flows, then mixes adding
+ * flows, removing arbitrary flows (as invalidations do) and moving the clock
+ * forward to expire them, and finally drains it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class TimingWheelBenchmark {
+
+    private static final int ADD = 0;
+    private static final int REMOVE = 1;
+    private static final int ADVANCE = 2;
+
+    private static final int MAX_TIMEOUT = 60000;
+    private static final int MIXED_OPS = 100000;
+
+    static final class Flow {
+        long deadline;
+        final TimingWheel.Timer<Flow> timer = new TimingWheel.Timer<>(this);
+    }
+
+    @Param({"1000", "10000", "100000"})
+    public int flows;
+
+    @Param({"wheel", "priorityQueue"})
+    public String structure;
+
+    private int[] ops;
+    private long[] args;
+    private Flow[] flowPool;
+
+    private final ArrayList<Flow> expired = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(42);
+        int capacity = 2 * flows + 2 * MIXED_OPS + 1;
+        ops = new int[capacity];
+        args = new long[capacity];
+        flowPool = new Flow[flows + MIXED_OPS];
+        for (int i = 0; i < flowPool.length; i++)
+            flowPool[i] = new Flow();
+
+        // Ids of the flows that are live at each point of the trace.
+        int[] live = new int[flowPool.length];
+        int numLive = 0;
+        int nextFlow = 0;
+        long now = 0;
+        int n = 0;
+        for (int i = 0; i < flows + MIXED_OPS; i++) {
+            int op = (i < flows) ? ADD : rand.nextInt(10);
+            if (op == ADD || (op < 5 && nextFlow < flowPool.length)) {
+                flowPool[nextFlow].deadline =
+                    now + 1 + rand.nextInt(MAX_TIMEOUT);
+                ops[n] = ADD;
+                args[n++] = nextFlow;
+                live[numLive++] = nextFlow++;
+            } else if (op < 8 && numLive > 0) {
+                int j = rand.nextInt(numLive);
+                ops[n] = REMOVE;
+                args[n++] = live[j];
+                live[j] = live[--numLive];
+                // The flow may have expired by now, which makes the
+                // removal a no-op in both structures.
+            } else {
+                now += rand.nextInt(10);
+                ops[n] = ADVANCE;
+                args[n++] = now;
+            }
+        }
+        ops[n] = ADVANCE;
+        args[n++] = Long.MAX_VALUE / 2;
+        ops = Arrays.copyOf(ops, n);
+        args = Arrays.copyOf(args, n);
+    }
+
+    @Benchmark
+    public int replay() {
+        return "wheel".equals(structure) ? replayWheel() : replayQueue();
+    }
+
+    private int replayWheel() {
+        TimingWheel<Flow> wheel = new TimingWheel<>(0, 1);
+        int numExpired = 0;
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case ADD:
+                    Flow flow = flowPool[(int) args[i]];
+                    wheel.schedule(flow.timer, flow.deadline);
+                    break;
+                case REMOVE:
+                    wheel.cancel(flowPool[(int) args[i]].timer);
+                    break;
+                default:
+                    numExpired += wheel.advance(args[i], expired);
+                    expired.clear();
+            }
+        }
+        return numExpired;
+    }
+
+    private int replayQueue() {
+        PriorityQueue<Flow> queue = new PriorityQueue<>(
+            flows, new Comparator<Flow>() {
+                @Override
+                public int compare(Flow a, Flow b) {
+                    return Long.compare(a.deadline, b.deadline);
+                }
+            });
+        int numExpired = 0;
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case ADD:
+                    queue.add(flowPool[(int) args[i]]);
+                    break;
+                case REMOVE:
+                    queue.remove(flowPool[(int) args[i]]);
+                    break;
+                default:
+                    Flow head;
+                    while ((head = queue.peek()) != null &&
+                           head.deadline <= args[i]) {
+                        queue.poll();
+                        numExpired++;
+                    }
+            }
+        }
+        return numExpired;
+    }
+}
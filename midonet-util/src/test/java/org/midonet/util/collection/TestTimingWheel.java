@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTimingWheel {
+
+    private static final long START = 1000000L;
+
+    private TimingWheel.Timer<Integer> schedule(TimingWheel<Integer> wheel,
+                                                int value, long deadline) {
+        TimingWheel.Timer<Integer> timer = new TimingWheel.Timer<>(value);
+        wheel.schedule(timer, deadline);
+        return timer;
+    }
+
+    @Test
+    public void testExpiresAtDeadline() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(START, 1);
+        schedule(wheel, 1, START + 10);
+        schedule(wheel, 2, START + 300);
+        schedule(wheel, 3, START + 70000);
+
+        List<Integer> expired = new ArrayList<>();
+        Assert.assertEquals(0, wheel.advance(START + 9, expired));
+        Assert.assertEquals(1, wheel.advance(START + 10, expired));
+        Assert.assertEquals(Arrays.asList(1), expired);
+
+        expired.clear();
+        Assert.assertEquals(0, wheel.advance(START + 299, expired));
+        Assert.assertEquals(1, wheel.advance(START + 69999, expired));
+        Assert.assertEquals(Arrays.asList(2), expired);
+        Assert.assertEquals(1, wheel.size());
+
+        expired.clear();
+        Assert.assertEquals(1, wheel.advance(START + 70000, expired));
+        Assert.assertEquals(Arrays.asList(3), expired);
+        Assert.assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testCancelAndReschedule() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(START, 1);
+        TimingWheel.Timer<Integer> t1 = schedule(wheel, 1, START + 10);
+        TimingWheel.Timer<Integer> t2 = schedule(wheel, 2, START + 20);
+
+        Assert.assertTrue(wheel.cancel(t1));
+        Assert.assertFalse(wheel.cancel(t1));
+        Assert.assertFalse(t1.isScheduled());
+        wheel.schedule(t2, START + 5000);
+        Assert.assertEquals(1, wheel.size());
+
+        List<Integer> expired = new ArrayList<>();
+        Assert.assertEquals(0, wheel.advance(START + 4999, expired));
+        Assert.assertEquals(1, wheel.advance(START + 5000, expired));
+        Assert.assertEquals(Arrays.asList(2), expired);
+        Assert.assertFalse(t2.isScheduled());
+    }
+
+    @Test
+    public void testPastDeadlinesExpireOnNextAdvance() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(START, 1);
+        List<Integer> expired = new ArrayList<>();
+        wheel.advance(START + 100, expired);
+        schedule(wheel, 1, START + 50);
+        Assert.assertEquals(1, wheel.advance(START + 100, expired));
+        Assert.assertEquals(Arrays.asList(1), expired);
+    }
+
+    @Test
+    public void testDeadlinesBeyondTheWheelRange() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(0, 1000);
+        long deadline = 1000L * (1L << 33);
+        schedule(wheel, 1, deadline);
+        List<Integer> expired = new ArrayList<>();
+        Assert.assertEquals(0, wheel.advance(deadline - 1, expired));
+        Assert.assertEquals(1, wheel.advance(deadline, expired));
+    }
+
+    @Test
+    public void testPollReturnsTheNextTimers() {
+        TimingWheel<Integer> wheel = new TimingWheel<>(START, 1);
+        schedule(wheel, 3, START + 100000);
+        schedule(wheel, 1, START + 10);
+        schedule(wheel, 2, START + 1000);
+        Assert.assertEquals(Integer.valueOf(1), wheel.earliest());
+        Assert.assertEquals(Integer.valueOf(1), wheel.poll());
+        Assert.assertEquals(Integer.valueOf(2), wheel.poll());
+        Assert.assertEquals(Integer.valueOf(3), wheel.poll());
+        Assert.assertNull(wheel.poll());
+    }
+
+    @Test
+    public void testRandomTrace() {
+        Random rand = new Random(11);
+        long now = START;
+        TimingWheel<Integer> wheel = new TimingWheel<>(now, 1);
+        Map<Integer, TimingWheel.Timer<Integer>> timers = new HashMap<>();
+        List<Integer> expired = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            int op = rand.nextInt(10);
+            if (op < 5) {
+                long delay = (long) (Math.pow(rand.nextDouble(), 3) * 200000);
+                timers.put(i, schedule(wheel, i, now + delay));
+            } else if (op < 7 && !timers.isEmpty()) {
+                Integer key = timers.keySet().iterator().next();
+                Assert.assertTrue(wheel.cancel(timers.remove(key)));
+            } else {
+                now += rand.nextInt(op == 9 ? 20000 : 50);
+                expired.clear();
+                wheel.advance(now, expired);
+                for (Integer value : expired) {
+                    TimingWheel.Timer<Integer> timer = timers.remove(value);
+                    Assert.assertTrue(timer.deadline() <= now);
+                }
+                for (TimingWheel.Timer<Integer> timer : timers.values())
+                    Assert.assertTrue(timer.deadline() > now);
+            }
+            Assert.assertEquals(timers.size(), wheel.size());
+        }
+    }
+}
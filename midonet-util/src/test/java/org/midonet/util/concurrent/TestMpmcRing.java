@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMpmcRing {
+
+    @Test
+    public void testCapacityIsRoundedToPowerOfTwo() {
+        Assert.assertEquals(1, new MpmcRing<Integer>(1).capacity());
+        Assert.assertEquals(8, new MpmcRing<Integer>(5).capacity());
+        Assert.assertEquals(8, new MpmcRing<Integer>(8).capacity());
+        Assert.assertEquals(2048, new MpmcRing<Integer>(2000).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new MpmcRing<Integer>(0);
+    }
+
+    @Test
+    public void testFifoAndBounds() {
+        MpmcRing<Integer> ring = new MpmcRing<>(4);
+        Assert.assertNull(ring.poll());
+        Assert.assertTrue(ring.isEmpty());
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++)
+                Assert.assertTrue(ring.offer(i));
+            Assert.assertFalse(ring.offer(4));
+            Assert.assertEquals(4, ring.size());
+            for (int i = 0; i < 4; i++)
+                Assert.assertEquals(Integer.valueOf(i), ring.poll());
+            Assert.assertNull(ring.poll());
+            Assert.assertEquals(0, ring.size());
+        }
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final int threads = 4;
+        final int perThread = 100000;
+        final MpmcRing<Integer> ring = new MpmcRing<>(64);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(threads * perThread);
+
+        List<Thread> all = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread;
+            all.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        while (!ring.offer(base + i))
+                            Thread.yield();
+                    }
+                }
+            }));
+            all.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        Integer value;
+                        while ((value = ring.poll()) == null)
+                            Thread.yield();
+                        seen.incrementAndGet(value);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : all)
+            thread.start();
+        for (Thread thread : all)
+            thread.join();
+
+        Assert.assertTrue(ring.isEmpty());
+        for (int i = 0; i < seen.length(); i++)
+            Assert.assertEquals(1, seen.get(i));
+    }
+
+    @Test
+    public void testNoSpuriousFullOrEmptyRing() throws Exception {
+        // The threads only hold 20 of the 40 elements at any time, so the
+        // ring is never empty and never full, even while a slot is claimed
+        // by a thread that hasn't filled or emptied it yet.
+        final MpmcRing<Integer> ring = new MpmcRing<>(40);
+        for (int i = 0; i < 40; i++)
+            ring.offer(i);
+        final AtomicInteger failures = new AtomicInteger();
+
+        List<Thread> all = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            all.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Integer[] held = new Integer[5];
+                    for (int i = 0; i < 100000; i++) {
+                        for (int j = 0; j < held.length; j++) {
+                            while ((held[j] = ring.poll()) == null)
+                                failures.incrementAndGet();
+                        }
+                        for (Integer value : held) {
+                            while (!ring.offer(value))
+                                failures.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : all)
+            thread.start();
+        for (Thread thread : all)
+            thread.join();
+
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(40, ring.size());
+    }
+}
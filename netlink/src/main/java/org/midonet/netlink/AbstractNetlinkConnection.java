@@ -21,6 +21,7 @@ import java.nio.ByteOrder;
 import java.nio.channels.SelectionKey;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
@@ -28,6 +29,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.codahale.metrics.Histogram;
 import com.sun.jna.Native;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +50,7 @@ public abstract class AbstractNetlinkConnection {
     private static final int DEFAULT_MAX_BATCH_IO_OPS = 200;
     private static final int NETLINK_HEADER_LEN = 20;
     private static final int NETLINK_READ_BUFSIZE = 0x10000;
+    private static final int MAX_MESSAGES_PER_BATCH = 64;
 
     protected static final long DEF_REPLY_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
 
@@ -69,6 +72,12 @@ public abstract class AbstractNetlinkConnection {
     private ByteBuffer reply =
         BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
 
+    /* The ring of read buffers, and the write vector with its requests, used
+     * to read and write several datagrams per system call when enabled. */
+    private MessageVector readVector;
+    private MessageVector writeVector;
+    private NetlinkRequest[] vectorRequests;
+
     private final BufferPool requestPool;
     private final NetlinkChannel channel;
     protected BatchCollector<Runnable> dispatcher;
@@ -80,6 +89,12 @@ public abstract class AbstractNetlinkConnection {
 
     private Set<NetlinkRequest> ongoingTransaction = new HashSet<>();
 
+    /* The write batch opened by each thread with beginWriteBatch(), if any. */
+    private final ThreadLocal<WriteBatch> writeBatches = new ThreadLocal<>();
+
+    /* Records the number of messages in each combined write, when set. */
+    private Histogram writeBatchSizes;
+
     /* When true, this connection will interpret that the notification
      * handler is shared with other channels and thus an upper entity
      * is responsible for marking the ending notification batches. */
@@ -117,6 +132,10 @@ public abstract class AbstractNetlinkConnection {
         return channel;
     }
 
+    public BufferPool getSendPool() {
+        return requestPool;
+    }
+
     public void setCallbackDispatcher(BatchCollector<Runnable> dispatcher) {
         this.dispatcher = dispatcher;
     }
@@ -133,10 +152,58 @@ public abstract class AbstractNetlinkConnection {
         return this.maxBatchIoOps;
     }
 
+    /** Makes the connection read and write up to the given number of
+     *  datagrams with each recvmmsg(2) and sendmmsg(2) call, instead of one
+     *  per read() and write(). The handle[Write|Read]Event() methods still
+     *  process up to getMaxBatchIoOps() messages per invocation. Every
+     *  datagram is read into a buffer of its own, so the connection keeps as
+     *  many read buffers of 64KB as messages per call. Has no effect if the C
+     *  library lacks those calls. */
+    public synchronized void setMaxMessagesPerIo(int max) {
+        if (max > 1 && MessageVector.isSupported()) {
+            readVector = MessageVector.allocate(max, NETLINK_READ_BUFSIZE);
+            writeVector = new MessageVector(max);
+            vectorRequests = new NetlinkRequest[max];
+        } else {
+            if (max > 1)
+                log.info("sendmmsg() and recvmmsg() are not available, " +
+                         "doing one netlink message per IO operation");
+            readVector = null;
+            writeVector = null;
+            vectorRequests = null;
+        }
+    }
+
     public SelectorInputQueue<NetlinkRequest> getSendQueue() {
         return writeQueue;
     }
 
+    public void setWriteBatchSizeHistogram(Histogram histogram) {
+        this.writeBatchSizes = histogram;
+    }
+
+    /** Starts combining the single answer requests that the calling thread
+     *  sends through this connection, which are copied back to back into as
+     *  few send buffers as possible instead of being queued one by one. A
+     *  buffer is queued for writing when it fills up and when the thread
+     *  calls endWriteBatch(), typically once it's done with a batch of
+     *  packets. The requests of other threads are not affected, and the
+     *  requests of the calling thread keep their order. */
+    public void beginWriteBatch() {
+        if (writeBatches.get() == null)
+            writeBatches.set(new WriteBatch());
+    }
+
+    /** Queues the requests that the calling thread combined since
+     *  beginWriteBatch() for writing, and stops combining them. */
+    public void endWriteBatch() {
+        WriteBatch batch = writeBatches.get();
+        if (batch != null) {
+            writeBatches.remove();
+            batch.flush();
+        }
+    }
+
     public static Reader<Boolean> alwaysTrueReader =
         new Reader<Boolean>() {
             public Boolean deserializeFrom(ByteBuffer source) {
@@ -210,8 +277,14 @@ public abstract class AbstractNetlinkConnection {
                                           long timeoutMillis) {
         serializeNetlinkHeader(payload, (short) flags, ctx);
 
-        enqueueRequest(NetlinkRequest.makeSingle(callback, reader,
-                                                 payload, timeoutMillis));
+        WriteBatch batch = writeBatches.get();
+        if (batch != null) {
+            batch.add(payload, NetlinkRequest.makeSingle(callback, reader,
+                                                         null, timeoutMillis));
+        } else {
+            enqueueRequest(NetlinkRequest.makeSingle(callback, reader,
+                                                     payload, timeoutMillis));
+        }
     }
 
     /** Same as sendNetlinkMessage(), but assumes that the message to be sent
@@ -227,10 +300,94 @@ public abstract class AbstractNetlinkConnection {
                                                      long timeoutMillis) {
         serializeNetlinkHeader(payload, (short) flags, ctx);
 
+        // keep the order of the requests combined so far by this thread
+        WriteBatch batch = writeBatches.get();
+        if (batch != null)
+            batch.flush();
+
         enqueueRequest(NetlinkRequest.makeMulti(callback, reader,
                                                 payload, timeoutMillis));
     }
 
+    /** Same as sendNetlinkMessage(), for a series of messages that share the
+     *  flags, context and reply reader. The messages are copied back to back
+     *  into as few send buffers as possible, so that the writing thread can
+     *  hand several of them to the kernel with a single write(). Each message
+     *  still gets its own sequence number and its own timeout, and is
+     *  answered through its own callback, so a failure of one of them does
+     *  not affect the others. The given payloads are released to the pool. */
+    protected <T> void sendNetlinkMessages(NetlinkRequestContext ctx,
+                                           int flags,
+                                           List<ByteBuffer> payloads,
+                                           List<? extends Callback<T>> callbacks,
+                                           Reader<T> reader,
+                                           long timeoutMillis) {
+        WriteBatch batch = writeBatches.get();
+        boolean ownBatch = batch == null;
+        if (ownBatch)
+            batch = new WriteBatch();
+
+        for (int i = 0; i < payloads.size(); i++) {
+            ByteBuffer payload = payloads.get(i);
+            serializeNetlinkHeader(payload, (short) flags, ctx);
+            batch.add(payload, NetlinkRequest.makeSingle(callbacks.get(i),
+                                                         reader, null,
+                                                         timeoutMillis));
+        }
+
+        if (ownBatch)
+            batch.flush();
+    }
+
+    /** A send buffer being filled with netlink messages, along with the
+     *  requests that track them, until it's queued as a single request. */
+    private final class WriteBatch {
+        private ByteBuffer buf;
+        private NetlinkRequest[] parts;
+        private int[] offsets;
+        private int count;
+
+        /** Copies the given message into the buffer, queueing the buffer
+         *  first if the message doesn't fit, and releases the message's
+         *  payload to the pool. */
+        void add(ByteBuffer payload, NetlinkRequest part) {
+            int len = payload.remaining();
+            int alignedLen = (len + 3) & ~3;       // NLMSG_ALIGN
+
+            if (buf != null && (count == MAX_MESSAGES_PER_BATCH ||
+                                buf.remaining() < len)) {
+                flush();
+            }
+            if (buf == null) {
+                buf = requestPool.take();
+                buf.clear();
+                parts = new NetlinkRequest[MAX_MESSAGES_PER_BATCH];
+                offsets = new int[MAX_MESSAGES_PER_BATCH];
+                count = 0;
+            }
+
+            offsets[count] = buf.position();
+            parts[count++] = part;
+            buf.put(payload);
+            buf.position(Math.min(offsets[count - 1] + alignedLen,
+                                  buf.capacity()));
+            requestPool.release(payload);
+        }
+
+        void flush() {
+            if (buf == null)
+                return;
+            buf.flip();
+            enqueueRequest(NetlinkRequest.makeBatch(parts, offsets, count, buf));
+            if (writeBatchSizes != null)
+                writeBatchSizes.update(count);
+            buf = null;
+            parts = null;
+            offsets = null;
+            count = 0;
+        }
+    }
+
     private void enqueueRequest(NetlinkRequest req) {
         if (bypassSendQueue) {
             // If this stops being used only for testing, beware
@@ -253,14 +410,17 @@ public abstract class AbstractNetlinkConnection {
     private void abortRequestQueueIsFull(NetlinkRequest req) {
         requestPool.release(req.releaseRequestPayload());
         String msg = "Too many pending netlink requests";
-        if (req.hasCallback()) {
-            /* Run the callback directly, because this runs out of the client's
-             * thread, not the channel's: it's the client that failed to
-             * put a request in the queue. */
-            req.failed(new NetlinkException(
-                NetlinkException.ERROR_SENDING_REQUEST, msg)).run();
-        } else {
-            log.info(msg);
+        for (int i = 0; i < req.partCount(); i++) {
+            NetlinkRequest part = req.part(i);
+            if (part.hasCallback()) {
+                /* Run the callback directly, because this runs out of the
+                 * client's thread, not the channel's: it's the client that
+                 * failed to put a request in the queue. */
+                part.failed(new NetlinkException(
+                    NetlinkException.ERROR_SENDING_REQUEST, msg)).run();
+            } else {
+                log.info(msg);
+            }
         }
     }
 
@@ -289,8 +449,10 @@ public abstract class AbstractNetlinkConnection {
             if (processWriteToChannel(r) <= 0)
                 break;
 
-            if (r.hasCallback())
-                ongoingTransaction.add(r);
+            for (int i = 0; i < r.partCount(); i++) {
+                if (r.part(i).hasCallback())
+                    ongoingTransaction.add(r.part(i));
+            }
         }
 
         try {
@@ -308,17 +470,21 @@ public abstract class AbstractNetlinkConnection {
     }
 
     public void handleWriteEvent() throws IOException {
-        for (int i = 0; i < maxBatchIoOps; i++) {
-            final NetlinkRequest request = writeQueue.poll();
-            if (request == null)
-                break;
-            final int ret = processWriteToChannel(request);
-            if (ret <= 0) {
-                if (ret < 0) {
-                    log.warn("NETLINK write() error: {}",
-                            cLibrary.lib.strerror(Native.getLastError()));
+        if (writeVector != null) {
+            processVectoredWrites();
+        } else {
+            for (int i = 0; i < maxBatchIoOps; i++) {
+                final NetlinkRequest request = writeQueue.poll();
+                if (request == null)
+                    break;
+                final int ret = processWriteToChannel(request);
+                if (ret <= 0) {
+                    if (ret < 0) {
+                        log.warn("NETLINK write() error: {}",
+                                cLibrary.lib.strerror(Native.getLastError()));
+                    }
+                    break;
                 }
-                break;
             }
         }
         expireOldRequests();
@@ -332,36 +498,130 @@ public abstract class AbstractNetlinkConnection {
         if (outBuf == null)
             return 0;
 
-        int seq = writeSeqToNetlinkRequest(request, outBuf);
-        if (request.hasCallback()) {
-            pendingRequests.put(seq, request);
-        }
+        return writeToChannel(request, outBuf);
+    }
 
-        log.trace("Sending message for id {}", seq);
+    private int writeToChannel(NetlinkRequest request, ByteBuffer outBuf) {
+        assignSequenceNumbers(request, outBuf);
 
         int bytes = 0;
         try {
             bytes = channel.write(outBuf);
-            if (request.hasCallback())
-                expirationQueue.add(request);
+            requestWritten(request);
         } catch (IOException e) {
             log.warn("NETLINK write() exception: {}", e);
-            if (request.hasCallback()) {
-                pendingRequests.remove(request.seq);
-                dispatcher.submit(request.failed(new NetlinkException(
-                                  NetlinkException.ERROR_SENDING_REQUEST, e)));
-            }
+            requestFailed(request, new NetlinkException(
+                NetlinkException.ERROR_SENDING_REQUEST, e));
         } finally {
             requestPool.release(outBuf);
         }
         return bytes;
     }
 
+    /* Writes up to maxBatchIoOps queued requests, gathering as many as the
+     * write vector holds into each sendmmsg() call. The heap buffers that the
+     * pool hands out when it runs out of direct ones can't be part of a
+     * vector, and are written on their own once the requests queued before
+     * them are written. */
+    private void processVectoredWrites() {
+        NetlinkRequest request;
+        for (int i = 0; i < maxBatchIoOps; i++) {
+            if ((request = writeQueue.poll()) == null)
+                break;
+            ByteBuffer outBuf = request.releaseRequestPayload();
+            if (outBuf == null)
+                continue;
+
+            if (outBuf.isDirect()) {
+                assignSequenceNumbers(request, outBuf);
+                vectorRequests[writeVector.size()] = request;
+                writeVector.add(outBuf);
+                if (writeVector.size() == writeVector.capacity()
+                        && !flushWriteVector())
+                    return;
+            } else {
+                boolean flushed = flushWriteVector();
+                if (writeToChannel(request, outBuf) <= 0 || !flushed)
+                    return;
+            }
+        }
+        flushWriteVector();
+    }
+
+    /* Writes the requests gathered in the write vector and fails those that
+     * the channel didn't take. Returns whether all of them were written. */
+    private boolean flushWriteVector() {
+        int count = writeVector.size();
+        if (count == 0)
+            return true;
+
+        int sent = 0;
+        NetlinkException error = null;
+        try {
+            sent = channel.write(writeVector);
+        } catch (IOException e) {
+            log.warn("NETLINK sendmmsg() exception: {}", e);
+            error = new NetlinkException(
+                NetlinkException.ERROR_SENDING_REQUEST, e);
+        }
+        if (sent < count && error == null) {
+            log.warn("NETLINK sendmmsg() wrote {} out of {} messages",
+                     sent, count);
+            error = new NetlinkException(
+                NetlinkException.ERROR_SENDING_REQUEST,
+                "Failed to write the message to the netlink channel");
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (i < sent)
+                requestWritten(vectorRequests[i]);
+            else
+                requestFailed(vectorRequests[i], error);
+            requestPool.release(writeVector.get(i));
+            vectorRequests[i] = null;
+        }
+        writeVector.clear();
+        return sent == count;
+    }
+
+    private void assignSequenceNumbers(NetlinkRequest request,
+                                       ByteBuffer outBuf) {
+        int parts = request.partCount();
+        for (int i = 0; i < parts; i++) {
+            NetlinkRequest part = request.part(i);
+            int seq = writeSeqToNetlinkRequest(part, outBuf,
+                                               request.partOffset(i));
+            if (part.hasCallback()) {
+                pendingRequests.put(seq, part);
+            }
+            log.trace("Sending message for id {}", seq);
+        }
+    }
+
+    private void requestWritten(NetlinkRequest request) {
+        for (int i = 0; i < request.partCount(); i++) {
+            if (request.part(i).hasCallback())
+                expirationQueue.add(request.part(i));
+        }
+    }
+
+    private void requestFailed(NetlinkRequest request, NetlinkException e) {
+        for (int i = 0; i < request.partCount(); i++) {
+            NetlinkRequest part = request.part(i);
+            if (part.hasCallback()) {
+                pendingRequests.remove(part.seq);
+                dispatcher.submit(part.failed(e));
+            }
+        }
+    }
+
     public void handleReadEvent(final Bucket bucket) throws IOException {
         try {
             bucket.prepare();
-            for (int i = 0; i < maxBatchIoOps; i++) {
-                final int ret = processReadFromChannel(bucket);
+            for (int i = 0; i < maxBatchIoOps; ) {
+                final int ret = (readVector != null)
+                              ? processVectoredReadFromChannel(bucket)
+                              : processReadFromChannel(bucket);
                 if (ret <= 0) {
                     if (ret < 0) {
                         log.info("NETLINK read() error: {}",
@@ -369,6 +629,8 @@ public abstract class AbstractNetlinkConnection {
                     }
                     break;
                 }
+                // a vectored read returns the number of messages read
+                i += (readVector != null) ? ret : 1;
             }
         } catch (IOException e) {
             log.error("NETLINK read() exception: {}", e);
@@ -389,36 +651,59 @@ public abstract class AbstractNetlinkConnection {
         int nbytes = channel.read(reply);
 
         reply.flip(); // sets the effective final limit for any number of msgs
-        reply.mark();
-        int finalLimit = reply.limit();
+        processReplies(reply, bucket);
+        return nbytes;
+    }
+
+    /* Reads as many datagrams as the ring of read buffers holds with a single
+     * recvmmsg(), and returns how many were read. */
+    private synchronized int processVectoredReadFromChannel(final Bucket bucket)
+            throws IOException {
 
-        while (reply.remaining() >= NETLINK_HEADER_LEN) {
+        int count = channel.read(readVector);
+        for (int i = 0; i < count; i++) {
+            if (readVector.isTruncated(i)) {
+                log.warn("Dropping a netlink datagram longer than {} bytes",
+                         NETLINK_READ_BUFSIZE);
+                continue;
+            }
+            processReplies(readVector.get(i), bucket);
+        }
+        return count;
+    }
+
+    /* Processes the netlink messages between the position and the limit of
+     * the buffer, which holds one datagram. */
+    private void processReplies(ByteBuffer buf, final Bucket bucket) {
+        int finalLimit = buf.limit();
+
+        while (buf.remaining() >= NETLINK_HEADER_LEN) {
             // read the nlmsghdr and check for error
-            int position = reply.position();
+            int position = buf.position();
 
-            int len = reply.getInt();           // length
-            short type = reply.getShort();      // type
-            short flags = reply.getShort();     // flags
-            int seq = reply.getInt();           // sequence no.
-            int pid = reply.getInt();           // pid
+            int len = buf.getInt();             // length
+            short type = buf.getShort();        // type
+            short flags = buf.getShort();       // flags
+            int seq = buf.getInt();             // sequence no.
+            int pid = buf.getInt();             // pid
 
             int nextPosition = position + len;
-            reply.limit(nextPosition);          // "slice" the buffer to avoid
-                                                // reads on the next msg.
+            buf.limit(nextPosition);            // "slice" the buffer to avoid
+                                                  // reads on the next msg.
             switch (type) {
                 case NLMessageType.NOOP:
                     // skip to the next message
                     break;
 
                 case NLMessageType.ERROR:
-                    int error = reply.getInt();
+                    int error = buf.getInt();
 
                     // read header which caused the error
-                    int errLen = reply.getInt();        // length
-                    short errType = reply.getShort();   // type of error
-                    short errFlags = reply.getShort();  // flags of the error
-                    int errSeq = reply.getInt();        // sequence of the error
-                    int errPid = reply.getInt();        // pid of the error
+                    int errLen = buf.getInt();          // length
+                    short errType = buf.getShort();     // type of error
+                    short errFlags = buf.getShort();    // flags of the error
+                    int errSeq = buf.getInt();          // sequence of the error
+                    int errPid = buf.getInt();          // pid of the error
 
                     if (seq == 0) break; // should not happen
 
@@ -437,26 +722,25 @@ public abstract class AbstractNetlinkConnection {
 
                 default:
                     // read genl header
-                    byte cmd = reply.get();      // command
-                    byte ver = reply.get();      // version
-                    reply.getShort();            // reserved
+                    byte cmd = buf.get();        // command
+                    byte ver = buf.get();        // version
+                    buf.getShort();              // reserved
 
                     if (seq == 0) {
                         // if the seq number is zero we are handling a PacketIn.
                         if (bucket.consumeToken())
-                            handleNotification(type, cmd, seq, pid, reply);
+                            handleNotification(type, cmd, seq, pid, buf);
                         else
                             log.debug("Failed to get token; dropping packet");
                     } else  {
                         // otherwise we are processing an answer to a request.
-                        processRequestAnswer(seq, flags, reply);
+                        processRequestAnswer(seq, flags, buf);
                     }
             }
 
-            reply.limit(finalLimit);
-            reply.position(nextPosition);
+            buf.limit(finalLimit);
+            buf.position(nextPosition);
         }
-        return nbytes;
     }
 
     private void processSuccessfulRequest(NetlinkRequest request) {
@@ -532,10 +816,11 @@ public abstract class AbstractNetlinkConnection {
         request.rewind(); // rewind for writing to the channel
     }
 
-    private int writeSeqToNetlinkRequest(NetlinkRequest request, ByteBuffer out) {
+    private int writeSeqToNetlinkRequest(NetlinkRequest request, ByteBuffer out,
+                                         int offset) {
         int seq = nextSequenceNumber();
         request.seq = seq;
-        out.putInt(seqPosition(), seq);
+        out.putInt(offset + seqPosition(), seq);
         return seq;
     }
 
@@ -16,33 +16,64 @@
 package org.midonet.netlink;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.collect.MapMaker;
+import com.codahale.metrics.Meter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sun.nio.ch.DirectBuffer;
+
+import org.midonet.util.concurrent.MpmcRing;
 
 /**
  * A pool of reusable, native I/O ready, byte buffers. All operations are
  * guaranteed to be thread-safe and non-blocking.
+ *
+ * The buffers are sliced out of direct memory slabs of up to 1MB, which are
+ * allocated as the pool grows. Free buffers are kept in a lock-free ring and,
+ * for pools large enough, in a small cache of each thread that releases them,
+ * so that a thread that takes and releases buffers mostly reuses its own.
+ * The caches hold at most a quarter of the pool between them, and those of
+ * threads that have died are emptied into the ring when it runs dry.
  */
 public class BufferPool {
 
     private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
 
-    /** dummy object used as the unique value in the concurrent buffer "set". */
-    private static final Object PRESENT = new Object();
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    /* Each per-thread cache holds at most 1/64th of the pool, up to this many
+     * buffers, and there are at most enough caches to hold a quarter of the
+     * pool, so that the buffers idle in caches never starve the others. */
+    private static final int MAX_MAGAZINE_SIZE = 16;
 
     private final int maxBuffers;
     private final int bufSize;
+    private final int buffersPerSlab;
+    private final int magazineSize;
+    private final int maxMagazines;
+
+    private final MpmcRing<ByteBuffer> availPool;
+
+    /* The cache of each thread, if it has one, and the count of caches,
+     * which is reserved before adding one to the list. */
+    private final ThreadLocal<Magazine> magazines = new ThreadLocal<>();
+    private final List<Magazine> allMagazines = new CopyOnWriteArrayList<>();
+    private final AtomicInteger numMagazines = new AtomicInteger();
+
+    /* The slab that new buffers are sliced from, guarded by this. */
+    private ByteBuffer slab;
+
+    /* The start and end addresses of every slab, to tell pooled buffers
+     * apart from temporary and foreign ones. */
+    private volatile long[] slabBounds = new long[0];
+    private volatile int numBuffers = 0;
 
-    private final ConcurrentMap<ByteBuffer, Object> bufferPool;
-    private final BlockingQueue<ByteBuffer> availPool;
-    private final AtomicInteger numBuffers;
+    private Meter exhaustions;
+    private Meter fallbackAllocations;
 
     /**
      * @param minBuffers Initial number of buffers to allocate in the pool.
@@ -52,78 +83,209 @@ public class BufferPool {
      * @param bufSize
      */
     public BufferPool(int minBuffers, int maxBuffers, int bufSize) {
-        if ((maxBuffers < minBuffers) || (maxBuffers <= 0) || (minBuffers < 0))
+        if ((maxBuffers < minBuffers) || (maxBuffers <= 0) || (minBuffers < 0)
+            || (bufSize <= 0))
             throw new IllegalArgumentException();
 
         this.maxBuffers = maxBuffers;
         this.bufSize = bufSize;
-        this.availPool = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
-
-        /* Use a weak-keys map so that keys behave as in an identity HashMap.
-        /*
-        /* An identity map is needed because a ByteBuffer's hashCode() depends
-        /* on the buffer's contents. A normal IdentityHashMap is not suitable
-        /* because there's no concurrent implementation of it. Thus the use
-        /* of the weak-keys concurrent map. */
-        this.bufferPool =
-            new MapMaker().initialCapacity(maxBuffers).weakKeys().makeMap();
-
-        numBuffers = new AtomicInteger(0);
+        this.buffersPerSlab = Math.max(1, SLAB_SIZE / bufSize);
+        this.magazineSize = Math.min(MAX_MAGAZINE_SIZE, maxBuffers / 64);
+        this.maxMagazines =
+            magazineSize > 0 ? Math.max(1, maxBuffers / 4 / magazineSize) : 0;
+        this.availPool = new MpmcRing<>(maxBuffers);
+
         do {
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
-            availPool.offer(buf);
-            bufferPool.put(buf, PRESENT);
-        } while (numBuffers.incrementAndGet() < minBuffers);
+            availPool.offer(newBuffer());
+        } while (numBuffers < minBuffers);
+    }
+
+    /** Sets the meters that count the calls to take() that found no free
+     *  buffer in the pool, and those that found the pool at its maximum size
+     *  and had to allocate a temporary buffer. */
+    public void setMetrics(Meter exhaustions, Meter fallbackAllocations) {
+        this.exhaustions = exhaustions;
+        this.fallbackAllocations = fallbackAllocations;
     }
 
     /** Take a byte buffer from the pool. The caller is responsible of calling
      *  release() once for the returned buffer to return it to the pool.
      */
     public ByteBuffer take() {
-        ByteBuffer buffer = availPool.poll();
-        if (buffer != null)
+        ByteBuffer buffer;
+        Magazine magazine = magazineSize > 0 ? magazines.get() : null;
+        if (magazine != null && (buffer = magazine.pop()) != null)
+            return buffer;
+        if ((buffer = availPool.poll()) != null)
+            return buffer;
+        if (reclaimMagazines() && (buffer = availPool.poll()) != null)
             return buffer;
 
-        if (numBuffers.incrementAndGet() <= maxBuffers) {
-            log.debug("increasing buffer pool size to {}", numBuffers.get());
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
-            bufferPool.put(buf, PRESENT);
-            return buf;
-        } else {
-            numBuffers.decrementAndGet();
-            /* Temporary buffers are non-direct because the NIO library has its
-             * own cache for them, managing this case more cleverly than we
-             * we can from here. The library will get the buffer from its cache
-             * when a write is requested, so it will be able to release it
-             * immediately, whereas we would leave the task up to the garbage
-             * collector.
-             *
-             * The price we pay for allocating a non-direct buffer is one extra
-             * copy at write-time.
-             */
-            log.info("pool is empty, allocating a temporary buffer");
-            return  BytesUtil.instance.allocate(bufSize);
+        if (exhaustions != null)
+            exhaustions.mark();
+        if ((buffer = newBuffer()) != null) {
+            log.debug("increasing buffer pool size to {}", numBuffers);
+            return buffer;
         }
+
+        /* Temporary buffers are non-direct because the NIO library has its
+         * own cache for them, managing this case more cleverly than we
+         * we can from here. The library will get the buffer from its cache
+         * when a write is requested, so it will be able to release it
+         * immediately, whereas we would leave the task up to the garbage
+         * collector.
+         *
+         * The price we pay for allocating a non-direct buffer is one extra
+         * copy at write-time.
+         */
+        if (fallbackAllocations != null)
+            fallbackAllocations.mark();
+        log.info("pool is empty, allocating a temporary buffer");
+        return BytesUtil.instance.allocate(bufSize);
     }
 
-    /** Release a buffer that was previously taken from the pool.
+    /** Release a buffer that was previously taken from the pool. Temporary
+     *  and foreign buffers are ignored.
      *
      *  NOTE: this method will assume that the given buffer is currently taken,
      *  callers must be careful not to call release() twice on the same buffer.
      */
     public void release(ByteBuffer buf) {
-        if (buf != null && bufferPool.containsKey(buf)) {
+        if (buf == null || !isPooled(buf))
+            return;
+
+        Magazine magazine = magazineSize > 0 ? magazine() : null;
+        if (magazine != null) {
+            if (magazine.isFull())
+                magazine.spill(availPool, (magazineSize + 1) / 2);
+            magazine.push(buf);
+        } else {
             availPool.offer(buf);
+        }
+        if (log.isTraceEnabled()) {
             log.trace("released buffer ({}/{} free buffers)",
-                     availPool.size(), numBuffers.get());
+                      available(), numBuffers);
         }
     }
 
+    /** The number of free buffers, which is only an estimate while other
+     *  threads use the pool. */
     public int available() {
-        return availPool.size();
+        int available = availPool.size();
+        for (Magazine magazine : allMagazines)
+            available += magazine.size;
+        return available;
     }
 
     public int allocated() {
-        return bufferPool.size();
+        return numBuffers;
+    }
+
+    /* Returns the cache of the calling thread, giving it one if the caches
+     * don't hold their share of the pool yet, or null otherwise. */
+    private Magazine magazine() {
+        Magazine magazine = magazines.get();
+        if (magazine != null)
+            return magazine;
+
+        int count;
+        do {
+            count = numMagazines.get();
+            if (count >= maxMagazines)
+                return null;
+        } while (!numMagazines.compareAndSet(count, count + 1));
+
+        magazine = new Magazine(magazineSize);
+        allMagazines.add(magazine);
+        magazines.set(magazine);
+        return magazine;
+    }
+
+    /* Empties the caches of the threads that have died into the ring, and
+     * frees their slots for other threads. Seeing a thread dead makes its
+     * writes to the cache visible, and only the caller that removes a cache
+     * from the list empties it. Returns whether any cache was reclaimed. */
+    private boolean reclaimMagazines() {
+        boolean reclaimed = false;
+        for (Magazine magazine : allMagazines) {
+            if (!magazine.owner.isAlive() && allMagazines.remove(magazine)) {
+                magazine.spill(availPool, magazine.size);
+                numMagazines.decrementAndGet();
+                reclaimed = true;
+            }
+        }
+        return reclaimed;
+    }
+
+    /* Slices a new buffer out of the current slab, allocating a new slab if
+     * it's used up. Returns null if the pool is at its maximum size. */
+    private synchronized ByteBuffer newBuffer() {
+        if (numBuffers >= maxBuffers)
+            return null;
+
+        if (slab == null || !slab.hasRemaining()) {
+            int count = Math.min(buffersPerSlab, maxBuffers - numBuffers);
+            slab = BytesUtil.instance.allocateDirect(count * bufSize);
+            long start = ((DirectBuffer) slab).address();
+            long[] bounds = Arrays.copyOf(slabBounds, slabBounds.length + 2);
+            bounds[bounds.length - 2] = start;
+            bounds[bounds.length - 1] = start + slab.capacity();
+            slabBounds = bounds;
+        }
+
+        slab.limit(slab.position() + bufSize);
+        ByteBuffer buf = BytesUtil.instance.sliceOf(slab);
+        slab.position(slab.limit());
+        slab.limit(slab.capacity());
+        numBuffers++;
+        return buf;
+    }
+
+    private boolean isPooled(ByteBuffer buf) {
+        if (!buf.isDirect() || buf.capacity() != bufSize)
+            return false;
+        long address = ((DirectBuffer) buf).address();
+        long[] bounds = slabBounds;
+        for (int i = 0; i < bounds.length; i += 2) {
+            if (address >= bounds[i] && address < bounds[i + 1])
+                return true;
+        }
+        return false;
+    }
+
+    /* A stack of free buffers owned by a thread. Only the size is read by
+     * other threads, to estimate the number of free buffers, until the owner
+     * dies and the buffers are reclaimed. */
+    private static final class Magazine {
+        final Thread owner = Thread.currentThread();
+        final ByteBuffer[] buffers;
+        int size = 0;
+
+        Magazine(int capacity) {
+            buffers = new ByteBuffer[capacity];
+        }
+
+        boolean isFull() {
+            return size == buffers.length;
+        }
+
+        ByteBuffer pop() {
+            if (size == 0)
+                return null;
+            ByteBuffer buf = buffers[--size];
+            buffers[size] = null;
+            return buf;
+        }
+
+        void push(ByteBuffer buf) {
+            buffers[size++] = buf;
+        }
+
+        /* Moves the given number of buffers to the shared ring, which can
+         * always take them because it's sized for every buffer of the pool. */
+        void spill(MpmcRing<ByteBuffer> ring, int count) {
+            for (int i = 0; i < count && size > 0; i++)
+                ring.offer(pop());
+        }
     }
 }
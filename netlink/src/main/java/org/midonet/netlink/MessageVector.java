@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.netlink;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+
+import org.midonet.netlink.clib.cLibrary;
+
+/**
+ * A vector of datagrams that a UnixChannel reads or writes with a single
+ * recvmmsg(2) or sendmmsg(2) call. It keeps the native array of mmsghdr
+ * structures, each with a single iovec, that describes its buffers.
+ *
+ * A vector for writing is built with {@link #MessageVector(int)} and filled
+ * with {@link #add(ByteBuffer)} before each write. A vector for reading is
+ * built with {@link #allocate(int, int)}, which slices a ring of buffers of
+ * the given size out of a single direct memory region, and the buffers are
+ * reused for every read.
+ *
+ * Only direct buffers can be part of a vector. Vectors are not thread-safe.
+ */
+public final class MessageVector {
+
+    private static final int P = Native.POINTER_SIZE;
+
+    /* struct iovec { void *iov_base; size_t iov_len; } */
+    private static final int IOV_LEN = P;
+    private static final int IOV_SIZE = 2 * P;
+
+    /* struct mmsghdr { struct msghdr msg_hdr; unsigned int msg_len; }, where
+     * struct msghdr { void *msg_name; socklen_t msg_namelen;
+     *                 struct iovec *msg_iov; size_t msg_iovlen;
+     *                 void *msg_control; size_t msg_controllen;
+     *                 int msg_flags; } */
+    private static final int MSG_IOV = 2 * P;
+    private static final int MSG_IOVLEN = 3 * P;
+    private static final int MSG_FLAGS = 6 * P;
+    private static final int MSG_LEN = align(MSG_FLAGS + 4);
+    private static final int MMSGHDR_SIZE = align(MSG_LEN + 4);
+
+    private static final boolean supported = lookupFunctions();
+
+    private final int capacity;
+    private final Memory headers;
+    private final Memory iovecs;
+    private final ByteBuffer[] buffers;
+    private final Memory data;
+    private int size = 0;
+    private int written = 0;
+
+    /** Creates an empty vector for writing up to capacity datagrams. */
+    public MessageVector(int capacity) {
+        this(capacity, null);
+    }
+
+    private MessageVector(int capacity, Memory data) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = capacity;
+        this.data = data;
+        this.buffers = new ByteBuffer[capacity];
+        headers = new Memory(capacity * MMSGHDR_SIZE);
+        iovecs = new Memory(capacity * IOV_SIZE);
+        headers.setMemory(0, headers.size(), (byte) 0);
+        iovecs.setMemory(0, iovecs.size(), (byte) 0);
+        for (int i = 0; i < capacity; i++) {
+            long hdr = i * MMSGHDR_SIZE;
+            headers.setPointer(hdr + MSG_IOV, iovecs.share(i * IOV_SIZE));
+            setSize(headers, hdr + MSG_IOVLEN, 1);
+        }
+    }
+
+    /** Creates a vector for reading up to capacity datagrams of up to
+     *  bufSize bytes each into a ring of buffers that it owns. */
+    public static MessageVector allocate(int capacity, int bufSize) {
+        Memory data = new Memory((long) capacity * bufSize);
+        MessageVector vector = new MessageVector(capacity, data);
+        for (int i = 0; i < capacity; i++) {
+            ByteBuffer buf = data.getByteBuffer((long) i * bufSize, bufSize)
+                                 .order(ByteOrder.nativeOrder());
+            vector.buffers[i] = buf;
+            vector.setIovec(i, buf);
+        }
+        return vector;
+    }
+
+    /** Whether the C library provides sendmmsg(2) and recvmmsg(2). When it
+     *  doesn't, channels can only read and write one datagram at a time. */
+    public static boolean isSupported() {
+        return supported;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /** The number of datagrams added to the vector, or received into it by
+     *  the last read. */
+    public int size() {
+        return size;
+    }
+
+    public ByteBuffer get(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        return buffers[i];
+    }
+
+    /** Empties a vector for writing. The buffers of a vector for reading are
+     *  only reset by the next read. */
+    public void clear() {
+        if (data == null) {
+            for (int i = 0; i < size; i++)
+                buffers[i] = null;
+        }
+        size = 0;
+        written = 0;
+    }
+
+    /** Adds the remaining bytes of a direct buffer as the next datagram to
+     *  write. The buffer must not be modified until the vector is written.
+     *
+     *  @return false if the vector is full. */
+    public boolean add(ByteBuffer buf) {
+        if (data != null)
+            throw new IllegalStateException("Can't add to a read vector");
+        if (!buf.isDirect())
+            throw new IllegalArgumentException("Not a direct buffer");
+        if (size == capacity)
+            return false;
+        buffers[size] = buf;
+        setIovec(size, buf);
+        size++;
+        return true;
+    }
+
+    private void setIovec(int i, ByteBuffer buf) {
+        long iov = i * IOV_SIZE;
+        iovecs.setPointer(iov, Native.getDirectBufferPointer(buf)
+                                     .share(buf.position()));
+        setSize(iovecs, iov + IOV_LEN, buf.remaining());
+    }
+
+    /* Methods used by UnixChannel around the native calls. */
+
+    Pointer headers() {
+        return headers.share(written * MMSGHDR_SIZE);
+    }
+
+    /** The number of added datagrams that have not been written yet. */
+    int pending() {
+        return size - written;
+    }
+
+    /** Records that the next n pending datagrams were written, and returns
+     *  their number of bytes. */
+    int completeWrite(int n) {
+        int bytes = 0;
+        for (int i = written; i < written + n; i++) {
+            int len = headers.getInt(i * MMSGHDR_SIZE + MSG_LEN);
+            buffers[i].position(buffers[i].position() + len);
+            bytes += len;
+        }
+        written += n;
+        return bytes;
+    }
+
+    void prepareRead() {
+        if (data == null)
+            throw new IllegalStateException("Can't read into a write vector");
+        for (int i = 0; i < capacity; i++) {
+            long hdr = i * MMSGHDR_SIZE;
+            headers.setInt(hdr + MSG_FLAGS, 0);
+            headers.setInt(hdr + MSG_LEN, 0);
+            buffers[i].clear();
+        }
+        size = 0;
+    }
+
+    /** Records that n datagrams were read, and returns their number of
+     *  bytes. The limit of each buffer is set to the end of its datagram. */
+    int completeRead(int n) {
+        int bytes = 0;
+        for (int i = 0; i < n; i++) {
+            int len = headers.getInt(i * MMSGHDR_SIZE + MSG_LEN);
+            buffers[i].limit(Math.min(len, buffers[i].capacity()));
+            bytes += len;
+        }
+        size = n;
+        return bytes;
+    }
+
+    /** Whether the datagram at the given index was longer than its buffer,
+     *  in which case the buffer only holds its beginning. */
+    public boolean isTruncated(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        int flags = headers.getInt(i * MMSGHDR_SIZE + MSG_FLAGS);
+        return (flags & cLibrary.MSG_TRUNC) != 0;
+    }
+
+    private static void setSize(Memory mem, long offset, long value) {
+        if (P == 8)
+            mem.setLong(offset, value);
+        else
+            mem.setInt(offset, (int) value);
+    }
+
+    private static int align(int offset) {
+        return (offset + P - 1) & ~(P - 1);
+    }
+
+    private static boolean lookupFunctions() {
+        try {
+            NativeLibrary libc = NativeLibrary.getInstance("c");
+            libc.getFunction("sendmmsg");
+            libc.getFunction("recvmmsg");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+}
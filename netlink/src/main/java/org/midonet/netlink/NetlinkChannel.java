@@ -128,6 +128,36 @@ public class NetlinkChannel extends UnixChannel<Netlink.Address> {
         }
     }
 
+    /**
+     * Joins the given multicast group of the netlink protocol of this channel,
+     * to receive the notifications that the kernel broadcasts to it.
+     */
+    public void addMembership(int group) throws IOException {
+        setNetlinkOption(cLibrary.NETLINK_ADD_MEMBERSHIP, group);
+    }
+
+    /**
+     * Enables or disables ENOBUFS errors, which are disabled when the channel
+     * is created. With errors enabled, a read fails when the kernel dropped
+     * messages to this channel for lack of buffer space, which lets users
+     * that keep state from multicast notifications know that they need to
+     * resynchronize it.
+     */
+    public void setNoEnobufs(boolean noEnobufs) throws IOException {
+        setNetlinkOption(cLibrary.NETLINK_NO_ENOBUFS, noEnobufs ? 1 : 0);
+    }
+
+    private void setNetlinkOption(int option, int value) throws IOException {
+        ByteBuffer optval = BytesUtil.instance.allocate(4);
+        optval.putInt(0, value);
+        if (cLibrary.lib.setsockopt(fdVal, cLibrary.SOL_NETLINK, option,
+                                    optval, 4) != 0) {
+            throw new IOException("failed to set netlink socket option " +
+                                  option + ": " + cLibrary.lib.strerror(
+                                      Native.getLastError()));
+        }
+    }
+
     protected void _executeConnect(Netlink.Address address) throws IOException {
         cLibrary.NetlinkSockAddress remote = new cLibrary.NetlinkSockAddress();
         remote.nl_family = cLibrary.AF_NETLINK;
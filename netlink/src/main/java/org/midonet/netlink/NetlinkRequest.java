@@ -69,6 +69,22 @@ public abstract class NetlinkRequest implements Runnable {
         return userCallback != null;
     }
 
+    /** The number of netlink messages written to the channel for this
+     *  request. Each of them is given its own sequence number and is tracked
+     *  and answered as a separate request. */
+    public int partCount() {
+        return 1;
+    }
+
+    public NetlinkRequest part(int index) {
+        return this;
+    }
+
+    /** The offset of the netlink message of the given part in the payload. */
+    public int partOffset(int index) {
+        return 0;
+    }
+
     abstract public void addAnswerFragment(ByteBuffer buf);
 
     public ByteBuffer releaseRequestPayload() {
@@ -169,6 +185,18 @@ public abstract class NetlinkRequest implements Runnable {
         return new MultiAnswerNetlinkRequest(cb, func, data, timeoutMillis);
     }
 
+    /** Factory method to create a NetlinkRequest that writes several single
+     *  answer requests, whose messages have been copied back to back in the
+     *  given buffer, with a single write to the channel. The parts have no
+     *  payload of their own and are answered, failed and expired one by one,
+     *  so the request itself has no callback. */
+    public static NetlinkRequest makeBatch(NetlinkRequest[] parts,
+                                           int[] offsets,
+                                           int count,
+                                           ByteBuffer data) {
+        return new BatchNetlinkRequest(parts, offsets, count, data);
+    }
+
     static class SingleAnswerNetlinkRequest extends NetlinkRequest {
         public SingleAnswerNetlinkRequest(Callback<Object> callback,
                                           Reader<Object> reader,
@@ -210,6 +238,41 @@ public abstract class NetlinkRequest implements Runnable {
         }
     }
 
+    static class BatchNetlinkRequest extends NetlinkRequest {
+        private final NetlinkRequest[] parts;
+        private final int[] offsets;
+        private final int count;
+
+        public BatchNetlinkRequest(NetlinkRequest[] parts, int[] offsets,
+                                   int count, ByteBuffer data) {
+            super(null, null, data, 0);
+            for (int i = 0; i < count; i++)
+                assert parts[i].partCount() == 1 : "nested batch request";
+            this.parts = parts;
+            this.offsets = offsets;
+            this.count = count;
+        }
+        @Override
+        public int partCount() {
+            return count;
+        }
+        @Override
+        public NetlinkRequest part(int index) {
+            return parts[index];
+        }
+        @Override
+        public int partOffset(int index) {
+            return offsets[index];
+        }
+        /* Only the parts are given sequence numbers and registered as
+         * pending, so the replies always go to them and never to the batch,
+         * which has no callback. */
+        @Override
+        public void addAnswerFragment(ByteBuffer buf) {
+            assert false : "the parts of a batch are answered individually";
+        }
+    }
+
     // A null value is interpreted by the comparator as a netlinkrequest with
     // infinite timeout, and is therefore "larger" than any non-null request.
     public static final Comparator<NetlinkRequest> comparator =
@@ -206,6 +206,84 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
         }
     }
 
+    /**
+     * Writes the pending datagrams of the vector with as few sendmmsg(2)
+     * calls as possible, and returns the number of datagrams written. It
+     * returns 0 if the socket isn't ready for writing, and fewer datagrams
+     * than were pending if the call fails after writing some of them, in
+     * which case the error is reported by the next write.
+     */
+    public int write(MessageVector vector) throws IOException {
+        synchronized (sendLock) {
+            ensureConnected();
+            int n = 0;
+            int sent = 0;
+            try {
+                if (!prepareWrite())
+                    return 0;
+                while (vector.pending() > 0) {
+                    n = cLibrary.lib.sendmmsg(fdVal, vector.headers(),
+                                              vector.pending(), 0);
+                    if (n > 0) {
+                        txBytes += vector.completeWrite(n);
+                        sent += n;
+                        continue;
+                    }
+                    int errno = Native.getLastError();
+                    if (errno == cLibrary.EINTR && isOpen())
+                        continue;
+                    if (errno == cLibrary.EAGAIN || sent > 0) {
+                        n = IOStatus.UNAVAILABLE;
+                        break;
+                    }
+                    n = 0;
+                    throw new IOException("failed to write to socket: " +
+                                          cLibrary.lib.strerror(errno));
+                }
+                return sent;
+            } finally {
+                finishWrite((sent > 0) ? sent : n);
+            }
+        }
+    }
+
+    /**
+     * Reads as many datagrams as fit in the vector with a single recvmmsg(2)
+     * call, and returns how many were read. It returns 0 if none is
+     * available.
+     */
+    public int read(MessageVector vector) throws IOException {
+        synchronized (recvLock) {
+            ensureConnected();
+            int n = 0;
+            try {
+                if (!prepareRead())
+                    return 0;
+                vector.prepareRead();
+                do {
+                    n = cLibrary.lib.recvmmsg(fdVal, vector.headers(),
+                                              vector.capacity(),
+                                              cLibrary.MSG_WAITFORONE, null);
+                } while (n < 0 && Native.getLastError() == cLibrary.EINTR
+                         && isOpen());
+                if (n < 0) {
+                    int errno = Native.getLastError();
+                    if (errno == cLibrary.EAGAIN) {
+                        n = IOStatus.UNAVAILABLE;
+                        return 0;
+                    }
+                    n = 0;
+                    throw new IOException("failed to read from socket: " +
+                                          cLibrary.lib.strerror(errno));
+                }
+                rxBytes += vector.completeRead(n);
+                return n;
+            } finally {
+                finishRead(n);
+            }
+        }
+    }
+
     private boolean prepareWrite() {
         begin();
         if (isOpen()) {
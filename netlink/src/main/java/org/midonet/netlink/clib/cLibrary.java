@@ -19,6 +19,7 @@ import java.nio.ByteBuffer;
 
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.Structure.ByValue;
 import com.sun.jna.ptr.IntByReference;
@@ -76,6 +77,7 @@ public interface cLibrary extends Library {
     public static final int SOL_RAW = 255;
     public static final int SOL_NETLINK = 270;
 
+    public static final int SO_SNDBUF = 7;
     public static final int SO_RCVBUF = 8;
     public static final int SO_RCVBUFFORCE = 33;
 
@@ -84,6 +86,12 @@ public interface cLibrary extends Library {
     public static final int NETLINK_BROADCAST_ERROR = 4;
     public static final int NETLINK_NO_ENOBUFS = 5;
 
+    public static final int MSG_TRUNC = 0x20;
+    public static final int MSG_WAITFORONE = 0x10000;
+
+    public static final int EINTR = 4;
+    public static final int EAGAIN = 11;
+
     int socket(int domain, int type, int protocol);
 
     int connect(int fd, NetlinkSockAddress addrSockAddress, int size);
@@ -108,6 +116,10 @@ public interface cLibrary extends Library {
 
     int recv(int fd, ByteBuffer buf, int len, int flags);
 
+    int sendmmsg(int fd, Pointer msgvec, int vlen, int flags);
+
+    int recvmmsg(int fd, Pointer msgvec, int vlen, int flags, Pointer timeout);
+
     int getpagesize();
 
     int close(long l);
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import org.midonet.netlink.AttributeHandler;
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.Reader;
+
+/**
+ * Java representation of an address of a network interface, as described by
+ * the NEWADDR and DELADDR messages of rtnetlink.
+ */
+public class Addr {
+
+    /** The length of the ifaddrmsg struct heading address messages. */
+    public static final int HEADER_LEN = 8;
+
+    public interface Attr {
+        short ADDRESS = (short) 1;
+        short LOCAL   = (short) 2;
+    }
+
+    private final int index;
+    private final int prefixLen;
+    private byte[] address;
+    private byte[] local;
+
+    public Addr(int index, int prefixLen) {
+        this.index = index;
+        this.prefixLen = prefixLen;
+    }
+
+    /** The index of the link of this address. */
+    public int getIndex() {
+        return index;
+    }
+
+    public int getPrefixLen() {
+        return prefixLen;
+    }
+
+    /** The local address of the interface, or null if it isn't valid. For
+     *  point to point links, IFA_ADDRESS is the address of the peer and
+     *  IFA_LOCAL the local one. */
+    public InetAddress getInetAddress() {
+        try {
+            byte[] bytes = (local != null) ? local : address;
+            return (bytes != null) ? InetAddress.getByAddress(bytes) : null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    public static Addr buildFrom(ByteBuffer buf) {
+        buf.get();  // family
+        int prefixLen = buf.get() & 0xff;
+        buf.get();  // flags
+        buf.get();  // scope
+        final Addr addr = new Addr(buf.getInt(), prefixLen);
+        NetlinkMessage.scanAttributes(buf, new AttributeHandler() {
+            @Override
+            public void use(ByteBuffer buf, short id) {
+                switch (id) {
+                    case Attr.ADDRESS:
+                        addr.address = new byte[buf.remaining()];
+                        buf.get(addr.address);
+                        break;
+                    case Attr.LOCAL:
+                        addr.local = new byte[buf.remaining()];
+                        buf.get(addr.local);
+                        break;
+                }
+            }
+        });
+        return addr;
+    }
+
+    /** Static stateless deserializer which builds a single Addr instance
+     *  and consumes the given ByteBuffer. */
+    public static final Reader<Addr> deserializer = new Reader<Addr>() {
+        public Addr deserializeFrom(ByteBuffer buf) {
+            if (buf == null)
+                return null;
+            return buildFrom(buf);
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "Addr{index=" + index + ", address=" + getInetAddress() +
+               "/" + prefixLen + "}";
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink;
+
+import java.nio.ByteBuffer;
+
+import org.midonet.netlink.AttributeHandler;
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.Reader;
+
+/**
+ * Java representation of a network interface, as described by the NEWLINK
+ * messages of rtnetlink.
+ */
+public class Link {
+
+    /** The length of the ifinfomsg struct heading link messages. */
+    public static final int HEADER_LEN = 16;
+
+    public interface Attr {
+        short ADDRESS  = (short) 1;
+        short IFNAME   = (short) 3;
+        short MTU      = (short) 4;
+        short LINKINFO = (short) 18;
+    }
+
+    public interface LinkInfoAttr {
+        short KIND = (short) 1;
+    }
+
+    public interface Flag {
+        int IFF_UP       = 0x1;
+        int IFF_LOOPBACK = 0x8;
+        int IFF_LOWER_UP = 0x10000;
+    }
+
+    private final int index;
+    private final int flags;
+    private String name;
+    private byte[] mac;
+    private int mtu;
+    private String kind;
+
+    public Link(int index, int flags) {
+        this.index = index;
+        this.flags = flags;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** The link layer address, or null if the link has none. */
+    public byte[] getMac() {
+        return mac;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /** The kind of virtual link, such as "tun" or "veth", or null. */
+    public String getKind() {
+        return kind;
+    }
+
+    public boolean isUp() {
+        return (flags & Flag.IFF_UP) != 0;
+    }
+
+    public boolean hasLink() {
+        return (flags & Flag.IFF_LOWER_UP) != 0;
+    }
+
+    public boolean isLoopback() {
+        return (flags & Flag.IFF_LOOPBACK) != 0;
+    }
+
+    public static Link buildFrom(ByteBuffer buf) {
+        buf.getShort();  // family and padding
+        buf.getShort();  // device type
+        final Link link = new Link(buf.getInt(), buf.getInt());
+        buf.getInt();    // change mask
+        NetlinkMessage.scanAttributes(buf, new AttributeHandler() {
+            @Override
+            public void use(ByteBuffer buf, short id) {
+                switch (id) {
+                    case Attr.IFNAME:
+                        link.name = NetlinkMessage.parseStringAttr(
+                            buf, buf.position());
+                        break;
+                    case Attr.ADDRESS:
+                        link.mac = new byte[buf.remaining()];
+                        buf.get(link.mac);
+                        break;
+                    case Attr.MTU:
+                        link.mtu = buf.getInt();
+                        break;
+                    case Attr.LINKINFO:
+                        link.kind = NetlinkMessage.readStringAttr(
+                            buf, LinkInfoAttr.KIND);
+                        break;
+                }
+            }
+        });
+        return link;
+    }
+
+    /** Static stateless deserializer which builds a single Link instance
+     *  and consumes the given ByteBuffer. */
+    public static final Reader<Link> deserializer = new Reader<Link>() {
+        public Link deserializeFrom(ByteBuffer buf) {
+            if (buf == null)
+                return null;
+            return buildFrom(buf);
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "Link{index=" + index + ", name=" + name + ", flags=" +
+               Integer.toHexString(flags) + ", mtu=" + mtu +
+               ", kind=" + kind + "}";
+    }
+}
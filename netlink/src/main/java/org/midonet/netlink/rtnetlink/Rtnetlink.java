@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink;
+
+import java.nio.ByteBuffer;
+
+import org.midonet.netlink.NLFlag;
+
+/**
+ * Constants and requests of rtnetlink, the NETLINK_ROUTE protocol used to
+ * query and monitor the network interfaces and addresses of the host.
+ * See include/uapi/linux/rtnetlink.h in Linux kernel sources.
+ */
+public final class Rtnetlink {
+    private Rtnetlink() {}
+
+    /** The length of the netlink message header. */
+    public static final int NLMSG_HDRLEN = 16;
+
+    /** rtnetlink message types. */
+    public interface Type {
+        short NEWLINK = (short) 16;
+        short DELLINK = (short) 17;
+        short GETLINK = (short) 18;
+        short NEWADDR = (short) 20;
+        short DELADDR = (short) 21;
+        short GETADDR = (short) 22;
+    }
+
+    /** rtnetlink multicast groups, as given to NETLINK_ADD_MEMBERSHIP. */
+    public interface Group {
+        int LINK        = 1;
+        int IPV4_IFADDR = 5;
+        int IPV6_IFADDR = 9;
+    }
+
+    /**
+     * Writes a request to dump all the links, for GETLINK, or all the
+     * addresses, for GETADDR, of the host with the given sequence number.
+     * The kernel replies with NEWLINK or NEWADDR messages terminated by a
+     * DONE message.
+     */
+    public static void writeDumpRequest(ByteBuffer buf, short type, int seq) {
+        int bodyLen = (type == Type.GETLINK) ? Link.HEADER_LEN
+                                             : Addr.HEADER_LEN;
+        buf.putInt(NLMSG_HDRLEN + bodyLen);
+        buf.putShort(type);
+        buf.putShort((short) (NLFlag.REQUEST | NLFlag.Get.DUMP));
+        buf.putInt(seq);
+        buf.putInt(0);  // pid, set by the kernel
+        for (int i = 0; i < bodyLen; i++) {
+            buf.put((byte) 0);
+        }
+    }
+}
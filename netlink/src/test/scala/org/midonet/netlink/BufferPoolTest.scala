@@ -16,8 +16,12 @@
 package org.midonet.netlink;
 
 import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+
 import scala.collection.mutable.ListBuffer
 
+import com.codahale.metrics.Meter
+
 import org.junit.runner.RunWith
 import org.scalatest._
 import org.scalatest.junit.JUnitRunner
@@ -97,9 +101,57 @@ class BufferPoolTest extends FunSpec with Matchers {
                 val pool = new BufferPool(10,20,128)
                 (1 to 5) foreach { _ =>
                     pool release ByteBuffer.allocate(128)
+                    pool release ByteBuffer.allocateDirect(128)
                     pool.available shouldBe 10
                 }
             }
+
+            it("should ignore the temporary buffers") {
+                val pool = new BufferPool(2,2,128)
+                val bufs = List.fill(3) { pool.take }
+                bufs(2).isDirect shouldBe false
+                bufs foreach { b => buffers += b; pool release b }
+                pool.available shouldBe 2
+            }
+
+            it("should hand them back to the releasing thread first") {
+                val pool = new BufferPool(256,1024,128)
+                val buf = pool.take
+                buffers += buf
+                pool release buf
+                pool.take shouldBe theSameInstanceAs (buf)
+                pool release buf
+                pool.available shouldBe 256
+            }
+        }
+
+        it("should slice direct buffers of the right size and order") {
+            val pool = new BufferPool(2,300,8*1024)
+            val bufs = List.fill(300) { pool.take }
+            buffers ++= bufs
+            bufs.toSet.size shouldBe 300
+            bufs foreach { b =>
+                b.isDirect shouldBe true
+                b.capacity shouldBe 8*1024
+                b.position shouldBe 0
+                b.order shouldBe BytesUtil.instance.allocate(1).order
+            }
+            pool.allocated shouldBe 300
+        }
+
+        it("should count exhaustions and fallback allocations") {
+            val pool = new BufferPool(1,2,128)
+            val exhaustions = new Meter()
+            val fallbacks = new Meter()
+            pool.setMetrics(exhaustions, fallbacks)
+            buffers += pool.take
+            exhaustions.getCount shouldBe 0
+            buffers += pool.take
+            exhaustions.getCount shouldBe 1
+            fallbacks.getCount shouldBe 0
+            buffers += pool.take
+            exhaustions.getCount shouldBe 2
+            fallbacks.getCount shouldBe 1
         }
 
         describe("when serving multiple clients") {
@@ -123,6 +175,49 @@ class BufferPoolTest extends FunSpec with Matchers {
             }
         }
 
+        describe("when threads cache released buffers") {
+            it("should reclaim the buffers of the threads that died") {
+                val pool = new BufferPool(256,256,128)
+                val fallbacks = new Meter()
+                pool.setMetrics(new Meter(), fallbacks)
+                val client = new Thread(new Runnable() {
+                    def run() {
+                        val bufs = List.fill(256) { pool.take }
+                        bufs foreach { b => buffers += b; pool release b }
+                    }
+                })
+                client.start()
+                client.join()
+                pool.available shouldBe 256
+                buffers ++= List.fill(256) { pool.take }
+                fallbacks.getCount shouldBe 0
+            }
+
+            it("should keep at most a quarter of the pool") {
+                val pool = new BufferPool(64,64,128)
+                val fallbacks = new Meter()
+                pool.setMetrics(new Meter(), fallbacks)
+                val released = new CountDownLatch(20)
+                val done = new CountDownLatch(1)
+                val clients = List.fill(20) {
+                    new Thread(new Runnable() {
+                        def run() {
+                            pool release pool.take
+                            released.countDown()
+                            done.await()
+                        }
+                    })
+                }
+                clients foreach { _.start }
+                released.await()
+                pool.available shouldBe 64
+                buffers ++= List.fill(48) { pool.take }
+                fallbacks.getCount shouldBe 0
+                done.countDown()
+                clients foreach { _.join }
+            }
+        }
+
         def checkAllocs(pool: BufferPool, nAlloc: Int, nAvail: Int) {
             pool.allocated shouldBe nAlloc
             pool.available shouldBe nAvail
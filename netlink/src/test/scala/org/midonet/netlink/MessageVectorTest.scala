@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink
+
+import java.nio.{ByteBuffer, ByteOrder}
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class MessageVectorTest extends FunSpec with Matchers {
+
+    describe("MessageVector") {
+        it("can't be created with an invalid capacity") {
+            intercept[IllegalArgumentException] { new MessageVector(0) }
+            intercept[IllegalArgumentException] { MessageVector.allocate(-1, 128) }
+        }
+
+        it("holds direct buffers to write up to its capacity") {
+            val vector = new MessageVector(2)
+            val bufs = (1 to 3) map { _ => ByteBuffer.allocateDirect(64) }
+            vector add bufs(0) shouldBe true
+            vector add bufs(1) shouldBe true
+            vector add bufs(2) shouldBe false
+            vector.size shouldBe 2
+            vector get 0 shouldBe theSameInstanceAs (bufs(0))
+            vector get 1 shouldBe theSameInstanceAs (bufs(1))
+            vector.pending shouldBe 2
+
+            vector.clear()
+            vector.size shouldBe 0
+            vector.pending shouldBe 0
+            intercept[IndexOutOfBoundsException] { vector get 0 }
+        }
+
+        it("rejects heap buffers") {
+            intercept[IllegalArgumentException] {
+                new MessageVector(2) add ByteBuffer.allocate(64)
+            }
+        }
+
+        it("owns a ring of native order buffers to read into") {
+            val vector = MessageVector.allocate(4, 256)
+            vector.capacity shouldBe 4
+            vector.size shouldBe 0
+            intercept[IllegalStateException] {
+                vector add ByteBuffer.allocateDirect(64)
+            }
+            intercept[IllegalStateException] { new MessageVector(1).prepareRead() }
+
+            vector.prepareRead()
+            vector.completeRead(4)
+            (0 until 4) foreach { i =>
+                val buf = vector get i
+                buf.isDirect shouldBe true
+                buf.capacity shouldBe 256
+                buf.order shouldBe ByteOrder.nativeOrder
+                vector isTruncated i shouldBe false
+            }
+        }
+    }
+}
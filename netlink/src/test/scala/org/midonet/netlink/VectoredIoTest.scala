@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink
+
+import java.nio.ByteBuffer
+
+import scala.collection.mutable.ListBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.netlink.clib.cLibrary
+import org.midonet.netlink.exceptions.NetlinkException
+import org.midonet.util.Bucket
+
+/* Exercises sendmmsg(2) and recvmmsg(2) against the kernel, asking the
+ * generic netlink controller for its own family id, which is always 16. */
+@RunWith(classOf[JUnitRunner])
+class VectoredIoTest extends FunSpec with Matchers with BeforeAndAfter {
+
+    val CtrlFamilyId: java.lang.Short = 16.toShort
+
+    var channel: NetlinkChannel = null
+
+    class CtrlConnection(pool: BufferPool)
+            extends AbstractNetlinkConnection(channel, pool) {
+
+        override def handleNotification(`type`: Short, cmd: Byte, seq: Int,
+                                        pid: Int, buf: ByteBuffer) { }
+
+        /* Pads the request with an attribute the kernel ignores, so that it
+         * can be made bigger than the send buffer of the socket. */
+        def getFamily(padding: Int, cb: Callback[java.lang.Short]) {
+            val buf = getBuffer
+            NetlinkMessage.writeStringAttr(buf, CtrlFamily.AttrKey.FAMILY_NAME,
+                                           "nlctrl")
+            if (padding > 0)
+                NetlinkMessage.writeRawAttribute(buf, 100.toShort,
+                                                 new Array[Byte](padding))
+            buf.flip()
+            sendNetlinkMessage(CtrlFamily.Context.GetFamily, NLFlag.REQUEST,
+                               buf, cb, CtrlFamily.familyIdDeserializer, 1000)
+        }
+    }
+
+    class Replies extends Callback[java.lang.Short] {
+        val results = ListBuffer[Any]()
+        override def onSuccess(id: java.lang.Short) { results += id }
+        override def onError(e: NetlinkException) { results += e.getErrorCode }
+    }
+
+    before {
+        assume(MessageVector.isSupported, "recvmmsg(2) is not available")
+        channel = try {
+            new NetlinkSelectorProvider()
+                .openNetlinkSocketChannel(NetlinkProtocol.NETLINK_GENERIC)
+        } catch { case e: Exception => null }
+        assume(channel ne null, "can't open a netlink channel")
+        channel.connect(new Netlink.Address(0))
+    }
+
+    after {
+        if (channel ne null)
+            channel.close()
+    }
+
+    private def familyRequest(seq: Int): ByteBuffer = {
+        val buf = BytesUtil.instance.allocateDirect(256)
+        buf.position(20)
+        CtrlFamily.familyNameRequest(buf, "nlctrl")
+        buf.putInt(0, buf.limit)
+        buf.putShort(4, CtrlFamily.FAMILY_ID.toShort)
+        buf.putShort(6, NLFlag.REQUEST)
+        buf.putInt(8, seq)
+        buf.putInt(12, 0)
+        buf.put(16, CtrlFamily.Context.GetFamily.command)
+        buf.put(17, CtrlFamily.VERSION.toByte)
+        buf.putShort(18, 0.toShort)
+        buf
+    }
+
+    describe("A netlink channel") {
+        it("writes and reads a vector of messages with single calls") {
+            val out = new MessageVector(3)
+            val requests = (0 until 3) map { i => familyRequest(100 + i) }
+            requests foreach { out add _ }
+
+            channel write out shouldBe 3
+            out.pending shouldBe 0
+            requests foreach { _.remaining shouldBe 0 }
+
+            val in = MessageVector.allocate(4, 4096)
+            var read = 0
+            while (read < 3) {
+                val n = channel read in
+                (0 until n) foreach { i =>
+                    val reply = in get i
+                    in isTruncated i shouldBe false
+                    reply.getInt(0) shouldBe reply.limit
+                    reply.getShort(4) shouldBe CtrlFamily.FAMILY_ID.toShort
+                    reply.getInt(8) shouldBe 100 + read + i
+                }
+                read += n
+            }
+            read shouldBe 3
+        }
+    }
+
+    describe("A connection writing vectors of messages") {
+        it("writes direct and heap buffers in the order they were queued") {
+            channel.configureBlocking(false)
+            // the two direct buffers are followed by heap ones
+            val pool = new BufferPool(2, 2, 1024)
+            val conn = new CtrlConnection(pool)
+            conn.setMaxMessagesPerIo(4)
+
+            val replies = new Replies
+            (1 to 5) foreach { _ => conn.getFamily(0, replies) }
+            conn.handleWriteEvent()
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+
+            replies.results shouldBe List.fill(5)(CtrlFamilyId)
+            pool.available shouldBe 2
+        }
+
+        it("fails the requests that sendmmsg didn't write") {
+            channel.configureBlocking(false)
+            val sndbuf = BytesUtil.instance.allocate(4)
+            sndbuf.putInt(0, 4096)
+            cLibrary.lib.setsockopt(channel.getFDVal, cLibrary.SOL_SOCKET,
+                                    cLibrary.SO_SNDBUF, sndbuf, 4) shouldBe 0
+
+            val pool = new BufferPool(3, 3, 16384)
+            val conn = new CtrlConnection(pool)
+            conn.setMaxMessagesPerIo(4)
+
+            // the second message doesn't fit in the send buffer, which cuts
+            // the sendmmsg call short after the first one
+            val first, oversized, last = new Replies
+            conn.getFamily(0, first)
+            conn.getFamily(12000, oversized)
+            conn.getFamily(0, last)
+            conn.handleWriteEvent()
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+
+            first.results shouldBe List(CtrlFamilyId)
+            oversized.results shouldBe List(NetlinkException.ERROR_SENDING_REQUEST)
+            last.results shouldBe List(NetlinkException.ERROR_SENDING_REQUEST)
+            pool.available shouldBe 3
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink
+
+import java.net.InetAddress
+import java.nio.ByteBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.netlink.{BytesUtil, NLFlag, NetlinkMessage}
+
+@RunWith(classOf[JUnitRunner])
+class RtnetlinkTest extends FunSpec with Matchers {
+
+    def makeBuffer() = BytesUtil.instance allocate 1024
+
+    describe("Rtnetlink") {
+        it("writes requests to dump the links and addresses") {
+            val buf = makeBuffer()
+            Rtnetlink.writeDumpRequest(buf, Rtnetlink.Type.GETLINK, 7)
+            buf.position shouldBe Rtnetlink.NLMSG_HDRLEN + Link.HEADER_LEN
+            buf.getInt(0) shouldBe buf.position
+            buf.getShort(4) shouldBe Rtnetlink.Type.GETLINK
+            buf.getShort(6) shouldBe (NLFlag.REQUEST | NLFlag.Get.DUMP).toShort
+            buf.getInt(8) shouldBe 7
+
+            buf.clear()
+            Rtnetlink.writeDumpRequest(buf, Rtnetlink.Type.GETADDR, 8)
+            buf.position shouldBe Rtnetlink.NLMSG_HDRLEN + Addr.HEADER_LEN
+            buf.getInt(0) shouldBe buf.position
+            buf.getShort(4) shouldBe Rtnetlink.Type.GETADDR
+        }
+    }
+
+    describe("Link") {
+        it("is built from the body of a NEWLINK message") {
+            val buf = makeBuffer()
+            buf.putShort(0)                     // family and padding
+            buf.putShort(1)                     // ARPHRD_ETHER
+            buf.putInt(42)                      // index
+            buf.putInt(Link.Flag.IFF_UP | Link.Flag.IFF_LOWER_UP)
+            buf.putInt(0)                       // change mask
+            NetlinkMessage.writeStringAttr(buf, Link.Attr.IFNAME, "tap0")
+            NetlinkMessage.writeRawAttribute(buf, Link.Attr.ADDRESS,
+                                             Array[Byte](2, 0, 0, 0, 0, 1))
+            NetlinkMessage.writeIntAttr(buf, Link.Attr.MTU, 1400)
+            val start = buf.position
+            NetlinkMessage.setAttrHeader(buf, Link.Attr.LINKINFO, 0)
+            NetlinkMessage.writeStringAttr(buf, Link.LinkInfoAttr.KIND, "tun")
+            buf.putShort(start, (buf.position - start).toShort)
+            buf.flip()
+
+            val link = Link.buildFrom(buf)
+            link.getIndex shouldBe 42
+            link.getName shouldBe "tap0"
+            link.getMac shouldBe Array[Byte](2, 0, 0, 0, 0, 1)
+            link.getMtu shouldBe 1400
+            link.getKind shouldBe "tun"
+            link.isUp shouldBe true
+            link.hasLink shouldBe true
+            link.isLoopback shouldBe false
+        }
+
+        it("has no link layer address or kind if the message has none") {
+            val buf = makeBuffer()
+            buf.putShort(0)
+            buf.putShort(772)                   // ARPHRD_LOOPBACK
+            buf.putInt(1)
+            buf.putInt(Link.Flag.IFF_UP | Link.Flag.IFF_LOOPBACK)
+            buf.putInt(0)
+            NetlinkMessage.writeStringAttr(buf, Link.Attr.IFNAME, "lo")
+            buf.flip()
+
+            val link = Link.buildFrom(buf)
+            link.getName shouldBe "lo"
+            link.getMac shouldBe null
+            link.getKind shouldBe null
+            link.isLoopback shouldBe true
+            link.hasLink shouldBe false
+        }
+    }
+
+    describe("Addr") {
+        it("is built from the body of a NEWADDR message") {
+            val buf = makeBuffer()
+            buf.put(2.toByte)                   // AF_INET
+            buf.put(24.toByte)                  // prefix length
+            buf.put(0.toByte)                   // flags
+            buf.put(0.toByte)                   // scope
+            buf.putInt(42)
+            NetlinkMessage.writeRawAttribute(buf, Addr.Attr.ADDRESS,
+                                             Array[Byte](10, 0, 0, 2))
+            buf.flip()
+
+            val addr = Addr.buildFrom(buf)
+            addr.getIndex shouldBe 42
+            addr.getPrefixLen shouldBe 24
+            addr.getInetAddress shouldBe InetAddress.getByName("10.0.0.2")
+        }
+
+        it("prefers the local address of point to point links") {
+            val buf = makeBuffer()
+            buf.put(2.toByte)
+            buf.put(32.toByte)
+            buf.put(0.toByte)
+            buf.put(0.toByte)
+            buf.putInt(3)
+            NetlinkMessage.writeRawAttribute(buf, Addr.Attr.ADDRESS,
+                                             Array[Byte](10, 0, 0, 1))
+            NetlinkMessage.writeRawAttribute(buf, Addr.Attr.LOCAL,
+                                             Array[Byte](10, 0, 0, 2))
+            buf.flip()
+
+            Addr.buildFrom(buf).getInetAddress shouldBe
+                InetAddress.getByName("10.0.0.2")
+        }
+    }
+}
@@ -27,6 +27,7 @@ import org.midonet.odp.flows.IPFragmentType;
 import org.midonet.odp.flows.IpProtocol;
 import org.midonet.packets.ARP;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.EthernetView;
 import org.midonet.packets.ICMP;
 import org.midonet.packets.IPacket;
 import org.midonet.packets.IPv4;
@@ -127,21 +128,92 @@ public class FlowMatches {
         return match;
     }
 
+    /**
+     * Builds the same match as {@link #fromEthernetPacket(Ethernet)}, reading
+     * the header fields from a view of the frame instead of its object tree.
+     */
+    public static FlowMatch fromEthernetView(EthernetView view) {
+        FlowMatch match = new FlowMatch()
+            .addKey(
+                ethernet(
+                    view.getSourceMACAddress().getAddress(),
+                    view.getDestinationMACAddress().getAddress()))
+            .addKey(etherType(view.getEtherType()));
+
+        List<FlowKey> payloadKeys = new ArrayList<>();
+
+        switch (view.getEtherType()) {
+            case ARP.ETHERTYPE:
+                if (view.hasArp()) {
+                    payloadKeys.add(
+                        arp(view.getArpSenderHardwareAddress().getAddress(),
+                            view.getArpTargetHardwareAddress().getAddress(),
+                            view.getArpOpCode(),
+                            view.getArpSenderProtocolAddress(),
+                            view.getArpTargetProtocolAddress()));
+                }
+                break;
+            case IPv4.ETHERTYPE:
+                if (view.hasIPv4()) {
+                    parseFlowKeysFromIPv4(view, payloadKeys);
+                }
+                break;
+            case IPv6.ETHERTYPE:
+                if (view.hasIPv6()) {
+                    parseFlowKeysFromIPv6(view, match);
+                }
+                break;
+        }
+
+        int vlanCount = view.getVlanCount();
+        if (vlanCount > 0) {
+            for (int i = 0; i < vlanCount; i++) {
+                match.addKey(
+                    etherType(i < vlanCount - 1 ? Ethernet.PROVIDER_BRIDGING_TAG :
+                                  Ethernet.VLAN_TAGGED_FRAME));
+                match.addKey(vlan(view.getVlanId(i)));
+            }
+            match.addKey(encap(payloadKeys));
+        } else {
+            match.addKeys(payloadKeys);
+        }
+        return match;
+    }
+
     private static FlowKey makeIcmpFlowKey(ICMP icmp) {
-        switch (icmp.getType()) {
+        return makeIcmpFlowKey(icmp.getType(), icmp.getCode(),
+                               icmp.getIdentifier(), icmp.getData());
+    }
+
+    private static FlowKey makeIcmpFlowKey(EthernetView view) {
+        switch (view.getIcmpType()) {
             case ICMP.TYPE_ECHO_REPLY:
             case ICMP.TYPE_ECHO_REQUEST:
-                return icmpEcho(icmp.getType(),
-                                icmp.getCode(),
-                                icmp.getIdentifier());
             case ICMP.TYPE_PARAMETER_PROBLEM:
             case ICMP.TYPE_REDIRECT:
             case ICMP.TYPE_SOURCE_QUENCH:
             case ICMP.TYPE_TIME_EXCEEDED:
             case ICMP.TYPE_UNREACH:
-                return icmpError(icmp.getType(),
-                                 icmp.getCode(),
-                                 icmp.getData());
+                return makeIcmpFlowKey(view.getIcmpType(), view.getIcmpCode(),
+                                       view.getIcmpIdentifier(),
+                                       view.getIcmpData());
+            default:
+                return null;
+        }
+    }
+
+    private static FlowKey makeIcmpFlowKey(byte type, byte code,
+                                           short identifier, byte[] data) {
+        switch (type) {
+            case ICMP.TYPE_ECHO_REPLY:
+            case ICMP.TYPE_ECHO_REQUEST:
+                return icmpEcho(type, code, identifier);
+            case ICMP.TYPE_PARAMETER_PROBLEM:
+            case ICMP.TYPE_REDIRECT:
+            case ICMP.TYPE_SOURCE_QUENCH:
+            case ICMP.TYPE_TIME_EXCEEDED:
+            case ICMP.TYPE_UNREACH:
+                return icmpError(type, code, data);
             default:
                 return null;
         }
@@ -162,6 +234,85 @@ public class FlowMatches {
         }
     }
 
+    /**
+     * Same as {@link #addUserspaceKeys(Ethernet, FlowMatch)}, reading the
+     * ICMP header from a view of the frame.
+     */
+    public static void addUserspaceKeys(EthernetView view, FlowMatch match) {
+        List<FlowKey> keys = match.getKeys();
+        for (int i = 0; i < keys.size(); ++i) {
+            if (keys.get(i) instanceof FlowKeyICMP) {
+                if (!view.hasTransport() ||
+                    view.getIpProtocol() != ICMP.PROTOCOL_NUMBER)
+                    return;
+                FlowKey icmpUserSpace = makeIcmpFlowKey(view);
+                if (icmpUserSpace != null) {
+                    match.replaceKey(i, icmpUserSpace);
+                    match.setUserSpaceOnly(true);
+                }
+                return;
+            }
+        }
+    }
+
+    private static void parseFlowKeysFromIPv4(EthernetView view,
+                                              List<FlowKey> keys) {
+        byte protocol = view.getIpProtocol();
+        keys.add(
+            ipv4(view.getIPv4SourceAddress(),
+                 view.getIPv4DestinationAddress(),
+                 protocol,
+                 (byte) 0, /* type of service */
+                 view.getIPv4Ttl(),
+                 IPFragmentType.fromIPv4Flags(view.getIPv4Flags(),
+                                              view.getIPv4FragmentOffset()))
+        );
+
+        if (!view.hasTransport())
+            return;
+
+        switch (protocol) {
+            case TCP.PROTOCOL_NUMBER:
+                keys.add(tcp(view.getSourcePort(), view.getDestinationPort()));
+                keys.add(tcpFlags(view.getTcpFlags()));
+                break;
+            case UDP.PROTOCOL_NUMBER:
+                keys.add(udp(view.getSourcePort(), view.getDestinationPort()));
+                break;
+            case ICMP.PROTOCOL_NUMBER:
+                FlowKey icmpUserspace = makeIcmpFlowKey(view);
+                if (icmpUserspace == null)
+                    keys.add(icmp(view.getIcmpType(), view.getIcmpCode()));
+                else
+                    keys.add(icmpUserspace);
+                break;
+        }
+    }
+
+    private static void parseFlowKeysFromIPv6(EthernetView view,
+                                              FlowMatch match) {
+        byte protocol = view.getIpProtocol();
+        match.addKey(
+                ipv6(view.getIPv6SourceAddress(),
+                     view.getIPv6DestinationAddress(),
+                     protocol));
+
+        if (!view.hasTransport())
+            return;
+
+        switch (protocol) {
+            case TCP.PROTOCOL_NUMBER:
+                match.addKey(tcp(view.getSourcePort(),
+                                 view.getDestinationPort()));
+                match.addKey(tcpFlags(view.getTcpFlags()));
+                break;
+            case UDP.PROTOCOL_NUMBER:
+                match.addKey(udp(view.getSourcePort(),
+                                 view.getDestinationPort()));
+                break;
+        }
+    }
+
     private static void parseFlowKeysFromIPv4(IPv4 pkt, List<FlowKey> keys) {
         IPFragmentType fragmentType =
             IPFragmentType.fromIPv4Flags(pkt.getFlags(),
@@ -16,7 +16,6 @@
 package org.midonet.odp;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.List;
 import java.util.Objects;
 
@@ -31,12 +30,21 @@ import org.midonet.odp.flows.FlowActions;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.EthernetView;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
  * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
  * via a kernel notification.
  *
+ * The frame of a packet received from the kernel is kept as a flat array,
+ * whose header fields are read through an {@link EthernetView}. Its
+ * {@link Ethernet} object tree is only built the first time it's asked for,
+ * typically when the simulation needs to modify the frame or to emit a new
+ * one based on it, as in DHCP, ICMP or ARP handling. Until then, the original
+ * frame is what's sent back to the kernel when the packet is executed.
+ *
  * @see FlowMatch
  * @see OvsDatapathConnection#packetsExecute(Datapath, Packet)
  * @see OvsDatapathConnection#datapathsSetNotificationHandler(Datapath, Callback)
@@ -54,6 +62,8 @@ public class Packet implements AttributeHandler {
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    private byte[] frame;
+    private EthernetView view;
 
     // user field used by midolman packet pipeline to track time statistics,
     // ignored in equals() and hashCode()
@@ -71,11 +81,19 @@ public class Packet implements AttributeHandler {
     }
 
     public Ethernet getEthernet() {
+        if (eth == null && view != null)
+            eth = view.toEthernet();
         return eth;
     }
 
+    /** Returns the VLAN IDs of the frame without building its object tree. */
+    public List<Short> getVlanIds() {
+        return (eth == null && view != null) ? view.getVlanIDs()
+                                             : eth.getVlanIDs();
+    }
+
     public byte[] getData() {
-        return eth.serialize();
+        return (eth == null && frame != null) ? frame : eth.serialize();
     }
 
     public FlowMatch getMatch() {
@@ -101,11 +119,17 @@ public class Packet implements AttributeHandler {
     }
 
     public void processUserspaceKeys() {
-        FlowMatches.addUserspaceKeys(eth, match);
+        if (eth == null && view != null)
+            FlowMatches.addUserspaceKeys(view, match);
+        else
+            FlowMatches.addUserspaceKeys(eth, match);
     }
 
     public void generateFlowKeysFromPayload() {
-        match = FlowMatches.fromEthernetPacket(eth);
+        if (eth == null && view != null)
+            match = FlowMatches.fromEthernetView(view);
+        else
+            match = FlowMatches.fromEthernetPacket(eth);
     }
 
     @Override
@@ -116,7 +140,7 @@ public class Packet implements AttributeHandler {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        return Objects.equals(this.getEthernet(), that.getEthernet())
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
@@ -124,7 +148,7 @@ public class Packet implements AttributeHandler {
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = Objects.hashCode(getEthernet());
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
@@ -135,7 +159,7 @@ public class Packet implements AttributeHandler {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + getEthernet() +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
@@ -150,7 +174,7 @@ public class Packet implements AttributeHandler {
         int datapathIndex = buf.getInt(); // ignored
         Packet packet = new Packet();
         NetlinkMessage.scanAttributes(buf, packet);
-        if (packet.eth == null)
+        if (packet.view == null)
             return null;
         return packet;
     }
@@ -159,15 +183,17 @@ public class Packet implements AttributeHandler {
         switch(NetlinkMessage.unnest(id)) {
 
             case Attr.Packet:
-                ByteOrder originalOrder = buf.order();
+                // The receive buffer is reused for the next read, so the
+                // frame is copied once; its object tree is built on demand.
+                this.frame = new byte[buf.remaining()];
+                buf.get(this.frame);
                 try {
-                    this.eth = new Ethernet();
-                    this.eth.deserialize(buf);
-                } catch (Exception e) {
+                    this.view = new EthernetView().wrap(
+                        ByteBuffer.wrap(this.frame), 0, this.frame.length);
+                } catch (MalformedPacketException e) {
                     log.warn("Dropping malformed packet", e);
-                    this.eth = null;
-                } finally {
-                    buf.order(originalOrder);
+                    this.frame = null;
+                    this.view = null;
                 }
                 break;
 
@@ -186,7 +212,7 @@ public class Packet implements AttributeHandler {
     public static ByteBuffer execRequest(ByteBuffer buf, int datapathId,
                                          Iterable<FlowKey> keys,
                                          Iterable<FlowAction> actions,
-                                         Ethernet packet) {
+                                         byte[] packet) {
         buf.putInt(datapathId);
         // TODO(pino): find out why ovs_packet_cmd_execute throws an
         // EINVAL if we put the PACKET attribute right after the
@@ -199,7 +225,7 @@ public class Packet implements AttributeHandler {
         NetlinkMessage.writeAttrSeq(buf, Attr.Actions,
                                     actions, FlowActions.writer);
 
-        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.serialize());
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet);
 
         buf.flip();
         return buf;
@@ -308,6 +308,12 @@ public class MockOvsDatapathConnection extends OvsDatapathConnection {
         }
     }
 
+    @Override
+    protected void _doFlowsDelete(@Nonnull Datapath datapath, @Nonnull List<? extends Iterable<FlowKey>> keys, @Nonnull List<? extends Callback<Flow>> callbacks, long timeout) {
+        for (int i = 0; i < keys.size(); i++)
+            _doFlowsDelete(datapath, keys.get(i), callbacks.get(i), timeout);
+    }
+
     @Override
     protected void _doFlowsGet(@Nonnull Datapath datapath, @Nonnull FlowMatch match, @Nonnull Callback<Flow> callback, long timeout) {
         if(flowsTable.containsKey(match)){
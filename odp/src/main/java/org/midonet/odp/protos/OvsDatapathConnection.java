@@ -595,6 +595,46 @@ public abstract class OvsDatapathConnection extends AbstractNetlinkConnection {
                                            @Nonnull final Callback<Flow> callback,
                                            final long timeout);
 
+    /**
+     * Callback based api for deleting several flows at once. The delete
+     * requests are written to the datapath in as few system calls as
+     * possible, but each flow is deleted, answered and timed out on its own:
+     * the callback at a given index is invoked with the outcome of deleting
+     * the flow with the keys at the same index.
+     *
+     * @param datapath  the datapath
+     * @param keys      the flow keys of each of the flows to delete
+     * @param callbacks the callbacks which will receive the deleted flows
+     */
+    public void flowsDelete(@Nonnull final Datapath datapath,
+                            @Nonnull final List<? extends Iterable<FlowKey>> keys,
+                            @Nonnull final List<? extends Callback<Flow>> callbacks) {
+        flowsDelete(datapath, keys, callbacks, DEF_REPLY_TIMEOUT);
+    }
+
+    /**
+     * Callback based api for deleting several flows at once.
+     *
+     * @param datapath      the datapath
+     * @param keys          the flow keys of each of the flows to delete
+     * @param callbacks     the callbacks which will receive the deleted flows
+     * @param timeoutMillis the amount of time we should wait for each response
+     */
+    public void flowsDelete(@Nonnull final Datapath datapath,
+                            @Nonnull final List<? extends Iterable<FlowKey>> keys,
+                            @Nonnull final List<? extends Callback<Flow>> callbacks,
+                            long timeoutMillis) {
+        if (keys.size() != callbacks.size())
+            throw new IllegalArgumentException(
+                "Each flow to delete needs its own callback");
+        _doFlowsDelete(datapath, keys, callbacks, timeoutMillis);
+    }
+
+    protected abstract void _doFlowsDelete(@Nonnull final Datapath datapath,
+                                           @Nonnull final List<? extends Iterable<FlowKey>> keys,
+                                           @Nonnull final List<? extends Callback<Flow>> callbacks,
+                                           final long timeout);
+
     /**
      * Callback based api for retrieving a flow.
      *
@@ -16,6 +16,7 @@
 package org.midonet.odp.protos;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
@@ -396,6 +397,35 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
             timeoutMillis);
     }
 
+    @Override
+    protected void _doFlowsDelete(@Nonnull final Datapath datapath,
+                                  @Nonnull final List<? extends Iterable<FlowKey>> keys,
+                                  @Nonnull final List<? extends Callback<Flow>> callbacks,
+                                  final long timeoutMillis) {
+        int datapathId = datapath.getIndex();
+
+        if (datapathId == 0) {
+            for (Callback<Flow> callback : callbacks) {
+                callback.onError(
+                    new OvsDatapathInvalidParametersException(
+                        "The datapath to delete flows from needs a valid datapath id"));
+            }
+            return;
+        }
+
+        List<ByteBuffer> requests = new ArrayList<>(keys.size());
+        for (Iterable<FlowKey> flowKeys : keys)
+            requests.add(Flow.selectOneRequest(getBuffer(), datapathId, flowKeys));
+
+        sendNetlinkMessages(
+            flowFamily.contextDel,
+            NLFlag.REQUEST | NLFlag.ECHO,
+            requests,
+            callbacks,
+            Flow.deserializer,
+            timeoutMillis);
+    }
+
 
     @Override
     protected void _doFlowsFlush(@Nonnull final Datapath datapath,
@@ -533,7 +563,7 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
             packetFamily.contextExec,
             flags,
             Packet.execRequest(getBuffer(), datapathId, keys,
-                               actions, packet.getEthernet()),
+                               actions, packet.getData()),
             callback,
             alwaysTrueReader,
             timeoutMillis);
@@ -16,6 +16,7 @@
 
 package org.midonet.odp.flows;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -26,10 +27,13 @@ import org.junit.Test;
 import org.midonet.odp.FlowMatch;
 import org.midonet.odp.FlowMatches;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.EthernetView;
 import org.midonet.packets.ICMP;
 import org.midonet.packets.IPv4;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.MAC;
+import org.midonet.packets.MalformedPacketException;
+import org.midonet.packets.TCP;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -141,6 +145,60 @@ public class FlowMatchTest {
         assertTrue(m4.isUserSpaceOnly());
     }
 
+    @Test
+    public void testConstructFromEthernetView()
+            throws MalformedPacketException {
+        MAC srcMac = MAC.fromString("aa:bb:cc:dd:ee:ff");
+        MAC dstMac = MAC.fromString("ff:ee:dd:cc:bb:aa");
+        IPv4Addr srcIp = IPv4Addr.fromString("10.0.0.1");
+        IPv4Addr dstIp = IPv4Addr.fromString("10.0.0.2");
+        ICMP echo = new ICMP();
+        echo.setEchoRequest((short)9507, (short)10, "hello".getBytes());
+        ICMP error = new ICMP();
+        error.setType(ICMP.TYPE_UNREACH, ICMP.CODE_NONE, "data".getBytes());
+        TCP tcp = new TCP();
+        tcp.setSourcePort(43210);
+        tcp.setDestinationPort(80);
+        tcp.setFlags((short) 0x12);
+        IPv4 ipv4 = new IPv4();
+        ipv4.setSourceAddress(srcIp);
+        ipv4.setDestinationAddress(dstIp);
+        ipv4.setProtocol(TCP.PROTOCOL_NUMBER);
+        ipv4.setPayload(tcp);
+        Ethernet tagged = new Ethernet();
+        tagged.setSourceMACAddress(srcMac);
+        tagged.setDestinationMACAddress(dstMac);
+        tagged.setEtherType(IPv4.ETHERTYPE);
+        tagged.setVlanID((short) 10);
+        tagged.setVlanID((short) 20);
+        tagged.setPayload(ipv4);
+
+        Ethernet[] frames = {
+            makeFrame(srcMac, dstMac, srcIp, dstIp, echo),
+            makeFrame(srcMac, dstMac, srcIp, dstIp, error),
+            tagged
+        };
+        for (Ethernet frame : frames) {
+            byte[] data = frame.serialize();
+            EthernetView view = new EthernetView().wrap(
+                ByteBuffer.wrap(data), 0, data.length);
+            Ethernet eth = Ethernet.deserialize(data);
+            assertEquals(FlowMatches.fromEthernetPacket(eth),
+                         FlowMatches.fromEthernetView(view));
+
+            FlowMatch fromTree = new FlowMatch();
+            FlowMatch fromView = new FlowMatch();
+            fromTree.addKey(icmp(ICMP.TYPE_ECHO_REQUEST, ICMP.CODE_NONE));
+            fromView.addKey(icmp(ICMP.TYPE_ECHO_REQUEST, ICMP.CODE_NONE));
+            if (frame != tagged) {
+                FlowMatches.addUserspaceKeys(eth, fromTree);
+                FlowMatches.addUserspaceKeys(view, fromView);
+                assertTrue(fromView.isUserSpaceOnly());
+                assertEquals(fromTree, fromView);
+            }
+        }
+    }
+
     private Ethernet makeFrame(MAC srcMac, MAC dstMac,
                                IPv4Addr srcIp, IPv4Addr dstIp,
                                ICMP payload) {
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp.protos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.UniformReservoir;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+
+import org.midonet.netlink.AbstractNetlinkConnection;
+import org.midonet.netlink.BufferPool;
+import org.midonet.netlink.Callback;
+import org.midonet.netlink.NLFlag;
+import org.midonet.netlink.NLMessageType;
+import org.midonet.netlink.Netlink;
+import org.midonet.netlink.NetlinkChannel;
+import org.midonet.netlink.NetlinkRequestContext;
+import org.midonet.netlink.Reader;
+import org.midonet.netlink.exceptions.NetlinkException;
+import org.midonet.util.Bucket;
+
+public class NetlinkBatchedRequestsTest {
+
+    static final short FAMILY = 0x20;
+
+    static final NetlinkRequestContext ctx = new NetlinkRequestContext() {
+        public short commandFamily() { return FAMILY; }
+        public byte command() { return 1; }
+        public byte version() { return 1; }
+    };
+
+    // Reads the int payload of a reply, or -1 for an ACK.
+    static final Reader<Integer> reader = new Reader<Integer>() {
+        public Integer deserializeFrom(ByteBuffer buf) {
+            return buf == null ? -1 : buf.getInt();
+        }
+    };
+
+    static class Connection extends AbstractNetlinkConnection {
+        Connection(NetlinkChannel channel, BufferPool pool) {
+            super(channel, pool);
+        }
+
+        void send(List<? extends Callback<Integer>> callbacks) {
+            List<ByteBuffer> payloads = new ArrayList<>();
+            for (int i = 0; i < callbacks.size(); i++) {
+                ByteBuffer buf = getBuffer();
+                buf.putInt(i);
+                buf.flip();
+                payloads.add(buf);
+            }
+            sendNetlinkMessages(ctx, NLFlag.REQUEST, payloads, callbacks,
+                                reader, DEF_REPLY_TIMEOUT);
+        }
+
+        void sendOne(Callback<Integer> callback) {
+            ByteBuffer buf = getBuffer();
+            buf.putInt(0);
+            buf.flip();
+            sendNetlinkMessage(ctx, NLFlag.REQUEST, buf, callback, reader,
+                               DEF_REPLY_TIMEOUT);
+        }
+
+        @Override
+        protected void handleNotification(short type, byte cmd, int seq,
+                                          int pid, ByteBuffer buffer) {
+        }
+    }
+
+    static class Result implements Callback<Integer> {
+        Integer value;
+        NetlinkException error;
+
+        public void onSuccess(Integer data) { value = data; }
+        public void onError(NetlinkException e) { error = e; }
+    }
+
+    NetlinkChannel channel = PowerMockito.mock(NetlinkChannel.class);
+    List<ByteBuffer> writes = new ArrayList<>();
+    Deque<ByteBuffer> reads = new ArrayDeque<>();
+    boolean failWrites = false;
+    Connection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        PowerMockito.when(channel.getLocalAddress())
+                    .thenReturn(new Netlink.Address(294));
+        PowerMockito.when(channel.write(Matchers.<ByteBuffer>any())).then(
+            new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation)
+                        throws Throwable {
+                    if (failWrites)
+                        throw new IOException("write failed");
+                    ByteBuffer buf = (ByteBuffer) invocation.getArguments()[0];
+                    ByteBuffer copy = ByteBuffer.allocate(buf.remaining())
+                                                .order(ByteOrder.nativeOrder());
+                    copy.put(buf).flip();
+                    writes.add(copy);
+                    return copy.limit();
+                }
+            });
+        PowerMockito.when(channel.read(Matchers.<ByteBuffer>any())).then(
+            new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation)
+                        throws Throwable {
+                    ByteBuffer next = reads.poll();
+                    if (next == null)
+                        return 0;
+                    ByteBuffer buf = (ByteBuffer) invocation.getArguments()[0];
+                    buf.put(next);
+                    return buf.position();
+                }
+            });
+
+        connection = new Connection(channel, new BufferPool(4, 16, 256));
+        connection.bypassSendQueue(true);
+    }
+
+    private static List<Result> results(int n) {
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            results.add(new Result());
+        return results;
+    }
+
+    // Returns the sequence numbers of the messages in a write.
+    private static List<Integer> seqs(ByteBuffer write) {
+        List<Integer> seqs = new ArrayList<>();
+        int pos = 0;
+        while (pos < write.limit()) {
+            int len = write.getInt(pos);
+            Assert.assertEquals(FAMILY, write.getShort(pos + 4));
+            seqs.add(write.getInt(pos + 8));
+            pos += (len + 3) & ~3;
+        }
+        return seqs;
+    }
+
+    private static ByteBuffer reply(ByteBuffer buf, short type, int seq,
+                                    int value) {
+        buf.putInt(type == NLMessageType.ERROR ? 36 : 24);
+        buf.putShort(type);
+        buf.putShort((short) 0);
+        buf.putInt(seq);
+        buf.putInt(294);
+        if (type == NLMessageType.ERROR) {
+            buf.putInt(value);                  // error code
+            buf.putInt(24);                     // the request's header
+            buf.putShort(FAMILY);
+            buf.putShort((short) 0);
+            buf.putInt(seq);
+            buf.putInt(294);
+        } else {
+            buf.putInt(0);                      // genl header
+            buf.putInt(value);
+        }
+        return buf;
+    }
+
+    @Test
+    public void testMessagesShareOneWrite() throws Exception {
+        List<Result> results = results(3);
+        connection.send(results);
+
+        Assert.assertEquals(1, writes.size());
+        List<Integer> seqs = seqs(writes.get(0));
+        Assert.assertEquals(3, seqs.size());
+        Assert.assertEquals(seqs.get(0) + 1, (int) seqs.get(1));
+        Assert.assertEquals(seqs.get(1) + 1, (int) seqs.get(2));
+        Assert.assertEquals(2, writes.get(0).getInt(2 * 24 + 20));
+
+        // The replies come back in a different order and in one read.
+        ByteBuffer replies = ByteBuffer.allocate(256)
+                                       .order(ByteOrder.nativeOrder());
+        reply(replies, FAMILY, seqs.get(2), 42);
+        reply(replies, NLMessageType.ERROR, seqs.get(1), -2);
+        reply(replies, NLMessageType.ERROR, seqs.get(0), 0);
+        replies.flip();
+        reads.add(replies);
+        connection.handleReadEvent(Bucket.BOTTOMLESS);
+
+        Assert.assertEquals(Integer.valueOf(-1), results.get(0).value);
+        Assert.assertNull(results.get(0).error);
+        Assert.assertNull(results.get(1).value);
+        Assert.assertEquals(2, results.get(1).error.getErrorCode());
+        Assert.assertEquals(Integer.valueOf(42), results.get(2).value);
+        Assert.assertNull(results.get(2).error);
+    }
+
+    @Test
+    public void testRepliesOnlyReachTheParts() throws Exception {
+        List<Result> results = results(2);
+        connection.send(results);
+        List<Integer> seqs = seqs(writes.get(0));
+
+        // A repeated reply and one to a sequence number the batch doesn't
+        // own find no pending request and are dropped.
+        ByteBuffer replies = ByteBuffer.allocate(256)
+                                       .order(ByteOrder.nativeOrder());
+        reply(replies, FAMILY, seqs.get(0), 7);
+        reply(replies, FAMILY, seqs.get(0), 8);
+        reply(replies, FAMILY, seqs.get(1) + 1, 9);
+        replies.flip();
+        reads.add(replies);
+        connection.handleReadEvent(Bucket.BOTTOMLESS);
+
+        Assert.assertEquals(Integer.valueOf(7), results.get(0).value);
+        Assert.assertNull(results.get(0).error);
+        Assert.assertNull(results.get(1).value);
+        Assert.assertNull(results.get(1).error);
+    }
+
+    @Test
+    public void testMessagesAreSplitAcrossBuffers() throws Exception {
+        // 24 byte messages, 10 fit in each of the 256 byte buffers.
+        List<Result> results = results(25);
+        connection.send(results);
+
+        Assert.assertEquals(3, writes.size());
+        Assert.assertEquals(10, seqs(writes.get(0)).size());
+        Assert.assertEquals(10, seqs(writes.get(1)).size());
+        Assert.assertEquals(5, seqs(writes.get(2)).size());
+    }
+
+    @Test
+    public void testWriteFailureFailsEveryMessage() throws Exception {
+        failWrites = true;
+        List<Result> results = results(3);
+        connection.send(results);
+
+        for (Result result : results) {
+            Assert.assertEquals(NetlinkException.ERROR_SENDING_REQUEST,
+                                result.error.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testWriteBatchCombinesSingleMessages() throws Exception {
+        Histogram sizes = new Histogram(new UniformReservoir());
+        connection.setWriteBatchSizeHistogram(sizes);
+
+        connection.beginWriteBatch();
+        List<Result> results = results(3);
+        for (Result result : results)
+            connection.sendOne(result);
+        connection.send(results(2));
+        Assert.assertTrue(writes.isEmpty());
+
+        connection.endWriteBatch();
+        Assert.assertEquals(1, writes.size());
+        List<Integer> seqs = seqs(writes.get(0));
+        Assert.assertEquals(5, seqs.size());
+        for (int i = 1; i < seqs.size(); i++)
+            Assert.assertEquals(seqs.get(i - 1) + 1, (int) seqs.get(i));
+        Assert.assertEquals(1, sizes.getCount());
+        Assert.assertEquals(5, sizes.getSnapshot().getMax());
+
+        // Once the batch has ended, each message is written on its own.
+        connection.sendOne(new Result());
+        Assert.assertEquals(2, writes.size());
+        Assert.assertEquals(1, seqs(writes.get(1)).size());
+    }
+
+    @Test
+    public void testWriteBatchIsWrittenWhenTheBufferFills() throws Exception {
+        connection.beginWriteBatch();
+        for (Result result : results(15))
+            connection.sendOne(result);
+        Assert.assertEquals(1, writes.size());
+        Assert.assertEquals(10, seqs(writes.get(0)).size());
+
+        connection.endWriteBatch();
+        Assert.assertEquals(2, writes.size());
+        Assert.assertEquals(5, seqs(writes.get(1)).size());
+    }
+
+    @Test
+    public void testWriteBatchIsPerThread() throws Exception {
+        connection.beginWriteBatch();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                connection.sendOne(new Result());
+            }
+        };
+        other.start();
+        other.join();
+        Assert.assertEquals(1, writes.size());
+
+        connection.sendOne(new Result());
+        Assert.assertEquals(1, writes.size());
+        connection.endWriteBatch();
+        Assert.assertEquals(2, writes.size());
+    }
+}
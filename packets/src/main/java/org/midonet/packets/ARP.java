@@ -43,12 +43,12 @@ public class ARP extends BasePacket {
     /**
      * The hardware address length as a number of octets.
      */
-    private static final int HW_ADDR_LEN = 6;
+    static final int HW_ADDR_LEN = 6;
 
     /**
      * The maximum prototype address length as a number of octets.
      */
-    private static final int MAX_PROTO_ADDR_LEN = 4;
+    static final int MAX_PROTO_ADDR_LEN = 4;
 
     protected short hardwareType;
     protected short protocolType;
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A read-only, flyweight view over an Ethernet frame stored in a ByteBuffer.
+ *
+ * The view reads the header fields straight from the buffer, without building
+ * the tree of {@link Ethernet}, {@link IPv4}, {@link TCP}, etc. objects nor
+ * copying any part of the frame. {@link #wrap(ByteBuffer, int, int)} only
+ * computes the offsets of the headers, so the same view can be pointed at a
+ * different frame any number of times.
+ *
+ * A header is reported as present, e.g. by {@link #hasIPv4()}, under the same
+ * conditions under which {@link Ethernet#deserialize(ByteBuffer)} would parse
+ * it into its own object rather than into a {@link Data} payload, and
+ * {@link #toEthernet()} builds that tree when it's needed.
+ *
+ * The view doesn't modify the position, limit or byte order of the buffer,
+ * and it's only valid as long as the contents of the buffer don't change.
+ */
+public final class EthernetView {
+
+    private static final int MAX_VLAN_TAGS = 8;
+
+    private ByteBuffer buf;
+    private int start;
+    private int end;
+
+    private int vlanCount;
+    private final short[] vlanIds = new short[MAX_VLAN_TAGS];
+    private short etherType;
+
+    private int l3Offset;
+    private int l4Offset;
+    private byte protocol;
+
+    private boolean hasArp;
+    private boolean hasIPv4;
+    private boolean hasIPv6;
+    private boolean hasTransport;
+
+    /**
+     * Points this view at the Ethernet frame of the given length that starts
+     * at the given absolute offset of the buffer.
+     *
+     * @throws MalformedPacketException if the frame is too short to contain
+     *         the Ethernet header and its VLAN tags, the same as
+     *         {@link Ethernet#deserialize(ByteBuffer)}.
+     */
+    public EthernetView wrap(ByteBuffer buf, int offset, int length)
+            throws MalformedPacketException {
+        this.buf = buf;
+        this.start = offset;
+        this.end = offset + length;
+        this.vlanCount = 0;
+        this.hasArp = false;
+        this.hasIPv4 = false;
+        this.hasIPv6 = false;
+        this.hasTransport = false;
+
+        if (length < Ethernet.MIN_HEADER_LEN) {
+            throw new MalformedPacketException("Invalid ethernet frame size: "
+                    + length);
+        }
+
+        int pos = start + 12;
+        short type = getShort(pos);
+        pos += 2;
+        while (type == Ethernet.VLAN_TAGGED_FRAME ||
+               type == Ethernet.PROVIDER_BRIDGING_TAG) {
+            if (end - pos < Ethernet.HEADER_TPID_LEN) {
+                throw new MalformedPacketException("Not enough buffer for "
+                        + "TPID fields: " + (end - pos));
+            }
+            if (vlanCount == MAX_VLAN_TAGS) {
+                throw new MalformedPacketException("Too many VLAN tags");
+            }
+            vlanIds[vlanCount++] = (short) (getShort(pos) & 0x0fff);
+            type = getShort(pos + 2);
+            pos += Ethernet.HEADER_TPID_LEN;
+        }
+        etherType = type;
+        l3Offset = pos;
+
+        switch (etherType) {
+            case ARP.ETHERTYPE:
+                parseArp();
+                break;
+            case IPv4.ETHERTYPE:
+                parseIPv4();
+                break;
+            case IPv6.ETHERTYPE:
+                parseIPv6();
+                break;
+        }
+        return this;
+    }
+
+    private void parseArp() {
+        hasArp = end - l3Offset >= ARP.PACKET_SIZE
+                 && (buf.get(l3Offset + 4) & 0xff) == ARP.HW_ADDR_LEN
+                 && (buf.get(l3Offset + 5) & 0xff) == ARP.MAX_PROTO_ADDR_LEN;
+    }
+
+    private void parseIPv4() {
+        int length = end - l3Offset;
+        if (length < IPv4.MIN_HEADER_LEN || length > IPv4.MAX_PACKET_LEN)
+            return;
+        int headerLen = (buf.get(l3Offset) & 0xf) * 4;
+        int totalLen = getShort(l3Offset + 2) & 0xffff;
+        if (headerLen < IPv4.MIN_HEADER_LEN || totalLen < headerLen
+            || headerLen > length)
+            return;
+        hasIPv4 = true;
+        protocol = buf.get(l3Offset + 9);
+        l4Offset = l3Offset + headerLen;
+        parseTransport();
+    }
+
+    private void parseIPv6() {
+        if (end - l3Offset < IPv6.MIN_HEADER_LEN)
+            return;
+        hasIPv6 = true;
+        protocol = buf.get(l3Offset + 6);
+        l4Offset = l3Offset + IPv6.MIN_HEADER_LEN;
+        if (protocol != ICMP.PROTOCOL_NUMBER)
+            parseTransport();
+    }
+
+    private void parseTransport() {
+        int length = end - l4Offset;
+        switch (protocol) {
+            case TCP.PROTOCOL_NUMBER:
+                if (length >= TCP.MIN_HEADER_LEN) {
+                    int dataOffset = (getShort(l4Offset + 12) >> 12) & 0xf;
+                    hasTransport = dataOffset >= TCP.MIN_DATA_OFFSET
+                                   && dataOffset * 4 <= length;
+                }
+                break;
+            case UDP.PROTOCOL_NUMBER:
+                hasTransport = length >= UDP.HEADER_LEN
+                               && length <= UDP.MAX_PACKET_LEN;
+                break;
+            case ICMP.PROTOCOL_NUMBER:
+                hasTransport = length >= ICMP.HEADER_LEN;
+                break;
+        }
+    }
+
+    private short getShort(int index) {
+        return (short) (((buf.get(index) & 0xff) << 8)
+                        | (buf.get(index + 1) & 0xff));
+    }
+
+    private int getInt(int index) {
+        return ((buf.get(index) & 0xff) << 24)
+               | ((buf.get(index + 1) & 0xff) << 16)
+               | ((buf.get(index + 2) & 0xff) << 8)
+               | (buf.get(index + 3) & 0xff);
+    }
+
+    private long getLong(int index) {
+        return ((long) getInt(index) << 32) | (getInt(index + 4) & 0xffffffffL);
+    }
+
+    private long getMac(int index) {
+        return ((long) (getShort(index) & 0xffff) << 32)
+               | (getInt(index + 2) & 0xffffffffL);
+    }
+
+    private byte[] getBytes(int index, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buf.get(index + i);
+        return bytes;
+    }
+
+    /** The length of the whole frame. */
+    public int length() {
+        return end - start;
+    }
+
+    public MAC getDestinationMACAddress() {
+        return new MAC(getMac(start));
+    }
+
+    public MAC getSourceMACAddress() {
+        return new MAC(getMac(start + 6));
+    }
+
+    /** The ether type of the payload, after any VLAN tags. */
+    public short getEtherType() {
+        return etherType;
+    }
+
+    public int getVlanCount() {
+        return vlanCount;
+    }
+
+    /** The ID of the VLAN tag at the given index, outermost first. */
+    public short getVlanId(int index) {
+        if (index >= vlanCount)
+            throw new IndexOutOfBoundsException();
+        return vlanIds[index];
+    }
+
+    public List<Short> getVlanIDs() {
+        if (vlanCount == 0)
+            return Collections.emptyList();
+        List<Short> ids = new ArrayList<>(vlanCount);
+        for (int i = 0; i < vlanCount; i++)
+            ids.add(vlanIds[i]);
+        return ids;
+    }
+
+    /* ARP */
+
+    public boolean hasArp() {
+        return hasArp;
+    }
+
+    public short getArpOpCode() {
+        return getShort(l3Offset + 6);
+    }
+
+    public MAC getArpSenderHardwareAddress() {
+        return new MAC(getMac(l3Offset + 8));
+    }
+
+    public int getArpSenderProtocolAddress() {
+        return getInt(l3Offset + 14);
+    }
+
+    public MAC getArpTargetHardwareAddress() {
+        return new MAC(getMac(l3Offset + 18));
+    }
+
+    public int getArpTargetProtocolAddress() {
+        return getInt(l3Offset + 24);
+    }
+
+    /* IPv4 and IPv6 */
+
+    public boolean hasIPv4() {
+        return hasIPv4;
+    }
+
+    public boolean hasIPv6() {
+        return hasIPv6;
+    }
+
+    /** The IPv4 protocol or the IPv6 next header. */
+    public byte getIpProtocol() {
+        return protocol;
+    }
+
+    public byte getIPv4DiffServ() {
+        return buf.get(l3Offset + 1);
+    }
+
+    public byte getIPv4Flags() {
+        return (byte) ((getShort(l3Offset + 6) >> 13) & 0x7);
+    }
+
+    public short getIPv4FragmentOffset() {
+        return (short) (getShort(l3Offset + 6) & 0x1fff);
+    }
+
+    public byte getIPv4Ttl() {
+        return buf.get(l3Offset + 8);
+    }
+
+    public int getIPv4SourceAddress() {
+        return getInt(l3Offset + 12);
+    }
+
+    public int getIPv4DestinationAddress() {
+        return getInt(l3Offset + 16);
+    }
+
+    public IPv6Addr getIPv6SourceAddress() {
+        return new IPv6Addr(getLong(l3Offset + 8), getLong(l3Offset + 16));
+    }
+
+    public IPv6Addr getIPv6DestinationAddress() {
+        return new IPv6Addr(getLong(l3Offset + 24), getLong(l3Offset + 32));
+    }
+
+    /* TCP, UDP and ICMP */
+
+    /**
+     * Whether the frame carries a TCP or UDP header, or an ICMP header over
+     * IPv4, as given by {@link #getIpProtocol()}.
+     */
+    public boolean hasTransport() {
+        return hasTransport;
+    }
+
+    public int getSourcePort() {
+        return getShort(l4Offset) & 0xffff;
+    }
+
+    public int getDestinationPort() {
+        return getShort(l4Offset + 2) & 0xffff;
+    }
+
+    /** The TCP flags, along with the data offset, as in TCP#getFlags(). */
+    public short getTcpFlags() {
+        return getShort(l4Offset + 12);
+    }
+
+    public byte getIcmpType() {
+        return buf.get(l4Offset);
+    }
+
+    public byte getIcmpCode() {
+        return buf.get(l4Offset + 1);
+    }
+
+    public short getIcmpIdentifier() {
+        return getShort(l4Offset + 4);
+    }
+
+    /**
+     * A copy of the ICMP data, which follows the ICMP header up to the end of
+     * the frame, or null if there is none, as in ICMP#getData().
+     */
+    public byte[] getIcmpData() {
+        int offset = l4Offset + ICMP.HEADER_LEN;
+        return (offset < end) ? getBytes(offset, end - offset) : null;
+    }
+
+    /**
+     * Builds the object tree of the frame, as
+     * {@link Ethernet#deserialize(ByteBuffer)} does. The tree doesn't share
+     * any data with the buffer.
+     */
+    public Ethernet toEthernet() {
+        ByteBuffer bb = buf.duplicate();
+        bb.limit(end).position(start);
+        Ethernet eth = new Ethernet();
+        try {
+            eth.deserialize(bb.slice());
+        } catch (MalformedPacketException e) {
+            // wrap() already validated the Ethernet header
+            throw new IllegalStateException(e);
+        }
+        return eth;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.packets;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEthernetView {
+
+    private static final MAC srcMac = MAC.fromString("02:aa:bb:cc:dd:01");
+    private static final MAC dstMac = MAC.fromString("02:aa:bb:cc:dd:02");
+
+    private static Ethernet frame(short etherType, IPacket payload) {
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(srcMac);
+        eth.setDestinationMACAddress(dstMac);
+        eth.setEtherType(etherType);
+        eth.setPayload(payload);
+        return eth;
+    }
+
+    private static IPv4 ipv4(byte protocol, IPacket payload) {
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress("10.0.0.1");
+        ip.setDestinationAddress("10.0.0.2");
+        ip.setTtl((byte) 64);
+        ip.setProtocol(protocol);
+        ip.setPayload(payload);
+        return ip;
+    }
+
+    private static EthernetView view(byte[] data)
+            throws MalformedPacketException {
+        return new EthernetView().wrap(ByteBuffer.wrap(data), 0, data.length);
+    }
+
+    @Test
+    public void testTcpOverVlans() throws MalformedPacketException {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(43210);
+        tcp.setDestinationPort(80);
+        tcp.setFlags((short) 0x02);
+        Ethernet eth = frame(IPv4.ETHERTYPE, ipv4(TCP.PROTOCOL_NUMBER, tcp));
+        eth.setVlanID((short) 100);
+        eth.setVlanID((short) 200);
+        byte[] data = eth.serialize();
+
+        Ethernet expected = Ethernet.deserialize(data);
+        IPv4 ip = (IPv4) expected.getPayload();
+        TCP expectedTcp = (TCP) ip.getPayload();
+
+        EthernetView view = view(data);
+        assertEquals(expected.getSourceMACAddress(), view.getSourceMACAddress());
+        assertEquals(expected.getDestinationMACAddress(),
+                     view.getDestinationMACAddress());
+        assertEquals(expected.getEtherType(), view.getEtherType());
+        assertEquals(expected.getVlanIDs(), view.getVlanIDs());
+        assertTrue(view.hasIPv4());
+        assertEquals(ip.getSourceAddress(), view.getIPv4SourceAddress());
+        assertEquals(ip.getDestinationAddress(),
+                     view.getIPv4DestinationAddress());
+        assertEquals(ip.getTtl(), view.getIPv4Ttl());
+        assertEquals(TCP.PROTOCOL_NUMBER, view.getIpProtocol());
+        assertTrue(view.hasTransport());
+        assertEquals(expectedTcp.getSourcePort(), view.getSourcePort());
+        assertEquals(expectedTcp.getDestinationPort(),
+                     view.getDestinationPort());
+        assertEquals(expectedTcp.getFlags(), view.getTcpFlags());
+        assertEquals(expected, view.toEthernet());
+    }
+
+    @Test
+    public void testIcmpError() throws MalformedPacketException {
+        ICMP icmp = new ICMP();
+        icmp.setUnreachable(ICMP.UNREACH_CODE.UNREACH_HOST,
+                            ipv4(UDP.PROTOCOL_NUMBER, new Data(new byte[8])));
+        byte[] data =
+            frame(IPv4.ETHERTYPE, ipv4(ICMP.PROTOCOL_NUMBER, icmp)).serialize();
+        ICMP expected = (ICMP) Ethernet.deserialize(data).getPayload()
+                                                         .getPayload();
+
+        EthernetView view = view(data);
+        assertTrue(view.hasTransport());
+        assertEquals(expected.getType(), view.getIcmpType());
+        assertEquals(expected.getCode(), view.getIcmpCode());
+        assertArrayEquals(expected.getData(), view.getIcmpData());
+    }
+
+    @Test
+    public void testArp() throws MalformedPacketException {
+        Ethernet eth = ARP.makeArpReply(srcMac, dstMac,
+                                        new byte[] {10, 0, 0, 1},
+                                        new byte[] {10, 0, 0, 2});
+        byte[] data = eth.serialize();
+        ARP expected = (ARP) Ethernet.deserialize(data).getPayload();
+
+        EthernetView view = view(data);
+        assertTrue(view.hasArp());
+        assertFalse(view.hasIPv4());
+        assertEquals(expected.getOpCode(), view.getArpOpCode());
+        assertEquals(expected.getSenderHardwareAddress(),
+                     view.getArpSenderHardwareAddress());
+        assertEquals(expected.getTargetHardwareAddress(),
+                     view.getArpTargetHardwareAddress());
+        assertEquals(IPv4Addr.bytesToInt(expected.getSenderProtocolAddress()),
+                     view.getArpSenderProtocolAddress());
+        assertEquals(IPv4Addr.bytesToInt(expected.getTargetProtocolAddress()),
+                     view.getArpTargetProtocolAddress());
+    }
+
+    @Test
+    public void testTruncatedTransportHeader() throws MalformedPacketException {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(1);
+        tcp.setDestinationPort(2);
+        byte[] data =
+            frame(IPv4.ETHERTYPE, ipv4(TCP.PROTOCOL_NUMBER, tcp)).serialize();
+        data = Arrays.copyOf(data, Ethernet.MIN_HEADER_LEN
+                                   + IPv4.MIN_HEADER_LEN + 10);
+
+        EthernetView view = view(data);
+        assertTrue(view.hasIPv4());
+        assertFalse(view.hasTransport());
+        assertFalse(Ethernet.deserialize(data).getPayload().getPayload()
+                        instanceof TCP);
+        assertTrue(view.getVlanIDs().isEmpty());
+    }
+
+    @Test
+    public void testWrapAtOffsetLeavesBufferUntouched()
+            throws MalformedPacketException {
+        UDP udp = new UDP();
+        udp.setSourcePort(68);
+        udp.setDestinationPort(67);
+        udp.setPayload(new Data(new byte[16]));
+        byte[] data =
+            frame(IPv4.ETHERTYPE, ipv4(UDP.PROTOCOL_NUMBER, udp)).serialize();
+        ByteBuffer buf = ByteBuffer.allocate(data.length + 20)
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(20);
+        buf.put(data);
+        buf.position(7);
+
+        EthernetView view = new EthernetView().wrap(buf, 20, data.length);
+        assertEquals(68, view.getSourcePort());
+        assertEquals(67, view.getDestinationPort());
+        assertEquals(Ethernet.deserialize(data), view.toEthernet());
+        assertEquals(7, buf.position());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, buf.order());
+    }
+
+    @Test(expected = MalformedPacketException.class)
+    public void testShortFrame() throws MalformedPacketException {
+        view(new byte[Ethernet.MIN_HEADER_LEN - 1]);
+    }
+}